@@ -16,19 +16,27 @@
 
 package com.ikanow.aleph2.analytics.hadoop.assets;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.apache.hadoop.conf.Configuration;
@@ -68,11 +76,15 @@ import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.analytics.hadoop.data_model.IBeJobConfigurable;
+import com.ikanow.aleph2.analytics.hadoop.utils.AdaptiveBatchSizer;
 import com.ikanow.aleph2.analytics.hadoop.utils.HadoopBatchEnrichmentUtils;
+import com.ikanow.aleph2.analytics.hadoop.utils.HadoopErrorUtils;
 import com.ikanow.aleph2.analytics.services.BatchEnrichmentContext;
 import com.ikanow.aleph2.analytics.services.PassthroughService;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.util.Arrays;
 
@@ -129,11 +141,40 @@ public class BatchEnrichmentJob{
 		protected static class MutableStats {
 			int in = 0;
 			int out = 0;
+			long time_ms = 0L; // (time spent in the module's onObjectBatch)
+			long in_per_sec = 0L;
+			int batch_size = 0; // (the size of the last batch, or the current size if adaptive)
+			
+			private long time_ns = 0L;
+			transient Optional<AdaptiveBatchSizer> batch_sizer = Optional.empty(); // (if the element enables adaptive batching, see setup)
+			
+			/** Adds the results of a batch (only called from one thread at a time for a given stage)
+			 * @param batch_in
+			 * @param batch_out
+			 * @param batch_time_ns
+			 */
+			void update(final int batch_in, final int batch_out, final long batch_time_ns) {
+				in += batch_in;
+				out += batch_out;
+				time_ns += batch_time_ns;
+				time_ms = time_ns/1000000L;
+				in_per_sec = (time_ns > 0) ? ((1000000000L*in)/time_ns) : 0L;
+				batch_size = batch_sizer.map(sizer -> sizer.getBatchSize()).orElse(batch_in);
+			}
 		}
 		
 		protected int _batch_size = 100;
+		protected boolean _adaptive_batching = false; // (true if any of the stages tune their own batch size)
 		protected List<Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats>> _ec_metadata = null;
 		
+		// Parallel stages (only if the pipeline has a non-linear dependency graph):
+		protected static final int BATCH_INPUT = -1;
+		protected Optional<List<List<Integer>>> _stage_graph = Optional.empty();
+		protected ExecutorService _stage_executor = null;
+		protected List<CompletableFuture<?>> _stage_tails = null; // (per stage, the last batch submitted to it)
+		protected final LinkedList<Tuple2<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>, CompletableFuture<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>>>> _batches_in_flight = new LinkedList<>();
+		protected int _max_batches_in_flight = 1;
+		
 		protected List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> _batch = new ArrayList<>();		
 		
 		protected SetOnce<IBucketLogger> _logger = new SetOnce<>(); 
@@ -185,20 +226,26 @@ public class BatchEnrichmentJob{
 			_v1_logger.ifPresent(logger -> logger.info("Setup BatchEnrichmentJob for " + this._enrichment_context.getBucket().map(b -> b.full_name()).orElse("unknown") + " Stage: " + this.getClass().getSimpleName() + ", Grouping = " + this._grouping_element));
 			logger.info("Setup BatchEnrichmentJob for " + this._enrichment_context.getBucket().map(b -> b.full_name()).orElse("unknown") + " Stage: " + this.getClass().getSimpleName() + ", Grouping = " + this._grouping_element);
 			
-			final Iterator<Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats>> it = _ec_metadata.iterator();
-			ProcessingStage mutable_prev_stage = this.getStartingStage();
-			while (it.hasNext()) {
-				final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t3 = it.next();
+			for (int i = 0; i < _ec_metadata.size(); ++i) {
+				final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t3 = _ec_metadata.get(i);
+				final int index = i;
+				final boolean is_terminal = isTerminalStage(i);
+				final ProcessingStage prev_stage = _stage_graph.map(graph -> graph.get(index).contains(BATCH_INPUT)).orElse(0 == index) 
+													? this.getStartingStage()
+													: ProcessingStage.batch;
+				
+				t3._4().batch_sizer = AdaptiveBatchSizer.fromOverrides(t3._3().technology_override(), _batch_size);
+				_adaptive_batching |= t3._4().batch_sizer.isPresent();
 				
 				_v1_logger.ifPresent(logger -> logger.info("Set up enrichment module " + t3._2().getClass().getSimpleName() + " name " + Optional.ofNullable(t3._3().name()).orElse("(no name)")));
 				logger.info("Set up enrichment module " + t3._2().getClass().getSimpleName() + " name " + Optional.ofNullable(t3._3().name()).orElse("(no name)"));
 				
 				t3._1().onStageInitialize(t3._2(), _data_bucket, t3._3(), 
 						Tuples._2T(
-							mutable_prev_stage
+							prev_stage
 							, 
 							Patterns.match(this).<ProcessingStage>andReturn()
-								.when(__ -> it.hasNext(), __ -> ProcessingStage.batch)
+								.when(__ -> !is_terminal, __ -> ProcessingStage.batch)
 								.when(BatchEnrichmentBaseMapper.class, __ -> _grouping_element.isPresent(), __ -> ProcessingStage.grouping)
 								.when(BatchEnrichmentBaseMapper.class, __ -> !_grouping_element.isPresent(), __ -> ProcessingStage.output)
 								.when(BatchEnrichmentBaseCombiner.class, __ -> ProcessingStage.grouping)
@@ -209,83 +256,342 @@ public class BatchEnrichmentJob{
 													.filter(x -> !x.equals(EnrichmentControlMetadataBean.UNKNOWN_GROUPING_FIELDS))
 													.collect(Collectors.toList()))
 						);	
-				
-				mutable_prev_stage = ProcessingStage.batch;
 			}
+			setupStagePool(config);
 			
 		} // setup
 		
 		/** Checks if we should send a batch of objects to the next stage in the pipeline
 		 * @param flush
 		 */
-		@SuppressWarnings("unchecked")
 		protected void checkBatch(boolean flush, final TaskInputOutputContext<?,?,ObjectNodeWritableComparable,ObjectNodeWritableComparable> hadoop_context){
 			if (flush) {
 				_v1_logger.ifPresent(logger -> logger.info("Completing job."));
 				logger.info("Completing job.");
 			}
 			
-			if((_batch.size() >= _batch_size) || flush) {
+			if (_stage_graph.isPresent()) { // (stages run on the thread pool, see submitBatch)
+				if (isBatchFull() || (flush && !_batch.isEmpty())) {
+					hadoop_context.progress(); // (for little performance may in some cases prevent timeouts)
+					
+					final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> batch = _batch;
+					_batch = new ArrayList<>();
+					submitBatch(batch, hadoop_context);
+				}
+				completeBatches(flush, hadoop_context);
+				
+				if (flush) {
+					for (int i = 0; i < _ec_metadata.size(); ++i) {
+						final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t4 = _ec_metadata.get(i);
+						if (t4._4().in > 0) logStageComplete(t4, t4._4().out, isTerminalStage(i), hadoop_context);
+					}
+				}
+			}
+			else if(isBatchFull() || flush) {
 				hadoop_context.progress(); // (for little performance may in some cases prevent timeouts)
 				
 				final Iterator<Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats>> it = _ec_metadata.iterator();
 				List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> mutable_start = _batch;
-				// Note currently we're sending the output of one pipeline into the input of the other
-				// eventually we want to build the dependency graph and then perform the different stages in parallel
+				// Note this is the linear pipeline case - if the elements declare dependencies on each other then the dependency graph is built
+				// and the different stages are performed in parallel (see buildStageGraph/submitBatch)
 				while (it.hasNext()) {
 					final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t4 = it.next();
 					
 					if (!_batch.isEmpty()) { // only do this is there's something to process
 						// Skip over the grouping element, we've already processed it
 						if (this._grouping_element.filter(g -> g == t4._3()).isPresent()) continue;
-						t4._2().clearOutputRecords();
-						
-						final int batch_in = mutable_start.size();
 						
-						t4._1().onObjectBatch(mutable_start.stream().map(t2 -> t2._1()), Optional.of(mutable_start.size()), Optional.empty());
-						mutable_start = t4._2().getOutputRecords();
-						
-						final int batch_out = mutable_start.size();
-		
-						t4._4().in += batch_in;
-						t4._4().out += batch_out;
-						
-						_logger.optional().ifPresent(l -> l.log(Level.TRACE, 						
-								ErrorUtils.lazyBuildMessage(true, () -> "BatchEnrichmentJob", 
-										() -> Optional.ofNullable(t4._3().name()).orElse("no_name") + ".onObjectBatch", 
-										() -> null, 
-										() -> ErrorUtils.get("New batch stage {0} task={1} in={2} out={3} cumul_in={4}, cumul_out={5}", 
-												Optional.ofNullable(t4._3().name()).orElse("(no name)"),  hadoop_context.getTaskAttemptID().toString(), batch_in, batch_out, Integer.toString(t4._4().in),  Integer.toString(t4._4().out)),
-										() -> null)
-										));						
+						mutable_start = runStage(t4, mutable_start, hadoop_context);
 					}
 					
 					if (flush && (t4._4().in > 0)) { // (means it's the last one) always logs if this module had any inputs
-						
-						if (_v1_logger.isPresent()) // (have to do it this way because of mutable var) 
-							_v1_logger.get().info("Stage " + Optional.ofNullable(t4._3().name()).orElse("(no name)") + " output records=" + mutable_start.size() + " final_stage=" + !it.hasNext());
-						logger.info("Stage " + Optional.ofNullable(t4._3().name()).orElse("(no name)") + " output records=" + mutable_start.size() + " final_stage=" + !it.hasNext());
-						
-						_logger.optional().ifPresent(l -> l.log(Level.INFO, 						
-								ErrorUtils.lazyBuildMessage(true, () -> "BatchEnrichmentJob", 
-										() -> Optional.ofNullable(t4._3().name()).orElse("no_name") + ".completeBatchFinalStage", 
-										() -> null, 
-										() -> ErrorUtils.get("Completed stage {0} task={1} in={2} out={3}", 
-												Optional.ofNullable(t4._3().name()).orElse("(no name)"),  hadoop_context.getTaskAttemptID().toString(), Integer.toString(t4._4().in),  Integer.toString(t4._4().out)),
-										() -> _mapper.convertValue(t4._4(), Map.class))
-										));
-						
-						_logger.optional().ifPresent(Lambdas.wrap_consumer_u(l -> l.flush().get(60,  TimeUnit.SECONDS)));
+						logStageComplete(t4, mutable_start.size(), !it.hasNext(), hadoop_context);
 					}
 					
 					if (!it.hasNext() && !_batch.isEmpty()) { // final stage output anything we have here (only do this is there's something to process)						
 						completeBatchFinalStage(mutable_start, hadoop_context);						
 					}
 				}				
+				closeRecords(_batch);
 				_batch.clear();
 			}		
 		}
 		
+		/** Whether enough records have been collected to run the pipeline
+		 *  (if any stages tune their own batch size, collects enough for the largest of them - the others get the batch in chunks, see runStage)
+		 * @return
+		 */
+		protected boolean isBatchFull() {
+			return (_batch.size() >= _batch_size) && 
+					(!_adaptive_batching || _ec_metadata.stream().allMatch(t4 -> _batch.size() >= getStageBatchSize(t4)));
+		}
+		
+		/** Returns the number of records a stage is given per call to onObjectBatch
+		 * @param t4 - the stage
+		 * @return the stage's adaptive batch size, else the fixed batch size if other stages are adaptive, else unlimited (ie the stage gets whatever the previous stage output)
+		 */
+		protected int getStageBatchSize(final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t4) {
+			return t4._4().batch_sizer.map(sizer -> sizer.getBatchSize()).orElse(_adaptive_batching ? _batch_size : Integer.MAX_VALUE);
+		}
+		
+		/** Runs a single stage of the pipeline over a batch
+		 * @param t4 - the stage
+		 * @param batch - the input records (split into chunks if larger than the stage's batch size)
+		 * @param hadoop_context
+		 * @return the output records
+		 */
+		protected List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> runStage(
+				final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t4, 
+				final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> batch,
+				final TaskInputOutputContext<?,?,ObjectNodeWritableComparable,ObjectNodeWritableComparable> hadoop_context)
+		{
+			final int stage_batch_size = getStageBatchSize(t4);
+			final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> output = new ArrayList<>();
+			
+			for (List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> chunk: (batch.size() > stage_batch_size) ? Lists.partition(batch, stage_batch_size) : Arrays.asList(batch)) {
+				t4._2().clearOutputRecords();
+				
+				final int batch_in = chunk.size();
+				final long start_ns = System.nanoTime();
+				
+				t4._1().onObjectBatch(chunk.stream().map(t2 -> t2._1()), Optional.of(batch_in), Optional.empty());
+				// (copy since the context re-uses its list, and in the parallel case the stage can start its next batch before the downstream stages have finished with this one)
+				output.addAll(t4._2().getOutputRecords());
+				
+				final long batch_time_ns = System.nanoTime() - start_ns;
+				final int batch_out = t4._2().getOutputRecords().size();
+				t4._4().batch_sizer.ifPresent(sizer -> sizer.update(batch_in, batch_time_ns, chunk.stream().map(t2 -> t2._1()._2())));
+				t4._4().update(batch_in, batch_out, batch_time_ns);
+				
+				_logger.optional().ifPresent(l -> l.log(Level.TRACE, 						
+						ErrorUtils.lazyBuildMessage(true, () -> "BatchEnrichmentJob", 
+								() -> Optional.ofNullable(t4._3().name()).orElse("no_name") + ".onObjectBatch", 
+								() -> null, 
+								() -> ErrorUtils.get("New batch stage {0} task={1} in={2} out={3} cumul_in={4}, cumul_out={5}, batch_size={6}", 
+										Optional.ofNullable(t4._3().name()).orElse("(no name)"),  hadoop_context.getTaskAttemptID().toString(), batch_in, batch_out, Integer.toString(t4._4().in),  Integer.toString(t4._4().out), Integer.toString(t4._4().batch_size)),
+								() -> null)
+								));
+			}
+			return output;
+		}
+		
+		/** Logs the stats for a stage once all its batches have been processed
+		 * @param t4 - the stage
+		 * @param output_size - the number of records output in the final batch
+		 * @param final_stage - whether the stage's output goes to the next phase (grouping/output) rather than another stage
+		 * @param hadoop_context
+		 */
+		@SuppressWarnings("unchecked")
+		protected void logStageComplete(
+				final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t4,
+				final int output_size, final boolean final_stage,
+				final TaskInputOutputContext<?,?,ObjectNodeWritableComparable,ObjectNodeWritableComparable> hadoop_context)
+		{
+			if (_v1_logger.isPresent()) // (have to do it this way because of mutable var) 
+				_v1_logger.get().info("Stage " + Optional.ofNullable(t4._3().name()).orElse("(no name)") + " output records=" + output_size + " final_stage=" + final_stage + " records/s=" + t4._4().in_per_sec + " batch_size=" + t4._4().batch_size);
+			logger.info("Stage " + Optional.ofNullable(t4._3().name()).orElse("(no name)") + " output records=" + output_size + " final_stage=" + final_stage + " records/s=" + t4._4().in_per_sec + " batch_size=" + t4._4().batch_size);
+			
+			_logger.optional().ifPresent(l -> l.log(Level.INFO, 						
+					ErrorUtils.lazyBuildMessage(true, () -> "BatchEnrichmentJob", 
+							() -> Optional.ofNullable(t4._3().name()).orElse("no_name") + ".completeBatchFinalStage", 
+							() -> null, 
+							() -> ErrorUtils.get("Completed stage {0} task={1} in={2} out={3}", 
+									Optional.ofNullable(t4._3().name()).orElse("(no name)"),  hadoop_context.getTaskAttemptID().toString(), Integer.toString(t4._4().in),  Integer.toString(t4._4().out)),
+							() -> _mapper.convertValue(t4._4(), Map.class))
+							));
+			
+			_logger.optional().ifPresent(Lambdas.wrap_consumer_u(l -> l.flush().get(60,  TimeUnit.SECONDS)));
+		}
+		
+		//////////////////////////////////////////////////////////////////////////////////////////////
+		
+		// PARALLEL STAGES
+		
+		/** Builds the dependency graph of the pipeline, if any of its elements declare dependencies on (earlier) named elements or on the batch input 
+		 * @param stages - the (enabled) elements of the pipeline, in order
+		 * @return for each stage, the indexes of the stages whose output it takes as input (BATCH_INPUT for the batch itself), or empty if the pipeline is linear
+		 */
+		protected static Optional<List<List<Integer>>> buildStageGraph(final List<EnrichmentControlMetadataBean> stages) {
+			final Map<String, Integer> name_to_index = new HashMap<>();
+			final List<List<Integer>> graph = new ArrayList<>(stages.size());
+			boolean mutable_is_linear = true;
+			for (int i = 0; i < stages.size(); ++i) {
+				final int index = i;
+				final List<Integer> inputs = Optionals.ofNullable(stages.get(i).dependencies()).stream()
+						.map(dep -> Optional.ofNullable(dep).orElse(""))
+						.map(dep -> {
+							final Integer upstream = name_to_index.get(dep);
+							if (null != upstream) return upstream;
+							else if (EnrichmentControlMetadataBean.PREVIOUS_STEP_ALL_INPUTS.equals(dep)) return BATCH_INPUT;
+							else return index - 1; // ("", "$previous", or an element in a different phase, eg the reducer)
+						})
+						.distinct()
+						.collect(Collectors.toList());
+				
+				final List<Integer> linear = Arrays.asList(i - 1); // (ie the previous stage, or BATCH_INPUT for the first one)
+				graph.add(inputs.isEmpty() ? linear : inputs);
+				mutable_is_linear &= inputs.isEmpty() || inputs.equals(linear);
+				
+				Optional.ofNullable(stages.get(i).name()).ifPresent(name -> name_to_index.put(name, index));
+			}
+			return mutable_is_linear ? Optional.empty() : Optional.of(graph);
+		}
+		
+		/** Whether a stage's output goes to the next phase (grouping/output) rather than another stage 
+		 * @param index - the index of the stage in the pipeline
+		 * @return
+		 */
+		protected boolean isTerminalStage(final int index) {
+			return _stage_graph.map(graph -> graph.stream().noneMatch(inputs -> inputs.contains(index))).orElse(index == (_ec_metadata.size() - 1));
+		}
+		
+		/** Whether the stage graph should be built (and stages run in parallel) for this element type
+		 * @return
+		 */
+		protected boolean supportsStageGraph() {
+			return false;
+		}
+		
+		/** Creates the (bounded) thread pool that runs the stages, if the pipeline has a dependency graph
+		 * @param config
+		 */
+		protected void setupStagePool(final Configuration config) {
+			_stage_graph.ifPresent(graph -> {
+				final int threads = config.getInt(HadoopBatchEnrichmentUtils.BE_STAGE_THREADS, 
+													Math.max(1, Math.min(graph.size(), Runtime.getRuntime().availableProcessors())));
+				
+				// (the modules were loaded from the user JARs via the context classloader, so pass it on)
+				final ClassLoader context_classloader = Thread.currentThread().getContextClassLoader();
+				_stage_executor = Executors.newFixedThreadPool(threads, 
+						new ThreadFactoryBuilder()
+							.setDaemon(true)
+							.setNameFormat("aleph2-batch-stage-%d")
+							.setThreadFactory(r -> {
+								final Thread t = new Thread(r);
+								t.setContextClassLoader(context_classloader);
+								return t;
+							})
+							.build());
+				
+				_stage_tails = _ec_metadata.stream().<CompletableFuture<?>>map(__ -> CompletableFuture.completedFuture(null)).collect(Collectors.toList());
+				_max_batches_in_flight = graph.size(); // (enough for every stage to be working on a different batch)
+				
+				logger.info("Running " + graph.size() + " stages in parallel, threads=" + threads + ", graph=" + graph);
+			});
+		}
+		
+		/** Schedules each stage of the pipeline for a batch - a stage runs once all its upstream stages have completed this batch, and it has completed
+		 *  the previous batch (so each module still sees its batches one at a time and in order), ie independent branches run concurrently, and
+		 *  successive batches are pipelined through the stages 
+		 * @param batch - the input records
+		 * @param hadoop_context
+		 */
+		protected void submitBatch(final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> batch, final TaskInputOutputContext<?,?,ObjectNodeWritableComparable,ObjectNodeWritableComparable> hadoop_context) {
+			final List<List<Integer>> graph = _stage_graph.get();
+			
+			final List<CompletableFuture<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>>> outputs = new ArrayList<>(graph.size());
+			try {
+				scheduleStages(batch, graph, outputs, hadoop_context);
+			}
+			catch (RuntimeException e) { // (eg the pool has been shut down - wait for any stages that did get scheduled to finish with the batch before closing it)
+				CompletableFuture.allOf(outputs.stream().toArray(CompletableFuture[]::new)).handle((__, ___) -> null).join();
+				closeRecords(batch);
+				abortBatchesInFlight();
+				throw e;
+			}
+			final List<CompletableFuture<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>>> terminal_outputs =
+					IntStream.range(0, graph.size()).filter(i -> isTerminalStage(i)).mapToObj(i -> outputs.get(i)).collect(Collectors.toList());
+			
+			_batches_in_flight.add(Tuples._2T(batch, 
+					CompletableFuture.allOf(terminal_outputs.stream().toArray(CompletableFuture[]::new))
+						.thenApply(__ -> terminal_outputs.stream().flatMap(f -> f.join().stream()).collect(Collectors.toList()))));
+		}
+		
+		/** Schedules each stage of the pipeline for a batch on the stage pool (see submitBatch)
+		 * @param batch - the input records
+		 * @param graph - the stage graph
+		 * @param outputs - the output of each stage for this batch, filled in as the stages are scheduled
+		 * @param hadoop_context
+		 */
+		protected void scheduleStages(final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> batch,
+				final List<List<Integer>> graph, 
+				final List<CompletableFuture<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>>> outputs,
+				final TaskInputOutputContext<?,?,ObjectNodeWritableComparable,ObjectNodeWritableComparable> hadoop_context)
+		{
+			for (int i = 0; i < graph.size(); ++i) {
+				final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t4 = _ec_metadata.get(i);
+				
+				final List<CompletableFuture<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>>> upstream = 
+						graph.get(i).stream()
+							.map(j -> (BATCH_INPUT == j) ? CompletableFuture.completedFuture(batch) : outputs.get(j))
+							.collect(Collectors.toList());
+				
+				final CompletableFuture<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>> stage_output =
+						CompletableFuture.allOf(Stream.<CompletableFuture<?>>concat(upstream.stream(), Stream.of(_stage_tails.get(i))).toArray(CompletableFuture[]::new))
+							.thenApplyAsync(__ -> runStage(t4, 
+														(1 == upstream.size())
+															? upstream.get(0).join()
+															: upstream.stream().flatMap(f -> f.join().stream()).collect(Collectors.toList())
+														, hadoop_context)
+									, _stage_executor);
+				
+				outputs.add(stage_output);
+				_stage_tails.set(i, stage_output);
+			}
+		}
+		
+		/** Outputs the batches that have been through all the stages, in order, on the calling thread (so the hadoop context is only ever written from the task's thread)
+		 *  Blocks if too many batches are in flight. If a batch has failed, then the records of all the batches still in flight are closed before the error is rethrown
+		 * @param wait_for_all - if true then waits for all the batches to complete
+		 * @param hadoop_context
+		 */
+		protected void completeBatches(final boolean wait_for_all, final TaskInputOutputContext<?,?,ObjectNodeWritableComparable,ObjectNodeWritableComparable> hadoop_context) {
+			while (!_batches_in_flight.isEmpty() && 
+					(wait_for_all || (_batches_in_flight.size() > _max_batches_in_flight) || _batches_in_flight.peek()._2().isDone()))
+			{
+				final Tuple2<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>, CompletableFuture<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>>> 
+					batch_output = _batches_in_flight.poll();
+				
+				try {
+					completeBatchFinalStage(batch_output._2().join(), hadoop_context);
+				}
+				catch (RuntimeException e) { // (will trigger a failure of the task, same as if the module had thrown in the linear case)
+					abortBatchesInFlight();
+					throw ((e instanceof CompletionException) && (e.getCause() instanceof RuntimeException)) ? (RuntimeException) e.getCause() : e;
+				}
+				finally {
+					closeRecords(batch_output._1());
+				}
+			}
+		}
+		
+		/** After a failure, waits for the stages still working on the batches in flight to finish with them (ignoring any further errors), then closes their records
+		 */
+		protected void abortBatchesInFlight() {
+			while (!_batches_in_flight.isEmpty()) {
+				final Tuple2<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>, CompletableFuture<List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>>>> 
+					batch_output = _batches_in_flight.poll();
+				
+				// (the batch's future only completes once all its stages have, since every stage feeds a terminal stage)
+				batch_output._2().handle((__, ___) -> null).join();
+				closeRecords(batch_output._1());
+			}
+		}
+		
+		/** Releases any resources held by the input records once they've been processed (eg streaming binary records hold their file open)
+		 * @param records
+		 */
+		protected static void closeRecords(final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> records) {
+			records.stream().map(t2 -> t2._1()._2()).filter(r -> r instanceof Closeable).forEach(r -> {
+				try {
+					((Closeable) r).close();
+				}
+				catch (Exception e) {
+					logger.error(ErrorUtils.getLongForm(HadoopErrorUtils.EXCEPTION_CAUGHT, e));
+				}
+			});
+		}
+		
 		/** cleanup delegate
 		 * @param context
 		 * @throws IOException
@@ -295,6 +601,7 @@ public class BatchEnrichmentJob{
 				TaskInputOutputContext<?, ?, ObjectNodeWritableComparable, ObjectNodeWritableComparable> context)
 				throws IOException, InterruptedException {
 			checkBatch(true, context);
+			Optional.ofNullable(_stage_executor).ifPresent(ExecutorService::shutdown);
 			
 			//DEBUG
 			//System.out.println("Flushing output....." + new java.util.Date());
@@ -386,6 +693,10 @@ public class BatchEnrichmentJob{
 												});
 									})
 									.collect(Collectors.toList());			
+			
+			_stage_graph = supportsStageGraph()
+								? buildStageGraph(_ec_metadata.stream().map(t4 -> t4._3()).collect(Collectors.toList()))
+								: Optional.empty();
 		}
 	
 	}
@@ -457,6 +768,7 @@ public class BatchEnrichmentJob{
 	 */
 	protected static class BatchEnrichmentBaseMapper extends BatchEnrichmentBase {
 		protected ProcessingStage getStartingStage() { return ProcessingStage.input; }		
+		protected boolean supportsStageGraph() { return true; }
  
 		/** Setup delegate
 		 * @param context
@@ -32,6 +32,7 @@ import org.apache.logging.log4j.Logger;
 import scala.Tuple2;
 
 import com.ikanow.aleph2.analytics.hadoop.utils.HadoopBatchEnrichmentUtils;
+import com.ikanow.aleph2.analytics.hadoop.utils.HadoopCodecUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
@@ -57,7 +58,8 @@ public class BeFileInputFormat extends UpdatedCombineFileInputFormat<String, Tup
 	@Override
 	protected boolean isSplitable(JobContext context, Path file) {
 		logger.debug("BeFileInputFormat.isSplitable");
-		return false;
+		// (uncompressed JSON lines can be split at record boundaries - everything else is read in one go, decompressing on the fly)
+		return HadoopCodecUtils.isSplittable(file.toString());
 	}
 
 	/* (non-Javadoc)
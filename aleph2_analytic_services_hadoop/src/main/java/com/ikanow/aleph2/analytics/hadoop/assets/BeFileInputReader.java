@@ -28,6 +28,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.InputSplit;
@@ -47,8 +48,10 @@ import com.ikanow.aleph2.analytics.hadoop.services.BeXmlParser;
 import com.ikanow.aleph2.analytics.hadoop.services.BeJsonParser;
 import com.ikanow.aleph2.analytics.hadoop.services.BeStreamParser;
 import com.ikanow.aleph2.analytics.hadoop.utils.HadoopBatchEnrichmentUtils;
+import com.ikanow.aleph2.analytics.hadoop.utils.HadoopCodecUtils;
 import com.ikanow.aleph2.analytics.hadoop.utils.HadoopErrorUtils;
 import com.ikanow.aleph2.analytics.services.BatchEnrichmentContext;
+import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
@@ -91,6 +94,7 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 
 	protected List<IParser> _parsers = null; // (initialized in Initialize method) 	
 	protected Date start = null;	
+	protected boolean _stream_records = true; // (if false, binary content is read in up front - see the c'tor below)
 	
 	/** User c'tor
 	 */
@@ -100,6 +104,16 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 		_config = config_override;
 	}
 	
+	/** User c'tor
+	 * @param stream_records - if false, binary file content is read into memory up front and the file is archived/deleted straight away, 
+	 *                         for callers that never close the records (eg Spark) - otherwise the records stream the content and must be closed
+	 */
+	public BeFileInputReader(final boolean stream_records){
+		super();
+		logger.debug("BeFileInputReader.constructor");
+		_stream_records = stream_records;
+	}
+	
 	/** User c'tor
 	 */
 	public BeFileInputReader(){
@@ -123,11 +137,15 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 		// Get input configuration...
 		final AnalyticThreadJobInputBean input_settings = BeanTemplateUtils.from(_config.get(HadoopBatchEnrichmentUtils.BE_BUCKET_INPUT_CONFIG, "{}"), AnalyticThreadJobInputBean.class).get();
 		
+		final Optional<BeFileInputConfigBean> input_config = Optionals.of(() -> input_settings.filter().get("technology_override"))
+							.filter(o -> o instanceof Map)
+							.map(m -> BeanTemplateUtils.from((Map<String, Object>)m, BeFileInputConfigBean.class).get());
+		
+		final long spill_threshold = input_config.map(b -> b.stream_spill_threshold_kb()).map(kb -> 1024L*kb).orElse(BeStreamParser.DEFAULT_SPILL_THRESHOLD);
+		
 		// ... Convert to parsers		
 		_parsers = Stream.concat(
-				Optionals.of(() -> input_settings.filter().get("technology_override"))
-							.filter(o -> o instanceof Map)
-							.map(m -> BeanTemplateUtils.from((Map<String, Object>)m, BeFileInputConfigBean.class).get())
+				input_config
 							.map(b -> Optionals.ofNullable(b.parsers())
 										.stream()
 										.<IParser>flatMap(p -> {
@@ -136,7 +154,7 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 								)
 							.orElse(Stream.empty())
 				,
-				Stream.of(new BeJsonParser(), new BeStreamParser()) // (Always dump these 2 defaults on the end)
+				Stream.of(new BeJsonParser(), new BeStreamParser(spill_threshold)) // (Always dump these 2 defaults on the end)
 				)
 				.collect(Collectors.toList())
 				;
@@ -166,7 +184,7 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 	public boolean nextKeyValue() throws IOException, InterruptedException {
 		_numRecords++;
 		if (_numRecords > _maxRecords) {
-			archiveOrDeleteFile();
+			if (null != _inStream) archiveOrDeleteFile(_fileSplit.getPath(_currFile));
 			if (null != _inStream) {
 				_inStream.close();
 			}
@@ -200,10 +218,10 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 					
 					final Path renamed = in.suffix(_my_uuid);
 					_fs.rename(in, renamed);
-					_inStream = _fs.open(renamed);
+					_inStream = openStream(_fs.open(renamed), in.toString(), 0L, Long.MAX_VALUE);
 				}
 				else {
-					_inStream = _fs.open(in);
+					_inStream = openStream(_fs.open(in), in.toString(), _fileSplit.getOffset(_currFile), _fileSplit.getLength(_currFile));
 				}
 			}
 			catch (FileNotFoundException e) { // probably: this is a spare mapper, and the original mapper has deleted this file using renameAfterParse
@@ -218,12 +236,12 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 				}
 			}
 			this._currentFileName = _fileSplit.getPath(_currFile).toString();
-			_parser = getParser(_currentFileName);
+			_parser = getParser(HadoopCodecUtils.stripCodec(_currentFileName));
 		}	 // instream = null		
 		
 		_record = _parser.getNextRecord(_currFile,_currentFileName,_inStream);
 		if (null == _record) { // Finished this file - are there any others?
-			archiveOrDeleteFile();
+			archiveOrDeleteFile(_fileSplit.getPath(_currFile));
 			_currFile++;
 			if (_currFile < _numFiles) {
 				_inStream.close();
@@ -236,19 +254,36 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 		} // record = null
 		// close stream if not multiple records per file supported
 		if(!_parser.multipleRecordsPerFile()){
-			archiveOrDeleteFile();
+			if ((_record._2() instanceof BeStreamParser.StreamingBatchRecord) && _stream_records) {
+				// (the record now owns the stream, which it closes once the batch it's in has been processed - only then can the file be moved/deleted)
+				final Path current_path = _fileSplit.getPath(_currFile);
+				((BeStreamParser.StreamingBatchRecord)_record._2()).onClose(() -> archiveOrDeleteFile(current_path));
+			}
+			else if (_record._2() instanceof BeStreamParser.StreamingBatchRecord) { // (nothing will close the record, so read the content in now and release the file)
+				final BeStreamParser.StreamingBatchRecord streaming_record = (BeStreamParser.StreamingBatchRecord)_record._2();
+				try {
+					_record = new Tuple2<Long, IBatchRecord>(_record._1(), new BatchRecordUtils.BatchRecord(streaming_record.getJson(), streaming_record.getContent().orElse(null)));
+				}
+				finally {
+					streaming_record.close();
+					archiveOrDeleteFile(_fileSplit.getPath(_currFile));
+				}
+			}
+			else {
+				archiveOrDeleteFile(_fileSplit.getPath(_currFile));
+				_inStream.close();
+			}
 			_currFile++;
-			_inStream.close();
 			_inStream = null;
 		}
 		return true;
 	}
 
 	/** For input files (pure enrichment, not when used for analytics), deletes or archives the files following completion
+	 * @param currentPath - the (original, ie not renamed) path of the file
 	 */
-	private void archiveOrDeleteFile() {
+	private void archiveOrDeleteFile(final Path currentPath) {
 		try {
-			final Path currentPath = _fileSplit.getPath(_currFile);
 			// First check - if only want to do anything if this is an internal job:
 			if (!currentPath.toString().contains(IStorageService.TO_IMPORT_DATA_SUFFIX)) {
 				return; // (not your file to modify....)
@@ -305,6 +340,27 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 		return storedPath;
 	}
 
+	/** Returns the stream to parse for a file (or part of a file): decompresses it on the fly if it has a codec extension,
+	 *  or restricts it to the records that start in this split's range if it's splittable
+	 * @param raw - the stream returned from the file system
+	 * @param path - the (original, ie not renamed) path of the file
+	 * @param start - the offset of the split in the file
+	 * @param length - the length of the split
+	 * @return
+	 * @throws IOException
+	 */
+	protected static InputStream openStream(final FSDataInputStream raw, final String path, final long start, final long length) throws IOException {
+		final Optional<String> codec = HadoopCodecUtils.getCodec(path);
+		if (codec.isPresent()) {
+			return HadoopCodecUtils.wrapInputInCodec(codec.get(), raw);
+		}
+		else if (HadoopCodecUtils.isSplittable(path)) {
+			if (start > 0) raw.seek(start);
+			return new HadoopCodecUtils.SplitInputStream(raw, start, (Long.MAX_VALUE - length) > start ? start + length : Long.MAX_VALUE);
+		}
+		else return raw;
+	}
+	
 	/** Returns the parser
 	 * @param path
 	 * @return
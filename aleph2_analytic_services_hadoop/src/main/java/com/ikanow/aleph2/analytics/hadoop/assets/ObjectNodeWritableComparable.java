@@ -18,53 +18,84 @@ package com.ikanow.aleph2.analytics.hadoop.assets;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
 
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 
 /** Object node wrapper that is also hadoop Writable
+ *  The object is transmitted as (vint length prefixed) SMILE, with the fields of every object written in sorted order - so equal objects always have
+ *  the same bytes, and keys can be sorted/grouped on the serialized form without deserializing them (see Comparator)
  * @author Alex
  */
 public class ObjectNodeWritableComparable implements WritableComparable<Object> {
 
 	protected static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 
+	// (no header - saves 4B per object, and it's always SMILE anyway)
+	protected static final SmileFactory _smile_factory =
+			new SmileFactory()
+				.configure(SmileGenerator.Feature.WRITE_HEADER, false)
+				.configure(SmileParser.Feature.REQUIRE_HEADER, false);
+
+	protected static final ObjectMapper _smile_mapper = new ObjectMapper(_smile_factory).disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE); // (only used to write scalars mid-object)
+
+	// (re-used across objects since the bytes are copied into the output)
+	protected static final ThreadLocal<DataOutputBuffer> _write_buffer = ThreadLocal.withInitial(() -> new DataOutputBuffer());
+
+	static { // (register the raw comparator, so it's used wherever hadoop sorts these objects)
+		WritableComparator.define(ObjectNodeWritableComparable.class, new Comparator());
+	}
+
 	private ObjectNode _object_node;
 
+	private byte[] _read_buffer = new byte[0]; // (hadoop re-uses instances when deserializing)
+
 	/** Returns the wrapped JSON object
 	 * @return
 	 */
 	public JsonNode get() {
 		return _object_node;
 	}
-	
+
 	/** System c'tor
 	 */
-	public ObjectNodeWritableComparable() {		
+	public ObjectNodeWritableComparable() {
 	}
-	
+
 	/** User c'tor
 	 * @param object_node
 	 */
 	public ObjectNodeWritableComparable(final ObjectNode object_node) {
 		_object_node = object_node;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see org.apache.hadoop.io.Writable#write(java.io.DataOutput)
 	 */
 	@Override
 	public void write(DataOutput out) throws IOException {
-		final Text text = new Text();
-		text.set(_object_node.toString());
-		
-		text.write(out);
+		final DataOutputBuffer buffer = serialize();
+
+		WritableUtils.writeVInt(out, buffer.getLength());
+		out.write(buffer.getData(), 0, buffer.getLength());
 	}
 
 	/* (non-Javadoc)
@@ -72,33 +103,115 @@ public class ObjectNodeWritableComparable implements WritableComparable<Object>
 	 */
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		final Text text = new Text();
-		text.readFields(in);
-		
-		_object_node = (ObjectNode) _mapper.readTree(text.toString()); //(object node by construction)
+		final int length = WritableUtils.readVInt(in);
+		if (_read_buffer.length < length) {
+			_read_buffer = new byte[length];
+		}
+		in.readFully(_read_buffer, 0, length);
+
+		_object_node = _smile_mapper.readTree(_smile_factory.createParser(_read_buffer, 0, length)); //(object node by construction)
 	}
 
 	@Override
 	public String toString() {
 		return _object_node.toString();
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see java.lang.Comparable#compareTo(java.lang.Object)
 	 */
 	@Override public int compareTo(Object o){
-		// Should never be called, if it is then just use the JSON representation
-		return toString().compareTo(o.toString());
+		// Should never be called (the raw comparator is used instead) - if it is then compare the serialized forms, so the order is the same as the comparator's
+		if (o instanceof ObjectNodeWritableComparable) {
+			try {
+				final DataOutputBuffer buffer1 = serialize();
+				final byte[] b1 = Arrays.copyOf(buffer1.getData(), buffer1.getLength()); // (copy since the buffer is re-used for the other object)
+				final DataOutputBuffer buffer2 = ((ObjectNodeWritableComparable) o).serialize();
+				final byte[] b2 = Arrays.copyOf(buffer2.getData(), buffer2.getLength());
+				return WritableComparator.compareBytes(b1, 0, b1.length, b2, 0, b2.length);
+			}
+			catch (IOException e) { // (writing into memory, so can't happen)
+				throw new RuntimeException(e);
+			}
+		}
+		else return toString().compareTo(o.toString());
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override public boolean equals(Object o) {
+		return (o instanceof ObjectNodeWritableComparable) && _object_node.equals(((ObjectNodeWritableComparable) o)._object_node);
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
 	 */
 	@Override public int hashCode() {
 		return _object_node.hashCode();
 	}
-	
-	public static class Comparator extends Text.Comparator {
-		//(nothing to do, just use the defaults - this object is transmitted as Text binary)
-	}	
+
+	/** Serializes the object into the (per thread) buffer, as canonical SMILE
+	 * @return the buffer, valid until the next call on this thread
+	 * @throws IOException
+	 */
+	protected DataOutputBuffer serialize() throws IOException {
+		final DataOutputBuffer buffer = _write_buffer.get();
+		buffer.reset();
+		try (JsonGenerator generator = _smile_factory.createGenerator(buffer)) {
+			writeCanonical(generator, _object_node);
+		}
+		return buffer;
+	}
+
+	/** Writes a JSON tree with the fields of every object in sorted order
+	 * @param generator
+	 * @param node
+	 * @throws IOException
+	 */
+	protected static void writeCanonical(final JsonGenerator generator, final JsonNode node) throws IOException {
+		if (node.isObject()) {
+			final List<String> field_names = new ArrayList<>(node.size());
+			final Iterator<String> it = node.fieldNames();
+			while (it.hasNext()) field_names.add(it.next());
+			Collections.sort(field_names);
+
+			generator.writeStartObject();
+			for (final String field_name: field_names) {
+				generator.writeFieldName(field_name);
+				writeCanonical(generator, node.get(field_name));
+			}
+			generator.writeEndObject();
+		}
+		else if (node.isArray()) {
+			generator.writeStartArray();
+			for (final JsonNode child: node) {
+				writeCanonical(generator, child);
+			}
+			generator.writeEndArray();
+		}
+		else {
+			_smile_mapper.writeTree(generator, node);
+		}
+	}
+
+	/** Compares objects on their serialized bytes, without deserializing them
+	 *  (since the serialization is canonical, equal objects compare as equal - otherwise the order is arbitrary but consistent, which is all grouping needs)
+	 * @author Alex
+	 */
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(ObjectNodeWritableComparable.class);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.hadoop.io.WritableComparator#compare(byte[], int, int, byte[], int, int)
+		 */
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			final int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+			final int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+			return compareBytes(b1, s1 + n1, l1 - n1, b2, s2 + n2, l2 - n2);
+		}
+	}
 }
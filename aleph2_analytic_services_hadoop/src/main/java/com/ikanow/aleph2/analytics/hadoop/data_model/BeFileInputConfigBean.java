@@ -27,8 +27,14 @@ import com.ikanow.aleph2.data_model.objects.data_import.AnnotationBean;
  */
 public class BeFileInputConfigBean {
 	public List<Parser> parsers() { return parsers; }
+	/** For binary files (that aren't handled by any of the parsers), the size (in KB) above which content that needs to be read more than once 
+	 *  is copied to local disk instead of memory
+	 * @return
+	 */
+	public Long stream_spill_threshold_kb() { return stream_spill_threshold_kb; }
 	
 	private List<Parser> parsers;		
+	private Long stream_spill_threshold_kb;
 		
 	// Sub classes
 	
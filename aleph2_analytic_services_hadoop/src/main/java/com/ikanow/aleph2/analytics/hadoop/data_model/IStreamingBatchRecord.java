@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.hadoop.data_model;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+
+/** A batch record whose binary content is read lazily from the underlying file, so that arbitrarily large files can be processed with flat memory usage
+ *  Enrichment modules that want to avoid reading the whole file into memory (which is what getContent() has to do) can check for this interface and use
+ *  the methods below instead
+ *  The record (and any local copy of the content) is closed by the framework once the batch containing it has been processed
+ * @author Alex
+ */
+public interface IStreamingBatchRecord extends IBatchRecord, Closeable {
+
+	/** Returns a stream over the content
+	 *  The first call streams directly from the file, so the content can only be read once (in chunks) unless it has been materialized first,
+	 *  by getLocalFile(), mapContent() or getContent() - after that each call returns a new stream over the materialized copy
+	 * @return
+	 * @throws IOException
+	 */
+	InputStream getContentStream() throws IOException;
+
+	/** Copies the content to a local file (if it isn't already), eg for tools that need a file, or to memory map regions of files >2GB
+	 *  (the file is deleted when the record is closed)
+	 * @return
+	 * @throws IOException
+	 */
+	File getLocalFile() throws IOException;
+
+	/** Memory maps the content (copying it to a local file first) - only supports content <2GB, use getLocalFile to map regions of larger files
+	 * @return a read-only buffer over the content
+	 * @throws IOException
+	 */
+	MappedByteBuffer mapContent() throws IOException;
+}
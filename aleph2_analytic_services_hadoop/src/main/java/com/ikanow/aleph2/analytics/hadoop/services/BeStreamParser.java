@@ -15,8 +15,20 @@
  *******************************************************************************/
 package com.ikanow.aleph2.analytics.hadoop.services;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Optional;
 
 import org.apache.logging.log4j.LogManager;
@@ -24,46 +36,55 @@ import org.apache.logging.log4j.Logger;
 
 import scala.Tuple2;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.ikanow.aleph2.analytics.hadoop.data_model.IParser;
+import com.ikanow.aleph2.analytics.hadoop.data_model.IStreamingBatchRecord;
+import com.ikanow.aleph2.analytics.hadoop.utils.HadoopErrorUtils;
 import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 
-//TODO (ALEPH-12): this isn't supposed to read the binary in until requested (And then in blocks, so can handle high memory cases)
-
-/** Parser for readining in binary data
+/** Parser for reading in binary data - the content isn't read in until requested (and then in blocks, spilling to local disk above a threshold),
+ *  so can handle files that are much larger than the available memory
  * @author Alex
  */
 public class BeStreamParser implements IParser {
 
 	private static final Logger logger = LogManager.getLogger(BeStreamParser.class);
 	
+	public static final long DEFAULT_SPILL_THRESHOLD = 16L*1024L*1024L; // (content larger than this is copied to local disk rather than memory when materialized)
+	protected static final int BLOCK_SIZE = 64*1024;
+	
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	
+	protected final long _spill_threshold;
+	
+	/** User c'tor
+	 */
+	public BeStreamParser() {
+		this(DEFAULT_SPILL_THRESHOLD);
+	}
+	
+	/** User c'tor
+	 * @param spill_threshold - content larger than this (in bytes) is copied to local disk instead of memory if it needs to be materialized
+	 */
+	public BeStreamParser(final long spill_threshold) {
+		_spill_threshold = spill_threshold;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.analytics.hadoop.data_model.IParser#getNextRecord(long, java.lang.String, java.io.InputStream)
+	 */
 	@Override
 	public Tuple2<Long, IBatchRecord> getNextRecord(long currentFileIndex,String fileName,  InputStream inStream) {
 		logger.debug("StreamParser.getNextRecord");
 
-		ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		Tuple2<Long, IBatchRecord> t2 = null;
-		try {
-		   JsonNode node = mapper.createObjectNode(); 
-		   ((ObjectNode) node).put("fileName", fileName);
-		   // create output stream
-			ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-	        int readedBytes;
-	        byte[] buf = new byte[1024];
-	        while ((readedBytes = inStream.read(buf)) > 0)
-	        {
-	            outStream.write(buf, 0, readedBytes);
-	        }
-	        outStream.close();			    	
-			t2 = new Tuple2<Long, IBatchRecord>(currentFileIndex, new BatchRecordUtils.BatchRecord(node, outStream));
-		} catch (Exception e) {
-			logger.error("JsonParser caught exception",e);
-		}
-		return t2;
+		final ObjectNode node = _mapper.createObjectNode(); 
+		node.put("fileName", fileName);
+		// (the record takes ownership of the stream)
+		return new Tuple2<Long, IBatchRecord>(currentFileIndex, new StreamingBatchRecord(node, inStream, _spill_threshold));
 	}
 
 	/* (non-Javadoc)
@@ -73,4 +94,189 @@ public class BeStreamParser implements IParser {
 	public boolean handleThisPath(String path) {
 		return true;
 	}
+	
+	/** A batch record backed by the (open) file stream, see IStreamingBatchRecord
+	 * @author Alex
+	 */
+	public static class StreamingBatchRecord extends BatchRecordUtils.BatchRecord implements IStreamingBatchRecord {
+		
+		/** Byte buffer that can be read back without copying
+		 */
+		protected static class ContentBuffer extends ByteArrayOutputStream {
+			public InputStream newInputStream() { return new ByteArrayInputStream(buf, 0, count); }
+		}
+		
+		protected final InputStream _source;
+		protected final long _spill_threshold;
+		protected final List<Runnable> _on_close = new LinkedList<>();
+		
+		protected boolean _source_taken = false; // (once the source stream has been handed out or copied, it can't be re-read)
+		protected ContentBuffer _in_memory = null;
+		protected File _local_file = null;
+		protected boolean _closed = false;
+		
+		/** User c'tor
+		 * @param json - the metadata for the record
+		 * @param source - the stream over the content (the record takes ownership of it)
+		 * @param spill_threshold - content larger than this is copied to local disk rather than memory when materialized
+		 */
+		public StreamingBatchRecord(final ObjectNode json, final InputStream source, final long spill_threshold) {
+			super(json, null);
+			_source = source;
+			_spill_threshold = spill_threshold;
+		}
+		
+		/** Registers a callback to run when the record is closed (eg to archive the file once it has been processed)
+		 * @param on_close
+		 */
+		public synchronized void onClose(final Runnable on_close) {
+			_on_close.add(on_close);
+		}
+		
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.analytics.hadoop.data_model.IStreamingBatchRecord#getContentStream()
+		 */
+		@Override
+		public synchronized InputStream getContentStream() throws IOException {
+			checkOpen();
+			if (null != _in_memory) {
+				return _in_memory.newInputStream();
+			}
+			else if (null != _local_file) {
+				return new BufferedInputStream(Files.newInputStream(_local_file.toPath()), BLOCK_SIZE);
+			}
+			else {
+				takeSource();
+				return _source;
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.analytics.hadoop.data_model.IStreamingBatchRecord#getLocalFile()
+		 */
+		@Override
+		public synchronized File getLocalFile() throws IOException {
+			materialize();
+			if (null != _in_memory) {
+				final File file = createLocalFile();
+				try (OutputStream out = Files.newOutputStream(file.toPath())) {
+					_in_memory.writeTo(out);
+				}
+				_local_file = file;
+				_in_memory = null;
+			}
+			return _local_file;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.analytics.hadoop.data_model.IStreamingBatchRecord#mapContent()
+		 */
+		@Override
+		public synchronized MappedByteBuffer mapContent() throws IOException {
+			try (FileChannel channel = FileChannel.open(getLocalFile().toPath(), StandardOpenOption.READ)) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // (the mapping remains valid after the channel is closed)
+			}
+		}
+		
+		/** Legacy access to the content - reads it all into memory, so avoid for large files (use getContentStream/getLocalFile/mapContent instead)
+		 * @see com.ikanow.aleph2.core.shared.utils.BatchRecordUtils.BatchRecord#getContent()
+		 */
+		@Override
+		public synchronized Optional<ByteArrayOutputStream> getContent() {
+			try {
+				materialize();
+				if (null != _in_memory) {
+					return Optional.of(_in_memory);
+				}
+				else {
+					logger.warn(ErrorUtils.get("Reading {0} bytes of spilled content back into memory: {1}", _local_file.length(), getJson().path("fileName").asText()));
+					final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8L, _local_file.length()));
+					Files.copy(_local_file.toPath(), out);
+					return Optional.of(out);
+				}
+			}
+			catch (IOException e) {
+				logger.error(ErrorUtils.getLongForm(HadoopErrorUtils.EXCEPTION_CAUGHT, e));
+				return Optional.empty();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			if (_closed) return;
+			_closed = true;
+			try {
+				_source.close();
+			}
+			finally {
+				_in_memory = null;
+				if (null != _local_file) {
+					_local_file.delete();
+					_local_file = null;
+				}
+				_on_close.forEach(Runnable::run);
+			}
+		}
+		
+		/** Copies the content from the file stream into memory, or local disk if it's larger than the spill threshold (if not already done)
+		 * @throws IOException
+		 */
+		protected void materialize() throws IOException {
+			checkOpen();
+			if ((null != _in_memory) || (null != _local_file)) return;
+			takeSource();
+			
+			final ContentBuffer buffer = new ContentBuffer();
+			final byte[] block = new byte[BLOCK_SIZE];
+			int read;
+			while ((read = _source.read(block)) >= 0) {
+				if ((buffer.size() + read) > _spill_threshold) { // switch to local disk
+					final File file = createLocalFile();
+					try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BLOCK_SIZE)) {
+						buffer.writeTo(out);
+						out.write(block, 0, read);
+						while ((read = _source.read(block)) >= 0) {
+							out.write(block, 0, read);
+						}
+					}
+					catch (IOException e) {
+						file.delete();
+						throw e;
+					}
+					_local_file = file;
+					return;
+				}
+				buffer.write(block, 0, read);
+			}
+			_in_memory = buffer;
+		}
+		
+		/** Marks the source stream as used, erroring if it already has been
+		 */
+		protected void takeSource() {
+			if (_source_taken) {
+				throw new IllegalStateException(ErrorUtils.get("Content stream already read (call getLocalFile or getContent first to read more than once): {0}", getJson().path("fileName").asText()));
+			}
+			_source_taken = true;
+		}
+		
+		/** Checks the record hasn't been closed
+		 */
+		protected void checkOpen() {
+			if (_closed) {
+				throw new IllegalStateException(ErrorUtils.get("Record already closed: {0}", getJson().path("fileName").asText()));
+			}
+		}
+		
+		/** Creates a temp file in the task's local tmp dir
+		 * @return
+		 * @throws IOException
+		 */
+		protected static File createLocalFile() throws IOException {
+			return Files.createTempFile("aleph2_stream_", ".tmp").toFile();
+		}
+	}
 }
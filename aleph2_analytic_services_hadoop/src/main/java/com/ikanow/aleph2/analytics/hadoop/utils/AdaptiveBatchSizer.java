@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.hadoop.utils;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import com.ikanow.aleph2.analytics.hadoop.data_model.IStreamingBatchRecord;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.Patterns;
+
+/** Tunes the batch size of a single pipeline stage at runtime, from the measured time spent in onObjectBatch and (optionally) the size of the records
+ *  Enabled per element by setting one (or both) of the targets below in its technology_override, eg
+ *  { "batch_target_latency_ms": 2000, "batch_target_kb": 65536, "batch_size_min": 10, "batch_size_max": 5000 }
+ *  - the batch size is then the largest that meets all the targets, within [min, max]
+ *  (it can shrink immediately but only doubles per batch, so a stage with a high fixed cost per call - eg an external lookup - grows towards max,
+ *   and a memory hungry or slow stage shrinks)
+ *  Only one thread updates a given sizer at a time, but the size can be read from any thread
+ * @author Alex
+ */
+public class AdaptiveBatchSizer {
+
+	public static final String TARGET_LATENCY_MS = "batch_target_latency_ms"; //(target time for a single onObjectBatch call)
+	public static final String TARGET_KB = "batch_target_kb"; //(target heap used by the records of a single batch)
+	public static final String MIN_BATCH_SIZE = "batch_size_min";
+	public static final String MAX_BATCH_SIZE = "batch_size_max";
+
+	public static final int DEFAULT_MIN_BATCH_SIZE = 1;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 10000;
+
+	protected static final double SMOOTHING = 0.3; // (weight of the latest batch in the moving averages)
+	protected static final int MAX_SAMPLES = 8; // (number of records per batch whose size is estimated)
+	protected static final int GROWTH_FACTOR = 2;
+
+	protected final Optional<Long> _target_latency_ns;
+	protected final Optional<Long> _target_bytes;
+	protected final int _min_batch_size;
+	protected final int _max_batch_size;
+
+	protected volatile int _batch_size;
+	protected double _ns_per_record = -1.0; // (-1 until the first batch)
+	protected double _bytes_per_record = -1.0;
+
+	/** Creates a sizer from an element's technology_override, if adaptive batching is enabled for it
+	 * @param technology_override - the element's technology_override (can be null)
+	 * @param initial_batch_size - the batch size to start with (eg the fixed batch size that would otherwise be used)
+	 * @return the sizer, or empty if neither target is set
+	 */
+	public static Optional<AdaptiveBatchSizer> fromOverrides(final Map<String, Object> technology_override, final int initial_batch_size) {
+		final Optional<Long> target_latency_ms = getLong(technology_override, TARGET_LATENCY_MS).filter(l -> l > 0);
+		final Optional<Long> target_kb = getLong(technology_override, TARGET_KB).filter(l -> l > 0);
+
+		if (!target_latency_ms.isPresent() && !target_kb.isPresent()) return Optional.empty();
+
+		final int min_batch_size = getLong(technology_override, MIN_BATCH_SIZE).map(l -> Math.max(1, l.intValue())).orElse(DEFAULT_MIN_BATCH_SIZE);
+		final int max_batch_size = getLong(technology_override, MAX_BATCH_SIZE).map(l -> Math.max(min_batch_size, l.intValue())).orElse(Math.max(min_batch_size, DEFAULT_MAX_BATCH_SIZE));
+
+		return Optional.of(new AdaptiveBatchSizer(initial_batch_size, min_batch_size, max_batch_size, target_latency_ms.map(l -> l*1000000L), target_kb.map(l -> l*1024L)));
+	}
+
+	/** User c'tor
+	 * @param initial_batch_size - the batch size to start with
+	 * @param min_batch_size
+	 * @param max_batch_size
+	 * @param target_latency_ns - (optional) target time for a single batch
+	 * @param target_bytes - (optional) target (estimated) heap size of a single batch
+	 */
+	public AdaptiveBatchSizer(final int initial_batch_size, final int min_batch_size, final int max_batch_size, final Optional<Long> target_latency_ns, final Optional<Long> target_bytes) {
+		_min_batch_size = min_batch_size;
+		_max_batch_size = max_batch_size;
+		_target_latency_ns = target_latency_ns;
+		_target_bytes = target_bytes;
+		_batch_size = clamp(initial_batch_size);
+	}
+
+	/** Returns the current batch size
+	 * @return
+	 */
+	public int getBatchSize() {
+		return _batch_size;
+	}
+
+	/** Updates the batch size from a completed batch
+	 * @param batch_in - the number of records in the batch
+	 * @param batch_time_ns - the time taken to process it
+	 * @param records - the records in the batch (only the first few are read, and only if there is a heap target)
+	 * @return the new batch size
+	 */
+	public int update(final int batch_in, final long batch_time_ns, final Stream<IBatchRecord> records) {
+		if (batch_in <= 0) return _batch_size;
+
+		_ns_per_record = smooth(_ns_per_record, ((double) batch_time_ns)/batch_in);
+
+		if (_target_bytes.isPresent()) {
+			final double[] sum_count = records.limit(MAX_SAMPLES).mapToDouble(r -> estimateSize(r)).collect(() -> new double[2], (acc, d) -> { acc[0] += d; acc[1]++; }, (acc1, acc2) -> {});
+			if (sum_count[1] > 0) _bytes_per_record = smooth(_bytes_per_record, sum_count[0]/sum_count[1]);
+		}
+
+		final double by_latency = _target_latency_ns.filter(__ -> _ns_per_record > 0).map(t -> t/_ns_per_record).orElse(Double.MAX_VALUE);
+		final double by_heap = _target_bytes.filter(__ -> _bytes_per_record > 0).map(t -> t/_bytes_per_record).orElse(Double.MAX_VALUE);
+		final double desired = Math.min(Math.min(by_latency, by_heap), ((double) GROWTH_FACTOR)*_batch_size);
+
+		_batch_size = clamp((long) desired);
+		return _batch_size;
+	}
+
+	/** Estimates the heap used by a record - the JSON as text, plus the binary content if it's already in memory
+	 *  (streaming records are read lazily so their content doesn't count)
+	 * @param record
+	 * @return
+	 */
+	public static long estimateSize(final IBatchRecord record) {
+		final long json_size = Optional.ofNullable(record.getJson()).map(j -> 2L*j.toString().length()).orElse(0L); // (2B per char)
+		final long content_size = (record instanceof IStreamingBatchRecord)
+				? 0L
+				: Optional.ofNullable(record.getContent()).flatMap(c -> c).map(c -> (long) c.size()).orElse(0L);
+		return json_size + content_size;
+	}
+
+	////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Restricts a batch size to [min, max]
+	 * @param batch_size
+	 * @return
+	 */
+	protected int clamp(final long batch_size) {
+		return (int) Math.max(_min_batch_size, Math.min(_max_batch_size, batch_size));
+	}
+
+	/** Exponentially weighted moving average
+	 * @param current - current value (-ve if none)
+	 * @param latest - latest measurement
+	 * @return
+	 */
+	protected static double smooth(final double current, final double latest) {
+		return (current < 0) ? latest : (SMOOTHING*latest + (1.0 - SMOOTHING)*current);
+	}
+
+	/** Gets a numeric value (number or string) from the technology_override
+	 * @param technology_override
+	 * @param key
+	 * @return
+	 */
+	protected static Optional<Long> getLong(final Map<String, Object> technology_override, final String key) {
+		return Optionals.of(() -> technology_override.get(key))
+				.map(o -> Patterns.match(o).<Long>andReturn()
+							.when(Number.class, n -> n.longValue())
+							.when(String.class, s -> Long.parseLong(s.trim()))
+							.otherwise(() -> null)
+					);
+	}
+}
@@ -36,5 +36,6 @@ public class HadoopBatchEnrichmentUtils {
 	public static final String BE_BUCKET_SIGNATURE = "aleph2.batch.beBucketSignature";  //(one of context signature or bucket signature must be filled in)
 	public static final String BE_BUCKET_INPUT_CONFIG = "aleph2.batch.inputConfig";  //(one of context signature or bucket signature must be filled in)
 	public static final String BE_DEBUG_MAX_SIZE = "aleph2.batch.debugMaxSize";
+	public static final String BE_STAGE_THREADS = "aleph2.batch.stageThreads"; //(max threads per task used to run pipeline stages in parallel, if they declare dependencies)
 
 }
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.ikanow.aleph2.analytics.hadoop.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+
+/** Utilities for reading the (possibly compressed) files written by the storage service
+ *  (the codec suffixes match the ones the HDFS storage service appends, eg ".json.gz", ".json.fr.sz")
+ * @author Alex
+ */
+public class HadoopCodecUtils {
+
+	public static final String GZIP_CODEC = "gz";
+	public static final String SNAPPY_CODEC = "sz";
+	public static final String SNAPPY_FRAMED_CODEC = "fr.sz";
+
+	// (order matters - "fr.sz" must be checked before "sz")
+	protected static final List<String> CODECS = Arrays.asList(SNAPPY_FRAMED_CODEC, SNAPPY_CODEC, GZIP_CODEC);
+
+	protected static final int BUFFER_SIZE = 64*1024;
+
+	/** Returns the codec (eg "gz", "fr.sz") from the path's extension, if it has one
+	 * @param path - the file path
+	 * @return the codec, or empty if the file is uncompressed
+	 */
+	public static Optional<String> getCodec(final String path) {
+		return CODECS.stream().filter(codec -> path.endsWith("." + codec)).findFirst();
+	}
+
+	/** Returns the path with any codec extension removed, eg "x.json.gz" -> "x.json" (so the parsers can pick by their usual extensions)
+	 * @param path - the file path
+	 * @return the path without a codec extension
+	 */
+	public static String stripCodec(final String path) {
+		return getCodec(path).map(codec -> path.substring(0, path.length() - codec.length() - 1)).orElse(path);
+	}
+
+	/** Wraps the input stream in a streaming decompressor for the given codec
+	 * @param codec - the codec (as returned from getCodec)
+	 * @param original_input - the raw file stream
+	 * @return the decompressed stream
+	 * @throws IOException
+	 */
+	public static InputStream wrapInputInCodec(final String codec, final InputStream original_input) throws IOException {
+		if (codec.equals(GZIP_CODEC)) {
+			return new java.util.zip.GZIPInputStream(original_input, BUFFER_SIZE);
+		}
+		else if (codec.equals(SNAPPY_CODEC)) {
+			return new org.xerial.snappy.SnappyInputStream(original_input);
+		}
+		else if (codec.equals(SNAPPY_FRAMED_CODEC)) {
+			return new org.xerial.snappy.SnappyFramedInputStream(original_input);
+		}
+		else return original_input;
+	}
+
+	/** Returns whether a file can be split across mappers - only uncompressed JSON (one record per line, as written by the storage service)
+	 *  that isn't in the import directory (those files are renamed and then moved/deleted as a unit)
+	 *  (compressed files can't be split: gzip and non-framed snappy have no block boundaries at all, and although framed snappy has chunks,
+	 *   there's no sync marker to find the next chunk from an arbitrary offset and records span chunks anyway)
+	 * @param path - the file path
+	 * @return
+	 */
+	public static boolean isSplittable(final String path) {
+		return !path.contains(IStorageService.TO_IMPORT_DATA_SUFFIX) && path.endsWith(".json");
+	}
+
+	/** Restricts a stream of newline separated records to the records that start inside a byte range of the file
+	 *  (using the same convention as Hadoop's LineRecordReader: unless the range starts at the beginning of the file, the first (partial or not) line
+	 *   is skipped since the previous range will read it - and the last line that starts at or before the end of the range is read in full)
+	 * @author Alex
+	 */
+	public static class SplitInputStream extends InputStream {
+		protected final InputStream _in;
+		protected final long _end;
+		protected long _pos;
+		protected boolean _done = false;
+
+		/** User c'tor
+		 * @param in - the file stream, already positioned at start
+		 * @param start - the offset of the start of the range in the file
+		 * @param end - the offset of the end of the range (exclusive)
+		 * @throws IOException
+		 */
+		public SplitInputStream(final InputStream in, final long start, final long end) throws IOException {
+			_in = new BufferedInputStream(in, BUFFER_SIZE);
+			_pos = start;
+			_end = end;
+			if (start > 0) { // skip to the start of the first record that begins after the start of the range
+				int b;
+				while ((b = _in.read()) >= 0) {
+					_pos++;
+					if ('\n' == b) break;
+				}
+				_done = (b < 0) || (_pos > _end); // (if the first record starts after the end of the range, it belongs to the next one)
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			if (_done) return -1;
+			final int b = _in.read();
+			if (b < 0) {
+				_done = true;
+			}
+			else {
+				// (if this is the end of a line that ends at or after the end of the range, then the next line belongs to the next range)
+				if (('\n' == b) && (_pos >= _end)) _done = true;
+				_pos++;
+			}
+			return b;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (_done) return -1;
+			if (0 == len) return 0;
+			final int n = _in.read(b, off, len);
+			if (n < 0) {
+				_done = true;
+				return n;
+			}
+			if ((_pos + n) > _end) { // (this block crosses the end of the range, so stop after the first newline at or after it)
+				for (int i = (int) Math.max(0L, _end - _pos); i < n; ++i) {
+					if ('\n' == b[off + i]) {
+						_done = true;
+						_pos += i + 1;
+						return i + 1;
+					}
+				}
+			}
+			_pos += n;
+			return n;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			_in.close();
+		}
+	}
+}
@@ -141,6 +141,14 @@ public class HadoopTechnologyUtils {
 					}
 				}
 						
+				// (pre-reducer elements can also depend on earlier pre-reducer elements, in which case the stages are run as a graph)
+				final List<String> mapper_steps = 
+						StreamUtils.takeWhile(configs.stream(), cfg -> !reducer_steps.contains(cfg.name()))
+							.filter(cfg -> Optional.ofNullable(cfg.enabled()).orElse(true))
+							.map(cfg -> cfg.name())
+							.collect(Collectors.toList())
+							;
+				
 				configs.stream()
 					.filter(config -> Optional.ofNullable(config.enabled()).orElse(true))
 					.forEach(config -> {
@@ -157,7 +165,14 @@ public class HadoopTechnologyUtils {
 									.stream()
 									.forEach(dependency -> {
 										final String normalized_dep = Optional.ofNullable(dependency).orElse("");
-										if (!EnrichmentControlMetadataBean.PREVIOUS_STEP_DEPENDENCY.equals(normalized_dep) && !"".equals(normalized_dep) && !reducer_steps.contains(normalized_dep)) {
+										final boolean earlier_mapper_step = 
+												mapper_steps.contains(config.name()) && mapper_steps.subList(0, mapper_steps.indexOf(config.name())).contains(normalized_dep);
+										final boolean all_inputs = 
+												mapper_steps.contains(config.name()) && EnrichmentControlMetadataBean.PREVIOUS_STEP_ALL_INPUTS.equals(normalized_dep);
+										
+										if (!EnrichmentControlMetadataBean.PREVIOUS_STEP_DEPENDENCY.equals(normalized_dep) && !"".equals(normalized_dep) && !reducer_steps.contains(normalized_dep)
+												&& !earlier_mapper_step && !all_inputs) 
+										{
 											errors.add(ErrorUtils.get(HadoopErrorUtils.CURR_DEPENDENCY_RESTRICTIONS, normalized_dep, config.name(), analytic_bucket.full_name(), job.name()));																
 										}
 									});
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.hadoop.assets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.junit.Test;
+
+import scala.Tuple2;
+import scala.Tuple4;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.analytics.hadoop.services.BeStreamParser;
+import com.ikanow.aleph2.analytics.hadoop.utils.HadoopBatchEnrichmentUtils;
+import com.ikanow.aleph2.analytics.services.BatchEnrichmentContext;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule.ProcessingStage;
+import com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+public class TestBatchEnrichmentJob {
+
+	final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	private static EnrichmentControlMetadataBean stage(final String name, final String... deps) {
+		return BeanTemplateUtils.build(EnrichmentControlMetadataBean.class)
+					.with(EnrichmentControlMetadataBean::name, name)
+					.with(EnrichmentControlMetadataBean::dependencies, Arrays.asList(deps))
+				.done().get();
+	}
+
+	@Test
+	public void test_buildStageGraph() {
+		// Linear pipelines don't build a graph
+		{
+			assertEquals(Optional.empty(), BatchEnrichmentJob.BatchEnrichmentBase.buildStageGraph(
+					Arrays.asList(stage("a"), stage("b", EnrichmentControlMetadataBean.PREVIOUS_STEP_DEPENDENCY), stage("c", "b"), stage("d", ""))));
+		}
+		// Named dependencies
+		{
+			final List<EnrichmentControlMetadataBean> stages = Arrays.asList(stage("a"), stage("b", EnrichmentControlMetadataBean.PREVIOUS_STEP_DEPENDENCY), stage("c", ""), stage("d", "a", "c"));
+			assertEquals(Optional.of(Arrays.asList(Arrays.asList(-1), Arrays.asList(0), Arrays.asList(1), Arrays.asList(0, 2))),
+							BatchEnrichmentJob.BatchEnrichmentBase.buildStageGraph(stages));
+		}
+		// Branches
+		{
+			final List<EnrichmentControlMetadataBean> stages = Arrays.asList(stage("a"), stage("b", EnrichmentControlMetadataBean.PREVIOUS_STEP_ALL_INPUTS), stage("c", "a"), stage("d", "b", "c"), stage("e", "reducer"));
+			assertEquals(Optional.of(Arrays.asList(Arrays.asList(-1), Arrays.asList(-1), Arrays.asList(0), Arrays.asList(1, 2), Arrays.asList(3))),
+							BatchEnrichmentJob.BatchEnrichmentBase.buildStageGraph(stages));
+		}
+	}
+
+	/** Runs the stages itself (rather than via modules and their contexts), so the test can control their timing and failures
+	 */
+	protected static class TestParallelStages extends BatchEnrichmentJob.BatchEnrichmentBase {
+		final CountDownLatch _both_running = new CountDownLatch(2);
+		final AtomicInteger _not_parallel = new AtomicInteger(0);
+		final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> _output = Collections.synchronizedList(new ArrayList<>());
+		final int _fail_batch; // (stage "b" throws on this batch)
+
+		TestParallelStages(final int fail_batch) {
+			_fail_batch = fail_batch;
+			_ec_metadata = Arrays.asList(stage("a"), stage("b", EnrichmentControlMetadataBean.PREVIOUS_STEP_ALL_INPUTS), stage("c", "a", "b")).stream()
+					.map(s -> Tuples.<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats>_4T(null, null, s, new MutableStats()))
+					.collect(Collectors.toList());
+			_stage_graph = buildStageGraph(_ec_metadata.stream().map(t4 -> t4._3()).collect(Collectors.toList()));
+			
+			final Configuration config = new Configuration(false);
+			config.setInt(HadoopBatchEnrichmentUtils.BE_STAGE_THREADS, 3);
+			setupStagePool(config);
+		}
+		
+		@Override
+		protected List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> runStage(
+				final Tuple4<IEnrichmentBatchModule, BatchEnrichmentContext, EnrichmentControlMetadataBean, MutableStats> t4, 
+				final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> batch,
+				final TaskInputOutputContext<?,?,ObjectNodeWritableComparable,ObjectNodeWritableComparable> hadoop_context)
+		{
+			final String name = t4._3().name();
+			if (!name.equals("c")) { // ("a" and "b" only depend on the input, so should run at the same time)
+				_both_running.countDown();
+				try {
+					if (!_both_running.await(10L, TimeUnit.SECONDS)) _not_parallel.incrementAndGet();
+					Thread.sleep(50L); // (so that batches pile up)
+				}
+				catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				if (name.equals("b") && (_fail_batch == batch.get(0)._1()._2().getJson().get("batch").asInt())) {
+					throw new RuntimeException("test stage failure");
+				}
+			}
+			return batch;
+		}
+		
+		@Override
+		protected ProcessingStage getStartingStage() {
+			return ProcessingStage.input;
+		}
+
+		@Override
+		public void completeBatchFinalStage(final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> output_objects, final TaskInputOutputContext<?,?,ObjectNodeWritableComparable,ObjectNodeWritableComparable> hadoop_context) {
+			_output.addAll(output_objects);
+		}
+
+		@Override
+		public void setEcMetadata(final List<EnrichmentControlMetadataBean> ecMetadata) {
+		}
+	}
+	
+	/** Builds a batch of closeable records
+	 * @param batch - the batch number (stored in each record)
+	 * @param closed - incremented when each record is closed
+	 * @return
+	 */
+	private static List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> buildBatch(final int batch, final AtomicInteger closed) {
+		return IntStream.range(0, 2).mapToObj(i -> {
+			final BeStreamParser.StreamingBatchRecord record = 
+					new BeStreamParser.StreamingBatchRecord(_mapper.createObjectNode().put("batch", batch).put("i", i), new ByteArrayInputStream(new byte[0]), 1024L);
+			record.onClose(() -> closed.incrementAndGet());
+			return Tuples._2T(Tuples._2T(0L, (IBatchRecord) record), Optional.<JsonNode>empty());
+		})
+		.collect(Collectors.toList());
+	}
+
+	@Test
+	public void test_parallelStages() {
+		// 1) All batches succeed
+		{
+			final TestParallelStages job = new TestParallelStages(-1);
+			final AtomicInteger closed = new AtomicInteger(0);
+			
+			IntStream.range(0, 4).forEach(i -> job.submitBatch(buildBatch(i, closed), null));
+			job.completeBatches(true, null);
+			
+			assertEquals(0, job._not_parallel.get());
+			assertEquals(16, job._output.size()); // (c gets the output of both a and b)
+			assertEquals(8, closed.get());
+			assertTrue(job._batches_in_flight.isEmpty());
+			job._stage_executor.shutdown();
+		}
+		// 2) One of the stages fails: the error is thrown and the records of all the batches in flight are closed
+		{
+			final TestParallelStages job = new TestParallelStages(1);
+			final AtomicInteger closed = new AtomicInteger(0);
+			
+			IntStream.range(0, 4).forEach(i -> job.submitBatch(buildBatch(i, closed), null));
+			try {
+				job.completeBatches(true, null);
+				fail("Should have thrown");
+			}
+			catch (RuntimeException e) {
+				assertEquals("test stage failure", e.getMessage());
+			}
+			assertEquals(0, job._not_parallel.get());
+			assertEquals(4, job._output.size()); // (just the first batch)
+			assertEquals(8, closed.get());
+			assertTrue(job._batches_in_flight.isEmpty());
+			job._stage_executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.hadoop.assets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestObjectNodeWritableComparable {
+
+	private static byte[] serialize(final ObjectNode o) throws IOException {
+		final DataOutputBuffer out = new DataOutputBuffer();
+		new ObjectNodeWritableComparable(o).write(out);
+		return Arrays.copyOf(out.getData(), out.getLength());
+	}
+
+	@Test
+	public void test_serialization() throws IOException {
+		final ObjectNode o1 = (ObjectNode) ObjectNodeWritableComparable._mapper.readTree(
+				"{\"b\":\"test\",\"a\":1,\"c\":{\"z\":[1,2.5,true,null,{\"y\":\"x\",\"x\":\"y\"}],\"y\":\"\u00e9\"}}");
+		// (same object, different field order)
+		final ObjectNode o2 = (ObjectNode) ObjectNodeWritableComparable._mapper.readTree(
+				"{\"c\":{\"y\":\"\u00e9\",\"z\":[1,2.5,true,null,{\"x\":\"y\",\"y\":\"x\"}]},\"a\":1,\"b\":\"test\"}");
+		final ObjectNode o3 = (ObjectNode) ObjectNodeWritableComparable._mapper.readTree("{\"a\":2,\"b\":\"test\"}");
+
+		// Round trip (re-using the same instance, like hadoop does)
+		final ObjectNodeWritableComparable read = new ObjectNodeWritableComparable();
+		for (ObjectNode o: Arrays.asList(o1, o3, o2)) {
+			final DataInputBuffer in = new DataInputBuffer();
+			final byte[] bytes = serialize(o);
+			in.reset(bytes, bytes.length);
+			read.readFields(in);
+			assertEquals(o, read.get());
+		}
+
+		// Canonical
+		assertArrayEquals(serialize(o1), serialize(o2));
+		assertNotEquals(Arrays.toString(serialize(o1)), Arrays.toString(serialize(o3)));
+
+		// More compact than the text version
+		final DataOutputBuffer text = new DataOutputBuffer();
+		new Text(o1.toString()).write(text);
+		assertTrue("Smaller: " + serialize(o1).length + " vs " + text.getLength(), serialize(o1).length < text.getLength());
+	}
+
+	@Test
+	public void test_comparator() throws IOException {
+		final WritableComparator comparator = WritableComparator.get(ObjectNodeWritableComparable.class);
+		assertTrue(comparator instanceof ObjectNodeWritableComparable.Comparator);
+
+		final List<ObjectNode> objects = Arrays.asList(
+				(ObjectNode) ObjectNodeWritableComparable._mapper.readTree("{\"a\":1,\"b\":\"test\"}"),
+				(ObjectNode) ObjectNodeWritableComparable._mapper.readTree("{\"b\":\"test\",\"a\":1}"),
+				(ObjectNode) ObjectNodeWritableComparable._mapper.readTree("{\"a\":2,\"b\":\"test\"}"),
+				(ObjectNode) ObjectNodeWritableComparable._mapper.readTree("{\"a\":1}"),
+				(ObjectNode) ObjectNodeWritableComparable._mapper.readTree("{\"a\":1,\"b\":\"test\",\"c\":[]}")
+				);
+
+		for (ObjectNode x: objects) {
+			for (ObjectNode y: objects) {
+				final byte[] bx = serialize(x);
+				final byte[] by = serialize(y);
+				final int raw = comparator.compare(bx, 0, bx.length, by, 0, by.length);
+				final int deser = new ObjectNodeWritableComparable(x).compareTo(new ObjectNodeWritableComparable(y));
+
+				assertEquals(x + " vs " + y, Integer.signum(deser), Integer.signum(raw));
+				assertEquals(x + " vs " + y, x.equals(y), 0 == raw);
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.hadoop.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.analytics.hadoop.data_model.IStreamingBatchRecord;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+
+public class TestBeStreamParser {
+
+	private static byte[] getContent(final int size) {
+		final byte[] content = new byte[size];
+		for (int i = 0; i < size; ++i) content[i] = (byte)(i % 251);
+		return content;
+	}
+
+	@Test
+	public void test_streaming() throws Exception {
+		final byte[] content = getContent(100000);
+		final BeStreamParser parser = new BeStreamParser();
+
+		final Tuple2<Long, IBatchRecord> record = parser.getNextRecord(0, "my_filename", new ByteArrayInputStream(content));
+		assertEquals("my_filename", record._2().getJson().get("fileName").asText());
+		assertTrue(record._2() instanceof IStreamingBatchRecord);
+
+		final IStreamingBatchRecord streaming = (IStreamingBatchRecord) record._2();
+		try (InputStream in = streaming.getContentStream()) {
+			assertArrayEquals(content, IOUtils.toByteArray(in));
+		}
+		// Can't re-read the stream if it hasn't been materialized
+		try {
+			streaming.getContentStream();
+			fail("Should have thrown");
+		}
+		catch (IllegalStateException e) {}
+
+		streaming.close();
+	}
+
+	@Test
+	public void test_materialize() throws Exception {
+		final byte[] content = getContent(100000);
+
+		// In memory
+		{
+			final BeStreamParser parser = new BeStreamParser();
+			final IStreamingBatchRecord streaming = (IStreamingBatchRecord) parser.getNextRecord(0, "my_filename", new ByteArrayInputStream(content))._2();
+
+			final ByteArrayOutputStream legacy = streaming.getContent().get();
+			assertArrayEquals(content, legacy.toByteArray());
+			assertArrayEquals(content, IOUtils.toByteArray(streaming.getContentStream()));
+			assertArrayEquals(content, IOUtils.toByteArray(streaming.getContentStream()));
+			streaming.close();
+		}
+		// Spilled to disk
+		{
+			final BeStreamParser parser = new BeStreamParser(10000L);
+			final BeStreamParser.StreamingBatchRecord streaming = (BeStreamParser.StreamingBatchRecord) parser.getNextRecord(0, "my_filename", new ByteArrayInputStream(content))._2();
+			final AtomicBoolean closed = new AtomicBoolean(false);
+			streaming.onClose(() -> closed.set(true));
+
+			final File local = streaming.getLocalFile();
+			assertTrue(local.exists());
+			assertEquals(content.length, local.length());
+
+			final MappedByteBuffer mapped = streaming.mapContent();
+			final byte[] from_map = new byte[mapped.remaining()];
+			mapped.get(from_map);
+			assertArrayEquals(content, from_map);
+
+			assertArrayEquals(content, IOUtils.toByteArray(streaming.getContentStream()));
+			assertArrayEquals(content, streaming.getContent().get().toByteArray());
+
+			assertFalse(closed.get());
+			streaming.close();
+			assertTrue(closed.get());
+			assertFalse(local.exists());
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.hadoop.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestAdaptiveBatchSizer {
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	@Test
+	public void test_fromOverrides() {
+		assertFalse(AdaptiveBatchSizer.fromOverrides(null, 100).isPresent());
+		assertFalse(AdaptiveBatchSizer.fromOverrides(Collections.emptyMap(), 100).isPresent());
+		assertFalse(AdaptiveBatchSizer.fromOverrides(ImmutableMap.of(AdaptiveBatchSizer.MAX_BATCH_SIZE, 10), 100).isPresent());
+
+		final Optional<AdaptiveBatchSizer> sizer = AdaptiveBatchSizer.fromOverrides(ImmutableMap.of(AdaptiveBatchSizer.TARGET_LATENCY_MS, "100", AdaptiveBatchSizer.MAX_BATCH_SIZE, 50), 100);
+		assertTrue(sizer.isPresent());
+		assertEquals(50, sizer.get().getBatchSize()); // (clamped)
+	}
+
+	@Test
+	public void test_latencyTarget() {
+		final AdaptiveBatchSizer sizer = AdaptiveBatchSizer.fromOverrides(ImmutableMap.of(AdaptiveBatchSizer.TARGET_LATENCY_MS, 100, AdaptiveBatchSizer.MAX_BATCH_SIZE, 300), 100).get();
+
+		// Fast - grows, but only doubles each time
+		assertEquals(200, sizer.update(100, 10000000L, Stream.empty()));
+		assertEquals(300, sizer.update(200, 20000000L, Stream.empty())); // (max)
+
+		// Suddenly slow - shrinks immediately (ns/record=0.3*10ms+0.7*0.1ms=3.07ms)
+		assertEquals(32, sizer.update(300, 3000000000L, Stream.empty()));
+
+		// Empty batches don't change anything
+		assertEquals(32, sizer.update(0, 1000000000L, Stream.empty()));
+	}
+
+	@Test
+	public void test_heapTarget() {
+		final AdaptiveBatchSizer sizer = AdaptiveBatchSizer.fromOverrides(ImmutableMap.of(AdaptiveBatchSizer.TARGET_KB, 1, AdaptiveBatchSizer.MIN_BATCH_SIZE, 2), 100).get();
+
+		// Each record is {"test":"<x*500>"} ~= 2*511B
+		final List<IBatchRecord> records = IntStream.range(0, 100).<IBatchRecord>mapToObj(i -> new BatchRecordUtils.JsonBatchRecord(_mapper.createObjectNode().put("test", Strings.repeat("x", 500)))).collect(Collectors.toList());
+		assertEquals(1022L, AdaptiveBatchSizer.estimateSize(records.get(0)));
+
+		assertEquals(2, sizer.update(records.size(), 0L, records.stream())); // (min)
+	}
+}
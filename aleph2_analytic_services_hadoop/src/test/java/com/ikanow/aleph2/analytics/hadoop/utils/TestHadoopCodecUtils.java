@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.hadoop.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class TestHadoopCodecUtils {
+
+	@Test
+	public void test_codecs() throws Exception {
+		assertEquals(Optional.of("gz"), HadoopCodecUtils.getCodec("/a/b/data_1.json.gz"));
+		assertEquals(Optional.of("sz"), HadoopCodecUtils.getCodec("/a/b/data_1.json.sz"));
+		assertEquals(Optional.of("fr.sz"), HadoopCodecUtils.getCodec("/a/b/data_1.json.fr.sz"));
+		assertEquals(Optional.empty(), HadoopCodecUtils.getCodec("/a/b/data_1.json"));
+
+		assertEquals("/a/b/data_1.json", HadoopCodecUtils.stripCodec("/a/b/data_1.json.fr.sz"));
+		assertEquals("/a/b/data_1.json", HadoopCodecUtils.stripCodec("/a/b/data_1.json.sz"));
+		assertEquals("/a/b/data_1.xml", HadoopCodecUtils.stripCodec("/a/b/data_1.xml.gz"));
+		assertEquals("/a/b/data_1.json", HadoopCodecUtils.stripCodec("/a/b/data_1.json"));
+
+		assertTrue(HadoopCodecUtils.isSplittable("/a/b/managed_bucket/processed/current/data_1.json"));
+		assertFalse(HadoopCodecUtils.isSplittable("/a/b/managed_bucket/processed/current/data_1.json.gz"));
+		assertFalse(HadoopCodecUtils.isSplittable("/a/b/managed_bucket/processed/current/data_1.csv"));
+
+		// Round trip through the compressed formats
+
+		final String data = IntStream.range(0, 1000).mapToObj(i -> "{\"test\":" + i + "}").collect(Collectors.joining("\n"));
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (OutputStream gz = new java.util.zip.GZIPOutputStream(out)) { gz.write(data.getBytes(StandardCharsets.UTF_8)); }
+			assertEquals(data, readAll(HadoopCodecUtils.wrapInputInCodec("gz", new ByteArrayInputStream(out.toByteArray()))));
+		}
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (OutputStream sz = new org.xerial.snappy.SnappyFramedOutputStream(out)) { sz.write(data.getBytes(StandardCharsets.UTF_8)); }
+			assertEquals(data, readAll(HadoopCodecUtils.wrapInputInCodec("fr.sz", new ByteArrayInputStream(out.toByteArray()))));
+		}
+	}
+
+	@Test
+	public void test_splitInputStream() throws Exception {
+		final List<String> lines = IntStream.range(0, 997).mapToObj(i -> "{\"test\":\"" + i + "_" + (i % 13 == 0 ? "xxxxxxxxxxxxxxxxxxxxx" : "") + "\"}").collect(Collectors.toList());
+		final byte[] data = lines.stream().collect(Collectors.joining("\n", "", "\n")).getBytes(StandardCharsets.UTF_8);
+
+		// Try a few different split sizes, including ones that land exactly on line boundaries, and check every line is read exactly once
+
+		for (int split_size: new int[] { 1, 7, 16, 17, 100, 1000, data.length - 1, data.length, 2*data.length }) {
+			final List<String> read = new ArrayList<>();
+			for (long start = 0; start < data.length; start += split_size) {
+				final InputStream in = new ByteArrayInputStream(data);
+				in.skip(start);
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(new HadoopCodecUtils.SplitInputStream(in, start, start + split_size), StandardCharsets.UTF_8))) {
+					reader.lines().forEach(read::add);
+				}
+			}
+			assertEquals("Split size " + split_size, lines, read);
+		}
+	}
+
+	private static String readAll(final InputStream in) throws Exception {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			return reader.lines().collect(Collectors.joining("\n"));
+		}
+	}
+}
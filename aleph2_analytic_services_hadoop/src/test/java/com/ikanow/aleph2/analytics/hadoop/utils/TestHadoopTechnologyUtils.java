@@ -320,6 +320,30 @@ public class TestHadoopTechnologyUtils {
 			assertEquals("Correct error message: " + res1.message(), ErrorUtils.get(HadoopErrorUtils.CURR_DEPENDENCY_RESTRICTIONS, "invalid_dep", "valid_name", "/test", "analytic_job_5"), res1.message());
 		}
 		
+		// Pass: dependencies on earlier elements (run as a graph)
+		
+		{
+			final AnalyticThreadJobBean analytic_job5b = BeanTemplateUtils.build(AnalyticThreadJobBean.class)
+					.with(AnalyticThreadJobBean::name, "analytic_job_5b")
+					.with(AnalyticThreadJobBean::analytic_technology_name_or_id, "test_analytic_tech_id")
+					.with(AnalyticThreadJobBean::analytic_type, MasterEnrichmentType.batch)
+					.with(AnalyticThreadJobBean::library_names_or_ids, Arrays.asList("id1", "name2"))
+					.with(AnalyticThreadJobBean::config, 
+							new LinkedHashMap<String, Object>(
+								ImmutableMap.<String, Object>builder()
+									.put(EnrichmentControlMetadataBean.ENRICHMENT_PIPELINE, Arrays.asList(
+											ImmutableMap.<String, Object>builder().put("name", "first").build(),
+											ImmutableMap.<String, Object>builder().put("name", "second").put("dependencies", Arrays.asList("$inputs")).build(),
+											ImmutableMap.<String, Object>builder().put("name", "third").put("dependencies", Arrays.asList("first", "second")).build()
+											))
+								.build()
+							))
+					.done().get();
+			
+			final BasicMessageBean res1 = HadoopTechnologyUtils.validateJob(test_bucket1, Collections.emptyList(), analytic_job5b);			
+			assertTrue("Validation should pass: " + res1.message(), res1.success());
+		}
+		
 		// Test error case 6: multiple reducers
 		// THIS CAN'T WORK BECAUSE THE KEYS ARE USED AS THE NAMES THEREFORE THEY MUST BE UNIQUE
 //		{
@@ -34,6 +34,7 @@ import scala.Tuple2;
 
 import com.ikanow.aleph2.analytics.hadoop.assets.BeFileInputReader;
 import com.ikanow.aleph2.analytics.hadoop.utils.HadoopBatchEnrichmentUtils;
+import com.ikanow.aleph2.analytics.hadoop.utils.HadoopCodecUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
@@ -42,7 +43,8 @@ import java.util.Arrays;
 
 /** The file input format specific to batch enrichment modules - uses the default Hadoop CombineFileInputFormat
  *  for cases when the Hadoop version of google.commons.base.Stopwatch is first on the classpath!
- *  OTHERWISE IDENTICAL TO BeFileInputForm in hadoop_analytic_services
+ *  OTHERWISE IDENTICAL TO BeFileInputForm in hadoop_analytic_services, EXCEPT that binary files are read into memory up front
+ *  (Spark never closes the records, so they can't stream the content - see BeFileInputReader)
  * @author jfreydank
  */
 public class BeFileInputFormat_Pure extends CombineFileInputFormat<String, Tuple2<Long, IBatchRecord>> {
@@ -61,7 +63,8 @@ public class BeFileInputFormat_Pure extends CombineFileInputFormat<String, Tuple
 	@Override
 	protected boolean isSplitable(JobContext context, Path file) {
 		logger.debug("BeFileInputFormat.isSplitable");
-		return false;
+		// (uncompressed JSON lines can be split at record boundaries - everything else is read in one go, decompressing on the fly)
+		return HadoopCodecUtils.isSplittable(file.toString());
 	}
 
 	/* (non-Javadoc)
@@ -70,7 +73,7 @@ public class BeFileInputFormat_Pure extends CombineFileInputFormat<String, Tuple
 	@Override
 	public RecordReader<String, Tuple2<Long, IBatchRecord>> createRecordReader(InputSplit inputSplit, TaskAttemptContext context) throws IOException {
 		logger.debug("BeFileInputFormat.createRecordReader");
-		BeFileInputReader reader = new BeFileInputReader();
+		BeFileInputReader reader = new BeFileInputReader(false);
 		// (don't initialize - that gets called seperately by the interface)
 		return reader;
 	} // createRecordReader
@@ -79,6 +79,8 @@ public class SparkJsInterpreterTopology {
 	// rdd.filter(function(x, yy) x + yy, [y]) to use "y" from the enclosing scope
 	// I like the idea of having _2s.f(..., bind[]) for each of
 	// https://spark.apache.org/docs/1.6.0/api/java/org/apache/spark/api/java/function/package-tree.html (.f0, .f2, etc)
+	// (For now _a2.map(rdd, function(x) {...}) does the simplest case of this, with the function source compiled once per pooled engine
+	//  on the executors - see JsScriptEnginePool)
 	
 	// Params:
 	
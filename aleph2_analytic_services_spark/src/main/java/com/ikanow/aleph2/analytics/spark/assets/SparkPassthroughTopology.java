@@ -16,6 +16,7 @@
 package com.ikanow.aleph2.analytics.spark.assets;
 
 import java.util.Collections;
+import java.util.Map;
 import java.util.Optional;
 
 import org.apache.spark.SparkConf;
@@ -26,16 +27,15 @@ import scala.Tuple2;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.Multimap;
+import com.ikanow.aleph2.analytics.spark.utils.SparkEmitUtils;
 import com.ikanow.aleph2.analytics.spark.utils.SparkTechnologyUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
-import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.ProcessingTestSpecBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 
 import fj.data.Either;
-import fj.data.Validation;
 
 /** Very simple spark topology, writes out all received objects
  * @author Alex
@@ -88,14 +88,8 @@ public class SparkPassthroughTopology {
 				long written = input.map(in -> in.values())
 						.map(rdd -> sub_sample.map(sample -> rdd.sample(true, sample)).orElse(rdd))
 						.map(rdd -> {
-							return rdd
-								.map(t2 -> {
-									final Validation<BasicMessageBean, JsonNode> ret_val = context.emitObject(Optional.empty(), context.getJob().get(), Either.left(t2._2().getJson()), Optional.empty());
-									return ret_val; // (doesn't matter what I return, just want to count it up)
-								})
-								//DEBUG: (print the output JSON on success and the error message on fail)
-								//.map(val -> test_mode ? val.f().bind(f -> Validation.fail("FAIL: " + f.message())) : val)
-								.count();
+							// (emits a partition at a time, then flushes the output once per partition)
+							return SparkEmitUtils.emitRdd(context, Optional.empty(), rdd, t2 -> Either.<JsonNode, Map<String, Object>>left(t2._2().getJson()))._1();
 						})
 						.orElse(-1L)
 						;
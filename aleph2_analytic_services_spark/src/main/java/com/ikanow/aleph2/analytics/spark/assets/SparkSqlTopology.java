@@ -19,6 +19,7 @@ import java.util.Collections;
 import java.util.Optional;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.sql.DataFrame;
 import org.apache.spark.sql.SQLContext;
@@ -30,14 +31,13 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Multimap;
 import com.ikanow.aleph2.analytics.spark.data_model.SparkTopologyConfigBean;
+import com.ikanow.aleph2.analytics.spark.utils.SparkEmitUtils;
 import com.ikanow.aleph2.analytics.spark.utils.SparkTechnologyUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
 import com.ikanow.aleph2.data_model.objects.shared.ProcessingTestSpecBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 
-import fj.data.Either;
-
 /** Very simple spark topology, writes out all received objects
  * @author Alex
  */
@@ -96,17 +96,19 @@ public class SparkSqlTopology {
 				final DataFrame filtered_df = sql_context.sql(sql_string);
 				final String[] columns = filtered_df.columns(); // (have to do this here because columns() depends on transient code)
 				
-				final long written = filtered_df.javaRDD().map(row -> {
+				final JavaRDD<JsonNode> output = filtered_df.javaRDD().map(row -> {
 					final ObjectNode j = _mapper.createObjectNode(); //.put("message", row.toString()); (Don't think we want this now that we're using the columns)
 					for (int ii = 0; ii < row.length(); ++ii) {
 						j.set(columns[ii], _mapper.convertValue(row.get(ii), JsonNode.class));						
 					}					
-					return context.emitObject(Optional.empty(), context.getJob().get(), Either.left(j), Optional.empty());
-				})
-				.count();
+					return j;
+				});
+				
+				// (emits a partition at a time, then flushes the output once per partition)
+				final Tuple2<Long, Long> written_errors = SparkEmitUtils.emitJsonRdd(context, Optional.empty(), output);
 				
 				//INFO:
-				System.out.println("Wrote: data_objects=" + written);
+				System.out.println("Wrote: data_objects=" + written_errors._1() + " errors=" + written_errors._2());
 			}
 		}
 		catch (Throwable t) {
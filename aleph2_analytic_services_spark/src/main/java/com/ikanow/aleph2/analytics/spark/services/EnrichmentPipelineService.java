@@ -132,6 +132,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
+import com.ikanow.aleph2.analytics.hadoop.utils.AdaptiveBatchSizer;
 import com.ikanow.aleph2.analytics.spark.utils.SparkErrorUtils;
 import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
@@ -206,6 +207,15 @@ public class EnrichmentPipelineService implements Serializable {
 	public static EnrichmentPipelineService select(final IAnalyticsContext aleph2_context, boolean emit_when_done, final Collection<String> names) {
 		return new EnrichmentPipelineService(aleph2_context, emit_when_done, names.stream().toArray(String[]::new));
 	}
+	/** Creates a service that runs a grouping element as a map-side combiner, for use with javaCombineOf/combineOf
+	 *  (like use_combiner in hadoop, the element's module must accept its own output as input, since it may be run several times per key)
+	 * @param aleph2_context
+	 * @param grouping_element - the pipeline element that has the grouping fields
+	 * @return
+	 */
+	public static EnrichmentPipelineService createCombiner(final IAnalyticsContext aleph2_context, final EnrichmentControlMetadataBean grouping_element) {
+		return new EnrichmentPipelineService(aleph2_context, false, Arrays.asList(grouping_element));
+	}
 
 	//////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	//////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -436,12 +446,93 @@ public class EnrichmentPipelineService implements Serializable {
 	public static RDD<Tuple2<IBatchRecord, Iterable<Tuple2<Long, IBatchRecord>>>> groupOf(final RDD<Tuple2<IBatchRecord, Tuple2<Long, IBatchRecord>>> groupable) {
 		return javaGroupOf(new JavaRDD<Tuple2<IBatchRecord, Tuple2<Long, IBatchRecord>>>(groupable, scala.reflect.ClassTag$.MODULE$.apply(Tuple2.class))).rdd();
 	}
+	
+	/** Performs the Spark grouping from the output of a pre-group operation, partially aggregating each key's records with a combiner first (java version)
+	 *  Unlike javaGroupOf, a key's records are never all held in memory: whenever a partial group (on either side of the shuffle) gets larger than the combiner's
+	 *  batch size, the combiner is run over it and only its output is kept (and Spark spills the partial groups to disk if there are too many keys)
+	 *  The output can be used with the inMapPartitionsPostGroup/inMapPartitionsPrePostGroup functions exactly as for javaGroupOf
+ 	 * @param groupable
+ 	 * @param combiner - a combiner service for the grouping element, see createCombiner
+ 	 * @param num_partitions - (optional) the number of partitions to group into, defaults to the number of input partitions
+	 * @return
+	 */
+	public static JavaRDD<Tuple2<IBatchRecord, Iterable<Tuple2<Long, IBatchRecord>>>> javaCombineOf(final JavaRDD<Tuple2<IBatchRecord, Tuple2<Long, IBatchRecord>>> groupable, 
+			final EnrichmentPipelineService combiner, final Optional<Integer> num_partitions)
+	{
+		return groupable.keyBy(t2 -> t2._1())
+				.combineByKey(
+						key_record -> new PartialGroup(key_record._1(), key_record._2()),
+						(partial, key_record) -> combiner.combine(partial.add(key_record._2())),
+						(partial1, partial2) -> combiner.combine(partial1.addAll(partial2)),
+						num_partitions.orElse(groupable.partitions().size()))
+				.map(t2 -> Tuples._2T(t2._1(), (Iterable<Tuple2<Long, IBatchRecord>>) t2._2()._records))
+				;
+	}
+	
+	/** Performs the Spark grouping from the output of a pre-group operation, partially aggregating each key's records with a combiner first (scala version)
+	 *  (NOTE: returns java iterables, ie designed for use with the inMapPartition* functions above)
+ 	 * @param groupable
+ 	 * @param combiner - a combiner service for the grouping element, see createCombiner
+ 	 * @param num_partitions - (optional) the number of partitions to group into, defaults to the number of input partitions
+	 * @return
+	 */
+	public static RDD<Tuple2<IBatchRecord, Iterable<Tuple2<Long, IBatchRecord>>>> combineOf(final RDD<Tuple2<IBatchRecord, Tuple2<Long, IBatchRecord>>> groupable, 
+			final EnrichmentPipelineService combiner, final Optional<Integer> num_partitions)
+	{
+		return javaCombineOf(new JavaRDD<Tuple2<IBatchRecord, Tuple2<Long, IBatchRecord>>>(groupable, scala.reflect.ClassTag$.MODULE$.apply(Tuple2.class)), combiner, num_partitions).rdd();
+	}
+	
+	/** The partially aggregated records for a key, see javaCombineOf
+	 * @author Alex
+	 */
+	public static class PartialGroup implements Serializable {
+		private static final long serialVersionUID = -4260871693424758207L;
+		
+		protected final IBatchRecord _key;
+		protected ArrayList<Tuple2<Long, IBatchRecord>> _records = new ArrayList<>();
+		protected int _combined_size = 0; // (the number of records output the last time the combiner was run)
+		
+		protected PartialGroup(final IBatchRecord key, final Tuple2<Long, IBatchRecord> record) {
+			_key = key;
+			_records.add(record);
+		}
+		protected PartialGroup add(final Tuple2<Long, IBatchRecord> record) {
+			_records.add(record);
+			return this;
+		}
+		protected PartialGroup addAll(final PartialGroup other) {
+			_records.addAll(other._records);
+			_combined_size += other._combined_size;
+			return this;
+		}
+	}
 		
 	//////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	//////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
 	// Shared functionality:
 	
+	/** Runs the combiner over a partial group if it has grown enough since it was last combined - ie it's larger than the combiner's batch size and at least 
+	 *  twice the size of its last output (so a module that doesn't reduce much isn't re-run over the same records every time one is added)
+	 * @param partial
+	 * @return the (possibly combined) partial group
+	 */
+	protected PartialGroup combine(final PartialGroup partial) {
+		if (null == _chain_start) {
+			_chain_start = new Wrapper(Streamable.of(_pipeline_elements), _DEFAULT_BATCH_SIZE, 
+					Tuples._2T(ProcessingStage.grouping, ProcessingStage.grouping), Optional.empty()); //(like the hadoop combiner, both sides are grouped)
+		}
+		final int batch_size = _chain_start._batch_sizer.map(sizer -> sizer.getBatchSize()).orElse(_chain_start._batch_size);
+		if ((partial._records.size() <= batch_size) || (partial._records.size() < 2*partial._combined_size)) return partial;
+		
+		final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> to_combine = partial._records.stream().map(r -> Tuples._2T(r, Optional.<JsonNode>empty())).collect(Collectors.toList());
+		partial._records = _chain_start.cloneWrapper().process(to_combine, true, false, Optional.of(partial._key.getJson())) // (last_group==false, ie never completes the stage)
+								.map(t2 -> t2._1())
+								.collect(Collectors.toCollection(ArrayList::new));
+		partial._combined_size = partial._records.size();
+		return partial;
+	}
+	
 	protected Stream<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> applyPostgroup(final Optional<List<String>> maybe_grouping_fields, final Iterator<Tuple2<IBatchRecord, Iterable<Tuple2<Long, IBatchRecord>>>> it) {
 		return createStream(it).flatMap(key_objects__last -> {
 			
@@ -545,6 +636,7 @@ public class EnrichmentPipelineService implements Serializable {
 	protected class Wrapper {
 		final protected Wrapper _next;
 		final protected int _batch_size;
+		final protected Optional<AdaptiveBatchSizer> _batch_sizer; // (if the element enables adaptive batching - shared with clones)
 		final protected IEnrichmentBatchModule _batch_module;
 		final protected IEnrichmentModuleContext _enrichment_context;	
 		final protected EnrichmentControlMetadataBean _control;
@@ -557,6 +649,10 @@ public class EnrichmentPipelineService implements Serializable {
 		protected class MutableStats {
 			int in = 0;
 			int out = 0;
+			long time_ms = 0L; // (time spent in the module's onObjectBatch)
+			int batch_size = 0; // (the size of the last batch, or the current size if adaptive)
+			
+			private long time_ns = 0L;
 		};		
 		protected final MutableStats _stats = new MutableStats();
 		
@@ -583,6 +679,7 @@ public class EnrichmentPipelineService implements Serializable {
 						)
 					.orElse(default_batch_size)
 					;
+			_batch_sizer = AdaptiveBatchSizer.fromOverrides(_control.technology_override(), _batch_size);
 
 			_enrichment_context = _analytics_context.getUnderlyingPlatformDriver(IEnrichmentModuleContext.class, Optional.of(Integer.toString(_batch_size))).get();
 			_logger = Optional.ofNullable(_analytics_context.getLogger(Optional.empty()));
@@ -637,6 +734,7 @@ public class EnrichmentPipelineService implements Serializable {
 		protected Wrapper(final Wrapper to_clone) {
 			_clone_of = to_clone._batch_module;
 			_batch_size = to_clone._batch_size;
+			_batch_sizer = to_clone._batch_sizer;
 			_batch_module = to_clone._batch_module.cloneForNewGrouping();
 			_enrichment_context = to_clone._enrichment_context;
 			_logger = to_clone._logger;
@@ -686,9 +784,10 @@ public class EnrichmentPipelineService implements Serializable {
 		@SuppressWarnings("unchecked")
 		public Stream<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> process(final List<Tuple2<Tuple2<Long, IBatchRecord>, Optional<JsonNode>>> list, boolean parent_last_in_group, boolean last_group, Optional<JsonNode> grouping_key) {
 			_variable_list.addAll(list);
-			if (parent_last_in_group || (_variable_list.size() > _batch_size)) {
+			final int batch_size = _batch_sizer.map(sizer -> sizer.getBatchSize()).orElse(_batch_size);
+			if (parent_last_in_group || (_variable_list.size() > batch_size)) {
 				try {
-					return createStream(Iterators.partition(_variable_list.iterator(), _batch_size)).flatMap(l_last -> {
+					return createStream(Iterators.partition(_variable_list.iterator(), batch_size)).flatMap(l_last -> {
 						final boolean this_last = parent_last_in_group && l_last._2(); // (ie last dump of objects (in group if grouped) *and* final batch)
 						
 						// Apply batch object:
@@ -697,8 +796,14 @@ public class EnrichmentPipelineService implements Serializable {
 									_enrichment_context.getUnderlyingPlatformDriver(List.class, Optional.empty()).get();
 							
 							stage_output.clear();
+							final long start_ns = System.nanoTime();
 							_batch_module.onObjectBatch(l_last._1().stream().map(t2 -> t2._1()), Optional.of(l_last._1().size()), grouping_key);
 							
+							final long batch_time_ns = System.nanoTime() - start_ns;
+							_stats.time_ns += batch_time_ns;
+							_stats.time_ms = _stats.time_ns/1000000L;
+							_stats.batch_size = _batch_sizer.map(sizer -> sizer.update(l_last._1().size(), batch_time_ns, l_last._1().stream().map(t2 -> t2._1()._2()))).orElse(l_last._1().size());
+							
 							//TRACE
 							//System.out.println("?? onObjectBatch: " + _control.name() + ": " + stage_output.size() + "... " + l_last._1().size() + " ..." + l_last._2());
 
@@ -740,8 +845,8 @@ public class EnrichmentPipelineService implements Serializable {
 										ErrorUtils.lazyBuildMessage(true, () -> "EnrichmentPipelineService", 
 												() -> Optional.ofNullable(_control.name()).orElse("no_name") + ".onObjectBatch", 
 												() -> null, 
-												() -> ErrorUtils.get("New batch stage {0} task={1} in={2} out={3} cumul_in={4}, cumul_out={5}", 
-														Optional.ofNullable(_control.name()).orElse("(no name)"),  UUID, Integer.toString(batch_in), Integer.toString(batch_out), Integer.toString(_stats.in),  Integer.toString(_stats.out)),
+												() -> ErrorUtils.get("New batch stage {0} task={1} in={2} out={3} cumul_in={4}, cumul_out={5}, batch_size={6}", 
+														Optional.ofNullable(_control.name()).orElse("(no name)"),  UUID, Integer.toString(batch_in), Integer.toString(batch_out), Integer.toString(_stats.in),  Integer.toString(_stats.out), Integer.toString(_stats.batch_size)),
 												() -> null)
 												));
 							}
@@ -29,8 +29,10 @@ import org.apache.spark.api.java.JavaSparkContext;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Multimap;
+import com.ikanow.aleph2.analytics.spark.utils.SparkEmitUtils;
 import com.ikanow.aleph2.analytics.spark.utils.SparkTechnologyUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
@@ -140,7 +142,7 @@ public class SparkPyWrapperService implements Serializable {
 	//TODO (ALEPH-63): need an emitRdd that works on a pair and thus lets me emit vs external emit as i please...
 	
 	public long emitRdd(final JavaRDD<Map<String, Object>> output) {
-		return output.map(map -> _aleph2_context.emitObject(Optional.empty(), _aleph2_context.getJob().get(), Either.right(map), Optional.empty())).count();
+		return SparkEmitUtils.emitRdd(_aleph2_context, Optional.empty(), output, map -> Either.<JsonNode, Map<String, Object>>right(map))._1();
 	}
 	
 	public long externalEmitRdd(final String path, final JavaRDD<Map<String, Object>> output) {
@@ -148,7 +150,7 @@ public class SparkPyWrapperService implements Serializable {
 				.with("full_name", path)
 			.done().get();
 		
-		return output.map(map -> _aleph2_context.emitObject(Optional.of(emit_bucket), _aleph2_context.getJob().get(), Either.right(map), Optional.empty())).count();
+		return SparkEmitUtils.emitRdd(_aleph2_context, Optional.of(emit_bucket), output, map -> Either.<JsonNode, Map<String, Object>>right(map))._1();
 	}
 	
 	public boolean emitObject(final Map<String, Object> map) {
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.spark.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.util.TaskCompletionListener;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
+
+/** Executor-wide pool of compiled javascript engines, keyed by (a hash of) the script they were compiled from
+ *  Used to run JS functions from SparkJsInterpreterTopology over RDD partitions: the script is compiled once per engine (rather than once per
+ *  partition), and the engines are re-used across partitions and tasks - each partition just gets a fresh set of bindings
+ * @author Alex
+ */
+public class JsScriptEnginePool {
+
+	public static final String ENGINE_NAME = "JavaScript";
+	public static final String EXECUTOR_GLOBALS = "aleph2_sparkjs_globals_executor.js";
+	public static final String EXECUTOR_ENTRY_POINT = "_a2_executor_call"; // (defined in EXECUTOR_GLOBALS, wraps the user function)
+	public static final String USER_FUNCTION = "_a2_fn";
+
+	protected static final int MAX_POOLED_PER_SCRIPT = Runtime.getRuntime().availableProcessors(); // (ie one per concurrently running task)
+
+	protected final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected static final ScriptEngineManager _manager = new ScriptEngineManager();
+	protected static final ConcurrentHashMap<String, ConcurrentLinkedQueue<PooledEngine>> _pool = new ConcurrentHashMap<>();
+	protected static final AtomicInteger _num_created = new AtomicInteger(0); // (for diagnostics/testing)
+
+	/** A compiled script and the engine it was compiled in
+	 *  (not thread safe - is only used by one thread between borrow and release)
+	 * @author Alex
+	 */
+	public static class PooledEngine {
+		protected final String _key;
+		protected final String _script;
+		protected final ScriptEngine _engine;
+		protected final Optional<CompiledScript> _compiled;
+
+		/** User c'tor - compiles the script, if the engine supports it
+		 * @param key - the script's hash
+		 * @param script - the script
+		 * @throws ScriptException
+		 */
+		protected PooledEngine(final String key, final String script) throws ScriptException {
+			_key = key;
+			_script = script;
+			synchronized (_manager) { // (not clear the manager is thread safe)
+				_engine = _manager.getEngineByName(ENGINE_NAME);
+			}
+			if (null == _engine) {
+				throw new ScriptException("No script engine available: " + ENGINE_NAME);
+			}
+			_compiled = (_engine instanceof Compilable)
+					? Optional.of(((Compilable) _engine).compile(script))
+					: Optional.empty(); // (will just eval the script each time)
+		}
+
+		/** Returns a fresh set of bindings to run the script against
+		 * @return
+		 */
+		public Bindings createBindings() {
+			return _engine.createBindings();
+		}
+
+		/** Runs the (compiled) script against the bindings, which then become the scope for invoke
+		 * @param bindings - from createBindings, with any globals added
+		 * @throws ScriptException
+		 */
+		public void eval(final Bindings bindings) throws ScriptException {
+			_engine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+			if (_compiled.isPresent()) {
+				_compiled.get().eval();
+			}
+			else {
+				_engine.eval(_script);
+			}
+		}
+
+		/** Invokes a function defined by the script (in the bindings from the last eval)
+		 * @param function_name
+		 * @param args
+		 * @return
+		 * @throws ScriptException
+		 * @throws NoSuchMethodException
+		 */
+		public Object invoke(final String function_name, final Object... args) throws ScriptException, NoSuchMethodException {
+			return ((Invocable) _engine).invokeFunction(function_name, args);
+		}
+	}
+
+	/** Returns the pool key for a script
+	 * @param script
+	 * @return
+	 */
+	public static String getScriptKey(final String script) {
+		return Hashing.sha256().hashString(script, StandardCharsets.UTF_8).toString();
+	}
+
+	/** Gets a compiled engine for this script - from the pool if one is free, else creates (and compiles) a new one
+	 * @param script
+	 * @return
+	 * @throws ScriptException
+	 */
+	public static PooledEngine borrow(final String script) throws ScriptException {
+		final String key = getScriptKey(script);
+		final PooledEngine pooled = Optional.ofNullable(_pool.get(key)).map(q -> q.poll()).orElse(null);
+		if (null != pooled) return pooled;
+
+		_num_created.incrementAndGet();
+		return new PooledEngine(key, script);
+	}
+
+	/** Returns an engine to the pool (after which the caller must not use it)
+	 * @param engine
+	 */
+	public static void release(final PooledEngine engine) {
+		engine._engine.setBindings(engine._engine.createBindings(), ScriptContext.ENGINE_SCOPE); // (don't hang onto the last partition's objects)
+		final ConcurrentLinkedQueue<PooledEngine> queue = _pool.computeIfAbsent(engine._key, __ -> new ConcurrentLinkedQueue<>());
+		if (queue.size() < MAX_POOLED_PER_SCRIPT) { // (can go slightly over under contention, that's fine)
+			queue.offer(engine);
+		}
+	}
+
+	/** Builds the script that gets compiled on the executors from a JS function's source
+	 * @param function_src - the function (eg from fn.toString() in JS)
+	 * @return
+	 * @throws IOException
+	 */
+	public static String buildExecutorScript(final String function_src) throws IOException {
+		return IOUtils.toString(JsScriptEnginePool.class.getClassLoader().getResourceAsStream(EXECUTOR_GLOBALS), "UTF-8")
+				+ "\nvar " + USER_FUNCTION + " = (" + function_src + ");\n";
+	}
+
+	/** Runs a JS function over every element of an RDD, on the executors (the function can return null/undefined, a JS object, or an array of them)
+	 * @param rdd - the RDD to map
+	 * @param function_src - the source of a JS function taking a single element of the RDD
+	 * @param config_json - the job config (available as _a2_global_config in the function)
+	 * @param enrichment_name - the job name (available as _a2_enrichment_name in the function)
+	 * @return an RDD of the JSON objects returned from the function
+	 * @throws IOException
+	 */
+	public static <T> JavaRDD<JsonNode> mapPartitions(final JavaRDDLike<T, ?> rdd, final String function_src, final String config_json, final String enrichment_name) throws IOException {
+		return rdd.mapPartitions(new JsPartitionFunction<T>(buildExecutorScript(function_src), config_json, enrichment_name, Collections.emptyMap()));
+	}
+
+	/** Serializable function that evaluates the (pooled, compiled) script over a partition
+	 *  The engine is returned to the pool (exactly once) when the partition's output has been consumed, the script throws, or the task completes
+	 *  (eg if the consumer stops early) - the output can only be iterated over once
+	 * @author Alex
+	 */
+	public static class JsPartitionFunction<T> implements FlatMapFunction<Iterator<T>, JsonNode> {
+		private static final long serialVersionUID = -6339185425470620941L;
+
+		protected final String _script;
+		protected final String _config_json;
+		protected final String _enrichment_name;
+		protected final HashMap<String, Object> _globals;
+
+		/** User c'tor
+		 * @param script - the full script to compile (see buildExecutorScript)
+		 * @param config_json - the job config as a JSON string
+		 * @param enrichment_name - the job name
+		 * @param globals - any other (serializable) objects to add to the bindings
+		 */
+		public JsPartitionFunction(final String script, final String config_json, final String enrichment_name, final Map<String, Object> globals) {
+			_script = script;
+			_config_json = config_json;
+			_enrichment_name = enrichment_name;
+			_globals = new HashMap<>(globals);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.spark.api.java.function.FlatMapFunction#call(java.lang.Object)
+		 */
+		@Override
+		public Iterable<JsonNode> call(final Iterator<T> it) throws Exception {
+			final PooledEngine engine = borrow(_script);
+			final AtomicBoolean released = new AtomicBoolean(false);
+			final Runnable release_once = () -> {
+				if (released.compareAndSet(false, true)) release(engine);
+			};
+			// (if the task finishes without the output being fully consumed, return the engine then)
+			Optional.ofNullable(TaskContext.get()).ifPresent(task -> task.addTaskCompletionListener((TaskCompletionListener) __ -> release_once.run()));
+
+			try {
+				final Bindings bindings = engine.createBindings();
+				bindings.putAll(_globals);
+				bindings.put("_a2_global_mapper", _mapper);
+				bindings.put("_a2_global_config", _mapper.readTree(Optional.ofNullable(_config_json).orElse("{}")));
+				bindings.put("_a2_enrichment_name", _enrichment_name);
+				engine.eval(bindings);
+			}
+			catch (Exception e) {
+				release_once.run();
+				throw e;
+			}
+
+			final AtomicBoolean iterated = new AtomicBoolean(false);
+			return () -> {
+				if (!iterated.compareAndSet(false, true)) {
+					throw new IllegalStateException("The output of a JS partition can only be iterated over once");
+				}
+				return new Iterator<JsonNode>() {
+					final LinkedList<JsonNode> _mutable_buffer = new LinkedList<>();
+
+					@Override
+					public boolean hasNext() {
+						if (released.get()) return !_mutable_buffer.isEmpty(); // (the engine may already belong to someone else)
+						try {
+							while (_mutable_buffer.isEmpty() && it.hasNext()) {
+								final Object ret_val = Lambdas.get(Lambdas.wrap_u(() -> engine.invoke(EXECUTOR_ENTRY_POINT, it.next())));
+								if (ret_val instanceof JsonNode) {
+									_mutable_buffer.add((JsonNode) ret_val);
+								}
+								else if (ret_val instanceof Collection) {
+									((Collection<?>) ret_val).stream().filter(o -> o instanceof JsonNode).forEach(o -> _mutable_buffer.add((JsonNode) o));
+								}
+							}
+						}
+						finally {
+							if (_mutable_buffer.isEmpty()) release_once.run(); // (either the input is exhausted or the script threw)
+						}
+						return !_mutable_buffer.isEmpty();
+					}
+
+					@Override
+					public JsonNode next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						return _mutable_buffer.removeFirst();
+					}
+				};
+			};
+		}
+	}
+}
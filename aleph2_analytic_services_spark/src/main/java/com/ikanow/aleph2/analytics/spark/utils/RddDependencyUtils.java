@@ -18,11 +18,13 @@ package com.ikanow.aleph2.analytics.spark.utils;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -35,11 +37,13 @@ import scala.Tuple2;
 
 import com.codepoetics.protonpack.StreamUtils;
 import com.google.common.collect.Multimap;
+import com.ikanow.aleph2.analytics.hadoop.data_model.HadoopTechnologyOverrideBean;
 import com.ikanow.aleph2.analytics.spark.services.EnrichmentPipelineService;
 import com.ikanow.aleph2.core.shared.utils.DependencyUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 
@@ -144,14 +148,14 @@ public class RddDependencyUtils {
 						
 						if (!downstream_is_grouped) {
 							mutable_rdds.put(control.name(), Either.left(
-									EnrichmentPipelineService.javaGroupOf(rdd_inputs)
+									groupInputs(context, control, rdd_inputs)
 											.mapPartitions(EnrichmentPipelineService.create(context, to_emit, t2._2()).javaInMapPartitionsPostGroup())
 							))
 							;
 						}
 						else {
 							mutable_rdds.put(control.name(), Either.right(
-									EnrichmentPipelineService.javaGroupOf(rdd_inputs)
+									groupInputs(context, control, rdd_inputs)
 											.mapPartitions(EnrichmentPipelineService.create(context, to_emit, t2._2()).javaInMapPartitionsPrePostGroup(new ArrayList<>(downstream_grouping)))
 							))
 							;								
@@ -196,4 +200,23 @@ public class RddDependencyUtils {
 								toMap(t2 -> t2._1(), t2 -> t2._2()))));
 		});
 	}
+	
+	/** Groups the inputs to a grouping element - if the element sets use_combiner in its technology_override (as for hadoop) then the records are partially 
+	 *  aggregated by the element before/after the shuffle, instead of every record for a key being held in memory
+	 * @param context
+	 * @param control - the grouping element
+	 * @param rdd_inputs - the output of the pre-group operation(s)
+	 * @return
+	 */
+	protected static JavaRDD<Tuple2<IBatchRecord, Iterable<Tuple2<Long, IBatchRecord>>>> groupInputs(
+			final IAnalyticsContext context, final EnrichmentControlMetadataBean control, final JavaRDD<Tuple2<IBatchRecord, Tuple2<Long, IBatchRecord>>> rdd_inputs)
+	{
+		final HadoopTechnologyOverrideBean tech_override = 
+				BeanTemplateUtils.from(Optional.ofNullable(control.technology_override()).orElse(Collections.emptyMap()), HadoopTechnologyOverrideBean.class).get();
+		
+		return tech_override.use_combiner()
+				? EnrichmentPipelineService.javaCombineOf(rdd_inputs, EnrichmentPipelineService.createCombiner(context, control), Optional.ofNullable(tech_override.num_reducers()))
+				: EnrichmentPipelineService.javaGroupOf(rdd_inputs)
+				;
+	}
 }
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.spark.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.spark.Accumulator;
+import org.apache.spark.AccumulatorParam;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
+import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+import fj.data.Either;
+import fj.data.Validation;
+
+/** Partition level sink for writing RDDs out via the Aleph2 analytics context
+ *  Each partition is written in a single pass (no intermediate RDD of results to count up) into the context's batch output, which is then flushed
+ *  once at the end of the partition - and the written/error counts are collected with accumulators
+ * @author Alex
+ */
+public class SparkEmitUtils {
+
+	/** Emits all the objects in an RDD to the bucket's output (or to an external bucket)
+	 * @param context - the analytics context
+	 * @param bucket - (optional) an external bucket to emit to, else the job's bucket
+	 * @param objects - the RDD of objects to emit
+	 * @param to_object - converts the RDD's elements to JSON or maps
+	 * @return a tuple of (objects written, objects that failed)
+	 */
+	public static <T> Tuple2<Long, Long> emitRdd(final IAnalyticsContext context, final Optional<DataBucketBean> bucket,
+			final JavaRDD<T> objects, final Function<T, Either<JsonNode, Map<String, Object>>> to_object)
+	{
+		final JavaSparkContext jsc = JavaSparkContext.fromSparkContext(objects.context());
+		final Accumulator<Long> written = jsc.accumulator(0L, new LongAccumulatorParam());
+		final Accumulator<Long> errors = jsc.accumulator(0L, new LongAccumulatorParam());
+		final DataBucketBean maybe_bucket = bucket.orElse(null); // (Optional isn't serializable)
+
+		objects.foreachPartition(it -> {
+			final Tuple2<Long, Long> written_errors = emitPartition(context, Optional.ofNullable(maybe_bucket), it, to_object);
+			written.add(written_errors._1());
+			errors.add(written_errors._2());
+		});
+		return Tuples._2T(written.value(), errors.value());
+	}
+
+	/** Emits all the JSON objects in an RDD to the bucket's output (or to an external bucket)
+	 * @param context - the analytics context
+	 * @param bucket - (optional) an external bucket to emit to, else the job's bucket
+	 * @param objects - the RDD of objects to emit
+	 * @return a tuple of (objects written, objects that failed)
+	 */
+	public static Tuple2<Long, Long> emitJsonRdd(final IAnalyticsContext context, final Optional<DataBucketBean> bucket, final JavaRDD<JsonNode> objects) {
+		return emitRdd(context, bucket, objects, j -> Either.left(j));
+	}
+
+	/** Emits the objects from a single partition, then flushes the batch output
+	 *  (can be called directly from a user foreachPartition/mapPartitions)
+	 * @param context - the analytics context
+	 * @param bucket - (optional) an external bucket to emit to, else the job's bucket
+	 * @param it - the partition's objects
+	 * @param to_object - converts the partition's elements to JSON or maps
+	 * @return a tuple of (objects written, objects that failed)
+	 * @throws Exception
+	 */
+	public static <T> Tuple2<Long, Long> emitPartition(final IAnalyticsContext context, final Optional<DataBucketBean> bucket,
+			final Iterator<T> it, final Function<T, Either<JsonNode, Map<String, Object>>> to_object) throws Exception
+	{
+		final AnalyticThreadJobBean job = context.getJob().get(); // (only look this up once per partition)
+		long mutable_written = 0L;
+		long mutable_errors = 0L;
+		while (it.hasNext()) {
+			final Validation<BasicMessageBean, JsonNode> ret_val = context.emitObject(bucket, job, to_object.call(it.next()), Optional.empty());
+			if (ret_val.isSuccess()) ++mutable_written;
+			else ++mutable_errors;
+		}
+		if ((mutable_written + mutable_errors) > 0) {
+			context.flushBatchOutput(bucket, job).join();
+		}
+		return Tuples._2T(mutable_written, mutable_errors);
+	}
+
+	/** Spark (1.x) only has int and double accumulators built in for java
+	 * @author Alex
+	 */
+	public static class LongAccumulatorParam implements AccumulatorParam<Long> {
+		private static final long serialVersionUID = -2817637612512359541L;
+
+		@Override
+		public Long addAccumulator(Long t1, Long t2) {
+			return t1 + t2;
+		}
+		@Override
+		public Long addInPlace(Long r1, Long r2) {
+			return r1 + r2;
+		}
+		@Override
+		public Long zero(Long initial_value) {
+			return 0L;
+		}
+	}
+}
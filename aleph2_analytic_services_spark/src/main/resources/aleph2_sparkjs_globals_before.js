@@ -70,6 +70,15 @@ var Aleph2Api = Java.extend( Java.type("java.io.Serializable"),
 	externalEmit: function() { return _a2_global_emit_external; },
 	to_json: function() { return _a2_global_to_json; },
 	list_to_js: function() { return _a2_global_list_to_js; },
+	// Runs fn(element) over each partition of the RDD on the executors, returns an RDD of the JSON objects it returns
+	// (fn is serialized as source, so can only use its argument and the executor globals - see aleph2_sparkjs_globals_executor.js) 
+	map: function(rdd, fn) { 
+		return Java.type("com.ikanow.aleph2.analytics.spark.utils.JsScriptEnginePool").mapPartitions(rdd, String(fn.toString()), _a2_global_config.toString(), _a2_enrichment_name); 
+	},
+	// Emits an RDD of JSON objects (eg from map) to the bucket's output, returns the number written
+	emit_rdd: function(rdd) { 
+		return Java.type("com.ikanow.aleph2.analytics.spark.utils.SparkEmitUtils").emitJsonRdd(_a2_global_context, java.util.Optional.empty(), rdd)._1(); 
+	},
 	//TODO (until bucket logger is serializable, don't allow anywhere)
 	//logger: function() { return _a2_bucket_logger; },
 	log_trace: function(msg) { _a2_bucket_log(org.apache.logging.log4j.Level.TRACE, msg); },
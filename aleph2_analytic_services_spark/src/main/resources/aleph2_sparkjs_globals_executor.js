@@ -0,0 +1,40 @@
+// Executor globals (for functions passed to _a2.map, compiled once per engine - see JsScriptEnginePool)
+// _a2_global_config - com.fasterxml.jackson.databind.node.ObjectNode
+// _a2_global_mapper - com.fasterxml.jackson.databind.ObjectMapper
+// _a2_enrichment_name - String
+// _a2_fn - the user function
+
+// Global methods
+function _a2_global_js_to_json(json) {
+	if (json instanceof com.fasterxml.jackson.databind.JsonNode) {
+		return json;
+	}
+	else if (json instanceof java.lang.String) {
+		return _a2_global_mapper.readTree(json);		
+	}
+	else if (typeof json === "string") {
+		return _a2_global_mapper.readTree(String(json));				
+	}
+	else { //js object 
+		var json_str = JSON.stringify(json);
+		return _a2_global_mapper.readTree(String(json_str));						
+	}	
+}
+
+function _a2_global_to_json(jsonnode) {
+	return JSON.parse(jsonnode.toString());
+}
+
+// Entry point: calls the user function and converts the result (nothing, an object, or an array of objects) to JSON
+function _a2_executor_call(record) {
+	var ret_val = _a2_fn(record);
+	if ((null == ret_val) || (undefined === ret_val)) {
+		return null;
+	}
+	else if (Array.isArray(ret_val)) {
+		return Java.to(ret_val.map(_a2_global_js_to_json), "java.util.List");
+	}
+	else {
+		return _a2_global_js_to_json(ret_val);
+	}
+}
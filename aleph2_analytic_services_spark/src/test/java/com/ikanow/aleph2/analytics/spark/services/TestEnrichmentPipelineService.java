@@ -33,6 +33,7 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.apache.spark.api.java.JavaRDD;
@@ -46,6 +47,7 @@ import org.mockito.stubbing.Answer;
 
 import scala.Tuple2;
 
+import com.codepoetics.protonpack.StreamUtils;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -482,6 +484,70 @@ public class TestEnrichmentPipelineService {
 		
 	}
 	
+	//////////////////////////////////////////////////////////////
+	
+	@Test
+	public void test_combineOf() {
+		
+		final DataBucketBean test_bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test").done().get();
+		
+		final IAnalyticsContext mock_analytics_context = Mockito.mock(IAnalyticsContext.class, Mockito.withSettings().serializable()); 		
+		Mockito.when(mock_analytics_context.getUnderlyingPlatformDriver(Mockito.eq(IEnrichmentModuleContext.class), Mockito.any()))
+				.thenAnswer(new ContextAnswer());
+		Mockito.when(mock_analytics_context.getLibraryConfigs())
+				.thenAnswer(new LibraryConfigsAnswer());
+		Mockito.when(mock_analytics_context.getBucket())
+				.thenAnswer(new BucketAnswer(test_bucket));
+		
+		final EnrichmentControlMetadataBean grouping_element = 
+				BeanTemplateUtils.build(EnrichmentControlMetadataBean.class)
+					.with(EnrichmentControlMetadataBean::name, "counter")
+					.with(EnrichmentControlMetadataBean::entry_point, TestCountingModule.class.getName())								
+					.with(EnrichmentControlMetadataBean::grouping_fields, Arrays.asList("grouper"))
+					.with(EnrichmentControlMetadataBean::technology_override, 
+							new LinkedHashMap<String, Object>(ImmutableMap.of(
+									"batch_size", 5,
+									"use_combiner", true
+									))
+							)
+				.done().get();
+		
+		final AnalyticThreadJobBean job = BeanTemplateUtils.build(AnalyticThreadJobBean.class)
+				.with(AnalyticThreadJobBean::config, 
+						new LinkedHashMap<>(ImmutableMap.of(EnrichmentControlMetadataBean.ENRICHMENT_PIPELINE, Arrays.asList(BeanTemplateUtils.toMap(grouping_element)))))
+			.done().get();			
+		Mockito.when(mock_analytics_context.getJob()).thenAnswer(new JobAnswer(job));
+		
+		// A skewed set of keys: A x 900, B x 100
+		final JavaRDD<Tuple2<IBatchRecord, Tuple2<Long, IBatchRecord>>> groupable = 
+				_spark.parallelize(IntStream.range(0, 1000).boxed()
+						.<Tuple2<IBatchRecord, Tuple2<Long, IBatchRecord>>>map(i -> {
+							final String key = (0 == (i % 10)) ? "B" : "A";
+							return Tuples._2T(new BatchRecordUtils.JsonBatchRecord(_mapper.createObjectNode().put("grouper", key)),
+												Tuples._2T((long) i, new BatchRecordUtils.JsonBatchRecord(_mapper.createObjectNode().put("id", i).put("grouper", key))));
+						})
+						.collect(Collectors.toList()), 4);
+		
+		final JavaRDD<Tuple2<IBatchRecord, Iterable<Tuple2<Long, IBatchRecord>>>> combined = 
+				EnrichmentPipelineService.javaCombineOf(groupable, EnrichmentPipelineService.createCombiner(mock_analytics_context, grouping_element), Optional.of(2));
+		
+		// Each key's records have been partially aggregated
+		final Map<String, Long> group_sizes = combined.collect().stream()
+				.collect(Collectors.toMap(t2 -> t2._1().getJson().get("grouper").asText(), t2 -> StreamUtils.stream(t2._2()).count()));
+		assertEquals(2, group_sizes.size());
+		assertTrue("Combined: " + group_sizes, group_sizes.get("A") < 100L);
+		assertTrue("Combined: " + group_sizes, group_sizes.get("B") < 100L);
+		
+		// And the post group stage gets the same totals as if all the records were grouped
+		final Map<String, Long> counts = 
+				combined.mapPartitions(EnrichmentPipelineService.create(mock_analytics_context, false, Arrays.asList(grouping_element)).javaInMapPartitionsPostGroup())
+					.collect().stream()
+					.collect(Collectors.groupingBy(t2 -> t2._2().getJson().get("grouper").asText(), Collectors.summingLong(t2 -> t2._2().getJson().get("count").asLong())));
+		
+		assertEquals(900L, counts.get("A").longValue());
+		assertEquals(100L, counts.get("B").longValue());
+	}
+	
 	//////////////////////////////////////////////////////////////
 	//////////////////////////////////////////////////////////////
 	
@@ -574,6 +640,44 @@ public class TestEnrichmentPipelineService {
 		
 	}
 
+	/** Counts the records in each group - can be used as its own combiner since it accepts its own output
+	 */
+	public static class TestCountingModule implements IEnrichmentBatchModule {
+		IEnrichmentModuleContext _context;
+		
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule#onStageInitialize(com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean, scala.Tuple2, java.util.Optional)
+		 */
+		@Override
+		public void onStageInitialize(IEnrichmentModuleContext context,
+				DataBucketBean bucket, EnrichmentControlMetadataBean control,
+				Tuple2<ProcessingStage, ProcessingStage> previous_next,
+				Optional<List<String>> next_grouping_fields) {
+			_context = context;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule#onObjectBatch(java.util.stream.Stream, java.util.Optional, java.util.Optional)
+		 */
+		@Override
+		public void onObjectBatch(Stream<Tuple2<Long, IBatchRecord>> batch,
+				Optional<Integer> batch_size, Optional<JsonNode> grouping_key) {
+			
+			final long count = batch.mapToLong(t2 -> Optional.ofNullable(t2._2().getJson().get("count")).map(j -> j.asLong()).orElse(1L)).sum();
+			if (count > 0) {
+				final ObjectNode o = _mapper.createObjectNode().put("grouper", grouping_key.map(k -> k.get("grouper").asText()).orElse("")).put("count", count);
+				_context.emitMutableObject(0L, o, Optional.empty(), Optional.empty());
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule#onStageComplete(boolean)
+		 */
+		@Override
+		public void onStageComplete(boolean is_original) {
+		}
+	}
+	
 	////////////////////////////////////////////////////
 	
 	public static class TestEnrichmentContext implements IEnrichmentModuleContext {
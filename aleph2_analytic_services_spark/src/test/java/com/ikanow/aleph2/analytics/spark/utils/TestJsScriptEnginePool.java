@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.spark.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class TestJsScriptEnginePool {
+
+	public static final String TEST_FUNCTION = "function(x) { var o = JSON.parse(x); o.sum = 0; for (var i = 0; i < o.n; ++i) { o.sum += i*i; } return (0 == o.n % 10) ? null : ((0 == o.n % 5) ? [ o, o ] : o); }";
+
+	@Before
+	public void setup() {
+		Assume.assumeNotNull(new ScriptEngineManager().getEngineByName(JsScriptEnginePool.ENGINE_NAME)); // (eg nashorn is gone from newer JVMs)
+	}
+
+	private static List<String> partition(final int partition, final int records) {
+		return IntStream.range(0, records).mapToObj(i -> "{\"n\":" + (partition*records + i) + "}").collect(Collectors.toList());
+	}
+
+	@Test
+	public void test_pool() throws Exception {
+		final String script = JsScriptEnginePool.buildExecutorScript("function(x) { return { a: x }; }");
+		final String other_script = JsScriptEnginePool.buildExecutorScript("function(x) { return { b: x }; }");
+		assertNotEquals(JsScriptEnginePool.getScriptKey(script), JsScriptEnginePool.getScriptKey(other_script));
+
+		final JsScriptEnginePool.PooledEngine engine1 = JsScriptEnginePool.borrow(script);
+		final JsScriptEnginePool.PooledEngine engine2 = JsScriptEnginePool.borrow(script);
+		assertNotEquals(engine1, engine2);
+		JsScriptEnginePool.release(engine1);
+		assertEquals(engine1, JsScriptEnginePool.borrow(script)); // (re-used)
+		assertNotEquals(engine1, JsScriptEnginePool.borrow(other_script)); // (different script)
+		JsScriptEnginePool.release(engine1);
+		JsScriptEnginePool.release(engine2);
+	}
+
+	@Test
+	public void test_partitionFunction() throws Exception {
+		final JsScriptEnginePool.JsPartitionFunction<String> f = 
+				new JsScriptEnginePool.JsPartitionFunction<>(JsScriptEnginePool.buildExecutorScript(TEST_FUNCTION), "{\"test\":true}", "test", ImmutableMap.of("_a2_test_global", 1));
+
+		final List<JsonNode> res = Lists.newArrayList(f.call(partition(0, 20).iterator()));
+		// 20 records, -2 (0, 10) +2 (5, 15) 
+		assertEquals(20, res.size());
+		assertEquals(1, res.get(0).get("n").asInt());
+		assertEquals(0 + 1 + 4, res.get(2).get("sum").asInt());
+
+		// Globals are per-partition:
+		final JsScriptEnginePool.JsPartitionFunction<String> g = 
+				new JsScriptEnginePool.JsPartitionFunction<>(JsScriptEnginePool.buildExecutorScript("function(x) { return { c: _a2_global_config.get('test').asBoolean(), g: _a2_test_global, name: _a2_enrichment_name }; }"), 
+						"{\"test\":true}", "test", ImmutableMap.of("_a2_test_global", 1));
+		final List<JsonNode> res2 = Lists.newArrayList(g.call(partition(0, 1).iterator()));
+		assertEquals("{\"c\":true,\"g\":1,\"name\":\"test\"}", res2.get(0).toString());
+		
+		// Empty partition
+		assertEquals(0, Lists.newArrayList(g.call(Collections.<String>emptyIterator())).size());
+	}
+
+	/** Not really a test (so not part of the normal build, run by hand) - compares records/s (single core) for a new engine + eval per partition 
+	 *  (how the topology would have to do it without the pool) vs the pooled compiled engines
+	 * @throws Exception
+	 */
+	@Ignore
+	@Test
+	public void benchmark_pooledVsFresh() throws Exception {
+		final int num_partitions = 50;
+		final int records_per_partition = 200;
+		final String script = JsScriptEnginePool.buildExecutorScript(TEST_FUNCTION);
+
+		// Before: new engine, eval script, invoke
+		final long before_start = System.nanoTime();
+		long mutable_before_out = 0L;
+		for (int p = 0; p < num_partitions; ++p) {
+			final ScriptEngine engine = new ScriptEngineManager().getEngineByName(JsScriptEnginePool.ENGINE_NAME);
+			engine.put("_a2_global_mapper", JsScriptEnginePool._mapper);
+			engine.eval(script);
+			for (String record: partition(p, records_per_partition)) {
+				if (null != ((Invocable) engine).invokeFunction(JsScriptEnginePool.EXECUTOR_ENTRY_POINT, record)) ++mutable_before_out;
+			}
+		}
+		final long before_ns = System.nanoTime() - before_start;
+
+		// After: pooled engines
+		final JsScriptEnginePool.JsPartitionFunction<String> f = new JsScriptEnginePool.JsPartitionFunction<>(script, "{}", "test", Collections.emptyMap());
+		final long after_start = System.nanoTime();
+		long mutable_after_out = 0L;
+		for (int p = 0; p < num_partitions; ++p) {
+			for (@SuppressWarnings("unused") JsonNode j: f.call(partition(p, records_per_partition).iterator())) ++mutable_after_out;
+		}
+		final long after_ns = System.nanoTime() - after_start;
+
+		final long records = num_partitions*records_per_partition;
+		System.out.println("BENCHMARK: fresh engine per partition: " + (long)(records*1.0e9/before_ns) + " records/s");
+		System.out.println("BENCHMARK: pooled compiled engines: " + (long)(records*1.0e9/after_ns) + " records/s");
+
+		assertEquals(records - num_partitions*records_per_partition/10, mutable_before_out); // (nulls)
+		assertEquals(records, mutable_after_out); // (nulls dropped, but arrays doubled)
+	}
+
+	@Test
+	public void test_releaseOnce() throws Exception {
+		final String script = JsScriptEnginePool.buildExecutorScript("function(x) { var o = JSON.parse(x); if (o.n == 3) throw 'test error'; return o; }");
+		final String key = JsScriptEnginePool.getScriptKey(script);
+		final JsScriptEnginePool.JsPartitionFunction<String> f = new JsScriptEnginePool.JsPartitionFunction<>(script, "{}", "test", Collections.emptyMap());
+
+		// 1) Consumed fully: released once, even if the consumer keeps calling hasNext
+		{
+			final Iterator<JsonNode> it = f.call(partition(0, 3).iterator()).iterator();
+			assertEquals(3, Lists.newArrayList(it).size());
+			assertFalse(it.hasNext());
+			assertFalse(it.hasNext());
+			assertEquals(1, JsScriptEnginePool._pool.get(key).size());
+		}
+		// 2) The script throws: released once (and not used again)
+		{
+			final int created = JsScriptEnginePool._num_created.get();
+			final Iterator<JsonNode> it = f.call(partition(0, 5).iterator()).iterator();
+			assertEquals(0, JsScriptEnginePool._pool.get(key).size()); // (borrowed the pooled engine)
+			assertEquals(created, JsScriptEnginePool._num_created.get());
+			try {
+				Lists.newArrayList(it);
+				fail("Should have thrown");
+			}
+			catch (Exception e) {
+				assertTrue("Script error: " + e.getMessage(), e.getMessage().contains("test error"));
+			}
+			assertEquals(1, JsScriptEnginePool._pool.get(key).size());
+			assertFalse(it.hasNext());
+			assertEquals(1, JsScriptEnginePool._pool.get(key).size());
+		}
+		// 3) The output can only be iterated over once
+		{
+			final Iterable<JsonNode> res = f.call(partition(0, 2).iterator());
+			assertEquals(2, Lists.newArrayList(res).size());
+			try {
+				res.iterator();
+				fail("Should have thrown");
+			}
+			catch (IllegalStateException e) {}
+			assertEquals(1, JsScriptEnginePool._pool.get(key).size());
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.spark.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ikanow.aleph2.data_model.interfaces.data_analytics.IAnalyticsContext;
+import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+import fj.data.Either;
+import fj.data.Validation;
+
+public class TestSparkEmitUtils {
+
+	final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void test_emitPartition() throws Exception {
+		final AnalyticThreadJobBean job = BeanTemplateUtils.build(AnalyticThreadJobBean.class).with(AnalyticThreadJobBean::name, "test").done().get();
+
+		final IAnalyticsContext mock_analytics_context = Mockito.mock(IAnalyticsContext.class);
+		Mockito.when(mock_analytics_context.getJob()).thenReturn(Optional.of(job));
+		Mockito.when(mock_analytics_context.flushBatchOutput(Mockito.any(), Mockito.any())).thenReturn((CompletableFuture) CompletableFuture.completedFuture(null));
+		Mockito.when(mock_analytics_context.emitObject(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any())).then(invocation -> {
+			final Either<JsonNode, ?> obj = (Either<JsonNode, ?>) invocation.getArguments()[2];
+			return obj.left().value().has("fail")
+					? Validation.fail(ErrorUtils.buildErrorMessage("test", "test", "fail"))
+					: Validation.<BasicMessageBean, JsonNode>success(obj.left().value());
+		});
+
+		// Empty partition - nothing to flush
+		{
+			final Tuple2<Long, Long> res = SparkEmitUtils.emitPartition(mock_analytics_context, Optional.empty(), Collections.<JsonNode>emptyIterator(), j -> Either.left(j));
+			assertEquals(0L, res._1().longValue());
+			assertEquals(0L, res._2().longValue());
+			Mockito.verify(mock_analytics_context, Mockito.never()).flushBatchOutput(Mockito.any(), Mockito.any());
+		}
+		// Mixed partition - counts successes and failures, flushes once
+		{
+			final Tuple2<Long, Long> res = SparkEmitUtils.emitPartition(mock_analytics_context, Optional.empty(),
+					Arrays.<JsonNode>asList(_mapper.createObjectNode().put("ok", 1), _mapper.createObjectNode().put("fail", 1), _mapper.createObjectNode().put("ok", 2)).iterator(),
+					j -> Either.left(j));
+			assertEquals(2L, res._1().longValue());
+			assertEquals(1L, res._2().longValue());
+			Mockito.verify(mock_analytics_context, Mockito.times(3)).emitObject(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+			Mockito.verify(mock_analytics_context, Mockito.times(1)).flushBatchOutput(Mockito.any(), Mockito.any());
+		}
+	}
+
+	@Test
+	public void test_longAccumulatorParam() {
+		final SparkEmitUtils.LongAccumulatorParam param = new SparkEmitUtils.LongAccumulatorParam();
+		assertEquals(0L, param.zero(10L).longValue());
+		assertEquals(5L, param.addInPlace(2L, 3L).longValue());
+		assertEquals(5L, param.addAccumulator(2L, 3L).longValue());
+	}
+}
@@ -15,28 +15,45 @@
  *******************************************************************************/
 package com.ikanow.aleph2.analytics.storm.assets;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentStreamingTopology;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.ContextUtils;
+import com.ikanow.aleph2.data_model.utils.Optionals;
 
+import backtype.storm.Config;
+import backtype.storm.Constants;
+import backtype.storm.metric.api.CountMetric;
+import backtype.storm.metric.api.MeanReducer;
+import backtype.storm.metric.api.ReducedMetric;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.topology.base.BaseRichBolt;
 import backtype.storm.tuple.Tuple;
+import fj.data.Validation;
 
 /** Very simple bolt that outputs the objects it receives to the appropriate Aleph2 storage layers
+ *  Tuples are buffered into micro-batches, which are written out (via the context's batch output) when they reach the batch size or on a tick tuple
+ *  - the tuples are only acked once the flush has completed (and are failed, ie replayed by the spout, if it errors or times out)
+ *  - a tuple that can't be converted or emitted is failed on its own, without affecting the rest of the batch
+ *  The batch size and flush period can be set from the job config, see BATCH_SIZE and FLUSH_SECS
  * @author Alex
  */
 public class OutputBolt extends BaseRichBolt {
@@ -46,11 +63,30 @@ public class OutputBolt extends BaseRichBolt {
 	protected final DataBucketBean _bucket; 
 	protected final String _context_signature;
 	protected final String _user_topology_entry_point; 
+	protected final int _batch_size;
+	protected final int _flush_secs;
+	
+	public static final String BATCH_SIZE = "output_batch_size"; // (job config param - max tuples per micro-batch)
+	public static final String FLUSH_SECS = "output_flush_secs"; // (job config param - max time a tuple is buffered for, ie the tick tuple period)
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final int DEFAULT_FLUSH_SECS = 1;
+	public static final int METRICS_BUCKET_SECS = 60;
+	public static final long FLUSH_TIMEOUT_MS = 30000L; // (storm's default message timeout - the spout will replay the tuples after this anyway)
 	
 	protected IEnrichmentModuleContext _context;
 	protected IEnrichmentStreamingTopology _user_topology;
 	
 	protected OutputCollector _collector;
+	protected long _flush_timeout_ms = FLUSH_TIMEOUT_MS; // (overridden in tests)
+	
+	// Micro-batch
+	protected transient List<Tuple> _batch;
+	
+	// Metrics
+	protected transient ReducedMetric _batch_latency_ms;
+	protected transient CountMetric _records_written;
+	protected transient CountMetric _records_failed;
+	protected transient CountMetric _batches_written;
 	
 	/** User constructor
 	 * @param bucket
@@ -58,13 +94,45 @@ public class OutputBolt extends BaseRichBolt {
 	 * @param user_topology_entry_point
 	 */
 	public OutputBolt(final DataBucketBean bucket, final String context_signature, final String user_topology_entry_point) {
+		this(bucket, context_signature, user_topology_entry_point, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_SECS);
+	}
+	
+	/** User constructor
+	 * @param bucket
+	 * @param context_signature
+	 * @param user_topology_entry_point
+	 * @param batch_size - the max number of tuples to buffer before writing them out
+	 * @param flush_secs - the max time a tuple is buffered for before being written out
+	 */
+	public OutputBolt(final DataBucketBean bucket, final String context_signature, final String user_topology_entry_point, final int batch_size, final int flush_secs) {
 		_bucket = bucket;
 		_context_signature = context_signature;
 		_user_topology_entry_point = user_topology_entry_point;
+		_batch_size = Math.max(1, batch_size);
+		_flush_secs = Math.max(1, flush_secs);
 	}
+	
+	/** Gets the batch size and flush period from a job config 
+	 * @param job_config - the job config (can be null)
+	 * @param key - BATCH_SIZE or FLUSH_SECS
+	 * @param default_val
+	 * @return
+	 */
+	public static int getConfigParam(final Map<String, Object> job_config, final String key, final int default_val) {
+		return Optionals.of(() -> job_config.get(key))
+				.map(o -> (o instanceof Number) ? ((Number) o).intValue() : Integer.parseInt(o.toString().trim()))
+				.orElse(default_val);
+	}
+	
 	@Override
 	public void prepare(final @SuppressWarnings("rawtypes") Map arg0, final TopologyContext arg1, final OutputCollector arg2) {
 		try {
+			_batch = new ArrayList<>(_batch_size);
+			_batch_latency_ms = arg1.registerMetric("aleph2_output_batch_latency_ms", new ReducedMetric(new MeanReducer()), METRICS_BUCKET_SECS);
+			_records_written = arg1.registerMetric("aleph2_output_records_written", new CountMetric(), METRICS_BUCKET_SECS);
+			_records_failed = arg1.registerMetric("aleph2_output_records_failed", new CountMetric(), METRICS_BUCKET_SECS);
+			_batches_written = arg1.registerMetric("aleph2_output_batches_written", new CountMetric(), METRICS_BUCKET_SECS);
+			
 			_context = ContextUtils.getEnrichmentContext(_context_signature);
 			_user_topology = (IEnrichmentStreamingTopology) Class.forName(_user_topology_entry_point).newInstance();
 			_collector = arg2;
@@ -88,8 +156,93 @@ public class OutputBolt extends BaseRichBolt {
 	 */
 	@Override
 	public void execute(final Tuple arg0) {		
-		_collector.ack(arg0);
-		_context.emitMutableObject(0L, (ObjectNode) _user_topology.rebuildObject(arg0, OutputBolt::tupleToLinkedHashMap), Optional.empty(), Optional.empty());
+		if (isTickTuple(arg0)) {
+			flush();
+		}
+		else {
+			_batch.add(arg0);
+			if (_batch.size() >= _batch_size) {
+				flush();
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see backtype.storm.topology.base.BaseComponent#getComponentConfiguration()
+	 */
+	@Override
+	public Map<String, Object> getComponentConfiguration() {
+		final Map<String, Object> conf = new HashMap<>();
+		conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, _flush_secs);
+		return conf;
+	}
+	
+	/* (non-Javadoc)
+	 * @see backtype.storm.topology.base.BaseRichBolt#cleanup()
+	 */
+	@Override
+	public void cleanup() {
+		if ((null != _batch) && (null != _collector)) flush();
+	}
+	
+	/** Writes out the current micro-batch, then acks its tuples (or fails them if the write failed)
+	 *  Each tuple is converted and emitted separately, so a bad tuple only fails itself - the whole batch is only failed if the flush fails
+	 */
+	protected void flush() {
+		if (_batch.isEmpty()) return;
+		
+		final long start_ns = System.nanoTime();
+		final List<Tuple> batch = _batch;
+		_batch = new ArrayList<>(_batch_size);
+		
+		final List<Tuple> emitted = new ArrayList<>(batch.size());
+		int mutable_rejected = 0;
+		int mutable_errors = 0;
+		for (Tuple t: batch) {
+			try {
+				final Validation<BasicMessageBean, JsonNode> ret_val = 
+						_context.emitMutableObject(0L, (ObjectNode) _user_topology.rebuildObject(t, OutputBolt::tupleToLinkedHashMap), Optional.empty(), Optional.empty());
+				if (ret_val.isFail()) { // (objects that were rejected by the context will be rejected again on a replay, so just ack them)
+					mutable_rejected++;
+					_collector.ack(t);
+				}
+				else emitted.add(t);
+			}
+			catch (Throwable e) {
+				if (0 == mutable_errors++) { // (just log the first one per batch)
+					_logger.error("Failed to emit object, will be replayed", e);
+				}
+				_collector.fail(t);
+			}
+		}
+		if (mutable_rejected > 0) {
+			_logger.warn("Rejected " + mutable_rejected + " objects from batch of " + batch.size());
+		}
+		_records_failed.incrBy(mutable_rejected + mutable_errors);
+		
+		if (!emitted.isEmpty()) {
+			try {
+				_context.flushBatchOutput(Optional.empty()).get(_flush_timeout_ms, TimeUnit.MILLISECONDS);
+				
+				emitted.forEach(t -> _collector.ack(t));
+				_records_written.incrBy(emitted.size());
+				_batches_written.incr();
+			}
+			catch (Throwable e) {
+				_logger.error("Failed to write batch of " + emitted.size() + " objects, will be replayed", e);
+				emitted.forEach(t -> _collector.fail(t));
+				_records_failed.incrBy(emitted.size());
+			}
+		}
+		_batch_latency_ms.update((System.nanoTime() - start_ns)/1000000L);
+	}
+	
+	/** Whether the tuple is a tick (ie a timer to flush on) rather than data
+	 * @param t
+	 * @return
+	 */
+	public static boolean isTickTuple(final Tuple t) {
+		return Constants.SYSTEM_COMPONENT_ID.equals(t.getSourceComponent()) && Constants.SYSTEM_TICK_STREAM_ID.equals(t.getSourceStreamId());
 	}
 
 	/* (non-Javadoc)
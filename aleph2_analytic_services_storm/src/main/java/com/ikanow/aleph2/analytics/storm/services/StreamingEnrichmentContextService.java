@@ -248,7 +248,10 @@ public class StreamingEnrichmentContextService implements IEnrichmentModuleConte
 				//TODO (ALEPH-12): handle child-buckets 
 				
 				// Just return an aleph2 output bolt:
-				return (T) new OutputBolt(my_bucket, this.getEnrichmentContextSignature(bucket, Optional.empty()), _user_topology.get().getClass().getName());			
+				final Map<String, Object> job_config = Optionals.of(() -> _job.get().config()).orElse(null);
+				return (T) new OutputBolt(my_bucket, this.getEnrichmentContextSignature(bucket, Optional.empty()), _user_topology.get().getClass().getName(),
+						OutputBolt.getConfigParam(job_config, OutputBolt.BATCH_SIZE, OutputBolt.DEFAULT_BATCH_SIZE),
+						OutputBolt.getConfigParam(job_config, OutputBolt.FLUSH_SECS, OutputBolt.DEFAULT_FLUSH_SECS));			
 			}
 			else {
 				final Optional<String> topic_name = _delegate.get().getOutputTopic(bucket, _job.get());
@@ -302,8 +305,7 @@ public class StreamingEnrichmentContextService implements IEnrichmentModuleConte
 	 */
 	@Override
 	public Validation<BasicMessageBean, JsonNode> emitMutableObject(final long id, final ObjectNode mutated_json, final Optional<AnnotationBean> annotation, final Optional<JsonNode> grouping_fields) {		
-		_delegate.get().emitObject(_delegate.get().getBucket(), _job.get(), Either.left((JsonNode) mutated_json), annotation);
-		return Validation.success(mutated_json);
+		return _delegate.get().emitObject(_delegate.get().getBucket(), _job.get(), Either.left((JsonNode) mutated_json), annotation);
 	}
 
 	/* (non-Javadoc)
@@ -322,8 +324,7 @@ public class StreamingEnrichmentContextService implements IEnrichmentModuleConte
 									.reduce(original_json, (acc, kv) -> ((ObjectNode) acc).set(kv.getKey(), kv.getValue()), (val1, val2) -> val2))
 									.orElse(original_json);
 		
-		emitMutableObject(0L, (ObjectNode)to_emit, annotations, Optional.empty());
-		return Validation.success(to_emit);
+		return emitMutableObject(0L, (ObjectNode)to_emit, annotations, Optional.empty());
 	}
 
 	/* (non-Javadoc)
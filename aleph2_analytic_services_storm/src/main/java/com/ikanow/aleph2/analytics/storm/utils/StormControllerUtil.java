@@ -18,9 +18,13 @@ package com.ikanow.aleph2.analytics.storm.utils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -28,6 +32,8 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -36,12 +42,17 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.yaml.snakeyaml.Yaml;
 
+import scala.Tuple2;
+
 import backtype.storm.generated.AlreadyAliveException;
 import backtype.storm.generated.ClusterSummary;
 import backtype.storm.generated.StormTopology;
 import backtype.storm.generated.TopologyInfo;
 
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ikanow.aleph2.analytics.storm.data_model.IStormController;
 import com.ikanow.aleph2.analytics.storm.services.LocalStormController;
 import com.ikanow.aleph2.analytics.storm.services.RemoteStormController;
@@ -73,7 +84,15 @@ public class StormControllerUtil {
 	// - jackson needs to be at 2.3.1, spark need 2.4+, es needs 2.6 etc
 	// (IMPLIES TO MAKE STORM WORK, NEED TO COPY 2.3.x JACKSON RPMS INTO THE STORM/LIB DIR)
 	private final static Set<String> dirs_to_ignore = Sets.newHashSet("org/slf4j", "org/apache/log4j", "com/fasterxml/jackson");
-	protected final static ConcurrentHashMap<String, Date> storm_topology_jars_cache = new ConcurrentHashMap<>();
+	protected final static ConcurrentHashMap<String, CompletableFuture<String>> storm_topology_jars_cache = new ConcurrentHashMap<>(); // (content hash -> jar)
+	protected final static ConcurrentHashMap<String, Long> storm_topology_jars_last_used = new ConcurrentHashMap<>();
+	protected final static ConcurrentHashMap<String, Tuple2<String, String>> jar_digest_cache = new ConcurrentHashMap<>(); // (path -> (timestamp, digest))
+	protected final static int JAR_BUILDER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())); // (building is mostly disk bound, and layers chain without blocking a thread)
+	protected final static ExecutorService storm_topology_jar_builder = Executors.newFixedThreadPool(JAR_BUILDER_THREADS, 
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aleph2-storm-jar-builder-%d").build());
+	protected final static long DEFAULT_MAX_JAR_CACHE_BYTES = 4L*1024L*1024L*1024L; //4GB
+	protected final static long MIN_JAR_CACHE_AGE_MS = 10L*60L*1000L; //(don't delete jars used in the last 10 minutes)
+	protected static volatile long max_jar_cache_bytes = DEFAULT_MAX_JAR_CACHE_BYTES;
 	protected final static long MAX_RETRIES = 60; //60 retries at 1s == 1m max retry time
 	
 	/**
@@ -254,11 +273,8 @@ public class StormControllerUtil {
 						throw new RuntimeException("In eclipse/IDE mode, directory not found: " + (globals.local_root_dir() + "/lib/"));
 					}
 				}
-				//add in the user libs
-				jars_to_merge.addAll(user_lib_paths);
-				
-				//create jar
-				return buildOrReturnCachedStormTopologyJar(jars_to_merge, cached_jar_dir);		
+				//create jar (the user libs are merged on top of the framework jars, which are shared by all buckets so only get merged once)
+				return buildOrReturnCachedStormTopologyJar(Arrays.asList(jars_to_merge, new TreeSet<String>(user_lib_paths)), cached_jar_dir);		
 			}
 			else {
 				return CompletableFuture.completedFuture("/unused/dummy.jar");
@@ -306,58 +322,172 @@ public class StormControllerUtil {
 	 * Checks the jar cache to see if an entry already exists for this list of jars,
 	 * returns the path of that entry if it does exist, otherwise creates the jar, adds
 	 * the path to the cache and returns it.
+	 * (Single layer version of the function below)
 	 * 
 	 * @param jars_to_merge
 	 * @return
 	 * @throws Exception 
 	 */
-	public static synchronized CompletableFuture<String> buildOrReturnCachedStormTopologyJar(final Collection<String> jars_to_merge, final String cached_jar_dir) {
-		CompletableFuture<String> future = new CompletableFuture<String>();
-		final String hashed_jar_name = JarBuilderUtil.getHashedJarName(jars_to_merge, cached_jar_dir);
-		//1. Check cache for this jar via hash of jar names
-		if ( storm_topology_jars_cache.containsKey(hashed_jar_name)) {
-			//if exists:
-			//2. validate jars has not been updated
-			Date most_recent_update = JarBuilderUtil.getMostRecentlyUpdatedFile(jars_to_merge);
-			//if the cache is more recent than any of the files, we assume nothing has been updated
-			if ( storm_topology_jars_cache.get(hashed_jar_name).getTime() > most_recent_update.getTime() ) {
-				//RETURN return cached jar file path
+	@SuppressWarnings("unchecked")
+	public static CompletableFuture<String> buildOrReturnCachedStormTopologyJar(final Collection<String> jars_to_merge, final String cached_jar_dir) {
+		return buildOrReturnCachedStormTopologyJar(Arrays.asList(jars_to_merge), cached_jar_dir);
+	}
+	
+	/**
+	 * Returns the (future) path of a jar merged from the layers of jars, building it if there isn't already a cached copy.
+	 * Each layer is merged on top of the (cached) jar built from the layers before it, so eg buckets that share the same
+	 * framework jars and only differ in their user libs only merge the framework jars once.
+	 * 
+	 * The cache key is a digest of the jars' contents (not their names/timestamps), and concurrent requests for the same
+	 * key share a single build, while requests for different keys build in parallel. 
+	 * Unused jars are evicted (least recently used first) once the cache exceeds its disk budget, see setJarCacheBudget
+	 * 
+	 * @param layers - lists of jars to merge, in order (earlier jars take precedence on clashes)
+	 * @param cached_jar_dir - where to build the jars
+	 * @return
+	 */
+	public static CompletableFuture<String> buildOrReturnCachedStormTopologyJar(final List<Collection<String>> layers, final String cached_jar_dir) {
+		try {
+			Optional<CompletableFuture<String>> mutable_prev_layer = Optional.empty();
+			String mutable_key = "";
+			for (Collection<String> layer: layers) {
+				if (layer.isEmpty()) continue;
+				mutable_key = getContentHash(mutable_key, layer);
+				mutable_prev_layer = Optional.of(getOrBuildLayer(mutable_key, mutable_prev_layer, layer, cached_jar_dir));
+			}
+			return mutable_prev_layer.orElseGet(() -> {
+				final CompletableFuture<String> error_future = new CompletableFuture<String>();
+				error_future.completeExceptionally(new Exception("Error trying to create storm jar: no jars specified"));
+				return error_future;
+			});
+		}
+		catch (Exception e) { // (failed to read one of the jars)
+			_logger.error(ErrorUtils.getLongForm("Error building storm jar {0}", e));
+			final CompletableFuture<String> error_future = new CompletableFuture<String>();
+			error_future.completeExceptionally(e);
+			return error_future;
+		}
+	}
+	
+	/**
+	 * Returns the cached jar for a layer, or starts building it (on top of the previous layer) if it isn't cached 
+	 * @param key - the content hash of this layer and the ones before it
+	 * @param prev_layer - the future path of the previous layer's jar (if there is one)
+	 * @param layer - the jars to merge on top of the previous layer
+	 * @param cached_jar_dir
+	 * @return
+	 */
+	private static CompletableFuture<String> getOrBuildLayer(final String key, final Optional<CompletableFuture<String>> prev_layer, final Collection<String> layer, final String cached_jar_dir) {
+		final String jar_name = cached_jar_dir + File.separator + "storm_topology_" + key + ".jar";
+		storm_topology_jars_last_used.put(key, System.currentTimeMillis());
+		
+		for (;;) {
+			final CompletableFuture<String> future = storm_topology_jars_cache.computeIfAbsent(key, __ -> {
+				_logger.debug("No cached copy of the jar, have to create a new version: " + jar_name);
+				return prev_layer.orElseGet(() -> CompletableFuture.completedFuture(null))
+						.thenApplyAsync(prev_jar -> {
+							final List<String> jars_to_merge = new ArrayList<String>(layer.size() + 1);
+							Optional.ofNullable(prev_jar).ifPresent(jars_to_merge::add);
+							jars_to_merge.addAll(layer);
+							if (buildStormTopologyJar(jars_to_merge, jar_name)) {
+								return jar_name;
+							}
+							else throw new RuntimeException("Error trying to create storm jar, see logs");
+						}, storm_topology_jar_builder)
+						.whenCompleteAsync((__1, error) -> { // (async so it can't run inside computeIfAbsent)
+							if (null != error) storm_topology_jars_cache.remove(key); // (so the next request will retry)
+							else evictCachedJars(key);
+						}, storm_topology_jar_builder)
+						;
+			});
+			// (if the jar has been cleaned up since it was built, then remove it and rebuild)
+			if (future.isDone() && !future.isCompletedExceptionally() && !new File(jar_name).exists()) {
+				storm_topology_jars_cache.remove(key, future);
+				continue;
+			}
+			if (future.isDone()) {
 				_logger.debug("Returning a cached copy of the jar");
 				//update the cache copy to set its modified time to now so we don't clean it up
-				JarBuilderUtil.updateJarModifiedTime(hashed_jar_name);				
-				future.complete(hashed_jar_name);
-				return future;
-			} else {
-				//delete cache copy
-				_logger.debug("Removing an expired cached copy of the jar");
-				removeCachedJar(hashed_jar_name);
+				JarBuilderUtil.updateJarModifiedTime(jar_name);
 			}
+			return future;
 		}
-				
-		//if we fall through
-		//3. create jar
-		_logger.debug("Fell through or cache copy is old, have to create a new version");
-		if ( buildStormTopologyJar(jars_to_merge, hashed_jar_name) ) {		
-			//4. add jar to cache w/ current/newest file timestamp		
-			storm_topology_jars_cache.put(hashed_jar_name, new Date());
-			//RETURN return new jar file path
-			future.complete(hashed_jar_name);
-		} else {
-			//had an error creating jar, throw an exception?
-			future.completeExceptionally(new Exception("Error trying to create storm jar, see logs"));
+	}
+	
+	/**
+	 * Returns a hash of the contents of the jars (plus the key of the layer they are built on top of)
+	 * @param prev_key - the previous layer's key, or "" if none
+	 * @param jars
+	 * @return
+	 * @throws IOException
+	 */
+	protected static String getContentHash(final String prev_key, final Collection<String> jars) throws IOException {
+		final Hasher hasher = Hashing.sha256().newHasher().putString(prev_key, StandardCharsets.UTF_8);
+		for (String jar: jars) {
+			hasher.putString(getJarDigest(jar), StandardCharsets.UTF_8);
 		}
-		return future;
+		return hasher.hash().toString();
+	}
+	
+	/**
+	 * Returns a digest of the jar's contents (the digest is cached until the jar's timestamp or size change, to avoid re-reading big jars)
+	 * @param jar
+	 * @return
+	 * @throws IOException
+	 */
+	protected static String getJarDigest(final String jar) throws IOException {
+		final File jar_file = new File(jar);
+		final String stamp = jar_file.lastModified() + ":" + jar_file.length();
+		final Tuple2<String, String> stamp_digest = jar_digest_cache.get(jar);
+		if ((null != stamp_digest) && stamp_digest._1().equals(stamp)) {
+			return stamp_digest._2();
+		}
+		final String digest = com.google.common.io.Files.hash(jar_file, Hashing.sha256()).toString();
+		jar_digest_cache.put(jar, Tuples._2T(stamp, digest));
+		return digest;
+	}
+	
+	/**
+	 * Sets the max disk space used by cached jars (before least recently used ones start getting deleted)
+	 * @param max_bytes
+	 */
+	public static void setJarCacheBudget(final long max_bytes) {
+		max_jar_cache_bytes = max_bytes;
+	}
+	
+	/**
+	 * Deletes least recently used jars until the cache is within its disk budget
+	 * (jars used in the last MIN_JAR_CACHE_AGE_MS - eg that might still be being submitted - are never deleted)
+	 * @param just_built - the key of the jar that has just been built, which is never deleted
+	 */
+	private static synchronized void evictCachedJars(final String just_built) {
+		final long now = System.currentTimeMillis();
+		final List<Tuple2<String, File>> built = storm_topology_jars_cache.entrySet().stream()
+				.filter(kv -> kv.getValue().isDone() && !kv.getValue().isCompletedExceptionally())
+				.map(kv -> Tuples._2T(kv.getKey(), new File(kv.getValue().join())))
+				.filter(key_file -> key_file._2().exists())
+				.sorted(Comparator.comparing((Tuple2<String, File> key_file) -> storm_topology_jars_last_used.getOrDefault(key_file._1(), 0L)))
+				.collect(Collectors.toList());
 		
+		long mutable_total = built.stream().mapToLong(key_file -> key_file._2().length()).sum();
+		for (Tuple2<String, File> key_file: built) {
+			if (mutable_total <= max_jar_cache_bytes) break;
+			if (key_file._1().equals(just_built) || ((now - storm_topology_jars_last_used.getOrDefault(key_file._1(), 0L)) < MIN_JAR_CACHE_AGE_MS)) continue;
+			
+			_logger.debug("Evicting a cached copy of the jar: " + key_file._2());
+			mutable_total -= key_file._2().length();
+			removeCachedJar(key_file._1(), key_file._2());
+		}
 	}
 	
 	/**
 	 * Remove the give file from cache and locally if it exists
-	 * @param hashed_jar_name
+	 * @param key
+	 * @param hashed_file
 	 */
-	private static void removeCachedJar(String hashed_jar_name) {
-		storm_topology_jars_cache.remove(hashed_jar_name);
-		File hashed_file = new File(hashed_jar_name);
-		hashed_file.exists();
+	private static void removeCachedJar(final String key, final File hashed_file) {
+		storm_topology_jars_cache.remove(key);
+		storm_topology_jars_last_used.remove(key);
 		hashed_file.delete();
 	}
 
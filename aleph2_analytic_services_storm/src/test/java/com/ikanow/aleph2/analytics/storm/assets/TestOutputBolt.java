@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.storm.assets;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.Constants;
+import backtype.storm.metric.api.CountMetric;
+import backtype.storm.metric.api.MeanReducer;
+import backtype.storm.metric.api.ReducedMetric;
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.analytics.storm.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+import fj.data.Validation;
+
+public class TestOutputBolt {
+
+	// State recorded by the mock context and collector
+	protected List<JsonNode> _emitted;
+	protected List<Tuple> _acked;
+	protected List<Tuple> _failed;
+	protected List<Integer> _acked_at_flush; // (the number of tuples that had been acked each time flushBatchOutput was called)
+	protected LinkedList<CompletableFuture<?>> _flush_results; // (returned by flushBatchOutput, defaults to a completed future)
+
+	@Before
+	public void setup() {
+		_emitted = new ArrayList<>();
+		_acked = new ArrayList<>();
+		_failed = new ArrayList<>();
+		_acked_at_flush = new ArrayList<>();
+		_flush_results = new LinkedList<>();
+	}
+
+	@Test
+	public void test_ackAfterFlush() {
+		final OutputBolt bolt = buildBolt(3);
+
+		final Tuple t1 = buildTuple("a");
+		final Tuple t2 = buildTuple("b");
+		final Tuple t3 = buildTuple("c");
+
+		bolt.execute(t1);
+		bolt.execute(t2);
+
+		// (still buffered)
+		assertEquals(0, _emitted.size());
+		assertEquals(0, _acked_at_flush.size());
+		assertEquals(0, _acked.size());
+
+		bolt.execute(t3);
+
+		// Flushed once, nothing acked until the flush had completed
+		assertEquals(3, _emitted.size());
+		assertEquals(Arrays.asList(0), _acked_at_flush);
+		assertEquals(Arrays.asList(t1, t2, t3), _acked);
+		assertEquals(0, _failed.size());
+		assertEquals(3L, bolt._records_written.getValueAndReset());
+		assertEquals(0L, bolt._records_failed.getValueAndReset());
+	}
+
+	@Test
+	public void test_failOnError() {
+		// 1) Bad tuples only fail themselves
+		{
+			final OutputBolt bolt = buildBolt(4);
+
+			final Tuple good_1 = buildTuple("a");
+			final Tuple bad = buildTuple(null); // (can't be converted)
+			final Tuple rejected = buildTuple("reject"); // (rejected by the context)
+			final Tuple good_2 = buildTuple("b");
+
+			Arrays.asList(good_1, bad, rejected, good_2).forEach(t -> bolt.execute(t));
+
+			assertEquals(2, _emitted.size());
+			assertEquals(1, _acked_at_flush.size());
+			assertEquals(Arrays.asList(bad), _failed);
+			assertEquals(Arrays.asList(rejected, good_1, good_2), _acked); // (rejected would be rejected again on a replay, so is acked straight away)
+			assertEquals(2L, bolt._records_written.getValueAndReset());
+			assertEquals(2L, bolt._records_failed.getValueAndReset());
+		}
+		setup();
+
+		// 2) A failed flush fails the whole batch
+		{
+			final OutputBolt bolt = buildBolt(2);
+
+			final CompletableFuture<?> flush_error = new CompletableFuture<>();
+			flush_error.completeExceptionally(new RuntimeException("test flush failure"));
+			_flush_results.add(flush_error);
+
+			final Tuple t1 = buildTuple("a");
+			final Tuple t2 = buildTuple("b");
+			bolt.execute(t1);
+			bolt.execute(t2);
+
+			assertEquals(0, _acked.size());
+			assertEquals(Arrays.asList(t1, t2), _failed);
+			assertEquals(0L, bolt._records_written.getValueAndReset());
+			assertEquals(2L, bolt._records_failed.getValueAndReset());
+		}
+		setup();
+
+		// 3) ... as does a flush that times out
+		{
+			final OutputBolt bolt = buildBolt(2);
+			bolt._flush_timeout_ms = 100L;
+
+			_flush_results.add(new CompletableFuture<>()); // (never completes)
+
+			final Tuple t1 = buildTuple("a");
+			final Tuple t2 = buildTuple("b");
+			bolt.execute(t1);
+			bolt.execute(t2);
+
+			assertEquals(0, _acked.size());
+			assertEquals(Arrays.asList(t1, t2), _failed);
+
+			// (and the next batch is unaffected)
+			final Tuple t3 = buildTuple("c");
+			final Tuple t4 = buildTuple("d");
+			bolt.execute(t3);
+			bolt.execute(t4);
+
+			assertEquals(Arrays.asList(t3, t4), _acked);
+			assertEquals(Arrays.asList(t1, t2), _failed);
+		}
+	}
+
+	@Test
+	public void test_tickFlush() {
+		final OutputBolt bolt = buildBolt(10);
+
+		// (nothing to flush, so doesn't call the context)
+		bolt.execute(buildTickTuple());
+		assertEquals(0, _acked_at_flush.size());
+
+		final Tuple t1 = buildTuple("a");
+		final Tuple t2 = buildTuple("b");
+		bolt.execute(t1);
+		bolt.execute(t2);
+
+		assertEquals(0, _emitted.size());
+		assertEquals(0, _acked.size());
+
+		// The tick flushes the partial batch
+		bolt.execute(buildTickTuple());
+
+		assertEquals(2, _emitted.size());
+		assertEquals(Arrays.asList(0), _acked_at_flush);
+		assertEquals(Arrays.asList(t1, t2), _acked);
+		assertEquals(0, _failed.size());
+
+		// (tick tuples themselves are never acked)
+		bolt.execute(buildTickTuple());
+		assertEquals(Arrays.asList(t1, t2), _acked);
+		assertEquals(1, _acked_at_flush.size());
+	}
+
+	////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Builds an output bolt with a mock context and collector (ie without calling prepare)
+	 * @param batch_size
+	 * @return
+	 */
+	protected OutputBolt buildBolt(final int batch_size) {
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/output_bolt")
+			.done().get();
+
+		final OutputBolt bolt = new OutputBolt(bucket, "", PassthroughTopology.class.getName(), batch_size, 1);
+		bolt._batch = new ArrayList<>();
+		bolt._batch_latency_ms = new ReducedMetric(new MeanReducer());
+		bolt._records_written = new CountMetric();
+		bolt._records_failed = new CountMetric();
+		bolt._batches_written = new CountMetric();
+		bolt._user_topology = new PassthroughTopology();
+
+		bolt._context = buildProxy(IEnrichmentModuleContext.class, (method, args) -> {
+			if (method.equals("emitMutableObject")) {
+				final JsonNode obj = (JsonNode) args[1];
+				if (obj.path("field").asText().equals("reject")) {
+					return Validation.fail(ErrorUtils.buildErrorMessage("TestOutputBolt", "emitMutableObject", "rejected"));
+				}
+				_emitted.add(obj);
+				return Validation.success(obj);
+			}
+			else if (method.equals("flushBatchOutput")) {
+				_acked_at_flush.add(_acked.size());
+				return _flush_results.isEmpty() ? CompletableFuture.completedFuture(null) : _flush_results.pop();
+			}
+			else throw new RuntimeException("Not expected: " + method);
+		});
+
+		bolt._collector = new OutputCollector(buildProxy(IOutputCollector.class, (method, args) -> {
+			if (method.equals("ack")) {
+				_acked.add((Tuple) args[0]);
+			}
+			else if (method.equals("fail")) {
+				_failed.add((Tuple) args[0]);
+			}
+			return null;
+		}));
+
+		return bolt;
+	}
+
+	/** Builds a data tuple with a single field
+	 * @param value - the field value, or null for a tuple that throws when its field is read
+	 * @return
+	 */
+	protected static Tuple buildTuple(final String value) {
+		return buildProxy(Tuple.class, (method, args) -> {
+			if (method.equals("getFields")) return new Fields("field");
+			else if (method.equals("getValueByField")) {
+				if (null == value) throw new RuntimeException("test bad tuple");
+				return value;
+			}
+			else if (method.equals("getSourceComponent")) return "test_spout";
+			else if (method.equals("getSourceStreamId")) return "default";
+			else throw new RuntimeException("Not expected: " + method);
+		});
+	}
+
+	/** Builds a tick tuple
+	 * @return
+	 */
+	protected static Tuple buildTickTuple() {
+		return buildProxy(Tuple.class, (method, args) -> {
+			if (method.equals("getSourceComponent")) return Constants.SYSTEM_COMPONENT_ID;
+			else if (method.equals("getSourceStreamId")) return Constants.SYSTEM_TICK_STREAM_ID;
+			else throw new RuntimeException("Not expected: " + method);
+		});
+	}
+
+	/** Builds a proxy for an interface (equality is by identity)
+	 * @param clazz - the interface
+	 * @param handler - (method name, args) -> return value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T> T buildProxy(final Class<T> clazz, final BiFunction<String, Object[], Object> handler) {
+		return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz }, (proxy, method, args) -> {
+			if (method.getName().equals("equals")) return proxy == args[0];
+			else if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+			else if (method.getName().equals("toString")) return clazz.getSimpleName() + "@" + System.identityHashCode(proxy);
+			else return handler.apply(method.getName(), args);
+		});
+	}
+}
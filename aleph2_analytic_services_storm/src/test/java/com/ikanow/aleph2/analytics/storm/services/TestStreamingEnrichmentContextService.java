@@ -643,11 +643,11 @@ public class TestStreamingEnrichmentContextService {
 			assertEquals(ErrorUtils.NOT_YET_IMPLEMENTED, e.getMessage());
 		}
 		
-		test_external1a.emitMutableObject(0, test_external1a.convertToMutable(jn1), Optional.empty(), Optional.empty());
-		test_external1a.emitImmutableObject(0, jn2, Optional.empty(), Optional.empty(), Optional.empty());		
-		test_external1a.emitImmutableObject(0, jn2, 
+		assertTrue(test_external1a.emitMutableObject(0, test_external1a.convertToMutable(jn1), Optional.empty(), Optional.empty()).isSuccess());
+		assertTrue(test_external1a.emitImmutableObject(0, jn2, Optional.empty(), Optional.empty(), Optional.empty()).isSuccess());		
+		assertTrue(test_external1a.emitImmutableObject(0, jn2, 
 				Optional.of(_mapper.createObjectNode().put("extra", "test3_extra").put("test", "test3")), 
-				Optional.empty(), Optional.empty());
+				Optional.empty(), Optional.empty()).isSuccess());
 		
 		for (int i = 0; i < 60; ++i) {
 			Thread.sleep(1000L);
@@ -56,7 +56,6 @@ import backtype.storm.topology.TopologyBuilder;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.ikanow.aleph2.analytics.storm.data_model.IStormController;
-import com.ikanow.aleph2.core.shared.utils.JarBuilderUtil;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
 //import com.ikanow.aleph2.storm.samples.bolts.SampleKafkaBolt;
 //import com.ikanow.aleph2.storm.samples.bolts.SampleKafkaOutputFileBolt;
@@ -195,35 +194,65 @@ public class TestStormControllerUtil_Cache {
 		Thread.sleep(1500);
 		File file3 = createFakeZipFile(null);//File.createTempFile("recent_date_test_", null);		
 		List<String> files1 = Arrays.asList(file1.getCanonicalPath(),file2.getCanonicalPath(),file3.getCanonicalPath());
-		String input_jar_location = JarBuilderUtil.getHashedJarName(files1, jar_location);
-		File input_jar = new File(input_jar_location);
-		input_jar.delete();
-		assertFalse(input_jar.exists());
 		
 		//first time it should create
 		final CompletableFuture<String> jar_future1 = StormControllerUtil.buildOrReturnCachedStormTopologyJar(files1, jar_location);
-		jar_future1.get();
+		final String input_jar_location = jar_future1.get();
+		File input_jar = new File(input_jar_location);
 		assertTrue(input_jar.exists());
 		
 		//second time it should cache
 		long file_mod_time = getFileModifiedTime(input_jar);
 		final CompletableFuture<String> jar_future2 = StormControllerUtil.buildOrReturnCachedStormTopologyJar(files1, jar_location);
-		jar_future2.get();
+		assertEquals(input_jar_location, jar_future2.get());
 		assertEquals(file_mod_time, getFileModifiedTime(input_jar));
 		
-		//third time modify a file, it should no longer cache
+		//third time modify a file, it should no longer cache (different contents, so a different jar)
 		Thread.sleep(1500); //sleep a ms so the modified time updates
 		file1.delete();
 		file1 = createFakeZipFile(file2.getCanonicalPath());
 		final CompletableFuture<String> jar_future3 = StormControllerUtil.buildOrReturnCachedStormTopologyJar(files1, jar_location);
-		jar_future3.get();
-		assertNotEquals(file_mod_time, getFileModifiedTime(input_jar)); //original jar creation time should not match its current modified time (it should have been remade)
+		final String input_jar_location3 = jar_future3.get();
+		assertNotEquals(input_jar_location, input_jar_location3);
+		assertTrue(new File(input_jar_location3).exists());
 		
 		//cleanup
 		file1.delete();
 		file2.delete();
 		file3.delete();
 		new File(input_jar_location).delete();
+		new File(input_jar_location3).delete();
+	}
+	
+	@Test
+	public void testCache_concurrentAndLayered() throws IOException, InterruptedException, ExecutionException {
+		final String jar_location = System.getProperty("java.io.tmpdir");
+		final File base1 = createFakeZipFile(null);
+		final File base2 = createFakeZipFile(null);
+		final File user1 = createFakeZipFile(null);
+		final File user2 = createFakeZipFile(null);
+		final List<String> base = Arrays.asList(base1.getCanonicalPath(), base2.getCanonicalPath());
+		
+		// Concurrent requests for the same jars share the same build
+		final CompletableFuture<String> jar_future1a = StormControllerUtil.buildOrReturnCachedStormTopologyJar(Arrays.asList(base, Arrays.asList(user1.getCanonicalPath())), jar_location);
+		final CompletableFuture<String> jar_future1b = StormControllerUtil.buildOrReturnCachedStormTopologyJar(Arrays.asList(base, Arrays.asList(user1.getCanonicalPath())), jar_location);
+		assertSame(jar_future1a, jar_future1b);
+		
+		// Different user libs, re-uses the same base layer
+		final CompletableFuture<String> base_future = StormControllerUtil.buildOrReturnCachedStormTopologyJar(base, jar_location);
+		final String base_jar = base_future.get();
+		final long base_mod_time = getFileModifiedTime(new File(base_jar));
+		final CompletableFuture<String> jar_future2 = StormControllerUtil.buildOrReturnCachedStormTopologyJar(Arrays.asList(base, Arrays.asList(user2.getCanonicalPath())), jar_location);
+		
+		assertNotEquals(jar_future1a.get(), jar_future2.get());
+		assertTrue(new File(jar_future1a.get()).exists());
+		assertTrue(new File(jar_future2.get()).exists());
+		assertEquals(base_mod_time, getFileModifiedTime(new File(base_jar))); // (not rebuilt)
+		
+		//cleanup
+		for (File f: Arrays.asList(base1, base2, user1, user2, new File(base_jar), new File(jar_future1a.get()), new File(jar_future2.get()))) {
+			f.delete();
+		}
 	}
 	
 	private long getFileModifiedTime(File input_jar) throws IOException {
@@ -36,7 +36,42 @@ public class ElasticsearchConfigurationBean {
 	 * @return
 	 */
 	public String cluster_name() { return cluster_name; }
+	/** The number of documents fetched per page when streaming the results of a query with no limit via a scroll (null => default)
+	 * @return
+	 */
+	public Integer scroll_page_size() { return scroll_page_size; }
+	/** The maximum number of pages that a streaming cursor prefetches ahead of the consumer (null => default)
+	 * @return
+	 */
+	public Integer scroll_max_buffered_pages() { return scroll_max_buffered_pages; }
+	/** The maximum amount of data (KB) that the batch subsystem allows to be queued or in flight before writers block (null => default)
+	 * @return
+	 */
+	public Long batch_max_inflight_kb() { return batch_max_inflight_kb; }
+	/** How long (ms) a batch writer blocks waiting for in flight data to drain before the write is rejected (null => default, 60s; 0 => rejects immediately)
+	 * @return
+	 */
+	public Long batch_max_blocking_ms() { return batch_max_blocking_ms; }
+	/** The maximum amount of data (KB) in bulk delete requests that a delete-by-query allows in flight at once (null => default)
+	 * @return
+	 */
+	public Long delete_max_inflight_kb() { return delete_max_inflight_kb; }
+	/** The maximum number of index shards that a delete-by-query scrolls through in parallel (null => default)
+	 * @return
+	 */
+	public Integer delete_max_parallel_slices() { return delete_max_parallel_slices; }
+	/** The format in which objects are sent to elasticsearch: "json" (default), or "smile"/"cbor" (more compact, and cheaper to generate and parse)
+	 * @return
+	 */
+	public String source_format() { return source_format; }
 	
 	private String elasticsearch_connection;
 	private String cluster_name;
+	private Integer scroll_page_size;
+	private Integer scroll_max_buffered_pages;
+	private Long batch_max_inflight_kb;
+	private Long batch_max_blocking_ms;
+	private Long delete_max_inflight_kb;
+	private Integer delete_max_parallel_slices;
+	private String source_format;
 }
@@ -17,20 +17,18 @@ package com.ikanow.aleph2.shared.crud.elasticsearch.data_model;
 
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import org.elasticsearch.action.admin.indices.stats.IndexStats;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.indices.IndexMissingException;
 
@@ -40,20 +38,18 @@ import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.data_model.utils.TimeUtils;
-import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchContext.IndexContext.ReadWriteIndexContext.TimedRwIndexContext;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchContextUtils;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchFutureUtils;
+import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchIndexSizeMonitor;
 
 import fj.Unit;
 import fj.data.Either;
 
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
-import java.util.function.Predicate;
 
 import scala.Tuple2;
-import scala.Tuple3;
 
 //TODO: ALEPH-14: Ignore requests for new indexes that are too old? (So we don't bother creating indexes that we'll delete an hour later)
 
@@ -165,6 +161,24 @@ public abstract class ElasticsearchContext {
 			return getReadableIndexList(date_range).toArray(new String[0]);
 		}
 		
+		/** Returns a list of indexes that can be used directly, resolved against the indexes that actually exist
+		 *  (unlike the version without existing_indexes, time-based indexes are selected by the time period in their name, so the date range can be open above - eg to include future-dated indexes)
+		 * @param date_range - ignored for FixedRoIndexContext; for TimeBasedIndexContext, can be used to narrow down the indexes searched (upper end Long.MAX_VALUE means open above) 
+		 * @param existing_indexes - the set of index names that exist
+		 * @return a list of indexes that can be passed into Client calls
+		 */
+		public List<String> getReadableIndexList(final Optional<Tuple2<Long, Long>> date_range, final Collection<String> existing_indexes) {
+			final List<String> ret_val = ElasticsearchContextUtils.resolveIndexPatterns(getReadableIndexList(date_range), existing_indexes);
+			return ret_val.isEmpty() ? NO_INDEXES_FOUND : ret_val;
+		}
+		
+		/** Returns the field used to split objects across time-based indexes, if there is one (eg so queries on that field can be restricted to a subset of indexes) 
+		 * @return the time field, or empty if the context isn't time-based (or is time-based but uses "now")
+		 */
+		public Optional<String> timeField() {
+			return Optional.empty();
+		}
+		
 		/** ADT encapsulating information about a read-only index of set of indexes - see enclosing class for more details
 		 * @author Alex
 		 */
@@ -212,6 +226,17 @@ public abstract class ElasticsearchContext {
 					});
 					return ret_val.isEmpty() ? NO_INDEXES_FOUND : ret_val;
 				} 
+				
+				@Override
+				public List<String> getReadableIndexList(final Optional<Tuple2<Long, Long>> date_range, final Collection<String> existing_indexes) {
+					if (!date_range.isPresent()) {
+						return super.getReadableIndexList(date_range, existing_indexes);
+					}
+					final List<String> ret_val = _indexes.stream()
+													.flatMap(i -> ElasticsearchContextUtils.getIndexesFromDateRange(i, date_range.get(), existing_indexes))
+													.collect(Collectors.toList());
+					return ret_val.isEmpty() ? NO_INDEXES_FOUND : ret_val;
+				}
 			}
 			/** Handles a combination of fixed and timed read only indexes
 			 * @author Alex
@@ -234,6 +259,16 @@ public abstract class ElasticsearchContext {
 								.collect(Collectors.toList());
 					return ret_val.isEmpty() ? NO_INDEXES_FOUND : ret_val;					
 				}				
+				@Override
+				public List<String> getReadableIndexList(final Optional<Tuple2<Long, Long>> date_range, final Collection<String> existing_indexes) {
+					final List<String> ret_val = 
+							Stream.concat(
+									_timed_delegate.getReadableIndexList(date_range, existing_indexes).stream().filter(s -> !NO_INDEX_FOUND.equals(s))
+									, 
+									_fixed_delegate.getReadableIndexList(date_range, existing_indexes).stream().filter(s -> !NO_INDEX_FOUND.equals(s)))
+								.collect(Collectors.toList());
+					return ret_val.isEmpty() ? NO_INDEXES_FOUND : ret_val;					
+				}				
 			}
 		}
 		/** ADT encapsulating information about a read-write single index - see enclosing class for details
@@ -311,124 +346,35 @@ public abstract class ElasticsearchContext {
 			
 			// INDEX SIZING UTILITY:
 			
-			private static long MB = 1024L*1024L;
-			public static String BAR = "_";
-			public static final long INDEX_SIZE_CHECK_MS = 10000L; // (Every 10s)			
-			public static class MutableState {
-				private AtomicBoolean _is_working = new AtomicBoolean(false); 
-				private ConcurrentHashMap<String, Tuple3<Long, String, Integer>> _base_index_states = new ConcurrentHashMap<>();
-			}
-			private final MutableState _mutable_state = new MutableState(); // (WARNING - mutable)
+			public static String BAR = ElasticsearchIndexSizeMonitor.BAR;
+			public static final long INDEX_SIZE_CHECK_MS = ElasticsearchIndexSizeMonitor.INDEX_SIZE_CHECK_MS; // (Every 10s)			
 			
-			/** Every 10s check the index size and increment the index suffix if too large
+			private final Set<String> _seen_base_indexes = ConcurrentHashMap.newKeySet();
+			private final ConcurrentHashMap<String, Integer> _alias_checked_suffixes = new ConcurrentHashMap<>(); // (base index -> suffix when the aliases were last checked)
+			
+			/** Returns the index to write into - the sizes are checked every 10s in the background (by the cluster's index size monitor) and the suffix incremented if too large
+			 *  (only the first write to a given base index from this context waits for the sizes, after that it's just a lookup)
 			 * @return
 			 */
 			protected String getIndexSuffix(final String base_index) {
-				// Common:
-				final long now = new Date().getTime();
-				final Tuple3<Long, String, Integer> last_suffix = _mutable_state._base_index_states.computeIfAbsent(base_index, __ -> Tuples._3T(null, "", 0));
-				final Long last_checked = last_suffix._1();
-				final boolean checked_for_aliases = Lambdas.get(() -> {
-					if (mayCreateAliasesForThisIndex()) {
-						if (null == last_checked) { // alias checking logic, first time through only... (And then for index splitting, whenever an index is split)
-							checkForAliases(base_index);
-							if (!_target_max_index_size_mb.isPresent()) { // (update the concurrent hash map here since not going any further)
-								_mutable_state._base_index_states.put(base_index, Tuples._3T(now, "", 0)); // (current time + defaults - 2/3 not used)
-							}
-							return true;
-						}
-					}
-					return false;
-				});
+				final boolean first_time = _seen_base_indexes.add(base_index);
+				
+				final int suffix = _target_max_index_size_mb
+										.map(max_mb -> ElasticsearchIndexSizeMonitor.get(this.client()).getSuffix(base_index, max_mb, first_time))
+										.orElse(0);
 				
-				if (!_target_max_index_size_mb.isPresent()) { // if not splitting contexts into multiple indexes
-					return base_index;
+				// alias checking logic, first time through only... (And then for index splitting, whenever an index is split)
+				if (mayCreateAliasesForThisIndex()) {
+					final Integer last_alias_suffix = _alias_checked_suffixes.get(base_index);
+					if (((null == last_alias_suffix) || (suffix != last_alias_suffix))
+							&& !Integer.valueOf(suffix).equals(_alias_checked_suffixes.put(base_index, suffix))) // (only one thread does the check)
+					{
+						checkForAliases(base_index);
+					}
 				}
-				else synchronized (this) { // (just need this sync point so that multiple threads first time through don't fall through to default)					
-					return _target_max_index_size_mb
-							.filter(__ -> { // only check first time or every 10s
-								if ((null == last_checked) || ((now - last_checked) >= INDEX_SIZE_CHECK_MS)) {
-									_mutable_state._base_index_states.put(base_index, Tuples._3T(now, last_suffix._2(), last_suffix._3()));
-									return true;
-								}
-								else return false;
-							})
-							// (if it's processing a previous request, keep going with the current suffix)
-							.filter(__ -> _mutable_state._is_working.compareAndSet(false, true)) 
-							.map(m -> {	
-								final CompletableFuture<Tuple3<Long, String, Integer>> future = ElasticsearchFutureUtils.wrap(
-										this.client().admin().indices().prepareStats()
-						                    .clear()
-						                    .setIndices(base_index + "*")
-						                    .setStore(true)
-						                    .execute()								
-										,
-										stats -> {
-											final int suffix_index = Lambdas.get(() -> {
-												final IndexStats index_stats = stats.getIndex(getName(base_index, last_suffix));
-												
-												final Predicate<IndexStats> shard_too_big = i_stats -> 
-													Arrays.stream(i_stats.getShards()).map(shard -> shard.getStats().getStore()).anyMatch(x -> x.getSizeInBytes() >= (m*MB));
-												
-												if ((null != index_stats) && shard_too_big.test(index_stats))
-												{
-													int max_index = 1;
-													// find a new index to use:									
-													for (; ; max_index++) {
-														final IndexStats candidate_index_stats = stats.getIndex(base_index + BAR + max_index);
-														
-														if (null == candidate_index_stats) break;
-														else if (!shard_too_big.test(candidate_index_stats)) break; // (found one we can use!)
-													}
-													return max_index;
-												}
-												else {
-													return last_suffix._3();
-												}
-											});			
-											if (mayCreateAliasesForThisIndex() && !checked_for_aliases && (suffix_index != last_suffix._3())) {
-												checkForAliases(base_index);
-											}
-											final Tuple3<Long, String, Integer> new_suffix = Tuples._3T(now, BAR + suffix_index, suffix_index);
-											_mutable_state._base_index_states.put(base_index, new_suffix);
-											return new_suffix;
-										})
-										// Just stick a future at the end of the chain to ensure the mutable state is always fixed
-										.thenApply(x -> {
-											_mutable_state._is_working.set(false);
-											return x;
-										})
-										.exceptionally(t -> {
-											_mutable_state._is_working.set(false);
-											return last_suffix;
-										});
-										;
-								
-								if (null == last_checked) { // first time through, wait for the code to complete
-									try {
-										final Tuple3<Long, String, Integer> new_suffix = future.join();
-										return getName(base_index, new_suffix);
-									}
-									catch (Exception e) { // pass through to default on error
-										return null;
-									}
-								}
-								else return null; // pass through to default
-							})
-							.orElseGet(() -> getName(base_index, last_suffix))
-							;
-					
-				} //(end sync/if checking index sizes)
+				return ElasticsearchIndexSizeMonitor.getName(base_index, suffix);
 			}//(end getIndexSuffix)
 			
-			//(util function)
-			private static String getName(final String index, final Tuple3<Long, String, Integer> suffix_meta) {
-				return index + 
-						((0 != suffix_meta._3())
-								? suffix_meta._2()
-										: "");
-			}
-			
 			/** Gets the index to write to
 			 * @param writable_object - only used in time-based indexes, if optional then "now" is used
 			 * @return an index that can be used for "client" writes
@@ -507,6 +453,7 @@ public abstract class ElasticsearchContext {
 				final Tuple2<String, String> _index_split;
 				final ThreadLocal<SimpleDateFormat> _formatter;
 				
+				@Override
 				public Optional<String> timeField() {
 					return _time_field;
 				}
@@ -525,6 +472,15 @@ public abstract class ElasticsearchContext {
 						return ElasticsearchContextUtils.getIndexesFromDateRange(_index, date_range.get()).map(s -> s + '*').collect(Collectors.toList());
 					}
 				}
+				
+				@Override
+				public List<String> getReadableIndexList(final Optional<Tuple2<Long, Long>> date_range, final Collection<String> existing_indexes) {
+					if (!date_range.isPresent()) {
+						return super.getReadableIndexList(date_range, existing_indexes);
+					}
+					final List<String> ret_val = ElasticsearchContextUtils.getIndexesFromDateRange(_index, date_range.get(), existing_indexes).collect(Collectors.toList());
+					return ret_val.isEmpty() ? NO_INDEXES_FOUND : ret_val;
+				}
 				/* (non-Javadoc)
 				 * @see com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchContext.IndexContext.ReadWriteIndexContext#getWritableIndex(java.util.Optional)
 				 */
@@ -15,27 +15,38 @@
  *******************************************************************************/
 package com.ikanow.aleph2.shared.crud.elasticsearch.services;
 
+import java.lang.ref.WeakReference;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -53,6 +64,7 @@ import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.count.CountRequestBuilder;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexRequest;
@@ -64,9 +76,11 @@ import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.indices.IndexMissingException;
@@ -79,6 +93,7 @@ import scala.Tuple2;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
@@ -96,10 +111,12 @@ import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchConfigurationBean;
 import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchContext;
 import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchContext.ReadWriteContext;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchContextUtils;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchFutureUtils;
+import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchSourceUtils;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchUtils;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ErrorUtils;
 
@@ -113,20 +130,44 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 
 	public enum CreationPolicy { AVAILABLE_IMMEDIATELY, SINGLE_OBJECT_AVAILABLE_IMMEDIATELY, OPTIMIZED };
 	
+	public static final int DEFAULT_SCROLL_PAGE_SIZE = 1000;
+	public static final int DEFAULT_SCROLL_MAX_BUFFERED_PAGES = 2;
+	public static final TimeValue SCROLL_KEEP_ALIVE = new TimeValue(60000);
+	public static final long DEFAULT_MAX_INFLIGHT_KB = 65536L; // (ie 64MB, ~6 bulk requests at the default size)
+	public static final long DEFAULT_MAX_BLOCKING_MS = 60000L; // (how long a batch writer waits for in flight data to drain before being rejected)
+	public static final int BATCH_STRIPES = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()/2)); // (number of bulk processors that batch writers are spread across)
+	public static final long DEFAULT_DELETE_MAX_INFLIGHT_KB = 4096L; // (ie ~40 bulk deletes of 1000 objects)
+	public static final int DEFAULT_DELETE_MAX_PARALLEL_SLICES = 4;
+	public static final int REQUEST_OVERHEAD_BYTES = 128; // (approx per-request overhead used when estimating the size of batch requests)
+	public static final long EXISTING_INDEXES_REFRESH_MS = 60000L; // (how often the cached set of existing indexes used to narrow down time-ranged queries is refreshed)
+	
 	public ElasticsearchCrudService(final Class<O> bean_clazz, 
 			final ElasticsearchContext es_context, 
 			final Optional<Boolean> id_ranges_ok, final CreationPolicy creation_policy, 
 			final Optional<String> auth_fieldname, final Optional<AuthorizationBean> auth, final Optional<ProjectBean> project,
 			final Optional<DataSchemaBean.WriteSettings> batch_write_settings)
 	{
-		_state = new State(bean_clazz, es_context, id_ranges_ok.orElse(false), creation_policy, auth_fieldname, auth, project);
+		this(bean_clazz, es_context, id_ranges_ok, creation_policy, auth_fieldname, auth, project, batch_write_settings, Optional.empty());
+	}
+	
+	/** Creates an Elasticsearch CRUD service, with access to the (optional) service-wide config (eg for cursor paging)
+	 */
+	public ElasticsearchCrudService(final Class<O> bean_clazz, 
+			final ElasticsearchContext es_context, 
+			final Optional<Boolean> id_ranges_ok, final CreationPolicy creation_policy, 
+			final Optional<String> auth_fieldname, final Optional<AuthorizationBean> auth, final Optional<ProjectBean> project,
+			final Optional<DataSchemaBean.WriteSettings> batch_write_settings,
+			final Optional<ElasticsearchConfigurationBean> es_config)
+	{
+		_state = new State(bean_clazz, es_context, id_ranges_ok.orElse(false), creation_policy, auth_fieldname, auth, project, es_config);
 		_object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 		_batch_write_settings = batch_write_settings;
 	}
 	protected class State {
 		State(final Class<O> bean_clazz, final ElasticsearchContext es_context, 
 				final boolean id_ranges_ok, final CreationPolicy creation_policy,
-				final Optional<String> auth_fieldname, final Optional<AuthorizationBean> auth, final Optional<ProjectBean> project
+				final Optional<String> auth_fieldname, final Optional<AuthorizationBean> auth, final Optional<ProjectBean> project,
+				final Optional<ElasticsearchConfigurationBean> es_config
 				)			
 		{
 			this.es_context = es_context;
@@ -138,6 +179,13 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 			this.auth = auth;
 			this.auth_fieldname = auth_fieldname;
 			this.project = project;
+			
+			this.es_config = es_config;
+			scroll_page_size = es_config.map(ElasticsearchConfigurationBean::scroll_page_size).filter(i -> i > 0).orElse(DEFAULT_SCROLL_PAGE_SIZE);
+			scroll_max_buffered_pages = es_config.map(ElasticsearchConfigurationBean::scroll_max_buffered_pages).filter(i -> i > 0).orElse(DEFAULT_SCROLL_MAX_BUFFERED_PAGES);
+			delete_max_inflight_kb = es_config.map(ElasticsearchConfigurationBean::delete_max_inflight_kb).filter(kb -> kb > 0).orElse(DEFAULT_DELETE_MAX_INFLIGHT_KB);
+			source_format = ElasticsearchSourceUtils.getSourceFormat(es_config.map(ElasticsearchConfigurationBean::source_format));
+			delete_max_parallel_slices = es_config.map(ElasticsearchConfigurationBean::delete_max_parallel_slices).filter(i -> i > 0).orElse(DEFAULT_DELETE_MAX_PARALLEL_SLICES);
 		}
 		final ElasticsearchContext es_context;
 		final Client client;
@@ -148,10 +196,18 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		final Optional<String> auth_fieldname;
 		final Optional<AuthorizationBean> auth;
 		final Optional<ProjectBean> project;		
+		
+		final Optional<ElasticsearchConfigurationBean> es_config;
+		final int scroll_page_size;
+		final int scroll_max_buffered_pages;
+		final long delete_max_inflight_kb;
+		final int delete_max_parallel_slices;
+		final XContentType source_format;
 	}
 	protected final State _state;
 	protected final ObjectMapper _object_mapper;
 	protected final Optional<DataSchemaBean.WriteSettings> _batch_write_settings;
+	protected CompletableFuture<Tuple2<Long, Set<String>>> _existing_indexes = null; // (time fetched, index names - synchronize on _state)
 	
 	/** A wrapper for an ES return value that is auto-closeable
 	 * @author acp
@@ -160,8 +216,6 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	 */
 	public class ElasticsearchCursor extends Cursor<O> {
 				
-		//TODO (ALEPH-14): if there's no limit then should convert this to a scroll query...
-		
 		protected ElasticsearchCursor(final SearchResponse sr) {
 			_hits = sr == null ? null : sr.getHits();
 		}
@@ -186,6 +240,132 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		}		
 	}
 	
+	/** A wrapper for a scroll query that is auto-closeable - pages are pulled lazily from ES as the iterator advances,
+	 *  with up to a fixed number of pages being prefetched in the background while the current one is consumed
+	 *  (so the memory used is bounded by (1 + max_buffered_pages)*page_size documents however large the result set is)
+	 *  Note that all iterators share the same underlying scroll, ie a second iterator continues from where the previous one left off
+	 * @author Alex
+	 */
+	public class ElasticsearchScrollingCursor extends Cursor<O> {
+		
+		/** Creates a scrolling cursor from the first page of a scroll query
+		 * @param first_page - the response to the initial search request (with the scroll set)
+		 * @param page_size - the size of each page (used to decide when all the pages have been requested)
+		 * @param max_buffered_pages - the max number of pages that can be requested ahead of the consumer
+		 */
+		protected ElasticsearchScrollingCursor(final SearchResponse first_page, final int page_size, final int max_buffered_pages) {
+			_total_hits = first_page.getHits().totalHits();
+			_page_size = Math.max(1, page_size);
+			_max_buffered_pages = Math.max(1, max_buffered_pages);
+			_mutable_scroll_ids.add(first_page.getScrollId());
+			_mutable_tail = CompletableFuture.completedFuture(first_page);
+			_mutable_pages.add(_mutable_tail);
+			_mutable_pages_requested = 1;
+			prefetch();
+		}
+		protected final long _total_hits;
+		protected final int _page_size;
+		protected final int _max_buffered_pages;
+		
+		// (WARNING: mutable state, all guarded by "this" apart from the (concurrent) set of scroll ids and the closed flag)
+		protected final LinkedList<CompletableFuture<SearchResponse>> _mutable_pages = new LinkedList<>();
+		protected CompletableFuture<SearchResponse> _mutable_tail;
+		protected long _mutable_pages_requested;
+		protected boolean _mutable_all_requested = false;
+		protected final Set<String> _mutable_scroll_ids = ConcurrentHashMap.newKeySet();
+		protected volatile boolean _closed = false;
+		
+		/** Tops up the set of outstanding pages - each scroll request is chained onto the previous one since it needs the latest scroll id
+		 */
+		protected synchronized void prefetch() {
+			while (!_closed && (_mutable_pages.size() < _max_buffered_pages) && (_mutable_pages_requested*_page_size < _total_hits)) {
+				_mutable_tail = _mutable_tail.thenCompose(sr -> 
+							ElasticsearchFutureUtils.wrap(_state.client.prepareSearchScroll(sr.getScrollId()).setScroll(SCROLL_KEEP_ALIVE).execute(), 
+									next_sr -> {
+										_mutable_scroll_ids.add(next_sr.getScrollId());
+										return next_sr;
+									}));
+				_mutable_pages.add(_mutable_tail);
+				_mutable_pages_requested++;
+			}
+			if (!_mutable_all_requested && (_mutable_pages_requested*_page_size >= _total_hits)) { 
+				// (all pages requested, so can release the scroll as soon as the last one returns)
+				_mutable_all_requested = true;
+				_mutable_tail.whenComplete((__, ___) -> clearScrolls());
+			}
+		}
+		
+		/** Returns the next page (blocking until it has been retrieved), or empty if there are no more pages
+		 * @return
+		 */
+		protected Optional<SearchResponse> nextPage() {
+			final CompletableFuture<SearchResponse> next_page;
+			synchronized (this) {
+				next_page = _mutable_pages.poll();
+			}
+			if (null == next_page) {
+				return Optional.empty();
+			}
+			prefetch();
+			return Optional.of(next_page.join());
+		}
+		
+		/** Releases the server-side resources associated with any scroll ids returned so far
+		 */
+		protected void clearScrolls() {
+			final List<String> scroll_ids = _mutable_scroll_ids.stream().filter(id -> null != id).collect(Collectors.toList());
+			_mutable_scroll_ids.removeAll(scroll_ids);
+			if (!scroll_ids.isEmpty()) {
+				_state.client.prepareClearScroll().setScrollIds(scroll_ids).execute();
+			}
+		}
+		
+		@Override
+		public void close() throws Exception {
+			_closed = true;
+			synchronized (this) {
+				_mutable_pages.clear();
+				// (wait for any outstanding scroll requests to complete then clear all the scrolls)
+				_mutable_tail.whenComplete((__, ___) -> clearScrolls());
+			}
+		}
+
+		@Override
+		public Iterator<O> iterator() {
+			return new Iterator<O>() {
+				SearchHit[] _mutable_hits = new SearchHit[0];
+				int _mutable_index = 0;
+				boolean _mutable_done = false;
+				
+				@Override
+				public boolean hasNext() {
+					while (!_mutable_done && (_mutable_index >= _mutable_hits.length)) {
+						final Optional<SearchHit[]> maybe_hits = nextPage().map(sr -> sr.getHits().hits()).filter(hits -> hits.length > 0);
+						if (maybe_hits.isPresent()) {
+							_mutable_hits = maybe_hits.get();
+							_mutable_index = 0;
+						}
+						else _mutable_done = true;
+					}
+					return !_mutable_done;
+				}
+
+				@Override
+				public O next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return createRecordFromSource(_mutable_hits[_mutable_index++]);
+				}				
+			};
+		}
+
+		@Override
+		public long count() {
+			return _total_hits;
+		}		
+	}
+	
 	/////////////////////////////////////////////////////
 	
 	// UTILS
@@ -198,9 +378,9 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	 * @return
 	 */
 	private IndexRequestBuilder singleObjectIndexRequest(final Either<ReadWriteContext, Tuple2<String, String>> rw_context, 
-			final Either<O, Tuple2<String, String>> new_object, final boolean replace_if_present, final boolean bulk)
+			final Either<O, Tuple2<String, BytesReference>> new_object, final boolean replace_if_present, final boolean bulk)
 	{
-		final Either<JsonNode, Tuple2<String, String>> json_object =
+		final Either<JsonNode, Tuple2<String, BytesReference>> json_object =
 				new_object.left().map(left-> {
 					return ((JsonNode.class.isAssignableFrom(_state.clazz))
 							? (JsonNode) left
@@ -241,7 +421,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 					.setOpType(replace_if_present ? OpType.INDEX : OpType.CREATE)
 					.setConsistencyLevel(WriteConsistencyLevel.ONE)
 					.setRefresh(!bulk && CreationPolicy.OPTIMIZED != _state.creation_policy)
-					.setSource(json_object.<String>either(left -> left.toString(), right -> right._2()))
+					.setSource(json_object.<BytesReference>either(left -> ElasticsearchSourceUtils.toSource(left, _state.source_format), right -> right._2()))
 						)
 				.map(i -> json_object.<IndexRequestBuilder>either(left -> maybe_id.map(id -> i.setId(id)).orElse(i), right -> i.setId(right._1())))
 				//DEBUG
@@ -334,6 +514,60 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 					.get();
 	}
 	
+	/** Returns the set of indexes to read from for the specified query - if there's an obvious time range in the query (and the index context
+	 *  is time-based) then the indexes are narrowed down to that range, and then resolved against the set of indexes that actually exist
+	 * @param spec - the query
+	 * @return a future containing the indexes to pass into the read operation
+	 */
+	private CompletableFuture<String[]> getReadableIndexArray(final QueryComponent<O> spec) {
+		final ElasticsearchContext.IndexContext index_context = _state.es_context.indexContext();
+		final Optional<Tuple2<Long, Long>> maybe_date_range = ElasticsearchUtils.interpretObviousDateRange(spec, index_context.timeField());
+		
+		if (!maybe_date_range.isPresent()) {
+			return CompletableFuture.completedFuture(index_context.getReadableIndexArray(Optional.empty()));
+		}
+		else {
+			return getExistingIndexes().thenApply(time_indexes -> {
+				final Tuple2<Long, Long> date_range = maybe_date_range.get();
+				
+				// Indexes created since the cache was refreshed aren't in it, so also add the (wildcarded) indexes for the time periods since then, up to now
+				final long refreshed_from = Math.max(date_range._1(), time_indexes._1());
+				final long refreshed_to = Math.min(date_range._2(), new Date().getTime());
+				final List<String> new_indexes = (refreshed_from <= refreshed_to) 
+						? index_context.getReadableIndexList(Optional.of(Tuples._2T(refreshed_from, refreshed_to)))
+						: Collections.emptyList();
+				
+				final List<String> indexes = Stream.concat(index_context.getReadableIndexList(maybe_date_range, time_indexes._2()).stream(), new_indexes.stream())
+													.filter(s -> !ElasticsearchContext.NO_INDEX_FOUND.equals(s))
+													.distinct()
+													.collect(Collectors.toList());
+				
+				return (indexes.isEmpty() ? ElasticsearchContext.NO_INDEXES_FOUND : indexes).toArray(new String[0]);
+			})
+			.exceptionally(err -> index_context.getReadableIndexArray(maybe_date_range)); // (just fall back to the unresolved list of indexes, up to now)
+		}
+	}
+	
+	/** Returns the set of indexes that exist for this context, cached for EXISTING_INDEXES_REFRESH_MS so that ranged queries don't need a round trip each 
+	 *  (concurrent callers share the same refresh, and a failed refresh is retried by the next caller)
+	 * @return a future containing the time the set of indexes was fetched, and the set of index names
+	 */
+	private CompletableFuture<Tuple2<Long, Set<String>>> getExistingIndexes() {
+		synchronized (_state) {
+			final CompletableFuture<Tuple2<Long, Set<String>>> cached = _existing_indexes;
+			final boolean refresh = (null == cached) 
+					|| (cached.isDone() && (cached.isCompletedExceptionally() || ((new Date().getTime() - cached.join()._1()) >= EXISTING_INDEXES_REFRESH_MS)));
+			
+			if (refresh) {
+				final long fetch_time = new Date().getTime(); // (before the call, so any index created during it is covered by the "since refreshed" indexes)
+				_existing_indexes = ElasticsearchFutureUtils.wrap(
+						_state.client.admin().indices().prepareStats(_state.es_context.indexContext().getReadableIndexArray(Optional.empty())).clear().execute(),
+						stats -> Tuples._2T(fetch_time, (Set<String>) new HashSet<String>(stats.getIndices().keySet())));
+			}
+			return _existing_indexes;
+		}
+	}
+	
 	private static final String PARSE_ERROR_FRAGMENT = "failed to parse [";
 	private static final int PARSE_ERROR_FRAGMENT_LEN = PARSE_ERROR_FRAGMENT.length();
 	private static final String PARSE_ERROR_FRAGMENT_2 = "tried to parse field [";
@@ -468,7 +702,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 				// WARNING: mutable/imperative code ahead...
 				long _curr_written = 0;
 				List<Object> _id_list = null;
-				HashMap<String, String> _mapping_failures = null; 
+				HashMap<String, BytesReference> _mapping_failures = null; 
 				
 				@Override
 				public void accept(final BulkResponse result, final CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> future) {
@@ -484,7 +718,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 						if (null == _id_list) {
 							_id_list = new LinkedList<Object>();
 						}
-						HashMap<String, String> temp_mapping_failures = null;
+						HashMap<String, BytesReference> temp_mapping_failures = null;
 						final Iterator<BulkItemResponse> it = result.iterator();
 						while (it.hasNext()) {
 							final BulkItemResponse bir = it.next();
@@ -505,15 +739,15 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 													.setConsistencyLevel(WriteConsistencyLevel.ONE)
 													.setRefresh(CreationPolicy.AVAILABLE_IMMEDIATELY == _state.creation_policy);
 									}
-									String failed_json = null;
+									BytesReference failed_json = null;
 									if (null == _mapping_failures) { // first time through, use item id to grab the objects from the original request
 										if (null == temp_mapping_failures) {
-											temp_mapping_failures = new HashMap<String, String>();
+											temp_mapping_failures = new HashMap<String, BytesReference>();
 										}
 										final ActionRequest<?> ar = brb.request().requests().get(bir.getItemId());
 										if (ar instanceof IndexRequest) {											
 											IndexRequest ir = (IndexRequest) ar;
-											failed_json = ir.source().toUtf8();
+											failed_json = ir.source();
 											temp_mapping_failures.put(bir.getId(), failed_json);
 										}
 									}
@@ -751,48 +985,53 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		try {
 			//TODO (ALEPH-14): Handle case where no source is present but fields are
 			
-			//TODO (ALEPH-14): if there's an obvious timestamp range then apply to getReadableIndexArray
-			
 			Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> query = ElasticsearchUtils.convertToElasticsearchFilter(spec, _state.id_ranges_ok);
 
-			final SearchRequestBuilder srb = Optional
-						.of(
-							_state.client.prepareSearch()
-							.setIndices(_state.es_context.indexContext().getReadableIndexArray(Optional.empty()))
-							.setTypes(_state.es_context.typeContext().getReadableTypeArray())
-							.setQuery(QueryBuilders.constantScoreQuery(query._1()))							
-							)
-						.map(s -> (null != spec.getLimit())
-									? s.setSize(spec.getLimit().intValue())
-									: s)
-						.map(s -> (null != spec.getOrderBy())
-									? spec.getOrderBy().stream()
-											.reduce(s, 
-													(ss, sort) -> ss.addSort(sort._1(), sort._2() > 0 ? SortOrder.ASC : SortOrder.DESC), 
-													(s1, s2) -> s1)
-									: s)
-						.map(s -> field_list.isEmpty() 
-								? s 
-								: include
-									? s.setFetchSource(field_list.toArray(new String[0]), new String[0])
-									: s.setFetchSource(new String[0], field_list.toArray(new String[0]))
-							)
-						.get();
+			// (if there's no limit then stream the results back via a scroll, rather than returning just the first page) 
+			final boolean scroll = (null == spec.getLimit());
 			
-			return ElasticsearchFutureUtils.wrap(srb.execute(), sr -> {				
-				return new ElasticsearchCursor(sr);
-			},
-			(err, future) -> {
-				if ((err instanceof IndexMissingException) || (err instanceof SearchPhaseExecutionException)) //(this one can come up as on a read on a newly created index)
-				{ 	
-					// just treat this like an "object not found"
-					future.complete(new ElasticsearchCursor(null));
-				}
-				else {
-					future.completeExceptionally(err);
+			return getReadableIndexArray(spec).thenCompose(indexes -> {
+				final SearchRequestBuilder srb = Optional
+							.of(
+								_state.client.prepareSearch()
+								.setIndices(indexes)
+								.setTypes(_state.es_context.typeContext().getReadableTypeArray())
+								.setQuery(QueryBuilders.constantScoreQuery(query._1()))							
+								)
+							.map(s -> scroll
+										? s.setSize(_state.scroll_page_size).setScroll(SCROLL_KEEP_ALIVE)
+										: s.setSize(spec.getLimit().intValue()))
+							.map(s -> (null != spec.getOrderBy())
+										? spec.getOrderBy().stream()
+												.reduce(s, 
+														(ss, sort) -> ss.addSort(sort._1(), sort._2() > 0 ? SortOrder.ASC : SortOrder.DESC), 
+														(s1, s2) -> s1)
+										: s)
+							.map(s -> field_list.isEmpty() 
+									? s 
+									: include
+										? s.setFetchSource(field_list.toArray(new String[0]), new String[0])
+										: s.setFetchSource(new String[0], field_list.toArray(new String[0]))
+								)
+							.get();
+			
+				return ElasticsearchFutureUtils.wrap(srb.execute(), sr -> {				
+					return scroll
+							? new ElasticsearchScrollingCursor(sr, _state.scroll_page_size, _state.scroll_max_buffered_pages)
+							: new ElasticsearchCursor(sr);
+				},
+				(err, future) -> {
+					if ((err instanceof IndexMissingException) || (err instanceof SearchPhaseExecutionException)) //(this one can come up as on a read on a newly created index)
+					{ 	
+						// just treat this like an "object not found"
+						future.complete(new ElasticsearchCursor(null));
+					}
+					else {
+						future.completeExceptionally(err);
+					}
 				}
-			}
-			);
+				);
+			});
 		}
 		catch (Exception e) {
 			return FutureUtils.returnError(e);
@@ -807,25 +1046,27 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		try {
 			Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> query = ElasticsearchUtils.convertToElasticsearchFilter(spec, _state.id_ranges_ok);
 			
-			final CountRequestBuilder crb = _state.client.prepareCount()
-					.setIndices(_state.es_context.indexContext().getReadableIndexArray(Optional.empty()))
-					.setTypes(_state.es_context.typeContext().getReadableTypeArray())
-					.setQuery(QueryBuilders.constantScoreQuery(query._1()))
-					;
+			return getReadableIndexArray(spec).thenCompose(indexes -> {
+				final CountRequestBuilder crb = _state.client.prepareCount()
+						.setIndices(indexes)
+						.setTypes(_state.es_context.typeContext().getReadableTypeArray())
+						.setQuery(QueryBuilders.constantScoreQuery(query._1()))
+						;
 			
-			return ElasticsearchFutureUtils.wrap(crb.execute(), cr -> {
-				return cr.getCount();
-			},
-			(err, future) -> {
-				if ((err instanceof IndexMissingException) || (err instanceof SearchPhaseExecutionException)) //(this one can come up as on a read on a newly created index)
-				{
-					future.complete(0L);
-				}
-				else {
-					future.completeExceptionally(err);
+				return ElasticsearchFutureUtils.wrap(crb.execute(), cr -> {
+					return cr.getCount();
+				},
+				(err, future) -> {
+					if ((err instanceof IndexMissingException) || (err instanceof SearchPhaseExecutionException)) //(this one can come up as on a read on a newly created index)
+					{
+						future.complete(0L);
+					}
+					else {
+						future.completeExceptionally(err);
+					}
 				}
-			}
-			);			
+				);
+			});
 		}
 		catch (Exception e) {
 			return FutureUtils.returnError(e);
@@ -1011,40 +1252,66 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		}
 	}
 
-	/** Utility class to support ping/pong buffering within lists
+	/** Utility class that bounds the (estimated) number of bytes in flight across a set of asynchronous requests, without ever blocking
+	 *  (requests for capacity return a future that completes once the capacity is available)
 	 * @author Alex
-	 *
-	 * @param <T>
 	 */
-	protected static class PingPongList<T> {
-		private final int _batch_size;
-		private ArrayList<T> _mutable_write_to;
-		private ArrayList<T> _mutable_read_from;
-		public PingPongList(final int batch_size) {
-			_batch_size = batch_size;
-			_mutable_write_to = new ArrayList<T>(batch_size);
-			_mutable_read_from = new ArrayList<T>(batch_size);
-		}
-		/** Adds an element to the list, returns true if the next add would lose data
-		 *  (the caller should then process and clear getAboutToBeOverwrittenStream)
-		 *  Sample flow: (R00,W00)F -> (R00,W50a).(R50a,W00)F -> (R50a,W50b).(R50b,W50a)T -> (R50b,00) -> (R50b,W50c).(R50c,W50b)T -> (R50c,00) etc
-		 * @param t
+	protected static class AsyncByteBudget {
+		private final long _max_bytes;
+		private long _mutable_available;
+		private final LinkedList<Tuple2<Long, CompletableFuture<Void>>> _mutable_waiting = new LinkedList<>();
+
+		public AsyncByteBudget(final long max_bytes) {
+			_max_bytes = max_bytes;
+			_mutable_available = max_bytes;
+		}
+		/** Returns a future that completes once the requested capacity is available (requests are granted in order)
+		 * @param bytes
 		 * @return
 		 */
-		public boolean add(final T t) {
-			_mutable_write_to.add(t);
-			if (_mutable_write_to.size() >= _batch_size) {
-				final ArrayList<T> tmp = _mutable_write_to;
-				_mutable_write_to = _mutable_read_from;
-				_mutable_read_from = tmp;
-				return !_mutable_write_to.isEmpty();
+		public CompletableFuture<Void> acquire(final long bytes) {
+			final long capped = Math.min(bytes, _max_bytes);
+			synchronized (this) {
+				if (_mutable_waiting.isEmpty() && (_mutable_available >= capped)) {
+					_mutable_available -= capped;
+					return CompletableFuture.completedFuture(null);
+				}
+				final CompletableFuture<Void> granted = new CompletableFuture<>();
+				_mutable_waiting.add(Tuples._2T(capped, granted));
+				return granted;
 			}
-			else {
-				return false;
+		}
+		/** Returns capacity previously obtained via acquire
+		 * @param bytes
+		 */
+		public void release(final long bytes) {
+			final LinkedList<CompletableFuture<Void>> mutable_granted = new LinkedList<>();
+			synchronized (this) {
+				_mutable_available += Math.min(bytes, _max_bytes);
+				while (!_mutable_waiting.isEmpty() && (_mutable_available >= _mutable_waiting.peek()._1())) {
+					final Tuple2<Long, CompletableFuture<Void>> next = _mutable_waiting.poll();
+					_mutable_available -= next._1();
+					mutable_granted.add(next._2());
+				}
 			}
+			mutable_granted.forEach(granted -> granted.complete(null)); // (outside the lock since this runs the waiting stages)
 		}
-		public Stream<T> getCompleteStream() { return Stream.concat(_mutable_read_from.stream(), _mutable_write_to.stream()); }
-		public List<T> getAboutToBeOverwrittenList() { return _mutable_write_to; }
+	}
+	
+	/** State shared between the (parallel) slices of a single deleteObjectsBySpec call
+	 * @author Alex
+	 */
+	protected static class DeleteJob {
+		DeleteJob(final long max_size, final AsyncByteBudget budget, final Optional<Consumer<Long>> progress_callback) {
+			remaining = new AtomicLong(max_size);
+			this.budget = budget;
+			this.progress_callback = progress_callback;
+		}
+		final AtomicLong remaining;
+		final AtomicLong deleted = new AtomicLong(0L);
+		final AsyncByteBudget budget;
+		final Optional<Consumer<Long>> progress_callback;
+		final ConcurrentLinkedQueue<CompletableFuture<Long>> bulks = new ConcurrentLinkedQueue<>();
 	}
 	
 	/* (non-Javadoc)
@@ -1052,6 +1319,16 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	 */
 	@Override
 	public CompletableFuture<Long> deleteObjectsBySpec(final QueryComponent<O> spec) {
+		return deleteObjectsBySpec(spec, Optional.empty());
+	}
+	
+	/** Deletes all objects matching the spec - unlimited deletes are split into one scroll per index shard, run in parallel, with the number of
+	 *  delete bytes in flight bounded across the slices
+	 * @param spec - the query determining which objects to delete
+	 * @param progress_callback - (optional) called with the running total of deleted objects after each bulk request completes
+	 * @return a future containing the number of objects actually deleted
+	 */
+	public CompletableFuture<Long> deleteObjectsBySpec(final QueryComponent<O> spec, final Optional<Consumer<Long>> progress_callback) {
 		try {		
 			Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> query = ElasticsearchUtils.convertToElasticsearchFilter(spec, _state.id_ranges_ok);
 			
@@ -1060,82 +1337,189 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 			final boolean scroll = !(maybe_size.isPresent() && !Optionals.ofNullable(spec.getOrderBy()).isEmpty());
 			final long max_size = maybe_size.orElse((long)Integer.MAX_VALUE).intValue();
 			
-			final SearchRequestBuilder srb = Optional.of(_state.client.prepareSearch()
-						.setIndices(_state.es_context.indexContext().getReadableIndexArray(Optional.empty()))
-						.setTypes(_state.es_context.typeContext().getReadableTypeArray())
-						.setQuery(QueryBuilders.constantScoreQuery(query._1()))
-						.setSize(1000)
-						.setFetchSource(false)
-						.setNoFields())
-					.map(s -> (!scroll && (null != spec.getOrderBy()))
-								? spec.getOrderBy().stream()
-										.reduce(s, 
-												(ss, sort) -> ss.addSort(sort._1(), sort._2() > 0 ? SortOrder.ASC : SortOrder.DESC), 
-												(s1, s2) -> s1)
-								: s)
-					.map(s -> scroll ? 
-							s.setSearchType(SearchType.SCAN).setScroll(new TimeValue(60000))
-							: s 
-							)
-					.get()
-					;			
+			final DeleteJob job = new DeleteJob(max_size, new AsyncByteBudget(1024L*_state.delete_max_inflight_kb), progress_callback);
 			
-			return ElasticsearchFutureUtils.wrap(srb.execute(), sr -> {
-				long mutable_count = 0L; 
-				final int batch_size = 50; 
-				PingPongList<CompletableFuture<?>> mutable_future_batches = new PingPongList<>(batch_size);
+			return getReadableIndexArray(spec).thenCompose(indexes -> getDeleteSlices(indexes, scroll)).thenCompose(slices -> {
+				final ConcurrentLinkedQueue<Optional<Tuple2<String, Integer>>> slice_queue = new ConcurrentLinkedQueue<>(slices);
 				
-				if (scroll && ((sr.getHits().totalHits() > 0) && (0 == sr.getHits().getHits().length))) { 
-					//(odd workaround, if number of hits < scroll size, then the reply contains no hits, need to scroll an extra time to get it)
-					sr = _state.client.prepareSearchScroll(sr.getScrollId()).setScroll(new TimeValue(60000)).execute().actionGet();
-				}
-				while ((sr.getHits().getHits().length > 0) && (mutable_count < max_size)) {
-					BulkRequestBuilder bulk_request = _state.client.prepareBulk();
-				    for (SearchHit sh : sr.getHits().getHits()) {
-				    	bulk_request.add(
-								_state.client.prepareDelete()
-									.setIndex(sh.index())
-									.setId(sh.id())
-									.setType(sh.type()));
-
-				    	mutable_count++; // (for now we'll just report on the _ids we found)
-				    	if (mutable_count >= max_size) break;
-				    }
-				    // We're full, so wait for the first half of the data to complete
-				    if (mutable_future_batches.add(ElasticsearchFutureUtils.wrap(bulk_request.execute(), __ -> null))) {
-				    	try {
-				    		CompletableFuture.allOf(mutable_future_batches.getAboutToBeOverwrittenList().stream().toArray(CompletableFuture[]::new)).join();
-				    	}
-				    	catch (Exception e) {} // just carry on if fails, probably more important to keep trying to delete
-				    	
-				    	mutable_future_batches.getAboutToBeOverwrittenList().clear();
-				    }
-				    if (scroll && (mutable_count < max_size)) sr = _state.client.prepareSearchScroll(sr.getScrollId()).setScroll(new TimeValue(60000)).execute().actionGet();
-				    else break;
-				}
-				if (scroll) _state.client.prepareClearScroll().addScrollId(sr.getScrollId());
-
-				//(wait for any remaining batches - this one we'll allow to error out since we've completed all our operations)
-    			CompletableFuture.allOf(mutable_future_batches.getCompleteStream().toArray(CompletableFuture[]::new)).join();
-
-				return mutable_count; //(just return an estimate)
-			},
-			(err, future) -> {
-				if ((err instanceof IndexMissingException) || (err instanceof SearchPhaseExecutionException)) //(this one can come up as on a read on a newly created index)
-				{ 
-					// just treat this like an "object not found"
-					future.complete(0L);
-				}
-				else {
-					future.completeExceptionally(err);
-				}
-			}
-			);
+				final Function<Optional<Tuple2<String, Integer>>, SearchRequestBuilder> srb_builder = slice -> Optional.of(_state.client.prepareSearch()
+							.setIndices(slice.map(index_shard -> new String[] { index_shard._1() }).orElse(indexes))
+							.setTypes(_state.es_context.typeContext().getReadableTypeArray())
+							.setQuery(QueryBuilders.constantScoreQuery(query._1()))
+							.setSize(1000)
+							.setFetchSource(false)
+							.setNoFields())
+						.map(s -> slice.map(index_shard -> s.setPreference("_shards:" + index_shard._2())).orElse(s))
+						.map(s -> (!scroll && (null != spec.getOrderBy()))
+									? spec.getOrderBy().stream()
+											.reduce(s, 
+													(ss, sort) -> ss.addSort(sort._1(), sort._2() > 0 ? SortOrder.ASC : SortOrder.DESC), 
+													(s1, s2) -> s1)
+									: s)
+						.map(s -> scroll ? 
+								s.setSearchType(SearchType.SCAN).setScroll(SCROLL_KEEP_ALIVE)
+								: s 
+								)
+						.get()
+						;
+				
+				// Run (up to) N slices at a time, each worker moving on to the next slice once it's scrolled through its current one 
+				final CompletableFuture<?>[] workers = IntStream.range(0, Math.max(1, Math.min(_state.delete_max_parallel_slices, slices.size())))
+						.mapToObj(__ -> {
+							final CompletableFuture<Void> worker_done = new CompletableFuture<>();
+							runNextDeleteSlice(slice_queue, srb_builder, scroll, job, worker_done);
+							return worker_done;
+						})
+						.toArray(CompletableFuture[]::new);
+				
+				return CompletableFuture.allOf(workers)
+						.thenCompose(__ -> CompletableFuture.allOf(job.bulks.stream().toArray(CompletableFuture[]::new)))
+						.thenApply(__ -> job.deleted.get());
+			});
 		}
 		catch (Exception e) {
 			return FutureUtils.returnError(e);
 		}
 	}
+	
+	/** Splits a delete into one slice per primary shard of each index (or returns a single slice covering all the indexes, if not scrolling or the shards can't be determined)
+	 * @param indexes - the indexes to delete from
+	 * @param scroll - whether the delete will be scrolled (if not, it's a single sorted/limited query)
+	 * @return a future containing the list of slices (index, shard) - Optional.empty() denotes the single slice across all indexes
+	 */
+	protected CompletableFuture<List<Optional<Tuple2<String, Integer>>>> getDeleteSlices(final String[] indexes, final boolean scroll) {
+		final List<Optional<Tuple2<String, Integer>>> single_slice = Arrays.asList(Optional.empty());
+		if (!scroll || (_state.delete_max_parallel_slices <= 1)) {
+			return CompletableFuture.completedFuture(single_slice);
+		}
+		return ElasticsearchFutureUtils.wrap(_state.client.admin().indices().prepareStats(indexes).clear().execute(), 
+				stats -> {
+					final List<Optional<Tuple2<String, Integer>>> slices = stats.getIndices().values().stream()
+							.flatMap(index_stats -> Arrays.stream(index_stats.getShards())
+														.filter(shard -> shard.getShardRouting().primary())
+														.map(shard -> shard.getShardRouting().id())
+														.distinct()
+														.map(shard_id -> Optional.of(Tuples._2T(index_stats.getIndex(), shard_id))))
+							.collect(Collectors.toList());
+					return slices.isEmpty() ? single_slice : slices;
+				},
+				(err, future) -> future.complete(single_slice) // (eg index doesn't exist yet, the slice will handle that)
+				);
+	}
+	
+	/** Takes the next slice (if any) off the queue and scrolls through it, deleting as it goes - then moves on to the next slice
+	 *  (never blocks - each step is chained off the ES callbacks, with the budget providing back pressure)
+	 * @param slice_queue - the remaining slices
+	 * @param srb_builder - builds the search request for a slice
+	 * @param scroll - whether to scroll or just delete the first page
+	 * @param job - the overall delete state
+	 * @param worker_done - completed once there are no more slices to process
+	 */
+	protected void runNextDeleteSlice(final ConcurrentLinkedQueue<Optional<Tuple2<String, Integer>>> slice_queue, 
+			final Function<Optional<Tuple2<String, Integer>>, SearchRequestBuilder> srb_builder, 
+			final boolean scroll, final DeleteJob job, final CompletableFuture<Void> worker_done)
+	{
+		final Optional<Tuple2<String, Integer>> slice = slice_queue.poll();
+		if ((null == slice) || (job.remaining.get() <= 0)) {
+			worker_done.complete(null);
+			return;
+		}
+		final CompletableFuture<Void> slice_done = new CompletableFuture<>();
+		slice_done.whenComplete((__, err) -> {
+			if (null != err) worker_done.completeExceptionally(err);
+			else runNextDeleteSlice(slice_queue, srb_builder, scroll, job, worker_done);
+		});
+		
+		ElasticsearchFutureUtils.wrap(srb_builder.apply(slice).execute(), sr -> sr, 
+				(err, future) -> {
+					if ((err instanceof IndexMissingException) || (err instanceof SearchPhaseExecutionException)) //(this one can come up as on a read on a newly created index)
+					{ 
+						// just treat this like an "object not found"
+						future.complete(null);
+					}
+					else {
+						future.completeExceptionally(err);
+					}
+				})
+				.whenComplete((sr, err) -> {
+					if (null != err) slice_done.completeExceptionally(err);
+					else if (null == sr) slice_done.complete(null);
+					else if (scroll) { // (the first response from a scan never contains any hits, so scroll straight away)
+						if (sr.getHits().totalHits() > 0) deleteNextScrollPage(sr.getScrollId(), job, slice_done);
+						else slice_done.complete(null);
+					}
+					else deleteSearchPage(sr, Optional.empty(), job, slice_done);
+				});
+	}
+	
+	/** Fetches the next page of a delete slice
+	 * @param scroll_id
+	 * @param job
+	 * @param slice_done
+	 */
+	protected void deleteNextScrollPage(final String scroll_id, final DeleteJob job, final CompletableFuture<Void> slice_done) {
+		ElasticsearchFutureUtils.wrap(_state.client.prepareSearchScroll(scroll_id).setScroll(SCROLL_KEEP_ALIVE).execute(), sr -> sr)
+			.whenComplete((sr, err) -> {
+				if (null != err) {
+					_state.client.prepareClearScroll().addScrollId(scroll_id).execute();
+					slice_done.completeExceptionally(err);
+				}
+				else deleteSearchPage(sr, Optional.of(sr.getScrollId()), job, slice_done);
+			});
+	}
+	
+	/** Submits a bulk delete for a page of hits, then (once there's room in the budget) moves on to the next page if scrolling
+	 * @param sr - the page of hits
+	 * @param scroll_id - the scroll id, if scrolling
+	 * @param job
+	 * @param slice_done
+	 */
+	protected void deleteSearchPage(final SearchResponse sr, final Optional<String> scroll_id, final DeleteJob job, final CompletableFuture<Void> slice_done) {
+		final SearchHit[] hits = sr.getHits().getHits();
+		final int to_take = (int) Math.max(0L, job.remaining.getAndAccumulate(hits.length, (remaining, n) -> Math.max(0L, remaining - n)));
+		final int num_hits = Math.min(hits.length, to_take);
+		if (0 == num_hits) {
+			scroll_id.ifPresent(id -> _state.client.prepareClearScroll().addScrollId(id).execute());
+			slice_done.complete(null);
+			return;
+		}
+		final BulkRequestBuilder bulk_request = _state.client.prepareBulk();
+		long mutable_bytes = 0L;
+		for (int i = 0; i < num_hits; ++i) {
+			final SearchHit sh = hits[i];
+			bulk_request.add(
+					_state.client.prepareDelete()
+						.setIndex(sh.index())
+						.setId(sh.id())
+						.setType(sh.type()));
+			mutable_bytes += REQUEST_OVERHEAD_BYTES + sh.index().length() + sh.type().length() + sh.id().length();
+		}
+		final long bytes = mutable_bytes;
+		
+		final CompletableFuture<Void> acquired = job.budget.acquire(bytes);
+		job.bulks.add(acquired
+				.thenCompose(__ -> ElasticsearchFutureUtils.wrap(bulk_request.execute(), br -> 
+					Arrays.stream(br.getItems())
+						.filter(bir -> !bir.isFailed() && (bir.getResponse() instanceof DeleteResponse) && ((DeleteResponse) bir.getResponse()).isFound())
+						.count()))
+				.exceptionally(__ -> 0L) // just carry on if fails, probably more important to keep trying to delete
+				.whenComplete((deleted, __) -> {
+					job.budget.release(bytes);
+					final long total = job.deleted.addAndGet(deleted);
+					job.progress_callback.ifPresent(callback -> callback.accept(total));
+				}));
+		
+		// Move on to the next page once the budget allows (ie don't wait for the bulk request to complete) 
+		acquired.thenRun(() -> {
+			if (scroll_id.isPresent() && (job.remaining.get() > 0)) {
+				deleteNextScrollPage(scroll_id.get(), job, slice_done);
+			}
+			else {
+				scroll_id.ifPresent(id -> _state.client.prepareClearScroll().addScrollId(id).execute());
+				slice_done.complete(null);
+			}
+		});
+	}
 
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteDatastore()
@@ -1196,7 +1580,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	 */
 	@Override
 	public ElasticsearchCrudService<JsonNode> getRawService() {
-		return new ElasticsearchCrudService<JsonNode>(JsonNode.class, _state.es_context, Optional.of(_state.id_ranges_ok), _state.creation_policy, _state.auth_fieldname, _state.auth, _state.project, _batch_write_settings); 
+		return new ElasticsearchCrudService<JsonNode>(JsonNode.class, _state.es_context, Optional.of(_state.id_ranges_ok), _state.creation_policy, _state.auth_fieldname, _state.auth, _state.project, _batch_write_settings, _state.es_config); 
 	}
 
 	/* (non-Javadoc)
@@ -1220,49 +1604,133 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		else return Optional.empty();
 	}
 
+	/** A single shared scheduler (across all CRUD services in the JVM) that handles the periodic and event-driven flushing of the batch subsystems
+	 *  (vs one thread per batch subsystem, and one more per BulkProcessor)
+	 */
+	protected static final ScheduledExecutorService _shared_flush_scheduler =
+			Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()/2),
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aleph2-es-batch-flush-%d").build());
+
+	/** Metrics for a batch subsystem (all thread safe)
+	 * @author Alex
+	 */
+	public static class BatchMetrics {
+		protected final AtomicLong _queued_items = new AtomicLong(0L);
+		protected final AtomicLong _inflight_bytes = new AtomicLong(0L);
+		protected final AtomicLong _bulks_completed = new AtomicLong(0L);
+		protected final AtomicLong _total_bulk_latency_ms = new AtomicLong(0L);
+		protected final AtomicLong _max_bulk_latency_ms = new AtomicLong(0L);
+		protected final AtomicLong _failed_items = new AtomicLong(0L);
+		protected final AtomicLong _rejected_items = new AtomicLong(0L);
+
+		/** The number of objects that have been submitted but not yet acknowledged by elasticsearch
+		 */
+		public long queue_depth() { return _queued_items.get(); }
+		/** The (estimated) size in bytes of the objects that have been submitted but not yet acknowledged by elasticsearch
+		 */
+		public long inflight_bytes() { return _inflight_bytes.get(); }
+		/** The number of bulk requests that have completed (successfully or otherwise)
+		 */
+		public long bulks_completed() { return _bulks_completed.get(); }
+		/** The mean time from a bulk request being sent to it being acknowledged
+		 */
+		public double mean_bulk_latency_ms() {
+			final long completed = _bulks_completed.get();
+			return (0 == completed) ? 0.0 : ((double)_total_bulk_latency_ms.get())/completed;
+		}
+		/** The max time from a bulk request being sent to it being acknowledged
+		 */
+		public long max_bulk_latency_ms() { return _max_bulk_latency_ms.get(); }
+		/** The number of objects that elasticsearch failed to write (excludes mapping errors that were successfully retried)
+		 */
+		public long failed_items() { return _failed_items.get(); }
+		/** The number of objects that were rejected because too much data was in flight
+		 */
+		public long rejected_items() { return _rejected_items.get(); }
+
+		protected void recordBulkLatency(final long latency_ms) {
+			_bulks_completed.incrementAndGet();
+			_total_bulk_latency_ms.addAndGet(latency_ms);
+			_max_bulk_latency_ms.accumulateAndGet(latency_ms, Math::max);
+		}
+	}
+
+	/** The outcome of a batch flush - the number of objects that were (/were not) written by the bulk requests outstanding when the flush was requested
+	 * @author Alex
+	 */
+	public static class FlushResult {
+		public static final FlushResult EMPTY = new FlushResult(0L, 0L);
+
+		public FlushResult(final long success_count, final long failure_count) {
+			_success_count = success_count;
+			_failure_count = failure_count;
+		}
+		/** The number of objects that were successfully written
+		 */
+		public long success_count() { return _success_count; }
+		/** The number of objects that could not be written (after any retries)
+		 */
+		public long failure_count() { return _failure_count; }
+
+		/** Adds the counts from 2 results together
+		 * @param other
+		 * @return
+		 */
+		public FlushResult combine(final FlushResult other) {
+			return new FlushResult(_success_count + other._success_count, _failure_count + other._failure_count);
+		}
+		protected final long _success_count;
+		protected final long _failure_count;
+	}
+
 	/** A subsystem providing a simple interface to dump JSON objects in batch into the CRUD service, at the expense of less visibility
+	 *  Writers are spread across BATCH_STRIPES bulk processors (by thread), so they only contend on a BulkProcessor's monitor with the other threads on the same stripe,
+	 *  flushing is handled by a shared scheduler, and the number of bytes in flight is bounded - once the bound is reached, writers block (up to a configurable time) and are then rejected
 	 * @author Alex
 	 *
 	 * @param <O> - the object type
 	 */
 	public class ElasticsearchBatchSubsystem implements IBatchSubservice<O> {
-		final protected Object sync_lock = new Object(); 
-		
+
 		protected ElasticsearchBatchSubsystem() {
-			// Kick off thread that handles higher speed flushing
-			final ExecutorService executor = Executors.newSingleThreadExecutor();
-			executor.submit(() -> {
-				for (;;) {
-					if (_flush_now) {
-						synchronized (sync_lock) {
-							_current.flush(); // (must always be non-null because _flush_now can only be set if _current exists)
-							_flush_now = false;
-						}
-					}
-					TimeUnit.MILLISECONDS.sleep(50);
-				}
-			});
+			_max_inflight_bytes = (int) Math.min((long)Integer.MAX_VALUE,
+					1024L*_state.es_config.map(ElasticsearchConfigurationBean::batch_max_inflight_kb).filter(kb -> kb > 0)
+							.orElse(DEFAULT_MAX_INFLIGHT_KB));
+			_max_blocking_ms = _state.es_config.map(ElasticsearchConfigurationBean::batch_max_blocking_ms).filter(ms -> ms >= 0).orElse(DEFAULT_MAX_BLOCKING_MS);
+			_inflight_bytes = new Semaphore(_max_inflight_bytes);
 		}
-		
+		protected final int _max_inflight_bytes;
+		protected final long _max_blocking_ms;
+		protected final Semaphore _inflight_bytes;
+		protected final BatchMetrics _metrics = new BatchMetrics();
+		protected final AtomicLong _next_processor_id = new AtomicLong(0L);
+		// (keyed on (bulk processor id, execution id), since each bulk processor numbers its executions from scratch)
+		protected final ConcurrentHashMap<Tuple2<Long, Long>, Long> _bulk_start_times = new ConcurrentHashMap<>();
+		protected final ConcurrentHashMap<Tuple2<Long, Long>, CompletableFuture<FlushResult>> _outstanding_bulks = new ConcurrentHashMap<>();
+
+		/** Returns the metrics for this batch subsystem
+		 * @return
+		 */
+		public BatchMetrics getMetrics() {
+			return _metrics;
+		}
+
 		@Override
-		public void setBatchProperties(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads)
+		public synchronized void setBatchProperties(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads)
 		{
-			BulkProcessor old = null;
-			synchronized (sync_lock) {
-				old = _current;
-				_current = buildBulkProcessor(max_objects, size_kb, flush_interval, write_threads);
-			}
-			if (null != old) old.close();
+			final BulkProcessor[] old = _stripes;
+			_stripes = buildStripes(max_objects, size_kb, flush_interval, write_threads);
+			if (null != old) Arrays.stream(old).forEach(bp -> bp.close()); // (any writer still adding to these just retries on the new ones) 
 		}
 
-		protected BulkProcessor buildBulkProcessor() {
-			return buildBulkProcessor(_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_max_objects), 
-					_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_max_size_kb), 
-					_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_flush_interval).map(i -> Duration.of(i, ChronoUnit.SECONDS)), 
+		protected BulkProcessor[] buildStripes() {
+			return buildStripes(_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_max_objects),
+					_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_max_size_kb),
+					_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_flush_interval).map(i -> Duration.of(i, ChronoUnit.SECONDS)),
 					_batch_write_settings.map(DataSchemaBean.WriteSettings::target_write_concurrency)
 					);
 		}
-		
+
 		/** Determines if this is actually a deletion request and what the _id is if so
 		 * @param object
 		 * @param is_replace_mode
@@ -1271,7 +1739,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		private String getPossibleDeletionRequest(final O object, final boolean is_replace_mode) {
 			if (is_replace_mode && ObjectNode.class.isAssignableFrom(object.getClass())) {
 				final ObjectNode j = (ObjectNode) object;
-				if ((1 == j.size()) || 
+				if ((1 == j.size()) ||
 						((j.size() == 2) && (j.has(ElasticsearchUtils._INDEX) || j.has(ElasticsearchUtils._TYPE))) ||
 						((j.size() == 3) && j.has(ElasticsearchUtils._INDEX) && j.has(ElasticsearchUtils._TYPE)))
 				{ // ie empty... apart from system fields, eg...
@@ -1283,138 +1751,316 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 			}
 			return null;
 		}
+
+		/** Converts an object into the corresponding index (or delete) request
+		 * @param new_object
+		 * @param replace_if_present
+		 * @return
+		 */
+		protected ActionRequest<?> buildRequest(final O new_object, final boolean replace_if_present) {
+			final String deletion_request_id = getPossibleDeletionRequest(new_object, replace_if_present);
+			if (null != deletion_request_id) { // overwrite with empty object => delete
+				return singleObjectDeleteRequest(Either.left((ReadWriteContext) _state.es_context), deletion_request_id,
+					Either.left(new_object), true).request();
+			}
+			else {
+				return singleObjectIndexRequest(Either.left((ReadWriteContext) _state.es_context),
+								Either.left(new_object), replace_if_present, true).request();
+			}
+		}
+
+		/** Estimates the size of a request for the purposes of bounding the amount of data in flight (must be deterministic since it's also used to release the capacity)
+		 * @param request
+		 * @return
+		 */
+		protected int estimateSize(final ActionRequest<?> request) {
+			final int size = REQUEST_OVERHEAD_BYTES + ((request instanceof IndexRequest) ? ((IndexRequest)request).source().length() : 0);
+			return Math.min(size, _max_inflight_bytes);
+		}
+
+		/** Waits (up to batch_max_blocking_ms) for enough capacity to submit the request, or throws (and counts the rejection) if the capacity doesn't become available in time
+		 * @param size - the estimated size of the request
+		 */
+		protected void acquireCapacity(final int size) {
+			boolean acquired = false;
+			try {
+				acquired = _inflight_bytes.tryAcquire(size, _max_blocking_ms, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!acquired) {
+				_metrics._rejected_items.incrementAndGet();
+				throw new RuntimeException(ErrorUtils.get(ErrorUtils.BATCH_CAPACITY_EXCEEDED, _max_inflight_bytes/1024, _max_blocking_ms));
+			}
+			_metrics._inflight_bytes.addAndGet(size);
+			_metrics._queued_items.incrementAndGet();
+		}
+
+		/** Releases the capacity associated with a bulk request that has completed
+		 * @param in
+		 */
+		protected void releaseCapacity(final BulkRequest in) {
+			releaseCapacity(in.requests().stream().mapToInt(ar -> estimateSize(ar)).sum(), in.numberOfActions());
+		}
 		
-		@Override
-		public void storeObjects(final List<O> new_objects, final boolean replace_if_present) {
-			synchronized (sync_lock) {
-				if (null == _current) {
-					_current = buildBulkProcessor();
+		/** Releases capacity acquired by acquireCapacity
+		 * @param size - the total estimated size of the requests
+		 * @param num_items - the number of requests
+		 */
+		protected void releaseCapacity(final int size, final int num_items) {
+			_inflight_bytes.release(size);
+			_metrics._inflight_bytes.addAndGet(-size);
+			_metrics._queued_items.addAndGet(-num_items);
+		}
+
+		/** Adds a request to this thread's bulk processor stripe (the stripes are created if necessary), the caller must already have acquired capacity for the request
+		 * @param request
+		 */
+		protected void addRequest(final ActionRequest<?> request) {
+			for (;;) {
+				final BulkProcessor[] stripes = getStripes();
+				try {
+					stripes[(int) (Thread.currentThread().getId() % stripes.length)].add(request);
+					return;
+				}
+				catch (IllegalStateException e) { // (bulk processor closed by setBatchProperties - retry on the new stripes)
+					if (stripes == _stripes) throw e;
 				}
-				new_objects.stream().forEach(new_object -> {
-					final String deletion_request_id = getPossibleDeletionRequest(new_object, replace_if_present);
-					if (null != deletion_request_id) { // overwrite with empty object => delete
-						_current.add(singleObjectDeleteRequest(Either.left((ReadWriteContext) _state.es_context), deletion_request_id,
-							Either.left(new_object), true).request());
-					}
-					else {
-						_current.add(singleObjectIndexRequest(Either.left((ReadWriteContext) _state.es_context), 
-							Either.left(new_object), replace_if_present, true).request());
-					}
-				});
+			}
+		}
+		
+		/** Returns the current bulk processor stripes, creating them the first time through
+		 * @return
+		 */
+		protected BulkProcessor[] getStripes() {
+			final BulkProcessor[] stripes = _stripes;
+			if (null != stripes) return stripes;
+			synchronized (this) {
+				if (null == _stripes) _stripes = buildStripes();
+				return _stripes;
 			}
 		}
 
+		/** Flushes the current bulk processors (if there are any)
+		 */
+		protected void flushCurrent() {
+			Optional.ofNullable(_stripes).ifPresent(stripes -> Arrays.stream(stripes).forEach(bp -> {
+				try {
+					bp.flush();
+				}
+				catch (IllegalStateException e) {} // (closed by setBatchProperties, which flushes it)
+			}));
+		}
+
+		@Override
+		public void storeObjects(final List<O> new_objects, final boolean replace_if_present) {
+			new_objects.stream().forEach(new_object -> storeObject(new_object, replace_if_present));
+		}
+
 		@Override
 		public void storeObject(final O new_object, final boolean replace_if_present) {
-			synchronized (sync_lock) {
-				if (null == _current) {
-					_current = buildBulkProcessor();
-				}			
-				final String deletion_request_id = getPossibleDeletionRequest(new_object, replace_if_present);
-				if (null != deletion_request_id) { // overwrite with empty object => delete
-					_current.add(singleObjectDeleteRequest(Either.left((ReadWriteContext) _state.es_context), deletion_request_id,
-						Either.left(new_object), true).request());
+			final ActionRequest<?> request = buildRequest(new_object, replace_if_present);
+			final int size = estimateSize(request);
+			acquireCapacity(size);
+			try {
+				addRequest(request);
+			}
+			catch (RuntimeException e) { // (never made it into a bulk request, so the completion listener won't release its capacity)
+				releaseCapacity(size, 1);
+				throw e;
+			}
+		}
+
+		/** Schedules a periodic flush on the shared scheduler - the task holds only a weak reference to the subsystem and cancels itself once it's gone
+		 * @param flush_interval
+		 */
+		protected void scheduleFlushes(final Duration flush_interval) {
+			final long interval_ms = Math.max(100L, flush_interval.toMillis());
+			final WeakReference<ElasticsearchBatchSubsystem> weak_this = new WeakReference<>(this);
+			final CompletableFuture<ScheduledFuture<?>> self = new CompletableFuture<>();
+
+			self.complete(_shared_flush_scheduler.scheduleWithFixedDelay(() -> {
+				final ElasticsearchBatchSubsystem batch = weak_this.get();
+				if (null == batch) {
+					self.join().cancel(false);
 				}
-				else {
-					_current.add(singleObjectIndexRequest(Either.left((ReadWriteContext) _state.es_context), 
-									Either.left(new_object), replace_if_present, true).request());
+				else try {
+					batch.flushCurrent();
 				}
-			}
+				catch (Throwable t) {} // (just keep going)
+			},
+			interval_ms, interval_ms, TimeUnit.MILLISECONDS));
+
+			final ScheduledFuture<?> old_flush_task = _flush_task;
+			_flush_task = self.join();
+			if (null != old_flush_task) old_flush_task.cancel(false);
+		}
+		protected volatile ScheduledFuture<?> _flush_task = null;
+
+		/** Builds the bulk processor stripes, and (re)schedules the flushes
+		 * @param max_objects - per stripe
+		 * @param size_kb - per stripe
+		 * @param flush_interval
+		 * @param write_threads - across all the stripes
+		 * @return
+		 */
+		protected BulkProcessor[] buildStripes(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {
+			scheduleFlushes(flush_interval.orElse(Duration.of(3, ChronoUnit.SECONDS)));
+			
+			final int concurrent_requests = Math.max(1, (1 + write_threads.orElse(0))/BATCH_STRIPES);
+			return IntStream.range(0, BATCH_STRIPES).mapToObj(__ -> buildBulkProcessor(max_objects, size_kb, concurrent_requests)).toArray(BulkProcessor[]::new);
 		}
 		
-		private boolean _flush_now = false; // (_very_ simple inter-thread comms via this mutable var, NOTE: don't let it get more complex than this without refactoring)
-		
-		protected BulkProcessor buildBulkProcessor(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {
-			return BulkProcessor.builder(_state.client, 
-						new BulkProcessor.Listener() {							
+		protected BulkProcessor buildBulkProcessor(final Optional<Integer> max_objects, final Optional<Long> size_kb, final int concurrent_requests) {
+			final long processor_id = _next_processor_id.incrementAndGet();
+			
+			return BulkProcessor.builder(_state.client,
+						new BulkProcessor.Listener() {
 							@Override
 							public void beforeBulk(long exec_id, BulkRequest in) {
-								return; // (nothing to do)
+								final Tuple2<Long, Long> bulk_id = Tuples._2T(processor_id, exec_id);
+								_bulk_start_times.put(bulk_id, System.currentTimeMillis());
+								_outstanding_bulks.put(bulk_id, new CompletableFuture<FlushResult>());
 							}
-							
+
 							@Override
-							public void afterBulk(long arg0, BulkRequest in, Throwable error) {
-								return; // (nothing to exec_id but weep)
+							public void afterBulk(long exec_id, BulkRequest in, Throwable error) {
+								final Tuple2<Long, Long> bulk_id = Tuples._2T(processor_id, exec_id);
+								Optional.ofNullable(_bulk_start_times.remove(bulk_id)).ifPresent(start -> _metrics.recordBulkLatency(System.currentTimeMillis() - start));
+								_metrics._failed_items.addAndGet(in.numberOfActions());
+								releaseCapacity(in);
+								completeBulk(bulk_id, CompletableFuture.completedFuture(new FlushResult(0L, in.numberOfActions())));
 							}
-							
+
 							@Override
 							public void afterBulk(long exec_id, BulkRequest in, BulkResponse out) {
-								if (out.hasFailures() &&
-										(_state.es_context.typeContext() instanceof ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext)
-										)
-								{
-									final ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext auto_context = (ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext) _state.es_context.typeContext();
-									final Iterator<BulkItemResponse> it = out.iterator();
-									final LinkedList<Tuple2<BulkItemResponse, String>> mutable_errs = new LinkedList<>(); 
-									while (it.hasNext()) {										
-										final BulkItemResponse bir = it.next();
-										if (bir.isFailed()) {								
-											final String error_message = bir.getFailure().getMessage();
-											
-											if (error_message.startsWith("MapperParsingException")
-													||
-												error_message.startsWith("WriteFailureException; nested: MapperParsingException"))
-											{
-												final Set<String> fixed_type_fields = auto_context.fixed_type_fields();
-												if (!fixed_type_fields.isEmpty()) {
-													// Obtain the field name from the exception (if we fail then drop the record) 
-													final String field = getFieldFromParsingException(error_message);
-													if ((null == field) || fixed_type_fields.contains(field)) {
-														continue;
-													}
-												}//(else roll on to...)																												
-												
-												final String failed_json = Lambdas.get(() -> {
-													final ActionRequest<?> ar = in.requests().get(bir.getItemId());
-													if (ar instanceof IndexRequest) {											
-														IndexRequest ir = (IndexRequest) ar;
-														return ir.source().toUtf8();
-													}
-													else return null;
-												});
-												if (null != failed_json) {
-													mutable_errs.add(Tuples._2T(bir, failed_json));
-												}
-												
-											}//(was a mapping error)
-										}//(item failed)
-									}//(loop over iterms)
-										
-									if (!mutable_errs.isEmpty()) { // Reinsert into the steam
-										CompletableFuture.runAsync(() -> {
-											synchronized (sync_lock) {
-												_flush_now = true;
-												mutable_errs.forEach(bir_json -> 
-													_current.add(singleObjectIndexRequest(
-																Either.right(Tuples._2T(bir_json._1().getIndex(), 
-																		ElasticsearchContextUtils.getNextAutoType(auto_context.getPrefix(), bir_json._1().getType()))), 
-																Either.right(Tuples._2T(bir_json._1().getId(), bir_json._2())), 
-																false, true).request())
-												);
-											}														
-										});
-									}
-										
-								}//(has failures AND is an auto type)
-								
+								final Tuple2<Long, Long> bulk_id = Tuples._2T(processor_id, exec_id);
+								Optional.ofNullable(_bulk_start_times.remove(bulk_id)).ifPresent(start -> _metrics.recordBulkLatency(System.currentTimeMillis() - start));
+								CompletableFuture<FlushResult> outcome = null;
+								try {
+									outcome = handleBulkResponse(in, out);
+								}
+								finally {
+									releaseCapacity(in);
+									completeBulk(bulk_id, Optional.ofNullable(outcome)
+											.orElseGet(() -> CompletableFuture.completedFuture(new FlushResult(0L, in.numberOfActions()))));
+								}
 							}//(end afterBulk)
 						}//(end new Listener)
 					)
 					.setBulkActions(max_objects.orElse(1000))
 					.setBulkSize(new ByteSizeValue(size_kb.orElse(10240L), ByteSizeUnit.KB))
-					.setFlushInterval(TimeValue.timeValueSeconds(flush_interval.orElse(Duration.of(3, ChronoUnit.SECONDS)).get(ChronoUnit.SECONDS)))
-					.setConcurrentRequests(1 + write_threads.orElse(0))
+					// (flush interval handled by the shared scheduler, so the BulkProcessor doesn't start its own thread)
+					.setConcurrentRequests(concurrent_requests)
 					.build();
 		}
-		
-		protected BulkProcessor _current; // (note: mutable)
+
+		/** Completes the future tracking an outstanding bulk request once its outcome (including any retries) is known
+		 * @param bulk_id - the bulk processor's id and execution id
+		 * @param outcome - the counts for the bulk request
+		 */
+		protected void completeBulk(final Tuple2<Long, Long> bulk_id, final CompletableFuture<FlushResult> outcome) {
+			Optional.ofNullable(_outstanding_bulks.get(bulk_id)).ifPresent(tracker ->
+				outcome.whenComplete((result, error) -> {
+					_outstanding_bulks.remove(bulk_id);
+					tracker.complete(Optional.ofNullable(result).orElse(FlushResult.EMPTY));
+				}));
+		}
+
+		/** Handles a completed bulk request - mapping errors for auto types are retried with the next type (via a standalone bulk request)
+		 * @param in
+		 * @param out
+		 * @return a future that completes with the counts for this bulk request, once any retries have completed
+		 */
+		protected CompletableFuture<FlushResult> handleBulkResponse(final BulkRequest in, final BulkResponse out) {
+			if (!out.hasFailures()) {
+				return CompletableFuture.completedFuture(new FlushResult(out.getItems().length, 0L));
+			}
+			final Optional<ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext> maybe_auto_context =
+					Optional.of(_state.es_context.typeContext())
+						.filter(tc -> tc instanceof ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext)
+						.map(tc -> (ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext) tc);
+
+			long mutable_successes = 0L;
+			long mutable_failures = 0L;
+			final Iterator<BulkItemResponse> it = out.iterator();
+			final LinkedList<Tuple2<BulkItemResponse, BytesReference>> mutable_errs = new LinkedList<>();
+			while (it.hasNext()) {
+				final BulkItemResponse bir = it.next();
+				if (bir.isFailed()) {
+					final String error_message = bir.getFailure().getMessage();
+
+					if (maybe_auto_context.isPresent()
+							&&
+						(error_message.startsWith("MapperParsingException")
+							||
+						error_message.startsWith("WriteFailureException; nested: MapperParsingException")))
+					{
+						final Set<String> fixed_type_fields = maybe_auto_context.get().fixed_type_fields();
+						if (!fixed_type_fields.isEmpty()) {
+							// Obtain the field name from the exception (if we fail then drop the record)
+							final String field = getFieldFromParsingException(error_message);
+							if ((null == field) || fixed_type_fields.contains(field)) {
+								mutable_failures++;
+								continue;
+							}
+						}//(else roll on to...)
+
+						final BytesReference failed_json = Lambdas.get(() -> {
+							final ActionRequest<?> ar = in.requests().get(bir.getItemId());
+							if (ar instanceof IndexRequest) {
+								IndexRequest ir = (IndexRequest) ar;
+								return ir.source();
+							}
+							else return null;
+						});
+						if (null != failed_json) {
+							mutable_errs.add(Tuples._2T(bir, failed_json));
+						}
+						else mutable_failures++;
+
+					}//(was a mapping error)
+					else mutable_failures++;
+				}//(item failed)
+				else mutable_successes++;
+			}//(loop over items)
+
+			_metrics._failed_items.addAndGet(mutable_failures);
+			final FlushResult this_result = new FlushResult(mutable_successes, mutable_failures);
+
+			if (mutable_errs.isEmpty()) {
+				return CompletableFuture.completedFuture(this_result);
+			}
+			else { // Resubmit with the next type, outside the bulk processor so that the outcome can be tracked (and nothing blocks the callback thread)
+				final ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext auto_context = maybe_auto_context.get();
+
+				final BulkRequestBuilder retry_bulk = _state.client.prepareBulk();
+				mutable_errs.forEach(bir_json ->
+					retry_bulk.add(singleObjectIndexRequest(
+							Either.right(Tuples._2T(bir_json._1().getIndex(),
+									ElasticsearchContextUtils.getNextAutoType(auto_context.getPrefix(), bir_json._1().getType()))),
+							Either.right(Tuples._2T(bir_json._1().getId(), bir_json._2())),
+							false, true))
+				);
+				return ElasticsearchFutureUtils.wrap(retry_bulk.execute(), retry_out -> handleBulkResponse(retry_bulk.request(), retry_out))
+						.thenCompose(retry_result -> retry_result)
+						.exceptionally(t -> {
+							_metrics._failed_items.addAndGet(mutable_errs.size());
+							return new FlushResult(0L, mutable_errs.size());
+						})
+						.thenApply(retry_result -> this_result.combine(retry_result));
+			}
+		}
+
+		protected volatile BulkProcessor[] _stripes; // (note: swapped as a whole by setBatchProperties, null until the first write)
 
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObjects(java.util.List)
 		 */
 		@Override
 		public void storeObjects(List<O> new_objects) {
-			storeObjects(new_objects, false);			
+			storeObjects(new_objects, false);
 		}
 
 		/* (non-Javadoc)
@@ -1422,19 +2068,23 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		 */
 		@Override
 		public void storeObject(O new_object) {
-			storeObject(new_object, false);			
+			storeObject(new_object, false);
 		}
 
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#flushOutput()
 		 */
 		@Override
-		public CompletableFuture<?> flushOutput() {
-			synchronized (sync_lock) {
-				if (null != _current) _current.flush(); 
+		public CompletableFuture<FlushResult> flushOutput() {
+			final List<CompletableFuture<FlushResult>> outstanding;
+			// (BulkProcessor.flush hands off its buffer under the same monitor as add, so every object stored before this call is now either acknowledged or in one of these bulks
+			//  - the lock only stops setBatchProperties swapping the stripes in between, it doesn't block writers)
+			synchronized (this) {
+				flushCurrent();
+				outstanding = new ArrayList<>(_outstanding_bulks.values());
 			}
-			// Just sleep for 1.25s
-			return CompletableFuture.runAsync(Lambdas.wrap_runnable_i(() -> TimeUnit.MILLISECONDS.sleep(1250L)));
+			return CompletableFuture.allOf(outstanding.stream().toArray(CompletableFuture[]::new))
+					.thenApply(__ -> outstanding.stream().map(f -> f.join()).reduce(FlushResult.EMPTY, FlushResult::combine));
 		}
 	}
 	protected ElasticsearchBatchSubsystem _batch_processor = null;
@@ -1520,4 +2170,4 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 				: CrudUtils.anyOf(clazz);
 	}
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -87,7 +87,7 @@ public class ElasticsearchCrudServiceFactory implements IElasticsearchCrudServic
 			final Optional<String> auth_fieldname, final Optional<AuthorizationBean> auth, final Optional<ProjectBean> project,
 			final Optional<DataSchemaBean.WriteSettings> batch_write_settings)
 		{
-		return new ElasticsearchCrudService<O>(bean_clazz, es_context, id_ranges_ok, creation_policy, auth_fieldname, auth, project, batch_write_settings);
+		return new ElasticsearchCrudService<O>(bean_clazz, es_context, id_ranges_ok, creation_policy, auth_fieldname, auth, project, batch_write_settings, Optional.of(_config_bean));
 	}
 	private static final SetOnce<Client> _client = new SetOnce<>();
 	
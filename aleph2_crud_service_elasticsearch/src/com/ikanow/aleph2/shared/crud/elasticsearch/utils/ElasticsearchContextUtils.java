@@ -15,6 +15,7 @@
  *******************************************************************************/
 package com.ikanow.aleph2.shared.crud.elasticsearch.utils;
 
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.time.DayOfWeek;
 import java.time.Instant;
@@ -24,9 +25,12 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import scala.Tuple2;
@@ -44,7 +48,7 @@ public class ElasticsearchContextUtils {
 
 	/** Creates a list of time-based indexes from a time range
 	 * @param index_template
-	 * @param date_range
+	 * @param date_range - if open above (Long.MAX_VALUE) then only the indexes up to now are generated, see the version with existing_indexes for future indexes
 	 * @return
 	 */
 	public static Stream<String> getIndexesFromDateRange(final String index_template, final Tuple2<Long, Long> date_range) {
@@ -55,7 +59,7 @@ public class ElasticsearchContextUtils {
 			final ChronoUnit time_period = getIndexGroupingPeriod.apply(index_split._2());
 
 			final LocalDateTime lower_end = LocalDateTime.ofInstant(Instant.ofEpochMilli(date_range._1()), ZoneId.systemDefault());
-			final LocalDateTime upper_end = LocalDateTime.ofInstant(Instant.ofEpochMilli(date_range._2()), ZoneId.systemDefault());
+			final LocalDateTime upper_end = LocalDateTime.ofInstant(Instant.ofEpochMilli((Long.MAX_VALUE == date_range._2()) ? new Date().getTime() : date_range._2()), ZoneId.systemDefault());
 			
 			final Tuple2<LocalDateTime, LocalDateTime> temporal_range = 
 					Tuples._2T(truncate(lower_end, time_period), truncate(upper_end.plus(1, time_period), time_period));
@@ -69,6 +73,62 @@ public class ElasticsearchContextUtils {
 		}
 	}
 	
+	/** Selects the indexes generated from a time-based index template whose time period overlaps a time range, out of the indexes that actually exist
+	 * @param index_template - eg test_{yyyy.MM}
+	 * @param date_range - the (lower, upper) range in epoch millis, the upper end can be Long.MAX_VALUE (ie open above)
+	 * @param existing_indexes - the set of index names that exist
+	 * @return the matching index names (if the template isn't time-based, all the existing indexes starting with it)
+	 */
+	public static Stream<String> getIndexesFromDateRange(final String index_template, final Tuple2<Long, Long> date_range, final Collection<String> existing_indexes) {
+		if (!index_template.matches(".*_\\{[^}]+\\}")) { // (not time-based)
+			return existing_indexes.stream().filter(index -> index.startsWith(index_template)).sorted();
+		}
+		return existing_indexes.stream()
+				.filter(index -> getIndexDateRange(index_template, index).map(range -> (range._2() > date_range._1()) && (range._1() <= date_range._2())).orElse(false))
+				.sorted();
+	}
+	
+	/** Returns the time period covered by an index generated from a time-based index template, from its name
+	 * @param index_template - eg test_{yyyy.MM}
+	 * @param index_name - eg test_2015.06, or test_2015.06_1 (ie with a segment suffix)
+	 * @return the [start, end) of the time period in epoch millis, or empty if the index wasn't generated from the template
+	 */
+	public static Optional<Tuple2<Long, Long>> getIndexDateRange(final String index_template, final String index_name) {
+		try {
+			final Tuple2<String, String> index_split = splitTimeBasedIndex(index_template);
+			final String prefix = index_split._1() + "_";
+			if (!index_name.startsWith(prefix)) return Optional.empty();
+			
+			final ParsePosition pos = new ParsePosition(prefix.length());
+			final Date start = new SimpleDateFormat(index_split._2()).parse(index_name, pos);
+			if ((null == start) || (pos.getIndex() == prefix.length()) || ((pos.getIndex() < index_name.length()) && ('_' != index_name.charAt(pos.getIndex())))) {
+				return Optional.empty();
+			}
+			final ChronoUnit time_period = getIndexGroupingPeriod.apply(index_split._2());
+			final LocalDateTime end = truncate(LocalDateTime.ofInstant(start.toInstant(), ZoneId.systemDefault()), time_period).plus(1, time_period);
+			
+			return Optional.of(Tuples._2T(start.getTime(), end.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+		}
+		catch (Exception e) { // (not a valid time-based index)
+			return Optional.empty();
+		}
+	}
+	
+	/** Filters a list of (wildcarded) index patterns down to the ones that match at least one of the indexes that actually exist
+	 * @param index_patterns - a list of index names, optionally ending in "*" (eg as generated by getIndexesFromDateRange)
+	 * @param existing_indexes - the set of index names that exist
+	 * @return the subset of index_patterns that match an existing index
+	 */
+	public static List<String> resolveIndexPatterns(final List<String> index_patterns, final Collection<String> existing_indexes) {
+		return index_patterns.stream()
+				.filter(pattern -> {
+					final boolean is_wildcard = pattern.endsWith("*");
+					final String prefix = is_wildcard ? pattern.substring(0, pattern.length() - 1) : pattern;
+					return existing_indexes.stream().anyMatch(index -> is_wildcard ? index.startsWith(prefix) : index.equals(prefix));
+				})
+				.collect(Collectors.toList());
+	}
+	
 	/** Simple utility to truncate a date time to the start of the corresponding time period 
 	 * @param start = the date time
 	 * @param period - the time period
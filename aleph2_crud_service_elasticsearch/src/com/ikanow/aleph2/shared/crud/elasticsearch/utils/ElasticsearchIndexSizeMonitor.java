@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.shared.crud.elasticsearch.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+
+import scala.Tuple2;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** Background (per cluster) monitor of the sizes of the indexes being written into, used to decide when to roll over to the next index
+ *  Writers only ever read the latest published suffix (from a concurrent map) - the stats requests for all the base indexes that need checking are batched
+ *  together and sent from a single background thread
+ * @author Alex
+ */
+public class ElasticsearchIndexSizeMonitor {
+	public static final String BAR = "_";
+	public static final long INDEX_SIZE_CHECK_MS = 10000L; // (Every 10s)
+	public static final long BATCH_INTERVAL_MS = 250L; // (how often pending checks are batched up and sent)
+	public static final long FIRST_CHECK_TIMEOUT_MS = 10000L; // (max time to wait for the very first check of an index)
+
+	private static final long MB = 1024L*1024L;
+
+	protected static final ScheduledExecutorService _scheduler =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aleph2-es-index-size-%d").build());
+
+	// (weak keys, so a monitor is dropped once nothing else is using its client - its scheduled task then cancels itself, see runBatch)
+	protected static final ConcurrentMap<Client, ElasticsearchIndexSizeMonitor> _monitors = new MapMaker().weakKeys().makeMap();
+
+	/** The last known rollover state of a base index
+	 * @author Alex
+	 */
+	public static class IndexSizeState {
+		public IndexSizeState(final long last_checked, final int suffix) {
+			this.last_checked = last_checked;
+			this.suffix = suffix;
+		}
+		/** When the index sizes were last checked
+		 */
+		public final long last_checked;
+		/** The index suffix to use (0 means the base index itself)
+		 */
+		public final int suffix;
+	}
+
+	/** Returns the monitor for the cluster that the client talks to (creating it if necessary)
+	 * @param client
+	 * @return
+	 */
+	public static ElasticsearchIndexSizeMonitor get(final Client client) {
+		final ElasticsearchIndexSizeMonitor monitor = _monitors.get(client);
+		if (null != monitor) return monitor;
+		synchronized (_monitors) { // (the map's computeIfAbsent isn't atomic, and a duplicate monitor would schedule its own task)
+			return _monitors.computeIfAbsent(client, ElasticsearchIndexSizeMonitor::new);
+		}
+	}
+
+	protected ElasticsearchIndexSizeMonitor(final Client client) {
+		_client = new WeakReference<>(client);
+		_task = _scheduler.scheduleWithFixedDelay(() -> runBatch(), BATCH_INTERVAL_MS, BATCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+	protected final WeakReference<Client> _client; // (weak since the monitor is the value in _monitors, so would otherwise keep its own key alive)
+	protected final ScheduledFuture<?> _task;
+
+	// (base index, max size in MB)
+	protected final ConcurrentHashMap<Tuple2<String, Long>, IndexSizeState> _states = new ConcurrentHashMap<>();
+	protected final ConcurrentHashMap<Tuple2<String, Long>, CompletableFuture<IndexSizeState>> _pending = new ConcurrentHashMap<>();
+	protected final AtomicBoolean _is_working = new AtomicBoolean(false);
+
+	/** Returns the suffix to use for the given base index - never blocks unless the caller asks for an up-to-date answer or the index/size has never been seen
+	 *  (otherwise a re-check of the size is queued if the last one is more than INDEX_SIZE_CHECK_MS old, and the result is used by subsequent writes)
+	 * @param base_index - the index name before any size-based suffix
+	 * @param max_index_size_mb - the size at which to move on to the next index
+	 * @param wait_for_check - if true, waits for a fresh check (eg the first time a given context writes to this index)
+	 * @return the suffix (0 means the base index itself)
+	 */
+	public int getSuffix(final String base_index, final long max_index_size_mb, final boolean wait_for_check) {
+		final Tuple2<String, Long> key = Tuples._2T(base_index, max_index_size_mb);
+		final IndexSizeState state = _states.get(key);
+		if ((null == state) || wait_for_check) { // first time through, wait for the result
+			final CompletableFuture<IndexSizeState> first_check = requestCheck(key);
+			_scheduler.execute(() -> runBatch()); // (don't wait for the next scheduled batch)
+			try {
+				return first_check.get(FIRST_CHECK_TIMEOUT_MS, TimeUnit.MILLISECONDS).suffix;
+			}
+			catch (Exception e) { // pass through to default on error
+				return Optional.ofNullable(_states.get(key)).map(s -> s.suffix).orElse(0);
+			}
+		}
+		else {
+			if ((new Date().getTime() - state.last_checked) >= INDEX_SIZE_CHECK_MS) {
+				requestCheck(key);
+			}
+			return state.suffix;
+		}
+	}
+
+	/** Utility to build the index name from the base index and suffix
+	 * @param base_index
+	 * @param suffix
+	 * @return
+	 */
+	public static String getName(final String base_index, final int suffix) {
+		return base_index + ((0 != suffix) ? (BAR + suffix) : "");
+	}
+
+	/** Queues a base index for the next batch of checks
+	 * @param key - (base index, max size in MB)
+	 * @return a future that completes with the new state once the check is complete
+	 */
+	protected CompletableFuture<IndexSizeState> requestCheck(final Tuple2<String, Long> key) {
+		final CompletableFuture<IndexSizeState> existing = _pending.get(key);
+		return (null != existing) ? existing : _pending.computeIfAbsent(key, __ -> new CompletableFuture<IndexSizeState>());
+	}
+
+	/** Sends a single stats request covering all the base indexes with pending checks, and publishes the results
+	 *  (cancels the scheduled task instead once the client is no longer in use)
+	 */
+	protected void runBatch() {
+		final Client client = _client.get();
+		if (null == client) {
+			Optional.ofNullable(_task).ifPresent(task -> task.cancel(false)); // (null if the first batch is run from the c'tor's thread, can't happen in practice)
+			return;
+		}
+		if (_pending.isEmpty() || !_is_working.compareAndSet(false, true)) { // (if it's processing a previous batch, the next tick will pick these up)
+			return;
+		}
+		final List<Tuple2<String, Long>> keys = new ArrayList<>(_pending.keySet());
+		final String[] patterns = keys.stream().map(key -> key._1() + "*").distinct().toArray(String[]::new);
+		try {
+			ElasticsearchFutureUtils.wrap(
+					client.admin().indices().prepareStats()
+						.clear()
+						.setIndices(patterns)
+						.setIndicesOptions(IndicesOptions.lenientExpandOpen())
+						.setStore(true)
+						.execute()
+					,
+					stats -> {
+						final long now = new Date().getTime();
+						keys.forEach(key -> {
+							final IndexSizeState last = _states.getOrDefault(key, new IndexSizeState(0L, 0));
+							publish(key, new IndexSizeState(now, getSuffix(stats, key._1(), key._2(), last.suffix)));
+						});
+						return null;
+					})
+					.whenComplete((__, t) -> {
+						if (null != t) { // just carry on with the current suffixes, try again in INDEX_SIZE_CHECK_MS
+							final long now = new Date().getTime();
+							keys.forEach(key -> publish(key, new IndexSizeState(now, Optional.ofNullable(_states.get(key)).map(s -> s.suffix).orElse(0))));
+						}
+						_is_working.set(false);
+					});
+		}
+		catch (Throwable t) {
+			_is_working.set(false);
+		}
+	}
+
+	/** Publishes the new state for an index and completes anything waiting on it
+	 * @param key
+	 * @param state
+	 */
+	protected void publish(final Tuple2<String, Long> key, final IndexSizeState state) {
+		_states.put(key, state);
+		Optional.ofNullable(_pending.remove(key)).ifPresent(f -> f.complete(state));
+	}
+
+	/** Works out which index to use, given the current sizes - stays with the current one unless any of its shards is too large, in which case
+	 *  moves to the first index in the sequence that either doesn't exist or isn't too large
+	 * @param stats - the stats response containing the sizes of all the indexes that match the base index
+	 * @param base_index - the index name before any size-based suffix
+	 * @param max_index_size_mb - the size at which to move on to the next index
+	 * @param current_suffix - the suffix currently in use
+	 * @return the suffix to use
+	 */
+	protected static int getSuffix(final IndicesStatsResponse stats, final String base_index, final long max_index_size_mb, final int current_suffix) {
+		final IndexStats index_stats = stats.getIndex(getName(base_index, current_suffix));
+
+		final Predicate<IndexStats> shard_too_big = i_stats ->
+			Arrays.stream(i_stats.getShards()).map(shard -> shard.getStats().getStore()).anyMatch(x -> x.getSizeInBytes() >= (max_index_size_mb*MB));
+
+		if ((null != index_stats) && shard_too_big.test(index_stats))
+		{
+			int max_index = 1;
+			// find a new index to use:
+			for (; ; max_index++) {
+				final IndexStats candidate_index_stats = stats.getIndex(base_index + BAR + max_index);
+
+				if (null == candidate_index_stats) break;
+				else if (!shard_too_big.test(candidate_index_stats)) break; // (found one we can use!)
+			}
+			return max_index;
+		}
+		else {
+			return current_suffix;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.shared.crud.elasticsearch.utils;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.jackson.core.JsonGenerator;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentGenerator;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContentGenerator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.POJONode;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+/** Utilities for converting JSON objects into elasticsearch sources
+ * @author Alex
+ */
+public class ElasticsearchSourceUtils {
+
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected static final int MIN_BUFFER_SIZE = 256;
+	protected static final int MAX_BUFFER_SIZE_HINT = 1024*1024;
+
+	// (the size of the last source built on each thread, used to size the next buffer - the buffers themselves can't be re-used, since
+	//  the request keeps a reference to its source until the bulk request it's part of has completed)
+	protected static final ThreadLocal<int[]> _last_size = ThreadLocal.withInitial(() -> new int[] { MIN_BUFFER_SIZE });
+
+	// (XContentGenerator only has int/long/float/double number writers, so big numbers are written via the underlying jackson generator,
+	//  which all the built-in formats - JSON, SMILE, YAML, CBOR - wrap)
+	protected static final Optional<Field> _jackson_generator_field = getJacksonGeneratorField();
+
+	/** Returns the source format from its (case insensitive) name, JSON if not specified or not supported by this version of elasticsearch
+	 * @param format - eg "json", "smile", "cbor"
+	 * @return
+	 */
+	public static XContentType getSourceFormat(final Optional<String> format) {
+		return format.map(f -> {
+			try {
+				return XContentType.valueOf(f.toUpperCase());
+			}
+			catch (Exception e) {
+				return XContentType.JSON;
+			}
+		})
+		.orElse(XContentType.JSON);
+	}
+
+	/** Writes a JSON object directly into an elasticsearch source in the given format, with no intermediate string
+	 *  (the returned bytes are a view onto the underlying buffer, not a copy)
+	 * @param json - the object to write
+	 * @param format - the source format (eg JSON, SMILE)
+	 * @return the source
+	 */
+	public static BytesReference toSource(final JsonNode json, final XContentType format) {
+		final int[] last_size = _last_size.get();
+		try {
+			final XContentBuilder builder = new XContentBuilder(format.xContent(), new BytesStreamOutput(last_size[0]));
+			writeNode(builder.generator(), json);
+			final BytesReference bytes = builder.bytes();
+
+			// (add a bit of headroom to avoid resizing if the next object is slightly bigger)
+			last_size[0] = Math.min(MAX_BUFFER_SIZE_HINT, Math.max(MIN_BUFFER_SIZE, bytes.length() + (bytes.length() >> 3)));
+			return bytes;
+		}
+		catch (IOException e) { // (writing into memory, so can't happen)
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Low level utility to stream a JSON tree into an elasticsearch generator
+	 * @param generator - the generator to write into
+	 * @param node - the (sub-)tree to write
+	 * @throws IOException
+	 */
+	protected static void writeNode(final XContentGenerator generator, final JsonNode node) throws IOException {
+		switch (node.getNodeType()) {
+			case OBJECT:
+				generator.writeStartObject();
+				final Iterator<Map.Entry<String, JsonNode>> it = node.fields();
+				while (it.hasNext()) {
+					final Map.Entry<String, JsonNode> kv = it.next();
+					generator.writeFieldName(kv.getKey());
+					writeNode(generator, kv.getValue());
+				}
+				generator.writeEndObject();
+				break;
+			case ARRAY:
+				generator.writeStartArray();
+				for (final JsonNode child: node) {
+					writeNode(generator, child);
+				}
+				generator.writeEndArray();
+				break;
+			case STRING:
+				generator.writeString(node.textValue());
+				break;
+			case NUMBER:
+				switch (node.numberType()) {
+					case INT:
+						generator.writeNumber(node.intValue());
+						break;
+					case LONG:
+						generator.writeNumber(node.longValue());
+						break;
+					case FLOAT:
+						generator.writeNumber(node.floatValue());
+						break;
+					case BIG_INTEGER:
+						if (node.canConvertToLong()) generator.writeNumber(node.longValue());
+						else writeBigNumber(generator, node);
+						break;
+					case BIG_DECIMAL:
+						writeBigNumber(generator, node);
+						break;
+					default: // DOUBLE
+						generator.writeNumber(node.doubleValue());
+						break;
+				}
+				break;
+			case BOOLEAN:
+				generator.writeBoolean(node.booleanValue());
+				break;
+			case BINARY:
+				generator.writeBinary(node.binaryValue());
+				break;
+			case POJO: // (not normally present in the trees we're given, so just convert)
+				writeNode(generator, _mapper.valueToTree(((POJONode) node).getPojo()));
+				break;
+			default: // NULL, MISSING
+				generator.writeNull();
+				break;
+		}
+	}
+
+	/** Writes a BigInteger or BigDecimal node without any loss of precision
+	 * @param generator - the generator to write into
+	 * @param node - a BIG_INTEGER or BIG_DECIMAL number node
+	 * @throws IOException
+	 */
+	protected static void writeBigNumber(final XContentGenerator generator, final JsonNode node) throws IOException {
+		final Optional<JsonGenerator> jackson_generator = _jackson_generator_field
+				.filter(field -> generator instanceof JsonXContentGenerator)
+				.map(field -> {
+					try {
+						return (JsonGenerator) field.get(generator);
+					}
+					catch (IllegalAccessException e) { // (made accessible on creation, so can't happen)
+						throw new RuntimeException(e);
+					}
+				});
+		
+		if (!jackson_generator.isPresent()) { // (not a jackson based generator, none of the built-in formats will get here)
+			throw new IOException("Can't write number without losing precision: " + node.asText());
+		}
+		else if (node.isBigInteger()) {
+			jackson_generator.get().writeNumber(node.bigIntegerValue());
+		}
+		else {
+			jackson_generator.get().writeNumber(node.decimalValue());
+		}
+	}
+
+	/** Returns the (protected) field holding the jackson generator that elasticsearch's generators wrap
+	 * @return the field (made accessible), or empty if not present in this version of elasticsearch
+	 */
+	protected static Optional<Field> getJacksonGeneratorField() {
+		try {
+			final Field field = JsonXContentGenerator.class.getDeclaredField("generator");
+			field.setAccessible(true);
+			return Optional.of(field);
+		}
+		catch (Exception e) {
+			return Optional.empty();
+		}
+	}
+}
@@ -255,7 +255,7 @@ public class ElasticsearchUtils {
 	/** If there's an obvious date range restriction on this query then return it so it can be applied to make queries more efficient
 	 * @param spec
 	 * @param maybe_time_field
-	 * @return
+	 * @return the (lower, upper) range in epoch millis - the upper end is Long.MAX_VALUE if the range is open above
 	 */
 	@SuppressWarnings("unchecked")
 	public static <O> Optional<Tuple2<Long, Long>> interpretObviousDateRange(final QueryComponent<O> spec, final Optional<String> maybe_time_field) {
@@ -266,6 +266,7 @@ public class ElasticsearchUtils {
 				.when(MultiQueryComponent.class, mq -> (Operator.all_of == mq.getOp()) || (1 == mq.getElements().size()), mq -> {
 					return ((List<QueryComponent<O>>)mq.getElements())
 							.stream().limit(10).map(o -> interpretObviousDateRange(o, maybe_time_field))
+							.filter(o -> o.isPresent())
 							.findAny()
 							.flatMap(o->o)
 							;
@@ -279,7 +280,7 @@ public class ElasticsearchUtils {
 								Tuples._2T(
 									toLongDate(op_args._2()._1())
 									, 
-									Optional.ofNullable(op_args._2()._2()).map(o -> toLongDate(o)).orElse(new Date().getTime()))
+									Optional.ofNullable(op_args._2()._2()).map(o -> toLongDate(o)).orElse(Long.MAX_VALUE))
 						)
 						.filter(t2 -> (null != t2._1()) && (null != t2._2()))
 						.findAny()
@@ -31,6 +31,7 @@ public class ErrorUtils extends com.ikanow.aleph2.data_model.utils.ErrorUtils {
 	public static final String TRIED_TO_WRITE_INTO_RO_SERVICE = "This CRUD service was created as read-only but the method {0} attemped to write";
 	
 	public static final String STORE_OBJECTS_ALWAYS_COMPLETES = "Elasticsearch does not support continue_on_error:false in storeObjects";
+	public static final String BATCH_CAPACITY_EXCEEDED = "Batch write rejected: more than {0}KB of data in flight for over {1}ms";
 	
 	public static final String INVALID_CONFIGURATION = "Invalid configuration: connection={0} cluster={1}, err={2}";
 	
@@ -29,6 +29,13 @@ public class TestElasticsearchConfigurationBean {
 		final ElasticsearchConfigurationBean test1 = new ElasticsearchConfigurationBean();
 		assertEquals(null, test1.elasticsearch_connection());
 		assertEquals(null, test1.cluster_name());
+		assertEquals(null, test1.scroll_page_size());
+		assertEquals(null, test1.scroll_max_buffered_pages());
+		assertEquals(null, test1.batch_max_inflight_kb());
+		assertEquals(null, test1.batch_max_blocking_ms());
+		assertEquals(null, test1.delete_max_inflight_kb());
+		assertEquals(null, test1.delete_max_parallel_slices());
+		assertEquals(null, test1.source_format());
 		
 		final ElasticsearchConfigurationBean test2 = new ElasticsearchConfigurationBean("test2a", "test2b");
 		assertEquals("test2a", test2.elasticsearch_connection());
@@ -123,6 +123,7 @@ public class TestElasticsearchContext {
 					new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext("test1", Optional.empty(), Either.left(true));
 			
 			assertEquals(Arrays.asList("test1"), index_context_1.getReadableIndexList(Optional.empty()));
+			assertFalse("no timestamp field for fixed indexes", index_context_1.timeField().isPresent());
 			
 			final ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext index_context_2 = 
 					new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext("test2", Optional.of(-1L), Either.left(true));
@@ -27,6 +27,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.function.Supplier;
@@ -376,6 +377,38 @@ public class TestElasticsearchCrudService {
 			
 			assertEquals(0, service.countObjects().get().intValue());			
 		}
+		// 6) flush - completes once the objects are written, with the per-object outcomes
+		{
+			final TestBean test6a = BeanTemplateUtils.clone(test).with("_id", "_id_6a").done();
+			final TestBean test6b = BeanTemplateUtils.clone(test).with("_id", "_id_6b").done();
+			
+			batch_service.storeObjects(Arrays.asList(test6a, test6b, test6a), false);
+			final ElasticsearchCrudService.FlushResult result = batch_service.flushOutput().get();
+			
+			assertEquals(2L, result.success_count());
+			assertEquals(1L, result.failure_count()); // (the duplicate _id)
+			
+			// (get by _id is realtime, so no need to wait for a refresh)
+			assertTrue("Found _id_6a", service.getObjectById("_id_6a").get().isPresent());
+			assertTrue("Found _id_6b", service.getObjectById("_id_6b").get().isPresent());
+			
+			// Nothing left to flush
+			final ElasticsearchCrudService.FlushResult result2 = batch_service.flushOutput().get();
+			assertEquals(0L, result2.success_count());
+			assertEquals(0L, result2.failure_count());
+		}
+		// 7) metrics - everything has been acknowledged, nothing was rejected
+		{
+			final ElasticsearchCrudService.BatchMetrics metrics = batch_service.getMetrics();
+			assertEquals(0L, metrics.queue_depth());
+			assertEquals(0L, metrics.inflight_bytes());
+			assertEquals(0L, metrics.rejected_items());
+			assertEquals(2L, metrics.failed_items()); // (the duplicate _ids from 2 and 6)
+			assertTrue("Some bulk requests completed: " + metrics.bulks_completed(), metrics.bulks_completed() >= 5L);
+			assertTrue("Max latency >= mean", metrics.max_bulk_latency_ms() >= metrics.mean_bulk_latency_ms());
+			
+			assertEquals(0L, batch_service_raw.getMetrics().queue_depth());
+		}
 	}
 	
 	@Test
@@ -729,6 +762,81 @@ public class TestElasticsearchCrudService {
 		
 	}
 	
+	@Test
+	public void test_BatchBackPressure() throws InterruptedException, ExecutionException {
+		
+		final ElasticsearchCrudService<JsonNode> service = getTestService("testBatchBackPressure", TestBean.class).getRawService();
+		
+		// A service that only allows 1KB in flight, and rejects writes after blocking for 500ms
+		final ElasticsearchConfigurationBean config = BeanTemplateUtils.build(ElasticsearchConfigurationBean.class)
+					.with(ElasticsearchConfigurationBean::batch_max_inflight_kb, 1L)
+					.with(ElasticsearchConfigurationBean::batch_max_blocking_ms, 500L)
+				.done().get();
+		final ElasticsearchCrudService<JsonNode> bounded_service = new ElasticsearchCrudService<JsonNode>(JsonNode.class, 
+				service.getUnderlyingPlatformDriver(ElasticsearchContext.class, Optional.empty()).get(), 
+				Optional.of(false), CreationPolicy.AVAILABLE_IMMEDIATELY, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.of(config));
+		
+		@SuppressWarnings("unchecked")
+		final ElasticsearchCrudService<JsonNode>.ElasticsearchBatchSubsystem batch_service = bounded_service.getUnderlyingPlatformDriver(ElasticsearchBatchSubsystem.class, Optional.empty()).get();
+		
+		final JsonNode obj1 = BeanTemplateUtils.toJson(BeanTemplateUtils.build(TestBean.class).with("_id", "id1").with("test_string", "test_string1").done().get());
+		final JsonNode obj2 = BeanTemplateUtils.toJson(BeanTemplateUtils.build(TestBean.class).with("_id", "id2").with("test_string", "test_string2").done().get());
+		
+		// (use up almost all the capacity, so there's not enough left for an object)
+		final int held = 1024 - 64;
+		batch_service.acquireCapacity(held);
+		
+		// 1) Rejection: the writer blocks for the max time, then is rejected
+		{
+			final long start = System.currentTimeMillis();
+			try {
+				batch_service.storeObject(obj1);
+				fail("Should have been rejected");
+			}
+			catch (RuntimeException e) {
+				assertTrue("Rejection error: " + e.getMessage(), e.getMessage().startsWith("Batch write rejected"));
+			}
+			assertTrue("Blocked before rejecting: " + (System.currentTimeMillis() - start), (System.currentTimeMillis() - start) >= 400L);
+			assertEquals(1L, batch_service.getMetrics().rejected_items());
+		}
+		
+		// 2) Back-pressure: the writer blocks until capacity is released, then succeeds
+		{
+			final CompletableFuture<Void> blocked_write = CompletableFuture.runAsync(() -> batch_service.storeObject(obj2));
+			
+			try { Thread.sleep(200L); } catch (Exception e) {}
+			assertFalse("Writer is blocked", blocked_write.isDone());
+			
+			batch_service.releaseCapacity(held, 1);
+			blocked_write.join();
+			
+			final ElasticsearchCrudService.FlushResult result = batch_service.flushOutput().join();
+			assertEquals(1L, result.success_count());
+			assertEquals(0L, result.failure_count());
+			
+			assertEquals(0L, batch_service.getMetrics().inflight_bytes());
+			assertEquals(0L, batch_service.getMetrics().queue_depth());
+			assertEquals(1L, batch_service.getMetrics().rejected_items());
+			
+			assertTrue(service.getObjectById("id2").get().isPresent());
+			assertFalse(service.getObjectById("id1").get().isPresent());
+		}
+		
+		// 3) A write that can't be added to a bulk processor gives its capacity back
+		{
+			Arrays.stream(batch_service.getStripes()).forEach(bp -> bp.close()); // (closed without being swapped out, so the add throws)
+			try {
+				batch_service.storeObject(obj1);
+				fail("Should have thrown");
+			}
+			catch (IllegalStateException e) {}
+			
+			assertEquals(0L, batch_service.getMetrics().inflight_bytes());
+			assertEquals(0L, batch_service.getMetrics().queue_depth());
+			assertEquals(1024, batch_service._inflight_bytes.availablePermits());
+		}
+	}
+	
 	////////////////////////////////////////////////
 	
 	// RETRIEVAL
@@ -1047,6 +1155,86 @@ public class TestElasticsearchCrudService {
 		}
 	}
 	
+	@Test
+	public void multiObjectRetrieve_scroll() throws InterruptedException, ExecutionException {
+		
+		final ElasticsearchCrudService<TestBean> service = getTestService("multiObjectRetrieve_scroll", TestBean.class);
+		
+		final int num_objs = 2*ElasticsearchCrudService.DEFAULT_SCROLL_PAGE_SIZE + 500; // (ie spans multiple pages)
+		
+		final List<TestBean> l = IntStream.range(0, num_objs).boxed()
+				.map(i -> BeanTemplateUtils.build(TestBean.class)
+								.with("_id", "id" + i)
+								.with("test_string", "test_string" + i)
+								.with("test_long", (Long)(long)i)
+								.done().get())
+				.collect(Collectors.toList());
+
+		service.storeObjects(l).get();
+		
+		assertEquals(num_objs, service.countObjects().get().intValue());
+		
+		// 1) No limit, so get all the objects back via a scroll
+		
+		final QueryComponent<TestBean> query = CrudUtils.allOf(TestBean.class).withPresent("test_long");
+		
+		try (Cursor<TestBean> cursor = service.getObjectsBySpec(query).get()) {
+			assertThat(cursor, instanceOf(ElasticsearchCrudService.ElasticsearchScrollingCursor.class));
+			
+			assertEquals(num_objs, cursor.count());
+			
+			final Set<String> ids = StreamSupport.stream(Optionals.ofNullable(cursor).spliterator(), false).map(b -> b._id()).collect(Collectors.toSet());
+			
+			assertEquals(num_objs, ids.size());
+		}
+		catch (Exception e) {
+			//(fail on close, normally carry on - but here error out)
+			fail("getObjectsBySpec errored on close"); 
+		}
+		
+		// 2) No limit, sorted - check the order is maintained across pages
+		
+		final QueryComponent<TestBean> query_2 = CrudUtils.allOf(TestBean.class).withPresent("test_long").orderBy(Tuples._2T("test_long", -1));
+		
+		try (Cursor<TestBean> cursor = service.getObjectsBySpec(query_2).get()) {
+			final List<TestBean> objs = StreamSupport.stream(Optionals.ofNullable(cursor).spliterator(), false).collect(Collectors.toList());
+			
+			assertEquals(num_objs, objs.size());
+			assertEquals((long)(num_objs - 1), (long)objs.get(0).test_long);
+			assertEquals(0L, (long)objs.get(num_objs - 1).test_long);
+		}
+		catch (Exception e) {
+			//(fail on close, normally carry on - but here error out)
+			fail("getObjectsBySpec errored on close"); 
+		}
+		
+		// 3) Close before consuming all the pages
+		
+		try (Cursor<TestBean> cursor = service.getObjectsBySpec(query).get()) {
+			assertEquals(true, cursor.iterator().hasNext());
+		}
+		catch (Exception e) {
+			//(fail on close, normally carry on - but here error out)
+			fail("getObjectsBySpec errored on close"); 
+		}
+		
+		// 4) With a limit, so no scroll
+		
+		final QueryComponent<TestBean> query_4 = CrudUtils.allOf(TestBean.class).withPresent("test_long").limit(10);
+		
+		try (Cursor<TestBean> cursor = service.getObjectsBySpec(query_4).get()) {
+			assertThat(cursor, instanceOf(ElasticsearchCrudService.ElasticsearchCursor.class));
+			
+			final List<TestBean> objs = StreamSupport.stream(Optionals.ofNullable(cursor).spliterator(), false).collect(Collectors.toList());
+			
+			assertEquals(10, objs.size());
+		}
+		catch (Exception e) {
+			//(fail on close, normally carry on - but here error out)
+			fail("getObjectsBySpec errored on close"); 
+		}
+	}
+	
 	@Test
 	public void test_Counting() throws InterruptedException, ExecutionException {
 		
@@ -1373,6 +1561,24 @@ public class TestElasticsearchCrudService {
 		}
 		assertEquals(0L, service.countObjects().join().longValue());		
 		
+		// 3b) all docs, with progress reporting (and nothing left to delete second time round)
+		
+		replenishDocsForDeletion(service);
+		final List<Long> progress = new CopyOnWriteArrayList<>();
+		assertEquals(10L, (long)service.deleteObjectsBySpec(CrudUtils.anyOf(TestBean.class), Optional.of(progress::add)).get());
+		assertTrue("Progress reported", !progress.isEmpty());
+		assertEquals(10L, progress.stream().mapToLong(l -> l).max().getAsLong());
+		
+		for (int i = 0; i < 5000L; i += 250) {
+			if (0L == service.countObjects().join().longValue()) {
+				System.out.println("(objects deleted after " + i + " ms)");
+				break;
+			}
+			Thread.sleep(250L);
+		}
+		assertEquals(0L, service.countObjects().join().longValue());		
+		assertEquals(0L, (long)service.deleteObjectsBySpec(CrudUtils.anyOf(TestBean.class)).get());
+		
 		// 4) subset of docs
 
 		replenishDocsForDeletion(service);
@@ -21,6 +21,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -121,4 +122,53 @@ public class TestElasticsearchContextUtils {
 		
 	}
 	
+	@Test
+	public void test_resolveIndexPatterns() {
+		final List<String> existing = Arrays.asList("test_2015-06-01", "test_2015-06-03_1", "other_2015-06-02");
+		
+		assertEquals(Arrays.asList("test_2015-06-01*", "test_2015-06-03*"), 
+				ElasticsearchContextUtils.resolveIndexPatterns(Arrays.asList("test_2015-06-01*", "test_2015-06-02*", "test_2015-06-03*"), existing));
+		
+		// (non-wildcards have to match exactly)
+		assertEquals(Arrays.asList("test_2015-06-01"), 
+				ElasticsearchContextUtils.resolveIndexPatterns(Arrays.asList("test_2015-06-01", "test_2015-06-03"), existing));
+		
+		assertEquals(Arrays.asList(), 
+				ElasticsearchContextUtils.resolveIndexPatterns(Arrays.asList("test_2015-06-01*"), Arrays.asList()));
+	}
+	
+	@Test
+	public void test_existingIndexesFromDateRange() {
+		final List<String> existing = Arrays.asList("test_2003", "test_2004_1", "test_2005", "test_2030", "test_2004.06", "other_2004", "test_fixed");
+		
+		Calendar c1 = GregorianCalendar.getInstance();
+		Calendar c2 = GregorianCalendar.getInstance();
+		c1.set(2004, 5, 1); c2.set(2004, 11, 1);
+		
+		// Index names -> time periods (segment suffixes are allowed, anything else isn't)
+		final Calendar start = GregorianCalendar.getInstance(); start.clear(); start.set(2004, 0, 1);
+		final Calendar end = GregorianCalendar.getInstance(); end.clear(); end.set(2005, 0, 1);
+		assertEquals(Tuples._2T(start.getTime().getTime(), end.getTime().getTime()), ElasticsearchContextUtils.getIndexDateRange("test_{yyyy}", "test_2004_1").get());
+		assertEquals(false, ElasticsearchContextUtils.getIndexDateRange("test_{yyyy}", "test_2004.06").isPresent());
+		assertEquals(false, ElasticsearchContextUtils.getIndexDateRange("test_{yyyy}", "other_2004").isPresent());
+		assertEquals(false, ElasticsearchContextUtils.getIndexDateRange("test_{yyyy}", "test_fixed").isPresent());
+		
+		// Bounded both ends: the upper bound excludes the later indexes
+		assertEquals(Arrays.asList("test_2004_1"), 
+				ElasticsearchContextUtils.getIndexesFromDateRange("test_{yyyy}", Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime()), existing).collect(Collectors.toList()));
+		
+		// Open above: includes future-dated indexes
+		assertEquals(Arrays.asList("test_2004_1", "test_2005", "test_2030"), 
+				ElasticsearchContextUtils.getIndexesFromDateRange("test_{yyyy}", Tuples._2T(c1.getTime().getTime(), Long.MAX_VALUE), existing).collect(Collectors.toList()));
+		
+		// (whereas generating the indexes stops at now)
+		final int this_year = GregorianCalendar.getInstance().get(Calendar.YEAR);
+		assertEquals("test_" + this_year, 
+				ElasticsearchContextUtils.getIndexesFromDateRange("test_{yyyy}", Tuples._2T(c1.getTime().getTime(), Long.MAX_VALUE)).reduce((a, b) -> b).get());
+		
+		// Not time-based
+		assertEquals(Arrays.asList("test_fixed"), 
+				ElasticsearchContextUtils.getIndexesFromDateRange("test_fixed", Tuples._2T(c1.getTime().getTime(), Long.MAX_VALUE), existing).collect(Collectors.toList()));
+	}
+	
 }
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.shared.crud.elasticsearch.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+
+import org.elasticsearch.client.Client;
+import org.junit.Test;
+
+import com.ikanow.aleph2.shared.crud.elasticsearch.services.MockElasticsearchCrudServiceFactory;
+
+public class TestElasticsearchIndexSizeMonitor {
+
+	@Test
+	public void test_getName() {
+		assertEquals("test_index", ElasticsearchIndexSizeMonitor.getName("test_index", 0));
+		assertEquals("test_index_3", ElasticsearchIndexSizeMonitor.getName("test_index", 3));
+	}
+	
+	@Test
+	public void test_indexRollover() throws InterruptedException, ExecutionException {
+		
+		final MockElasticsearchCrudServiceFactory factory = new MockElasticsearchCrudServiceFactory();		
+		final Client client = factory.getClient();
+		
+		try { client.admin().indices().prepareDelete("test_size_monitor*").execute().get(); } catch (Exception e) {}
+		
+		final ElasticsearchIndexSizeMonitor monitor = ElasticsearchIndexSizeMonitor.get(client);
+		assertTrue("One monitor per cluster", monitor == ElasticsearchIndexSizeMonitor.get(client));
+		
+		// 1) No index yet, so use the base index
+		
+		assertEquals(0, monitor.getSuffix("test_size_monitor", 0L, true));
+		
+		// 2) Base index exists, with a max size of 0 it's always too big, so move to the next one
+		
+		client.admin().indices().prepareCreate("test_size_monitor").execute().get();
+		
+		assertEquals(0, monitor.getSuffix("test_size_monitor", 0L, false)); // (not re-checked yet)
+		assertEquals(1, monitor.getSuffix("test_size_monitor", 0L, true));
+		assertEquals(1, monitor.getSuffix("test_size_monitor", 0L, false));
+
+		// 3) Same again, moves past all the full indexes
+		
+		client.admin().indices().prepareCreate("test_size_monitor_1").execute().get();
+		
+		assertEquals(2, monitor.getSuffix("test_size_monitor", 0L, true));
+		
+		// 4) A different max size is tracked separately, and the base index isn't full
+		
+		assertEquals(0, monitor.getSuffix("test_size_monitor", 100L, false));
+		
+		client.admin().indices().prepareDelete("test_size_monitor*").execute().get();
+	}
+	
+	@Test
+	public void test_clientReleased() {
+		final MockElasticsearchCrudServiceFactory factory = new MockElasticsearchCrudServiceFactory();		
+		final ElasticsearchIndexSizeMonitor monitor = new ElasticsearchIndexSizeMonitor(factory.getClient());
+		
+		monitor.runBatch();
+		assertFalse(monitor._task.isCancelled());
+		
+		// Once the client has gone, the scheduled task is cancelled
+		
+		monitor._client.clear();
+		monitor.runBatch();
+		assertTrue(monitor._task.isCancelled());
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.shared.crud.elasticsearch.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+
+public class TestElasticsearchSourceUtils {
+
+	final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	
+	/** A document similar in shape to a typical bucket record
+	 */
+	protected ObjectNode getTestDoc(final int i) {
+		final ObjectNode doc = _mapper.createObjectNode();
+		doc.put("@timestamp", 1445000000000L + i);
+		doc.put("source", "source_" + (i % 10));
+		doc.put("message", "test message number " + i + " with some unicode é中 and \"quotes\"");
+		doc.put("count", i);
+		doc.put("score", i/3.0);
+		doc.put("flag", 0 == (i % 2));
+		doc.putNull("missing");
+		doc.putArray("tags").add("tag1").add("tag" + i);
+		final ObjectNode geo = doc.putObject("geo");
+		geo.put("lat", 51.5).put("lon", -0.12);
+		geo.putArray("nested").addObject().put("a", 1).put("b", "x");
+		return doc;
+	}
+	
+	@Test
+	public void test_getSourceFormat() {
+		assertEquals(XContentType.JSON, ElasticsearchSourceUtils.getSourceFormat(Optional.empty()));
+		assertEquals(XContentType.JSON, ElasticsearchSourceUtils.getSourceFormat(Optional.of("json")));
+		assertEquals(XContentType.SMILE, ElasticsearchSourceUtils.getSourceFormat(Optional.of("Smile")));
+		assertEquals(XContentType.JSON, ElasticsearchSourceUtils.getSourceFormat(Optional.of("not_a_format")));
+	}
+	
+	@Test
+	public void test_toSource() throws IOException {
+		final ObjectNode doc = getTestDoc(1);
+		
+		// JSON - identical to the string version
+		
+		final BytesReference json = ElasticsearchSourceUtils.toSource(doc, XContentType.JSON);
+		assertEquals(XContentType.JSON, XContentFactory.xContentType(json));
+		assertEquals(_mapper.readTree(doc.toString()), _mapper.readTree(json.toUtf8()));
+		
+		// SMILE - converts back to the same JSON
+		
+		final BytesReference smile = ElasticsearchSourceUtils.toSource(doc, XContentType.SMILE);
+		assertEquals(XContentType.SMILE, XContentFactory.xContentType(smile));
+		assertEquals(_mapper.readTree(doc.toString()), _mapper.readTree(XContentHelper.convertToJson(smile, false)));
+		assertTrue("SMILE is smaller: " + smile.length() + " vs " + json.length(), smile.length() < json.length());
+	}
+	
+	//(not a rigorous benchmark, just a rough comparison vs the old string path on realistic documents - run by hand)
+	@Ignore
+	@Test
+	public void test_serializationTiming() throws IOException {
+		final List<ObjectNode> docs = IntStream.range(0, 20000).mapToObj(i -> getTestDoc(i)).collect(Collectors.toList());
+		
+		for (int warmup = 0; warmup < 3; ++warmup) {
+			final long t0 = System.nanoTime();
+			final long size_str = docs.stream().mapToLong(doc -> new BytesArray(doc.toString()).length()).sum();
+			final long t1 = System.nanoTime();
+			final long size_json = docs.stream().mapToLong(doc -> ElasticsearchSourceUtils.toSource(doc, XContentType.JSON).length()).sum();
+			final long t2 = System.nanoTime();
+			final long size_smile = docs.stream().mapToLong(doc -> ElasticsearchSourceUtils.toSource(doc, XContentType.SMILE).length()).sum();
+			final long t3 = System.nanoTime();
+			
+			System.out.println("string: " + (t1 - t0)/1000000L + "ms (" + size_str + " bytes), json: " + (t2 - t1)/1000000L + "ms (" + size_json + " bytes), smile: " + (t3 - t2)/1000000L + "ms (" + size_smile + " bytes)");
+		}
+	}
+	
+	@Test
+	public void test_bigNumbers() throws IOException {
+		final BigInteger big_int = new BigInteger("123456789012345678901234567890");
+		final BigDecimal big_dec = new BigDecimal("1.23456789012345678901234567890");
+		
+		final ObjectNode doc = _mapper.createObjectNode();
+		doc.set("big_int", _mapper.getNodeFactory().numberNode(big_int));
+		doc.set("small_big_int", _mapper.getNodeFactory().numberNode(BigInteger.valueOf(12345L)));
+		doc.put("big_dec", big_dec);
+		doc.putArray("array").add(_mapper.getNodeFactory().numberNode(big_int)).add(big_dec);
+		
+		// JSON - the numbers are written as numbers, with no loss of precision
+		
+		final BytesReference json = ElasticsearchSourceUtils.toSource(doc, XContentType.JSON);
+		final JsonNode json_doc = _mapper.reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS).readTree(json.toUtf8());
+		assertTrue(json_doc.get("big_int").isBigInteger());
+		assertEquals(big_int, json_doc.get("big_int").bigIntegerValue());
+		assertEquals(12345L, json_doc.get("small_big_int").longValue());
+		assertTrue(json_doc.get("big_dec").isBigDecimal());
+		assertEquals(big_dec, json_doc.get("big_dec").decimalValue());
+		assertEquals(big_int, json_doc.get("array").get(0).bigIntegerValue());
+		assertEquals(big_dec, json_doc.get("array").get(1).decimalValue());
+		
+		// SMILE - as above
+		
+		final BytesReference smile = ElasticsearchSourceUtils.toSource(doc, XContentType.SMILE);
+		final JsonNode smile_doc = _mapper.reader().with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS).readTree(XContentHelper.convertToJson(smile, false));
+		assertEquals(big_int, smile_doc.get("big_int").bigIntegerValue());
+		assertEquals(big_dec, smile_doc.get("big_dec").decimalValue());
+	}
+}
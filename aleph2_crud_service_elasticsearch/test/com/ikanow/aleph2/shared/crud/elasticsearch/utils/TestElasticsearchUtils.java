@@ -18,12 +18,16 @@ package com.ikanow.aleph2.shared.crud.elasticsearch.utils;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.common.xcontent.ToXContent;
@@ -1233,5 +1237,44 @@ public class TestElasticsearchUtils {
 
 	}
 	
+	@Test
+	public void test_interpretObviousDateRange() {
+		
+		// No time field
+		assertEquals(Optional.empty(), ElasticsearchUtils.interpretObviousDateRange(CrudUtils.allOf().rangeAbove("@timestamp", 1000L, false), Optional.empty()));
+		
+		// Range on a different field
+		assertEquals(Optional.empty(), ElasticsearchUtils.interpretObviousDateRange(CrudUtils.allOf().rangeAbove("other", 1000L, false), Optional.of("@timestamp")));
+		
+		// Unbounded below
+		assertEquals(Optional.empty(), ElasticsearchUtils.interpretObviousDateRange(CrudUtils.allOf().rangeBelow("@timestamp", 1000L, false), Optional.of("@timestamp")));
+		
+		// (2 hourly indexes, the first covering the range below)
+		final SimpleDateFormat hour_format = new SimpleDateFormat("yyyy.MM.dd.HH");
+		final List<String> existing_indexes = Arrays.asList("test_" + hour_format.format(new Date(0L)), "test_" + hour_format.format(new Date(3600L*1000L)));
+		
+		// Bounded below (upper bound is open, so future-dated objects are included)
+		final Optional<Tuple2<Long, Long>> res1 = ElasticsearchUtils.interpretObviousDateRange(
+				CrudUtils.allOf().when("other", "test").rangeAbove("@timestamp", 1000L, false), Optional.of("@timestamp"));
+		assertTrue("Found range", res1.isPresent());
+		assertEquals(1000L, res1.get()._1().longValue());
+		assertEquals("Upper bound is open", Long.MAX_VALUE, res1.get()._2().longValue());
+		assertEquals(existing_indexes, 
+				ElasticsearchContextUtils.getIndexesFromDateRange("test_{yyyy.MM.dd.HH}", res1.get(), existing_indexes).collect(Collectors.toList()));
+		
+		// Bounded both ends
+		final Optional<Tuple2<Long, Long>> res2 = ElasticsearchUtils.interpretObviousDateRange(
+				CrudUtils.allOf().rangeAbove("@timestamp", new Date(1000L), false).rangeBelow("@timestamp", 2000L, false), Optional.of("@timestamp"));
+		assertTrue("Found range", res2.isPresent());
+		assertEquals(1000L, res2.get()._1().longValue());
+		assertEquals(2000L, res2.get()._2().longValue());
+		assertEquals("Upper bound excludes the later index", existing_indexes.subList(0, 1), 
+				ElasticsearchContextUtils.getIndexesFromDateRange("test_{yyyy.MM.dd.HH}", res2.get(), existing_indexes).collect(Collectors.toList()));
+		
+		// OR-ing other terms means the range can't be used
+		assertEquals(Optional.empty(), ElasticsearchUtils.interpretObviousDateRange(
+				CrudUtils.anyOf().when("other", "test").rangeAbove("@timestamp", 1000L, false), Optional.of("@timestamp")));
+	}
+	
 	
 }
@@ -30,5 +30,32 @@ public class GraphBuilderConfigBean {
 	 */
 	public GraphSchemaBean graph_schema_override() { return graph_schema_override; }
 	
+	/** Bulk load mode, for large initial loads: vertices are created without looking for existing matches (via a graph opened with Titan's 
+	 *  storage.batch-loading enabled and ids.renew-percentage raised, so id blocks are renewed early), and all the deduplication is deferred 
+	 *  to the final merge pass, where each key is merged by its owning task and any late duplicates are swept up afterwards
+	 *  (ids aren't pre-allocated per transaction: the id block size is a cluster-wide offline setting, see TitanGraphService.getBulkLoadGraph)
+	 * @return
+	 */
+	public Boolean bulk_load() { return bulk_load; }
+	
+	/** The max number of vertex keys (per task) whose vertex ids are cached across batches, so recurring entities skip the index lookup (0 to disable)
+	 * @return
+	 */
+	public Long vertex_key_cache_size() { return vertex_key_cache_size; }
+	
+	/** The number of threads (per task) used by the final merge, each of which merges its own shard of the new vertex keys
+	 * @return
+	 */
+	public Integer merge_threads() { return merge_threads; }
+	
+	/** The initial number of vertex keys merged per transaction in the final merge (it then shrinks on conflicts and grows otherwise)
+	 * @return
+	 */
+	public Integer merge_batch_size() { return merge_batch_size; }
+	
 	private GraphSchemaBean graph_schema_override;
+	private Boolean bulk_load;
+	private Long vertex_key_cache_size;
+	private Integer merge_threads;
+	private Integer merge_batch_size;
 }
@@ -17,15 +17,30 @@
 package com.ikanow.aleph2.graph.titan.services;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -38,6 +53,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
@@ -62,6 +79,7 @@ import com.ikanow.aleph2.data_model.utils.UuidUtils;
 import com.ikanow.aleph2.graph.titan.data_model.GraphBuilderConfigBean;
 import com.ikanow.aleph2.graph.titan.utils.TitanGraphBuildingUtils;
 import com.ikanow.aleph2.graph.titan.utils.TitanGraphBuildingUtils.MutableStatsBean;
+import com.ikanow.aleph2.graph.titan.utils.VertexKeyCache;
 import com.thinkaurelius.titan.core.TitanException;
 import com.thinkaurelius.titan.core.TitanGraph;
 import com.thinkaurelius.titan.core.TitanTransaction;
@@ -89,8 +107,14 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 	protected final SetOnce<IBucketLogger> _logger = new SetOnce<>();
 	protected final SetOnce<MutableStatsBean> _mutable_stats = new SetOnce<>();
 	protected final SetOnce<TitanGraph> _titan = new SetOnce<>();
+	protected final SetOnce<TitanGraph> _bulk_titan = new SetOnce<>(); // (only set in bulk load mode)
+	protected final SetOnce<VertexKeyCache> _vertex_key_cache = new SetOnce<>(); // (not used in bulk load mode, since there are no lookups)
+	protected final SetOnce<Integer> _merge_threads = new SetOnce<>();
+	protected final SetOnce<Integer> _merge_batch_size = new SetOnce<>();
 	
 	protected final Set<ObjectNode> _mutable_new_vertex_keys = new HashSet<>();
+	protected final Set<Object> _mutable_new_vertex_ids = new HashSet<>(); // (only filled in in bulk load mode)
+	protected long _mutable_load_time_ns = 0L; // (time spent in onObjectBatch, for logging rates)
 	
 	// Special test mode
 	protected LinkedList<TitanException> _MUTABLE_TEST_ERRORS = new LinkedList<>();
@@ -98,6 +122,12 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 	protected final static int _MAX_ATTEMPT_NUM = 9;
 	protected final static Integer[] _BACKOFF_TIMES_MS = { 50, 100, 250, 1500, 3000, 6000, 12000, 24000, 48000, 96000 }; // (final one never called, that's the one we bail out on)
 	
+	protected final static int _DEFAULT_MERGE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	protected final static int _DEFAULT_MERGE_BATCH_SIZE = 250;
+	protected final static int _MIN_MERGE_BATCH_SIZE = 10;
+	protected final static int _MAX_MERGE_BATCH_SIZE = 2000;
+	protected final static long _MERGE_METRICS_INTERVAL_MS = 10000L;
+	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule#onStageInitialize(com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext, com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean, scala.Tuple2, java.util.Optional)
 	 */
@@ -123,6 +153,8 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 		_security_context.set(Tuples._2T(bucket.owner_id(), _service_context.get().getSecurityService()));
 		_bucket.set(bucket);
 		_mutable_stats.set(new MutableStatsBean());
+		_merge_threads.set(Optional.ofNullable(dedup_config.merge_threads()).filter(n -> n > 0).orElse(_DEFAULT_MERGE_THREADS));
+		_merge_batch_size.set(Optional.ofNullable(dedup_config.merge_batch_size()).filter(n -> n > 0).orElse(_DEFAULT_MERGE_BATCH_SIZE));
 		
 		_service_context.get()
 			.getService(IGraphService.class, Optional.ofNullable(graph_schema.service_name()))
@@ -130,6 +162,22 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 			.ifPresent(titan -> _titan.set(titan));
 			;		
 		
+		// Bulk load mode: writes go via a batch loading graph, dedup is deferred to onStageComplete
+		
+		if (Optional.ofNullable(dedup_config.bulk_load()).orElse(false)) {
+			_service_context.get()
+				.getService(IGraphService.class, Optional.ofNullable(graph_schema.service_name()))
+				.flatMap(graph_service -> graph_service.getUnderlyingPlatformDriver(TitanGraph.class, Optional.of(TitanGraphService.BULK_LOAD_DRIVER_OPTIONS)))
+				.map(Optional::of)
+				.orElseGet(() -> _titan.optional())
+				.ifPresent(titan -> _bulk_titan.set(titan));
+		}
+		else {
+			Optional.of(Optional.ofNullable(dedup_config.vertex_key_cache_size()).orElse(VertexKeyCache.DEFAULT_MAX_SIZE))
+				.filter(size -> size > 0)
+				.ifPresent(size -> _vertex_key_cache.set(new VertexKeyCache(size)));
+		}
+		
 		// Set up decomposition enrichment
 		
 		final Optional<EnrichmentControlMetadataBean> custom_decomp_config =  Optionals.ofNullable(graph_schema.custom_decomposition_configs()).stream().findFirst();
@@ -197,6 +245,9 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 	@Override
 	public void onObjectBatch(Stream<Tuple2<Long, IBatchRecord>> batch, Optional<Integer> batch_size, Optional<JsonNode> grouping_key)
 	{		
+		final long start_time_ns = System.nanoTime();
+		final boolean bulk_load = _bulk_titan.isSet();
+		
 		// Get user assets:
 		
 		final List<ObjectNode> vertices_and_edges = 
@@ -214,12 +265,17 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 			
 			TitanGraphBuildingUtils.buildGraph_handleMerge(mutable_tx, _config.get(), _security_context.get(), _logger.optional(), mutable_stats,
 					_mutable_new_vertex_keys,
+					bulk_load ? Optional.<Collection<Object>>of(_mutable_new_vertex_ids) : Optional.empty(),
+					_vertex_key_cache.optional(),
 					_custom_graph_merge_handler.optional().map(handler -> Tuples._2T(handler, _custom_graph_merge_context.get()))
 					, 
 					_bucket.get(),
-					TitanGraphBuildingUtils.buildGraph_collectUserGeneratedAssets(mutable_tx, _config.get(), 
+					bulk_load
+					? TitanGraphBuildingUtils.buildGraph_collectUserGeneratedAssets_bulk(_config.get(), mutable_stats, copy_vertices_and_edges) // (no lookup, dedup deferred)
+					: TitanGraphBuildingUtils.buildGraph_collectUserGeneratedAssets(mutable_tx, _config.get(), 
 							_security_context.get(), _logger.optional(), 
 							_bucket.get(), mutable_stats,
+							_vertex_key_cache.optional(),
 							copy_vertices_and_edges
 					));					
 
@@ -229,27 +285,63 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 			}			
 		},
 		() -> {
+			final long batch_time_ns = System.nanoTime() - start_time_ns;
+			_mutable_load_time_ns += batch_time_ns;
 			_logger.optional().ifPresent(logger -> {
 				logger.log(Level.DEBUG,
 						ErrorUtils.lazyBuildMessage(true, 
 								() -> "GraphBuilderEnrichmentService",
 								() -> "system.onObjectBatch",
 								() -> null, 
-								() -> ErrorUtils.get("Graph stats: V_emitted={0} V_matched={1} V_created={2} V_updated={3} V_errors={4} E_emitted={5} E_matched={6} E_created={7} E_updated={8} E_errors={9} (uuid={10})",
+								() -> ErrorUtils.get("Graph stats: V_emitted={0} V_matched={1} V_created={2} V_updated={3} V_errors={4} E_emitted={5} E_matched={6} E_created={7} E_updated={8} E_errors={9} V/s={11} E/s={12} (uuid={10} bulk={13})",
 										mutable_stats.vertices_emitted, mutable_stats.vertex_matches_found, mutable_stats.vertices_created, mutable_stats.vertices_updated, mutable_stats.vertex_errors,
 										mutable_stats.edges_emitted, mutable_stats.edge_matches_found, mutable_stats.edges_created, mutable_stats.edges_updated, mutable_stats.edge_errors,
-										UUID
+										UUID,
+										getRate(mutable_stats.vertices_created + mutable_stats.vertices_updated, batch_time_ns),
+										getRate(mutable_stats.edges_created + mutable_stats.edges_updated, batch_time_ns),
+										bulk_load
 										), 
 								() -> BeanTemplateUtils.toMap(mutable_stats)));
 			});		
 			_mutable_stats.get().combine(mutable_stats);		
-		});		
+		},
+		bulk_load
+			? () -> _bulk_titan.get().buildTransaction().enableBatchLoading().start()
+			: () -> _titan.get().newTransaction()
+		);		
 	}
 
+	/** Utility to convert a count and elapsed time into a per second rate for logging
+	 * @param count
+	 * @param elapsed_ns
+	 * @return
+	 */
+	protected static long getRate(final long count, final long elapsed_ns) {
+		return (elapsed_ns > 0) ? (1000000000L*count)/elapsed_ns : 0L;
+	}
+	
+	/** Runs a transaction against the graph, retrying on recoverable errors
+	 * @param transaction - the code to run against the transaction
+	 * @param on_success - called after a successful commit
+	 */
 	protected void tryRecoverableTransaction(
 			final Consumer<TitanTransaction> transaction,
 			final Runnable on_success
 			)
+	{
+		tryRecoverableTransaction(transaction, on_success, () -> _titan.get().newTransaction());
+	}
+	
+	/** Runs a transaction against the graph, retrying on recoverable errors
+	 * @param transaction - the code to run against the transaction
+	 * @param on_success - called after a successful commit
+	 * @param transaction_builder - creates the transaction (once per attempt)
+	 */
+	protected void tryRecoverableTransaction(
+			final Consumer<TitanTransaction> transaction,
+			final Runnable on_success,
+			final Supplier<TitanTransaction> transaction_builder
+			)
 	{
 		final Random random_generator = new Random(java.util.UUID.randomUUID().getMostSignificantBits());
 		IntStream.range(0, 1 + _MAX_ATTEMPT_NUM).boxed().filter(i -> { //(at most 5 attempts)
@@ -260,7 +352,7 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 				//TRACE
 				System.err.println(new java.util.Date().toString() + ": GRABBING TRANS " + i);
 				
-				final TitanTransaction mutable_tx = _titan.get().newTransaction();
+				final TitanTransaction mutable_tx = transaction_builder.get();
 				
 				/**/
 				//TRACE
@@ -384,9 +476,18 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 	@Override
 	public void onStageComplete(boolean is_original) {
 		
+		final boolean bulk_load = _bulk_titan.isSet();
+		final long start_time_ns = System.nanoTime();
+		
+		// (all the bulk loaded elements have been committed, and the merge uses the normal graph)
+		_bulk_titan.optional().filter(bulk_titan -> bulk_titan != _titan.get()).ifPresent(bulk_titan -> {
+			try { bulk_titan.close(); } catch (Exception e) {}
+		});
+		
 		// First off sleep somewhere between 1 and 4s to ensure the blocks get out of sync
+		// (not needed in bulk load mode, since each key is first merged by only one task)
 		final int sleep_time = Lambdas.get(() -> {
-			if (is_original) {
+			if (is_original && !bulk_load) {
 				final Random random_generator = new Random(java.util.UUID.randomUUID().getMostSignificantBits());
 				int local_sleep_time = 1000 + random_generator.nextInt(3000);
 				try { Thread.sleep(local_sleep_time); } catch (Exception e) {}
@@ -395,65 +496,64 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 			else return 0;
 		});
 		
-		final int batch_size = 250;
+		final int merge_threads = _merge_threads.optional().orElse(_DEFAULT_MERGE_THREADS);
+		final int batch_size = _merge_batch_size.optional().orElse(_DEFAULT_MERGE_BATCH_SIZE);
 		
 		// OK now going to start merging new records one final time:
+		// (the keys are sharded by hash across the worker threads, so each key is only ever merged by one thread - ie the threads only conflict via shared edges)
 		
 		final MutableStatsBean global_combine_stats = new MutableStatsBean();
-		final MutableStatsBean combine_stats = new MutableStatsBean();
+		final AtomicLong keys_merged = new AtomicLong(0L);
+		final AtomicLong keys_swept = new AtomicLong(0L);
+		final AtomicLong conflicts = new AtomicLong(0L);
+		final List<List<ObjectNode>> shards = shardVertexKeys(_mutable_new_vertex_keys, merge_threads);
 		
-		Iterators.partition(_mutable_new_vertex_keys.iterator(), batch_size)
-			.forEachRemaining(batch -> {						
-				tryRecoverableTransaction(tx -> {
-					
-					final MutableStatsBean per_batch_stats = new MutableStatsBean();
-													
-					// (want nodes with multiple keys including my own, in case something else has latched onto one of my keys in the meantime...)
-					final Map<JsonNode, List<Vertex>> grouped_vertices = 
-							TitanGraphBuildingUtils.getGroupedVertices(batch, tx, 
-									_config.get().deduplication_fields(), 
-									vertex -> Optionals.streamOf(vertex.properties(GraphAnnotationBean.a2_p), false)
-															.anyMatch(p -> _bucket.get().full_name().equals(p.value()))
-									);
-
-					//TRACE
-//					_logger.optional().ifPresent(logger -> {
-//						logger.log(Level.DEBUG,
-//								ErrorUtils.lazyBuildMessage(true, 
-//										() -> "GraphBuilderEnrichmentService",
-//										() -> "system.onStageComplete",
-//										() -> null, 
-//										() -> ErrorUtils.get("TRACE: {0} vs {1} (uuid={2} sleep_ms={3})",
-//												batch.toString(),
-//												grouped_vertices.toString(),
-//												UUID, sleep_time
-//												), 
-//										() -> BeanTemplateUtils.toMap(combine_stats)));
-//					});
-					
-					TitanGraphBuildingUtils.mergeDuplicates(tx, _bucket.get().full_name(), grouped_vertices, per_batch_stats);
-
-					global_combine_stats.combine(per_batch_stats);
-					combine_stats.reset();
-					combine_stats.combine(per_batch_stats);
-				},
-				() -> {
+		if (!shards.isEmpty()) {
+			final ExecutorService merge_executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("titan-merge-%d").build());
+			try {
+				final List<CompletableFuture<Void>> shard_futures = shards.stream()
+						.map(shard -> CompletableFuture.runAsync(() -> {
+							if (bulk_load) { // (merge the keys this task owns, then sweep up any duplicates committed by other tasks after their owner merged them)
+								mergeShard(shard, batch_size, grouped -> TitanGraphBuildingUtils.filterOwnedVertexGroups(grouped, _mutable_new_vertex_ids), global_combine_stats, keys_merged, conflicts);
+								mergeShard(shard, batch_size, grouped -> TitanGraphBuildingUtils.filterUnmergedVertexGroups(grouped, _mutable_new_vertex_ids), global_combine_stats, keys_swept, conflicts);
+							}
+							else {
+								mergeShard(shard, batch_size, grouped -> grouped, global_combine_stats, keys_merged, conflicts);
+							}
+						}, merge_executor))
+						.collect(Collectors.toList());
+				final CompletableFuture<Void> all_shards = CompletableFuture.allOf(shard_futures.stream().toArray(CompletableFuture[]::new));
+				
+				// Publish the combined stats while waiting for the shards to complete
+				while (!waitFor(all_shards, shard_futures, _MERGE_METRICS_INTERVAL_MS)) {
+					final MutableStatsBean live_stats = new MutableStatsBean();
+					synchronized (global_combine_stats) {
+						live_stats.combine(global_combine_stats);
+					}
 					_logger.optional().ifPresent(logger -> {
-						logger.log(Level.DEBUG,
+						logger.log(Level.INFO,
 								ErrorUtils.lazyBuildMessage(true, 
 										() -> "GraphBuilderEnrichmentService",
 										() -> "system.onStageComplete",
 										() -> null, 
-										() -> ErrorUtils.get("Batch merge stats: V_matched={0} V_updated={1} E_matched={2} E_updated={3} (uuid={4})",
-												combine_stats.vertex_matches_found, combine_stats.vertices_updated, 
-												combine_stats.edge_matches_found, combine_stats.edges_updated, 
-												UUID
+										() -> ErrorUtils.get("Live merge stats: V_matched={0} V_updated={1} E_matched={2} E_updated={3} keys_merged={4}/{5} conflicts={6} merge_ms={7} (uuid={8} threads={9})",
+												live_stats.vertex_matches_found, live_stats.vertices_updated, 
+												live_stats.edge_matches_found, live_stats.edges_updated, 
+												keys_merged.get(), _mutable_new_vertex_keys.size(), conflicts.get(), (System.nanoTime() - start_time_ns)/1000000L,
+												UUID, shards.size()
 												), 
-										() -> BeanTemplateUtils.toMap(combine_stats)));
+										() -> BeanTemplateUtils.toMap(live_stats)));
 					});
 				}
-				);
-			});		
+				all_shards.join();
+			}
+			catch (CompletionException e) { // (rethrow the shard's error, as if it had been merged on this thread)
+				throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+			}
+			finally {
+				merge_executor.shutdownNow();
+			}
+		}
 
 		_logger.optional().ifPresent(logger -> {
 			logger.log(Level.INFO,
@@ -461,10 +561,10 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 							() -> "GraphBuilderEnrichmentService",
 							() -> "system.onStageComplete",
 							() -> null, 
-							() -> ErrorUtils.get("Final merge stats: V_matched={0} V_updated={1} E_matched={2} E_updated={3} (uuid={4} sleep_ms={5})",
+							() -> ErrorUtils.get("Final merge stats: V_matched={0} V_updated={1} E_matched={2} E_updated={3} merge_ms={6} conflicts={9} keys_swept={10} (uuid={4} sleep_ms={5} bulk={7} threads={8})",
 									global_combine_stats.vertex_matches_found, global_combine_stats.vertices_updated, 
 									global_combine_stats.edge_matches_found, global_combine_stats.edges_updated, 
-									UUID, sleep_time
+									UUID, sleep_time, (System.nanoTime() - start_time_ns)/1000000L, bulk_load, shards.size(), conflicts.get(), keys_swept.get()
 									), 
 							() -> BeanTemplateUtils.toMap(global_combine_stats)));
 		});		
@@ -475,16 +575,150 @@ public class TitanGraphBuilderEnrichmentService implements IEnrichmentBatchModul
 							() -> "GraphBuilderEnrichmentService",
 							() -> "system.onStageComplete",
 							() -> null, 
-							() -> ErrorUtils.get("Graph stats: V_emitted={0} V_matched={1} V_created={2} V_updated={3} V_errors={4} E_emitted={5} E_matched={6} E_created={7} E_updated={8} E_errors={9} (uuid={10})",
+							() -> ErrorUtils.get("Graph stats: V_emitted={0} V_matched={1} V_created={2} V_updated={3} V_errors={4} E_emitted={5} E_matched={6} E_created={7} E_updated={8} E_errors={9} V/s={11} E/s={12} (uuid={10})",
 									_mutable_stats.get().vertices_emitted, _mutable_stats.get().vertex_matches_found, _mutable_stats.get().vertices_created, _mutable_stats.get().vertices_updated, _mutable_stats.get().vertex_errors,
 									_mutable_stats.get().edges_emitted, _mutable_stats.get().vertex_matches_found, _mutable_stats.get().edges_created, _mutable_stats.get().edges_updated, _mutable_stats.get().edge_errors,
-									UUID
+									UUID,
+									getRate(_mutable_stats.get().vertices_created + _mutable_stats.get().vertices_updated, _mutable_load_time_ns),
+									getRate(_mutable_stats.get().edges_created + _mutable_stats.get().edges_updated, _mutable_load_time_ns)
 									), 
 							() -> BeanTemplateUtils.toMap(_mutable_stats.get())));
 		});
 		
+		_vertex_key_cache.optional().ifPresent(cache -> {
+			_logger.optional().ifPresent(logger -> {
+				logger.log(Level.INFO,
+						ErrorUtils.lazyBuildMessage(true, 
+								() -> "GraphBuilderEnrichmentService",
+								() -> "system.onStageComplete",
+								() -> null, 
+								() -> ErrorUtils.get("Vertex key cache stats: hits={0} misses={1} stale={2} hit_rate={3} evictions={4} size={5} (uuid={6})",
+										cache.stats().hitCount(), cache.stats().missCount(), cache.getStaleCount(), 
+										String.format("%.3f", cache.getEffectiveHitRate()), cache.stats().evictionCount(), cache.size(),
+										UUID
+										), 
+								() -> null));
+			});
+		});
+		
 		_custom_graph_decomp_handler.optional().ifPresent(handler -> handler.onStageComplete(is_original));
 		_custom_graph_merge_handler.optional().ifPresent(handler -> handler.onStageComplete(is_original));
 	}
+	
+	/** Merges one shard of the new vertex keys, in batches whose size adapts to the conflict rate (shrinks when a transaction has to be retried, grows otherwise)
+	 * @param shard - the keys to merge (no other thread merges these keys)
+	 * @param initial_batch_size - the number of keys to start merging per transaction
+	 * @param group_filter - selects which of the (grouped) keys to merge, eg in bulk load mode only the keys this task owns
+	 * @param global_combine_stats - (shared, synchronized on) the merge stats across all the shards
+	 * @param keys_merged - (shared) the number of keys merged so far
+	 * @param conflicts - (shared) the number of transactions that had to be retried
+	 */
+	protected void mergeShard(final List<ObjectNode> shard, final int initial_batch_size, final UnaryOperator<Map<JsonNode, List<Vertex>>> group_filter, 
+			final MutableStatsBean global_combine_stats, final AtomicLong keys_merged, final AtomicLong conflicts)
+	{
+		final int max_batch_size = Math.max(_MAX_MERGE_BATCH_SIZE, initial_batch_size);
+		final Iterator<ObjectNode> it = shard.iterator();
+		int mutable_batch_size = initial_batch_size;
+		
+		while (it.hasNext()) {
+			final List<ObjectNode> batch = Lists.newArrayList(Iterators.limit(it, mutable_batch_size));
+			final MutableStatsBean combine_stats = new MutableStatsBean();
+			final AtomicInteger attempts = new AtomicInteger(0);
+			
+			tryRecoverableTransaction(tx -> {
+				attempts.incrementAndGet();
+				
+				final MutableStatsBean per_batch_stats = new MutableStatsBean();
+												
+				// (want nodes with multiple keys including my own, in case something else has latched onto one of my keys in the meantime...)
+				final Map<JsonNode, List<Vertex>> all_grouped_vertices = 
+						TitanGraphBuildingUtils.getGroupedVertices(batch, tx, 
+								_config.get().deduplication_fields(), 
+								vertex -> Optionals.streamOf(vertex.properties(GraphAnnotationBean.a2_p), false)
+														.anyMatch(p -> _bucket.get().full_name().equals(p.value()))
+								);
+				
+				final Map<JsonNode, List<Vertex>> grouped_vertices = group_filter.apply(all_grouped_vertices);
+				
+				TitanGraphBuildingUtils.mergeDuplicates(tx, _bucket.get().full_name(), grouped_vertices, per_batch_stats, _vertex_key_cache.optional());
+
+				combine_stats.reset(); // (only the successful attempt counts)
+				combine_stats.combine(per_batch_stats);
+			},
+			() -> {
+				synchronized (global_combine_stats) {
+					global_combine_stats.combine(combine_stats);
+				}
+				keys_merged.addAndGet(batch.size());
+				
+				_logger.optional().ifPresent(logger -> {
+					logger.log(Level.DEBUG,
+							ErrorUtils.lazyBuildMessage(true, 
+									() -> "GraphBuilderEnrichmentService",
+									() -> "system.onStageComplete",
+									() -> null, 
+									() -> ErrorUtils.get("Batch merge stats: V_matched={0} V_updated={1} E_matched={2} E_updated={3} batch_size={5} attempts={6} (uuid={4})",
+											combine_stats.vertex_matches_found, combine_stats.vertices_updated, 
+											combine_stats.edge_matches_found, combine_stats.edges_updated, 
+											UUID, batch.size(), attempts.get()
+											), 
+									() -> BeanTemplateUtils.toMap(combine_stats)));
+				});
+			}
+			);
+			
+			conflicts.addAndGet(attempts.get() - 1);
+			mutable_batch_size = getNextMergeBatchSize(mutable_batch_size, attempts.get() > 1, max_batch_size);
+		}
+	}
+	
+	/** Splits the new vertex keys into (non empty) shards by hash, so that each key is only ever merged by one thread
+	 *  (this also means the vertex key cache is only ever read/written for a given key by one thread)
+	 * @param keys
+	 * @param num_shards
+	 * @return
+	 */
+	protected static List<List<ObjectNode>> shardVertexKeys(final Collection<ObjectNode> keys, final int num_shards) {
+		final List<List<ObjectNode>> shards = IntStream.range(0, num_shards).<List<ObjectNode>>mapToObj(__ -> new LinkedList<>()).collect(Collectors.toList());
+		keys.forEach(key -> shards.get(Math.floorMod(key.hashCode(), num_shards)).add(key));
+		return shards.stream().filter(shard -> !shard.isEmpty()).collect(Collectors.toList());
+	}
+	
+	/** Returns the next merge batch size - halves if the last transaction had to be retried because of conflicts, else grows by a quarter
+	 * @param batch_size - the last batch size
+	 * @param conflicted - whether the last transaction had to be retried
+	 * @param max_batch_size
+	 * @return
+	 */
+	protected static int getNextMergeBatchSize(final int batch_size, final boolean conflicted, final int max_batch_size) {
+		return conflicted
+				? Math.max(_MIN_MERGE_BATCH_SIZE, batch_size/2)
+				: Math.min(max_batch_size, batch_size + Math.max(1, batch_size/4));
+	}
+	
+	/** Waits up to the specified time for a future to complete
+	 *  If the waiting thread is interrupted, then the interrupt flag is restored, the shards are cancelled, and an exception is thrown
+	 * @param future
+	 * @param shards - the futures that make up future, cancelled on interrupt (their threads are interrupted by the caller shutting down their executor)
+	 * @param timeout_ms
+	 * @return true if the future completed (successfully or not), false if it timed out
+	 */
+	protected static boolean waitFor(final CompletableFuture<?> future, final List<? extends CompletableFuture<?>> shards, final long timeout_ms) {
+		try {
+			future.get(timeout_ms, TimeUnit.MILLISECONDS);
+			return true;
+		}
+		catch (TimeoutException e) {
+			return false;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			shards.forEach(shard -> shard.cancel(true));
+			throw new RuntimeException(ErrorUtils.get(ErrorUtils.MERGE_INTERRUPTED, shards.size()), e);
+		}
+		catch (ExecutionException | CancellationException e) { // (the error is rethrown by the caller)
+			return true;
+		}
+	}
 
 }
@@ -0,0 +1,747 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.graph.titan.services;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Order;
+import org.apache.tinkerpop.gremlin.structure.Direction;
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.io.IoCore;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Iterators;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.GraphAnnotationBean;
+import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
+import com.ikanow.aleph2.data_model.objects.shared.ProjectBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.Operator;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
+import com.ikanow.aleph2.data_model.utils.FutureUtils;
+import com.ikanow.aleph2.data_model.utils.JsonUtils;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.Patterns;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.graph.titan.utils.ErrorUtils;
+import com.thinkaurelius.titan.core.TitanGraph;
+import com.thinkaurelius.titan.core.TitanGraphQuery;
+import com.thinkaurelius.titan.core.TitanTransaction;
+import com.thinkaurelius.titan.core.attribute.Cmp;
+import com.thinkaurelius.titan.core.attribute.Contain;
+
+/** Read only CRUD service over the vertices (or edges, with the "edges" option) of a set of buckets, returned as GraphSON
+ *  - every query is scoped to the buckets' a2_p (so is always answered by the a2_p mixed index), and the terms that must all match are pushed down
+ *    to Titan as well so it can use any other mixed/composite indexes - the full query is then applied to the results to remove false positives
+ *  - queries on _id (or for edges on inV/outV) start from those vertices/edges instead, so a vertex's neighbourhood can be read without an index query
+ *  - results are streamed from a read only transaction a page at a time (Titan has no offsets, but it fetches index results lazily)
+ *  Query fields are property names, except _id, label, and (for edges) inV and outV - field lists apply to the GraphSON properties
+ *  Sorting is pushed down to Titan, so is only supported on properties (sorting on the special fields is an error), and only applies to index
+ *  queries (_id/inV/outV lookups are returned in lookup order) - properties that aren't in the schema are ignored, since no element can have them
+ *  The graph is only written by the graph builder, so all the write methods return errors
+ * @author Alex
+ */
+public class TitanGraphCrudService<O> implements ICrudService<O> {
+	public static final String VERTICES_OPTION = "vertices";
+	public static final String EDGES_OPTION = "edges";
+	public static final int DEFAULT_PAGE_SIZE = 500;
+
+	protected static final EnumSet<Operator> _RANGE_OP = EnumSet.of(Operator.range_open_open, Operator.range_open_closed, Operator.range_closed_closed, Operator.range_closed_open);
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
+	protected final Class<O> _clazz;
+	protected final TitanGraph _titan;
+	protected final List<String> _bucket_paths;
+	protected final boolean _edges;
+	protected final int _page_size;
+
+	/** User c'tor
+	 * @param clazz - the class to return (JsonNode or a bean matching the GraphSON)
+	 * @param titan - the graph
+	 * @param buckets - the buckets whose elements are visible
+	 * @param options - "vertices" (default) or "edges"
+	 */
+	public TitanGraphCrudService(final Class<O> clazz, final TitanGraph titan, final Collection<DataBucketBean> buckets, final Optional<String> options) {
+		this(clazz, titan, buckets.stream().map(b -> b.full_name()).collect(Collectors.toList()), options.map(o -> EDGES_OPTION.equals(o.trim())).orElse(false), DEFAULT_PAGE_SIZE);
+	}
+
+	/** Full c'tor
+	 * @param clazz - the class to return (JsonNode or a bean matching the GraphSON)
+	 * @param titan - the graph
+	 * @param bucket_paths - the full names of the buckets whose elements are visible
+	 * @param edges - true to return edges, false for vertices
+	 * @param page_size - the number of elements read from Titan and converted at a time
+	 */
+	public TitanGraphCrudService(final Class<O> clazz, final TitanGraph titan, final List<String> bucket_paths, final boolean edges, final int page_size) {
+		_clazz = clazz;
+		_titan = titan;
+		_bucket_paths = bucket_paths;
+		_edges = edges;
+		_page_size = page_size;
+	}
+
+	/** A cursor over the lazily paged results of a query, which owns the read only transaction they are read from
+	 *  (the transaction is closed when the results are exhausted, or on close)
+	 * @author Alex
+	 */
+	public static class TitanGraphCursor<O> extends Cursor<O> {
+		protected final TitanTransaction _tx;
+		protected final Iterator<O> _iterator;
+		protected final Supplier<Long> _count;
+
+		/** User c'tor
+		 * @param tx - the transaction the results are read from
+		 * @param iterator - the results
+		 * @param count - counts the results, ignoring any limit (in a separate transaction)
+		 */
+		protected TitanGraphCursor(final TitanTransaction tx, final Iterator<O> iterator, final Supplier<Long> count) {
+			_tx = tx;
+			_iterator = iterator;
+			_count = count;
+		}
+
+		@Override
+		public void close() throws Exception {
+			if (_tx.isOpen()) _tx.rollback();
+		}
+
+		@Override
+		public Iterator<O> iterator() {
+			return new Iterator<O>() {
+				@Override
+				public boolean hasNext() {
+					final boolean has_next = _tx.isOpen() && _iterator.hasNext();
+					if (!has_next && _tx.isOpen()) _tx.rollback();
+					return has_next;
+				}
+				@Override
+				public O next() {
+					if (!hasNext()) throw new NoSuchElementException();
+					return _iterator.next();
+				}
+			};
+		}
+
+		/** Note this ignores the limit, and runs the query again so is as expensive as iterating over all the results
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor#count()
+		 */
+		@Override
+		public long count() {
+			return _count.get();
+		}
+	}
+
+	/////////////////////////////////////////////////////
+
+	// *R*EAD
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Optional<O>> getObjectBySpec(final QueryComponent<O> unique_spec) {
+		return getObjectBySpec(unique_spec, Collections.<String>emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Optional<O>> getObjectBySpec(final QueryComponent<O> unique_spec, final List<String> field_list, final boolean include) {
+		final TitanTransaction tx = _titan.buildTransaction().readOnly().start();
+		try {
+			final Iterator<O> it = getPagedObjects(tx, Iterators.limit(getElements(tx, unique_spec), 1), field_list, include); // (so only the first element is fetched, not a page)
+			return CompletableFuture.completedFuture(it.hasNext() ? Optional.of(it.next()) : Optional.empty());
+		}
+		catch (Exception e) {
+			return FutureUtils.<Optional<O>>returnError(e);
+		}
+		finally {
+			tx.rollback();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectById(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Optional<O>> getObjectById(final Object id) {
+		return getObjectById(id, Collections.<String>emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectById(java.lang.Object, java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Optional<O>> getObjectById(final Object id, final List<String> field_list, final boolean include) {
+		return getObjectBySpec(emptyQuery(_clazz).when(JsonUtils._ID, id), field_list, include);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Cursor<O>> getObjectsBySpec(final QueryComponent<O> spec) {
+		return getObjectsBySpec(spec, Collections.<String>emptyList(), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Cursor<O>> getObjectsBySpec(final QueryComponent<O> spec, final List<String> field_list, final boolean include) {
+		final TitanTransaction tx = _titan.buildTransaction().readOnly().start();
+		try {
+			return CompletableFuture.completedFuture(new TitanGraphCursor<O>(tx, getPagedObjects(tx, getElements(tx, spec), field_list, include), () -> {
+				final TitanTransaction count_tx = _titan.buildTransaction().readOnly().start();
+				try {
+					return (long) Iterators.size(getElements(count_tx, spec, false));
+				}
+				finally {
+					count_tx.rollback();
+				}
+			}));
+		}
+		catch (Exception e) {
+			tx.rollback();
+			return FutureUtils.<Cursor<O>>returnError(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#countObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Long> countObjectsBySpec(final QueryComponent<O> spec) {
+		final TitanTransaction tx = _titan.buildTransaction().readOnly().start();
+		try {
+			return CompletableFuture.completedFuture((long) Iterators.size(getElements(tx, spec)));
+		}
+		catch (Exception e) {
+			return FutureUtils.<Long>returnError(e);
+		}
+		finally {
+			tx.rollback();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#countObjects()
+	 */
+	@Override
+	public CompletableFuture<Long> countObjects() {
+		return countObjectsBySpec(emptyQuery(_clazz));
+	}
+
+	//////////////////////////////////////////////////////
+
+	// *C*REATE, *U*PDATE, *D*ELETE - not supported, the graph is only written by the graph builder
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#storeObject(java.lang.Object, boolean)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final O new_object, final boolean replace_if_present) {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "storeObject")));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#storeObject(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Supplier<Object>> storeObject(final O new_object) {
+		return storeObject(new_object, false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#storeObjects(java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects, final boolean replace_if_present) {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "storeObjects")));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#storeObjects(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(final List<O> new_objects) {
+		return storeObjects(new_objects, false);
+	}
+
+	/** (Graph indexes are created from the bucket's schema, see TitanGraphService.createIndices)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#optimizeQuery(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Boolean> optimizeQuery(final List<String> ordered_field_list) {
+		return CompletableFuture.completedFuture(false);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deregisterOptimizedQuery(java.util.List)
+	 */
+	@Override
+	public boolean deregisterOptimizedQuery(final List<String> ordered_field_list) {
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectById(java.lang.Object, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public CompletableFuture<Boolean> updateObjectById(final Object id, final UpdateComponent<O> update) {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "updateObjectById")));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public CompletableFuture<Boolean> updateObjectBySpec(final QueryComponent<O> unique_spec, final Optional<Boolean> upsert, final UpdateComponent<O> update) {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "updateObjectBySpec")));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
+	 */
+	@Override
+	public CompletableFuture<Long> updateObjectsBySpec(final QueryComponent<O> spec, final Optional<Boolean> upsert, final UpdateComponent<O> update) {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "updateObjectsBySpec")));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateAndReturnObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent, java.util.Optional, java.util.List, boolean)
+	 */
+	@Override
+	public CompletableFuture<Optional<O>> updateAndReturnObjectBySpec(final QueryComponent<O> unique_spec, final Optional<Boolean> upsert, final UpdateComponent<O> update,
+			final Optional<Boolean> before_updated, final List<String> field_list, final boolean include)
+	{
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "updateAndReturnObjectBySpec")));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectById(java.lang.Object)
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteObjectById(final Object id) {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "deleteObjectById")));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteObjectBySpec(final QueryComponent<O> unique_spec) {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "deleteObjectBySpec")));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
+	 */
+	@Override
+	public CompletableFuture<Long> deleteObjectsBySpec(final QueryComponent<O> spec) {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "deleteObjectsBySpec")));
+	}
+
+	/** (Use IGraphService.handleBucketDeletionRequest to delete a bucket's elements)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteDatastore()
+	 */
+	@Override
+	public CompletableFuture<Boolean> deleteDatastore() {
+		return FutureUtils.returnError(new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_READ_ONLY, "deleteDatastore")));
+	}
+
+	//////////////////////////////////////////////////////
+
+	// Misc
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getFilteredRepo(java.lang.String, java.util.Optional, java.util.Optional)
+	 */
+	@Override
+	public ICrudService<O> getFilteredRepo(final String authorization_fieldname, final Optional<AuthorizationBean> client_auth, final Optional<ProjectBean> project_auth) {
+		throw new RuntimeException(ErrorUtils.get(ErrorUtils.NOT_YET_IMPLEMENTED, "getFilteredRepo"));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getRawService()
+	 */
+	@Override
+	public ICrudService<JsonNode> getRawService() {
+		return new TitanGraphCrudService<JsonNode>(JsonNode.class, _titan, _bucket_paths, _edges, _page_size);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getSearchService()
+	 */
+	@Override
+	public Optional<IBasicSearchService<O>> getSearchService() {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+		if (TitanGraph.class == driver_class) return (Optional<T>) Optional.of(_titan);
+		else if (ICrudService.class == driver_class) return (Optional<T>) Optional.of(this); //(useful for testing)
+		else return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#getMetaModel()
+	 */
+	@Override
+	public Optional<IMetaModel> getMetaModel() {
+		return Optional.empty();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService#getCrudService()
+	 */
+	@Override
+	public Optional<ICrudService<O>> getCrudService() {
+		return Optional.of(this);
+	}
+
+	//////////////////////////////////////////////////////
+
+	// Query utils
+
+	/** Returns a lazy iterator over the vertices or edges matching the query, in the buckets
+	 * @param tx - a (read only) transaction
+	 * @param spec - the query
+	 * @return
+	 */
+	protected Iterator<Element> getElements(final TitanTransaction tx, final QueryComponent<O> spec) {
+		return getElements(tx, spec, true);
+	}
+
+	/** Returns a lazy iterator over the vertices or edges matching the query, in the buckets
+	 * @param tx - a (read only) transaction
+	 * @param spec - the query
+	 * @param apply_limit - whether to apply the query's limit (if any)
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected Iterator<Element> getElements(final TitanTransaction tx, final QueryComponent<O> spec, final boolean apply_limit) {
+		final List<String> unsupported_sort = Optionals.ofNullable(spec.getOrderBy()).stream().map(t2 -> t2._1()).filter(field -> !isProperty(field)).collect(Collectors.toList());
+		if (!unsupported_sort.isEmpty()) {
+			throw new RuntimeException(ErrorUtils.get(ErrorUtils.GRAPH_CRUD_SERVICE_SORT_NOT_SUPPORTED, unsupported_sort));
+		}
+		final List<Tuple2<String, Tuple2<Operator, Tuple2<Object, Object>>>> must_match = getConjunctiveTerms(spec);
+
+		final Optional<Collection<Object>> ids = must_match.stream().filter(t2 -> t2._1().equals(JsonUtils._ID)).map(t2 -> getEqualsOrAnyOf(t2._2())).filter(o -> o.isPresent()).map(o -> o.get()).findFirst();
+		final Optional<Tuple2<Direction, Collection<Object>>> vertex_ids = !_edges
+				? Optional.empty()
+				: must_match.stream()
+						.filter(t2 -> t2._1().equals(GraphAnnotationBean.inV) || t2._1().equals(GraphAnnotationBean.outV))
+						.map(t2 -> getEqualsOrAnyOf(t2._2()).map(vids -> Tuples._2T(t2._1().equals(GraphAnnotationBean.inV) ? Direction.IN : Direction.OUT, vids)))
+						.filter(o -> o.isPresent()).map(o -> o.get()).findFirst();
+
+		final Iterator<? extends Element> candidates =
+				ids.isPresent()
+				? (_edges ? tx.edges(ids.get().toArray()) : tx.vertices(ids.get().toArray()))
+				: vertex_ids.isPresent()
+				? Iterators.concat(Iterators.transform(tx.vertices(vertex_ids.get()._2().toArray()), v -> v.edges(vertex_ids.get()._1()))) // (the vertices' neighbourhoods)
+				: getIndexQueryResults(tx, spec, must_match);
+
+		final Iterator<Element> matching = Iterators.filter((Iterator<Element>) candidates, el -> isInBuckets(el) && matches(spec, el)); // (remove false positives)
+
+		return Optional.ofNullable(spec.getLimit()).filter(__ -> apply_limit).map(l -> Iterators.limit(matching, l.intValue())).orElse(matching);
+	}
+
+	/** Builds a graph query for the buckets with as much of the query as can be pushed down, and returns its (lazy) results
+	 * @param tx
+	 * @param spec
+	 * @param must_match - the terms from the query that all have to match
+	 * @return
+	 */
+	protected Iterator<? extends Element> getIndexQueryResults(final TitanTransaction tx, final QueryComponent<O> spec, final List<Tuple2<String, Tuple2<Operator, Tuple2<Object, Object>>>> must_match) {
+		final TitanGraphQuery<?> bucket_query = (1 == _bucket_paths.size())
+				? tx.query().has(GraphAnnotationBean.a2_p, _bucket_paths.get(0))
+				: tx.query().has(GraphAnnotationBean.a2_p, Contain.IN, _bucket_paths);
+
+		final TitanGraphQuery<?> filtered_query = must_match.stream()
+				.filter(t2 -> isProperty(t2._1()))
+				.reduce(bucket_query
+						,
+						(query, t2) -> pushDown(query, t2._1(), t2._2())
+						,
+						(query1, query2) -> query1 // (can't occur since reduce not parallel)
+						);
+
+		final TitanGraphQuery<?> sorted_query = Optionals.ofNullable(spec.getOrderBy()).stream()
+				.filter(t2 -> isProperty(t2._1()) && tx.containsPropertyKey(t2._1())) // (titan errors on unknown keys)
+				.reduce(filtered_query
+						,
+						(query, t2) -> query.orderBy(t2._1(), (t2._2() > 0) ? Order.incr : Order.decr)
+						,
+						(query1, query2) -> query1 // (can't occur since reduce not parallel)
+						);
+
+		return _edges ? sorted_query.edges().iterator() : sorted_query.vertices().iterator();
+	}
+
+	/** Adds a single term to a graph query, if Titan supports it (anything else is just applied to the results)
+	 * @param query
+	 * @param field
+	 * @param operator_args
+	 * @return
+	 */
+	protected static TitanGraphQuery<?> pushDown(final TitanGraphQuery<?> query, final String field, final Tuple2<Operator, Tuple2<Object, Object>> operator_args) {
+		return Patterns.match(operator_args).<TitanGraphQuery<?>>andReturn()
+				.when(op_args -> (Operator.exists == op_args._1()) && objToBool(op_args._2()._1()), __ -> query.has(field))
+				.when(op_args -> (Operator.exists == op_args._1()), __ -> query.hasNot(field))
+				.when(op_args -> (Operator.equals == op_args._1()) && (null == op_args._2()._2()), op_args -> query.has(field, Cmp.EQUAL, op_args._2()._1()))
+				.when(op_args -> (Operator.any_of == op_args._1()), op_args -> query.has(field, Contain.IN, toList(op_args._2()._1())))
+				.when(op_args -> _RANGE_OP.contains(op_args._1()), op_args -> {
+					final boolean lower_closed = EnumSet.of(Operator.range_closed_closed, Operator.range_closed_open).contains(op_args._1());
+					final boolean upper_closed = EnumSet.of(Operator.range_open_closed, Operator.range_closed_closed).contains(op_args._1());
+					final TitanGraphQuery<?> with_lower = Optional.ofNullable(op_args._2()._1())
+							.<TitanGraphQuery<?>>map(lower -> query.has(field, lower_closed ? Cmp.GREATER_THAN_EQUAL : Cmp.GREATER_THAN, lower)).orElse(query);
+					return Optional.ofNullable(op_args._2()._2())
+							.<TitanGraphQuery<?>>map(upper -> with_lower.has(field, upper_closed ? Cmp.LESS_THAN_EQUAL : Cmp.LESS_THAN, upper)).orElse(with_lower);
+				})
+				.otherwise(__ -> query) // (eg not equals, all_of)
+				;
+	}
+
+	/** Returns the terms that every result has to match (ie top level terms of "all of" queries, including nested ones)
+	 * @param spec
+	 * @return a list of (field, (operator, args))
+	 */
+	protected static List<Tuple2<String, Tuple2<Operator, Tuple2<Object, Object>>>> getConjunctiveTerms(final QueryComponent<?> spec) {
+		if (spec instanceof SingleQueryComponent) {
+			final SingleQueryComponent<?> single = (SingleQueryComponent<?>) spec;
+			return ((Operator.all_of == single.getOp()) || (single.getAll().size() <= 1))
+					? single.getAll().entries().stream().map(kv -> Tuples._2T(kv.getKey(), kv.getValue())).collect(Collectors.toList())
+					: Collections.emptyList();
+		}
+		else if (spec instanceof MultiQueryComponent) {
+			final MultiQueryComponent<?> multi = (MultiQueryComponent<?>) spec;
+			return ((Operator.all_of == multi.getOp()) || (1 == multi.getElements().size()))
+					? multi.getElements().stream().flatMap(el -> getConjunctiveTerms(el).stream()).collect(Collectors.toList())
+					: Collections.emptyList();
+		}
+		else return Collections.emptyList();
+	}
+
+	/** Returns whether a vertex or edge matches the query
+	 * @param spec
+	 * @param element
+	 * @return
+	 */
+	protected static boolean matches(final QueryComponent<?> spec, final Element element) {
+		if (spec instanceof SingleQueryComponent) {
+			final SingleQueryComponent<?> single = (SingleQueryComponent<?>) spec;
+			return (Operator.any_of == single.getOp()) && !single.getAll().isEmpty()
+					? single.getAll().entries().stream().anyMatch(kv -> matches(kv.getKey(), kv.getValue(), element))
+					: single.getAll().entries().stream().allMatch(kv -> matches(kv.getKey(), kv.getValue(), element));
+		}
+		else if (spec instanceof MultiQueryComponent) {
+			final MultiQueryComponent<?> multi = (MultiQueryComponent<?>) spec;
+			return (Operator.any_of == multi.getOp()) && !multi.getElements().isEmpty()
+					? multi.getElements().stream().anyMatch(el -> matches(el, element))
+					: multi.getElements().stream().allMatch(el -> matches(el, element));
+		}
+		else return true;
+	}
+
+	/** Returns whether a vertex or edge matches a single term of the query
+	 * @param field
+	 * @param operator_args
+	 * @param element
+	 * @return
+	 */
+	protected static boolean matches(final String field, final Tuple2<Operator, Tuple2<Object, Object>> operator_args, final Element element) {
+		final List<Object> values = getValues(element, field);
+
+		return Patterns.match(operator_args).<Boolean>andReturn()
+				.when(op_args -> (Operator.exists == op_args._1()), op_args -> values.isEmpty() != objToBool(op_args._2()._1()))
+				.when(op_args -> (Operator.equals == op_args._1()) && (null != op_args._2()._2()), op_args -> values.stream().noneMatch(v -> valueEquals(v, op_args._2()._2())))
+				.when(op_args -> (Operator.equals == op_args._1()), op_args -> values.stream().anyMatch(v -> valueEquals(v, op_args._2()._1())))
+				.when(op_args -> (Operator.any_of == op_args._1()), op_args -> toList(op_args._2()._1()).stream().anyMatch(a -> values.stream().anyMatch(v -> valueEquals(v, a))))
+				.when(op_args -> (Operator.all_of == op_args._1()), op_args -> toList(op_args._2()._1()).stream().allMatch(a -> values.stream().anyMatch(v -> valueEquals(v, a))))
+				.when(op_args -> _RANGE_OP.contains(op_args._1()), op_args -> values.stream().anyMatch(v -> {
+					final boolean lower_closed = EnumSet.of(Operator.range_closed_closed, Operator.range_closed_open).contains(op_args._1());
+					final boolean upper_closed = EnumSet.of(Operator.range_open_closed, Operator.range_closed_closed).contains(op_args._1());
+					return Optional.ofNullable(op_args._2()._1()).map(lower -> compare(v, lower).map(c -> lower_closed ? (c >= 0) : (c > 0)).orElse(false)).orElse(true)
+							&&
+							Optional.ofNullable(op_args._2()._2()).map(upper -> compare(v, upper).map(c -> upper_closed ? (c <= 0) : (c < 0)).orElse(false)).orElse(true);
+				}))
+				.otherwise(__ -> true)
+				;
+	}
+
+	/** Returns the value(s) of a field of a vertex or edge (properties can have multiple values)
+	 * @param element
+	 * @param field
+	 * @return
+	 */
+	protected static List<Object> getValues(final Element element, final String field) {
+		if (JsonUtils._ID.equals(field)) return Collections.singletonList(element.id());
+		else if (GraphAnnotationBean.label.equals(field)) return Collections.singletonList(element.label());
+		else if ((element instanceof Edge) && GraphAnnotationBean.inV.equals(field)) return Collections.singletonList(((Edge) element).inVertex().id());
+		else if ((element instanceof Edge) && GraphAnnotationBean.outV.equals(field)) return Collections.singletonList(((Edge) element).outVertex().id());
+		else return Optionals.streamOf(element.properties(field), false).map(p -> (Object) p.value()).collect(Collectors.toList());
+	}
+
+	/** Whether the vertex or edge is in one of the buckets
+	 * @param element
+	 * @return
+	 */
+	protected boolean isInBuckets(final Element element) {
+		return getValues(element, GraphAnnotationBean.a2_p).stream().anyMatch(p -> _bucket_paths.contains(p));
+	}
+
+	/** Whether a query field is a property (vs one of the special fields), ie can be pushed down to Titan
+	 * @param field
+	 * @return
+	 */
+	protected boolean isProperty(final String field) {
+		return !JsonUtils._ID.equals(field) && !GraphAnnotationBean.label.equals(field)
+				&& !(_edges && (GraphAnnotationBean.inV.equals(field) || GraphAnnotationBean.outV.equals(field)));
+	}
+
+	/** Returns the value(s) for an equals or any_of term
+	 * @param operator_args
+	 * @return
+	 */
+	protected static Optional<Collection<Object>> getEqualsOrAnyOf(final Tuple2<Operator, Tuple2<Object, Object>> operator_args) {
+		return Patterns.match(operator_args).<Optional<Collection<Object>>>andReturn()
+				.when(op_args -> (Operator.equals == op_args._1()) && (null == op_args._2()._2()), op_args -> Optional.of(Collections.singletonList(op_args._2()._1())))
+				.when(op_args -> (Operator.any_of == op_args._1()), op_args -> Optional.of(toList(op_args._2()._1())))
+				.otherwise(__ -> Optional.empty());
+	}
+
+	//////////////////////////////////////////////////////
+
+	// Conversion utils
+
+	/** Converts the elements to the output type a page at a time (so only one page of elements is held in memory)
+	 * @param tx - the transaction the elements are from
+	 * @param elements
+	 * @param field_list - the properties to include or exclude (empty for all)
+	 * @param include
+	 * @return
+	 */
+	protected Iterator<O> getPagedObjects(final TitanTransaction tx, final Iterator<Element> elements, final List<String> field_list, final boolean include) {
+		final org.apache.tinkerpop.shaded.jackson.databind.ObjectMapper titan_mapper = tx.io(IoCore.graphson()).mapper().create().createMapper();
+
+		return Iterators.concat(Iterators.transform(Iterators.partition(elements, _page_size),
+				page -> page.stream().map(el -> convertToObject(titan_mapper, el, field_list, include)).collect(Collectors.toList()).iterator()));
+	}
+
+	/** Converts a vertex or edge to GraphSON, then to the output type
+	 * @param titan_mapper
+	 * @param element
+	 * @param field_list - the properties to include or exclude (empty for all)
+	 * @param include
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected O convertToObject(final org.apache.tinkerpop.shaded.jackson.databind.ObjectMapper titan_mapper, final Element element, final List<String> field_list, final boolean include) {
+		final ObjectNode graphson = _mapper.convertValue(titan_mapper.convertValue(element, Map.class), ObjectNode.class);
+
+		Optional.ofNullable(graphson.get(GraphAnnotationBean.properties)).filter(p -> p.isObject() && !field_list.isEmpty()).map(p -> (ObjectNode) p)
+			.ifPresent(p -> {
+				if (include) p.retain(field_list);
+				else p.remove(field_list);
+			});
+
+		return JsonNode.class.isAssignableFrom(_clazz) ? (O) graphson : _mapper.convertValue(graphson, _clazz);
+	}
+
+	/** Converts an any_of/all_of argument to a list
+	 * @param o
+	 * @return
+	 */
+	protected static List<Object> toList(final Object o) {
+		return (o instanceof Iterable)
+				? StreamSupport.stream(((Iterable<?>) o).spliterator(), false).collect(Collectors.toList())
+				: Collections.singletonList(o);
+	}
+
+	/** Compares query and graph values (numbers of different types are compared by value, and ids by their string form since they can be sent as either)
+	 * @param graph_value
+	 * @param query_value
+	 * @return
+	 */
+	protected static boolean valueEquals(final Object graph_value, final Object query_value) {
+		return compare(graph_value, query_value).map(c -> 0 == c)
+					.orElseGet(() -> graph_value.equals(query_value) || (!(graph_value instanceof String) && graph_value.toString().equals(query_value.toString())));
+	}
+
+	/** Compares 2 values if they are comparable
+	 * @param graph_value
+	 * @param query_value
+	 * @return empty if the values can't be compared
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected static Optional<Integer> compare(final Object graph_value, final Object query_value) {
+		if ((graph_value instanceof Number) && (query_value instanceof Number)) {
+			return Optional.of(Double.compare(((Number) graph_value).doubleValue(), ((Number) query_value).doubleValue()));
+		}
+		else if ((graph_value instanceof Comparable) && graph_value.getClass().isInstance(query_value)) {
+			return Optional.of(((Comparable) graph_value).compareTo(query_value));
+		}
+		else return Optional.empty();
+	}
+
+	/** Converts an exists argument to a boolean
+	 * @param o
+	 * @return
+	 */
+	protected static boolean objToBool(final Object o) {
+		return (o instanceof Boolean) ? (Boolean) o : Optional.ofNullable(o).map(b -> Boolean.parseBoolean(b.toString())).orElse(true);
+	}
+
+	/** Handy util to switch between JSON/bean version of query
+	 * @param clazz
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T> SingleQueryComponent<T> emptyQuery(final Class<T> clazz) {
+		return JsonNode.class.isAssignableFrom(clazz)
+				? (SingleQueryComponent<T>) CrudUtils.allOf()
+				: CrudUtils.allOf(clazz);
+	}
+}
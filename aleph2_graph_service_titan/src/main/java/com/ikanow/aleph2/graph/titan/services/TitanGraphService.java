@@ -20,15 +20,20 @@ import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.apache.commons.configuration.ConfigurationMap;
 import org.apache.commons.configuration.MapConfiguration;
@@ -40,6 +45,8 @@ import org.apache.tinkerpop.gremlin.structure.VertexProperty;
 
 import scala.Tuple2;
 
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
@@ -92,8 +99,43 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 	protected static String UUID = System.getProperty("java.io.tmpdir") + "/titan_test_" + UuidUtils.get().getRandomUuid();
 	protected final TitanGraph _titan;
 	
+	public static final String BULK_LOAD_DRIVER_OPTIONS = "bulk_load"; // (getUnderlyingPlatformDriver(TitanGraph.class, ..) returns a new batch loading graph, which the caller closes)
+	public static final double BULK_LOAD_ID_RENEW_PERCENTAGE = 0.3;
+	
 	protected boolean _USE_ES_FOR_DEDUP_INDEXES = false;
 	
+	// Bucket deletion: elements are deleted in chunks (one transaction per chunk) on a dedicated pool
+	public static final int DELETION_CHUNK_SIZE = 1000;
+	public static final int DELETION_THREADS = 4;
+	public static final long DELETION_STALE_WAIT_MS = 1000L;
+	public static final int DELETION_MAX_STALE_ROUNDS = 10;
+	protected static final ExecutorService _deletion_coordinator = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("titan-deletion-coordinator-%d").build());
+	protected static final ExecutorService _deletion_executor = Executors.newFixedThreadPool(DELETION_THREADS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("titan-deletion-%d").build());
+	protected final ConcurrentHashMap<String, DeletionCheckpoint> _deletion_checkpoints = new ConcurrentHashMap<>();
+	protected int _deletion_chunk_size = DELETION_CHUNK_SIZE; // (overridden in tests)
+	protected final ConcurrentLinkedQueue<RuntimeException> _MUTABLE_TEST_DELETION_ERRORS = new ConcurrentLinkedQueue<>(); // (each chunk polls one, and fails with it)
+	
+	/** Progress of a bucket deletion - kept until the deletion completes, so that a failed or interrupted deletion resumes where it left off
+	 *  (every chunk is committed separately, so the work left is always exactly the elements still tagged with the bucket - the checkpoint just 
+	 *   avoids re-scanning the phases already completed, keeps the counts, and stops the same bucket being deleted twice at once.
+	 *   A phase is only marked complete once a fresh query finds nothing left in it)
+	 * @author Alex
+	 */
+	protected static class DeletionCheckpoint {
+		protected final AtomicLong vertices_updated = new AtomicLong(0L); // (removed the bucket from a vertex in >1 bucket)
+		protected final AtomicLong vertices_deleted = new AtomicLong(0L);
+		protected final AtomicLong edges_deleted = new AtomicLong(0L);
+		protected volatile boolean vertices_complete = false;
+		protected CompletableFuture<BasicMessageBean> in_progress = null; // (synchronize on the checkpoint)
+		
+		/** Total number of elements processed so far
+		 * @return
+		 */
+		protected long total() {
+			return vertices_updated.get() + vertices_deleted.get() + edges_deleted.get();
+		}
+	}
+	
 	/** Guice injector
 =	 */
 	@Inject
@@ -152,6 +194,8 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 			.when(clazz -> IEnrichmentBatchModule.class.isAssignableFrom(clazz) && 
 					maybe_driver_options.map(driver_opts -> driver_opts.equals("com.ikanow.aleph2.analytics.services.GraphBuilderEnrichmentService")).orElse(false),
 					__ -> Optional.<T>of((T) new TitanGraphBuilderEnrichmentService()))
+			.when(clazz -> TitanGraph.class.isAssignableFrom(clazz) && maybe_driver_options.map(BULK_LOAD_DRIVER_OPTIONS::equals).orElse(false), 
+					__ -> Optional.<T>ofNullable((T) getBulkLoadGraph()))
 			.when(clazz -> TitanGraph.class.isAssignableFrom(clazz), __ -> Optional.<T>of((T) _titan))
 			.otherwise(__ -> Optional.empty())
 			;
@@ -231,7 +275,10 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 	public <O> Optional<IReadOnlyCrudService<O>> getReadableCrudService(
 			Class<O> clazz, Collection<DataBucketBean> buckets,
 			Optional<String> options) {
-		return Optional.empty();
+		if (Optionals.ofNullable(buckets).isEmpty()) return Optional.empty();
+		
+		// (options: "vertices" (default) or "edges")
+		return Optional.of(new TitanGraphCrudService<O>(clazz, _titan, buckets, Optional.ofNullable(options).orElse(Optional.empty())).readOnlyVersion());
 	}
 
 	/* (non-Javadoc)
@@ -314,50 +361,192 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 		
 		//TODO (ALEPH-15): At some point need to be able for services to (optionally) request batch enrichment jobs - eg would be much nicer to fire this off as a distributed job
 		
-		return CompletableFuture.runAsync(() -> {
-			
-			try { Thread.sleep(1000L); } catch (Exception e) {} // just check the indexes have refreshed...
-			
-			final TitanTransaction tx = _titan.buildTransaction().start();
-
-			//DEBUG
-			//final com.fasterxml.jackson.databind.ObjectMapper titan_mapper = _titan.io(org.apache.tinkerpop.gremlin.structure.io.IoCore.graphson()).mapper().create().createMapper();
-			
-			@SuppressWarnings("unchecked")
-			final Stream<TitanVertex> vertices_to_check = Optionals.<TitanVertex>streamOf(tx.query().has(GraphAnnotationBean.a2_p, bucket.full_name()).vertices(), false);
-			vertices_to_check.forEach(v -> {
-				{
-					final Iterator<VertexProperty<String>> props = v.<String>properties(GraphAnnotationBean.a2_p);
-					while (props.hasNext()) {
-						final VertexProperty<String> prop = props.next();
-						if (bucket.full_name().equals(prop.value())) {
-							prop.remove();
+		final DeletionCheckpoint checkpoint = _deletion_checkpoints.computeIfAbsent(bucket.full_name(), __ -> new DeletionCheckpoint());
+		synchronized (checkpoint) {
+			if (null != checkpoint.in_progress) { // (already being deleted)
+				return checkpoint.in_progress;
+			}
+			checkpoint.in_progress = CompletableFuture.supplyAsync(() -> {
+				
+				try { Thread.sleep(1000L); } catch (Exception e) {} // just check the indexes have refreshed...
+				
+				final long start_time_ns = System.nanoTime();
+				final long start_count = checkpoint.total();
+				
+				// 1) Vertices: remove the bucket, and delete the vertex if it's not in any other buckets
+				
+				if (!checkpoint.vertices_complete) {
+					deleteInChunks(bucket.full_name(), true, ids -> {
+						final TitanTransaction tx = _titan.buildTransaction().start();
+						try {
+							final long[] updated_deleted = { 0L, 0L };
+							Optionals.streamOf(tx.vertices(ids.toArray()), false).forEach(v -> {
+								boolean mutable_removed = false;
+								{
+									final Iterator<VertexProperty<String>> props = v.<String>properties(GraphAnnotationBean.a2_p);
+									while (props.hasNext()) {
+										final VertexProperty<String> prop = props.next();
+										if (bucket.full_name().equals(prop.value())) {
+											prop.remove();
+											mutable_removed = true;
+										}
+									}
+								}
+								if (mutable_removed) { // (else a stale id from the index, already handled)
+									final Iterator<VertexProperty<String>> props = v.<String>properties(GraphAnnotationBean.a2_p);
+									if (!props.hasNext()) { // can delete this bucket
+										v.remove();
+										updated_deleted[1]++;
+									}
+									else updated_deleted[0]++;
+								}
+							});
+							tx.commit();
+							checkpoint.vertices_updated.addAndGet(updated_deleted[0]);
+							checkpoint.vertices_deleted.addAndGet(updated_deleted[1]);
+							return updated_deleted[0] + updated_deleted[1];
 						}
-					}
+						catch (RuntimeException e) {
+							tx.rollback();
+							throw e;
+						}
+					});
+					checkpoint.vertices_complete = true;
 				}
-				{
-					final Iterator<VertexProperty<String>> props = v.<String>properties(GraphAnnotationBean.a2_p);
-					if (!props.hasNext()) { // can delete this bucket
-						v.remove();
+				
+				// 2) Edges (any connected to deleted vertices have already gone)
+				
+				deleteInChunks(bucket.full_name(), false, ids -> {
+					final TitanTransaction tx = _titan.buildTransaction().start();
+					try {
+						final long[] deleted = { 0L };
+						Optionals.streamOf(tx.edges(ids.toArray()), false).forEach(e -> {
+							e.remove(); // (can only have one edge so delete it)
+							deleted[0]++;
+						});
+						tx.commit();
+						checkpoint.edges_deleted.addAndGet(deleted[0]);
+						return deleted[0];
+					}
+					catch (RuntimeException e) {
+						tx.rollback();
+						throw e;
 					}
+				});
+				
+				final long elapsed_ns = System.nanoTime() - start_time_ns;
+				final long elements_per_s = (elapsed_ns > 0) ? (1000000000L*(checkpoint.total() - start_count))/elapsed_ns : 0L;
+				
+				_logger.info(ErrorUtils.get("Deleted bucket {0}: vertices_updated={1} vertices_deleted={2} edges_deleted={3} elements/s={4} time_ms={5}",
+						bucket.full_name(), checkpoint.vertices_updated.get(), checkpoint.vertices_deleted.get(), checkpoint.edges_deleted.get(), 
+						elements_per_s, elapsed_ns/1000000L));
+				
+				return ErrorUtils.buildSuccessMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", 
+						"Completed: vertices_updated={0} vertices_deleted={1} edges_deleted={2} elements/s={3}",
+						checkpoint.vertices_updated.get(), checkpoint.vertices_deleted.get(), checkpoint.edges_deleted.get(), elements_per_s);
+			}
+			, _deletion_coordinator)
+			.thenApply(msg -> {
+				_deletion_checkpoints.remove(bucket.full_name(), checkpoint);
+				return msg;
+			})
+			.exceptionally(t -> {
+				synchronized (checkpoint) { // (leave the checkpoint, so the next request resumes from here)
+					checkpoint.in_progress = null;
 				}
-			});
-			@SuppressWarnings("unchecked")
-			final Stream<TitanEdge> edges_to_check = Optionals.<TitanEdge>streamOf(tx.query().has(GraphAnnotationBean.a2_p, bucket.full_name()).edges(), false);
-			edges_to_check.forEach(e -> {
-				e.remove(); // (can only have one edge so delete it)
-			});
-			
-			tx.commit();
-		})
-		.thenApply(__ -> 
-			ErrorUtils.buildSuccessMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", "Completed", "handleBucketDeletionRequest")
-					)
-		.exceptionally(t -> 
-			ErrorUtils.buildErrorMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", ErrorUtils.getLongForm("{0}", t), "handleBucketDeletionRequest")
-					)
-		;
+				_logger.error(ErrorUtils.getLongForm("Failed to delete bucket {1} (progress saved: vertices_updated={2} vertices_deleted={3} edges_deleted={4}): {0}", t, 
+						bucket.full_name(), checkpoint.vertices_updated.get(), checkpoint.vertices_deleted.get(), checkpoint.edges_deleted.get()));
+				return ErrorUtils.buildErrorMessage(this.getClass().getSimpleName(), "handleBucketDeletionRequest", ErrorUtils.getLongForm("{0}", t), "handleBucketDeletionRequest");
+			})
+			;
+			return checkpoint.in_progress;
+		}
+	}
+	
+	/** Deletes all the vertices or edges in a bucket, in chunks, repeating the query until it finds nothing left
+	 *  (deleting while the query is still being read can make it skip elements - eg when it re-executes with a larger limit - so a single pass is not enough)
+	 * @param bucket_path - the bucket being deleted
+	 * @param vertices - true for vertices, false for edges
+	 * @param chunk_handler - deletes a chunk of elements by id, in its own transaction, returns the number of elements it changed
+	 */
+	protected void deleteInChunks(final String bucket_path, final boolean vertices, final Function<List<Object>, Long> chunk_handler) {
+		int mutable_stale_rounds = 0;
+		for (;;) {
+			final long[] found_processed = deleteRoundInChunks(bucket_path, vertices, chunk_handler);
+			if (0L == found_processed[0]) { // nothing left
+				return;
+			}
+			else if (0L == found_processed[1]) { // only found elements that have already gone - the index hasn't caught up yet
+				if (++mutable_stale_rounds > DELETION_MAX_STALE_ROUNDS) {
+					throw new RuntimeException(ErrorUtils.get("Bucket {0}: {1} {2} still found after {3} retries", bucket_path, found_processed[0], vertices ? "vertices" : "edges", DELETION_MAX_STALE_ROUNDS));
+				}
+				try { Thread.sleep(DELETION_STALE_WAIT_MS); } 
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			else mutable_stale_rounds = 0;
+		}
+	}
+	
+	/** Streams the ids of the vertices or edges in a bucket (from a read only transaction), and hands them out in fixed size chunks to the deletion pool
+	 *  (at most DELETION_THREADS chunks are in flight at once, so only a bounded number of ids are ever held in memory)
+	 *  If a chunk fails, no more chunks are started, and the error is only thrown once all the chunks in flight have finished
+	 * @param bucket_path - the bucket being deleted
+	 * @param vertices - true for vertices, false for edges
+	 * @param chunk_handler - deletes a chunk of elements by id, in its own transaction, returns the number of elements it changed
+	 * @return a 2 element array: the number of ids found, the number of elements changed
+	 */
+	@SuppressWarnings("unchecked")
+	protected long[] deleteRoundInChunks(final String bucket_path, final boolean vertices, final Function<List<Object>, Long> chunk_handler) {
+		final AtomicLong processed = new AtomicLong(0L);
+		long mutable_found = 0L;
+		RuntimeException mutable_error = null;
+		final LinkedList<CompletableFuture<Void>> mutable_in_flight = new LinkedList<>();
 		
+		final TitanTransaction read_tx = _titan.buildTransaction().readOnly().start();
+		try {
+			final Iterator<Object> ids = vertices
+					? Iterators.transform(read_tx.query().has(GraphAnnotationBean.a2_p, bucket_path).vertices().iterator(), v -> ((TitanVertex) v).id())
+					: Iterators.transform(read_tx.query().has(GraphAnnotationBean.a2_p, bucket_path).edges().iterator(), e -> ((TitanEdge) e).id());
+			
+			final Iterator<List<Object>> chunks = Iterators.partition(ids, _deletion_chunk_size);
+			while (chunks.hasNext()) {
+				if (mutable_in_flight.size() >= DELETION_THREADS) {
+					mutable_in_flight.removeFirst().join(); // (throws if the chunk failed, which stops the deletion)
+				}
+				final List<Object> chunk = chunks.next();
+				mutable_found += chunk.size();
+				mutable_in_flight.add(CompletableFuture.runAsync(() -> {
+					final RuntimeException test_error = _MUTABLE_TEST_DELETION_ERRORS.poll();
+					if (null != test_error) {
+						throw test_error;
+					}
+					processed.addAndGet(chunk_handler.apply(chunk));
+				}
+				, _deletion_executor));
+			}
+		}
+		catch (RuntimeException e) {
+			mutable_error = e;
+		}
+		finally {
+			// Wait for everything still running before returning or throwing, so that no chunk outlives the deletion
+			while (!mutable_in_flight.isEmpty()) {
+				try {
+					mutable_in_flight.removeFirst().join();
+				}
+				catch (RuntimeException e) {
+					if (null == mutable_error) mutable_error = e;
+				}
+			}
+			read_tx.rollback();
+		}
+		if (null != mutable_error) {
+			throw mutable_error;
+		}
+		return new long[] { mutable_found, processed.get() };
 	}
 
 	//////////////////////////////////////////////////////
@@ -524,6 +713,31 @@ public class TitanGraphService implements IGraphService, IGenericDataService, IE
 				, distributed_config.root());
 	}
 
+	/** Returns a new handle on the same graph, opened with Titan's batch loading settings (no locking or consistency checks, ids renewed early)
+	 *  Only safe if the callers ensure that no two writers touch the same elements (see TitanGraphBuilderEnrichmentService's bulk_load mode)
+	 *  The caller owns the handle, and must close it once its writes are committed (unless it's the normal graph)
+	 *  (Titan's id block size is a GLOBAL_OFFLINE option, so can't be overridden here - for large loads, set ids.block-size in the cluster's stored
+	 *   configuration via the management system, with all the instances shut down)
+	 * @return the bulk loading graph (the normal graph if the storage backend can't be shared between instances, or the bulk graph can't be opened)
+	 */
+	protected TitanGraph getBulkLoadGraph() {
+		if (null == _titan) return null; // (titan is disabled)
+		if ("inmemory".equals(_titan.configuration().getString("storage.backend"))) {
+			return _titan; // (each instance would be a separate graph)
+		}
+		try {
+			final HashMap<String, Object> mutable_bulk_config = new HashMap<>();
+			Optionals.<String>streamOf(_titan.configuration().getKeys(), false).forEach(k -> mutable_bulk_config.put(k, _titan.configuration().getProperty(k)));
+			mutable_bulk_config.put("storage.batch-loading", true);
+			mutable_bulk_config.put("ids.renew-percentage", BULK_LOAD_ID_RENEW_PERCENTAGE);
+			return TitanFactory.open(new MapConfiguration(mutable_bulk_config));
+		}
+		catch (Throwable t) {
+			_logger.error(ErrorUtils.getLongForm("Unable to open bulk loading Titan graph DB, using default: {0}", t));
+			return _titan;
+		}
+	}
+	
 	/** Builds a Titan graph from the config bean
 	 * @param config
 	 * @return
@@ -30,4 +30,8 @@ public class ErrorUtils extends com.ikanow.aleph2.data_model.utils.ErrorUtils {
 	public static String MISSING_OR_BADLY_FORMED_FIELD = "For user emitted vertices/edges, bad field {0}: {1}";
 	
 	public static String BUFFERS_NOT_SUPPORTED = "Secondary buffers not supported ({0})";
+	public static String MERGE_INTERRUPTED = "Interrupted while waiting for the final merge, cancelled {0} shard(s)";
+	
+	public static String GRAPH_CRUD_SERVICE_READ_ONLY = "The graph CRUD service is read only, the graph can only be written by the graph builder ({0})";
+	public static String GRAPH_CRUD_SERVICE_SORT_NOT_SUPPORTED = "The graph CRUD service can only sort on properties, not {0}";
 }
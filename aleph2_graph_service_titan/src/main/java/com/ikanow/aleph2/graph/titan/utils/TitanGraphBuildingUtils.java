@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -175,6 +176,28 @@ public class TitanGraphBuildingUtils {
 			final DataBucketBean bucket,
 			final MutableStatsBean mutable_stats,
 			final Stream<ObjectNode> vertices_and_edges)
+	{		
+		return buildGraph_collectUserGeneratedAssets(tx, config, security_service, logger, bucket, mutable_stats, Optional.empty(), vertices_and_edges);
+	}
+	
+	/** (2/3) Creates a stream of user-generated assets together (grouped by vertex key) with associated data 
+	 * @param tx
+	 * @param config
+	 * @param security_service
+	 * @param logger
+	 * @param maybe_cache - (optional) cache of vertex key to ids, used to skip the index query for recurring keys
+	 * @param vertices_and_edges
+	 * @return
+	 */
+	public static Stream<Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>>> buildGraph_collectUserGeneratedAssets(
+			final TitanTransaction tx, 
+			final GraphSchemaBean config,
+			final Tuple2<String, ISecurityService> security_service,
+			final Optional<IBucketLogger> logger,
+			final DataBucketBean bucket,
+			final MutableStatsBean mutable_stats,
+			final Optional<VertexKeyCache> maybe_cache,
+			final Stream<ObjectNode> vertices_and_edges)
 	{		
 		// Convert the list of vertexes into a mega query - will have a false positive rate to keep the query simple  
 		
@@ -182,7 +205,8 @@ public class TitanGraphBuildingUtils {
 		
 		final Map<JsonNode, List<Vertex>> grouped_vertices = 
 				getGroupedVertices(nodes_to_get.keySet(), tx, 
-						config.deduplication_fields(), vertex -> isAllowed(bucket.full_name(), security_service, vertex));
+						config.deduplication_fields(), vertex -> isAllowed(bucket.full_name(), security_service, vertex),
+						bucket.full_name(), maybe_cache);
 		
 		//TRACE:
 		//System.err.println(new Date().toString() + ": DUPS=" + grouped_vertices);
@@ -195,6 +219,25 @@ public class TitanGraphBuildingUtils {
 		
 	}
 	
+	/** (2/3 - bulk load version) Creates a stream of user-generated assets together (grouped by vertex key), without looking for existing vertices
+	 *  (so every key gets a new vertex - the duplicates are then removed by mergeDuplicates in a final pass, see filterOwnedVertexGroups)
+	 * @param config
+	 * @param mutable_stats
+	 * @param vertices_and_edges
+	 * @return
+	 */
+	public static Stream<Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>>> buildGraph_collectUserGeneratedAssets_bulk(
+			final GraphSchemaBean config,
+			final MutableStatsBean mutable_stats,
+			final Stream<ObjectNode> vertices_and_edges)
+	{		
+		final Map<ObjectNode, Tuple2<List<ObjectNode>, List<ObjectNode>>> nodes_to_create = groupNewEdgesAndVertices(config, mutable_stats, vertices_and_edges);	
+		
+		return nodes_to_create.entrySet().stream()
+			.map(kv -> Tuples._4T(kv.getKey(), kv.getValue()._1(), kv.getValue()._2(), Collections.<Vertex>emptyList()))
+			;
+	}
+	
 	/** (3/3) Merges user generated edges/vertices with the ones already in the system 
 	 * @param tx
 	 * @param config
@@ -214,6 +257,34 @@ public class TitanGraphBuildingUtils {
 				final DataBucketBean bucket,
 				final Stream<Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>>> mergeable
 			)
+	{	
+		buildGraph_handleMerge(tx, config, security_service, logger, mutable_stats, mutable_new_vertex_keys, Optional.empty(), Optional.empty(), maybe_merger, bucket, mergeable);
+	}
+	
+	/** (3/3) Merges user generated edges/vertices with the ones already in the system 
+	 * @param tx
+	 * @param config
+	 * @param security_service
+	 * @param logger
+	 * @param mutable_new_vertex_keys - the keys of any vertices that get created are added to this
+	 * @param mutable_new_vertex_ids - (optional) the ids of any vertices that get created are added to this (used by the bulk load to decide which keys each task merges)
+	 * @param maybe_cache - (optional) cache of vertex key to ids, any vertices that get created are added to it
+	 * @param maybe_merger
+	 * @param mergeable
+	 */
+	public static void buildGraph_handleMerge(
+				final TitanTransaction tx,
+				final GraphSchemaBean config,
+				final Tuple2<String, ISecurityService> security_service,
+				final Optional<IBucketLogger> logger,
+				final MutableStatsBean mutable_stats,
+				final Collection<ObjectNode> mutable_new_vertex_keys,
+				final Optional<Collection<Object>> mutable_new_vertex_ids,
+				final Optional<VertexKeyCache> maybe_cache,
+				final Optional<Tuple2<IEnrichmentBatchModule, GraphMergeEnrichmentContext>> maybe_merger,
+				final DataBucketBean bucket,
+				final Stream<Tuple4<ObjectNode, List<ObjectNode>, List<ObjectNode>, List<Vertex>>> mergeable
+			)
 	{	
 		final org.apache.tinkerpop.shaded.jackson.databind.ObjectMapper titan_mapper = tx.io(IoCore.graphson()).mapper().create().createMapper();
 		final Multimap<JsonNode, Edge> mutable_existing_edge_endpoint_store = LinkedHashMultimap.create(); //(lazy simple way of handling 1.3/2)
@@ -253,6 +324,8 @@ public class TitanGraphBuildingUtils {
 				//(slighty nasty hack, use stats to see if a vertex was created vs updated...)
 				if (mutable_stats.vertices_created > prev_created) {
 					mutable_new_vertex_keys.add(key);
+					mutable_new_vertex_ids.ifPresent(ids -> ids.add(vertex_winner.id()));
+					maybe_cache.ifPresent(cache -> cache.add(bucket.full_name(), key, vertex_winner.id()));
 				}
 				
 				// 1.3) Tidy up (mutate) the edges				
@@ -324,13 +397,109 @@ public class TitanGraphBuildingUtils {
 	 * @param bucket_filter
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
 	public static final Map<JsonNode, List<Vertex>> getGroupedVertices(
 			final Collection<ObjectNode> keys,
 			final TitanTransaction tx,
 			final List<String> key_fields,
 			final Predicate<Vertex> vertex_filter
 			)
+	{
+		// Remove un-authorized nodes, and group by key
+		
+		final Map<JsonNode, List<Vertex>> grouped_vertices = getMatchingVertices(keys, tx, key_fields)
+					.filter(vertex_key -> vertex_filter.test(vertex_key._1())) // (remove un-authorized nodes)
+					.collect(Collectors.groupingBy(t2 -> (JsonNode) t2._2(),  // (group by key)
+								Collectors.mapping(t2 -> t2._1(), Collectors.toList())))
+					;
+		
+		return grouped_vertices; 
+	}
+	
+	/** Utility to get the vertices in the DB matching the specified keys - as above, but any keys in the cache skip the index query
+	 *  (the cache is updated from the query results)
+	 * @param keys
+	 * @param tx
+	 * @param key_fields
+	 * @param vertex_filter
+	 * @param bucket_path - the bucket the keys are being looked up for (part of the cache key)
+	 * @param maybe_cache - if not present, this is just getGroupedVertices
+	 * @return
+	 */
+	public static final Map<JsonNode, List<Vertex>> getGroupedVertices(
+			final Collection<ObjectNode> keys,
+			final TitanTransaction tx,
+			final List<String> key_fields,
+			final Predicate<Vertex> vertex_filter,
+			final String bucket_path,
+			final Optional<VertexKeyCache> maybe_cache
+			)
+	{
+		if (!maybe_cache.isPresent()) return getGroupedVertices(keys, tx, key_fields, vertex_filter);		
+		final VertexKeyCache cache = maybe_cache.get();
+		
+		// 1) Read any cached vertices by id, in one go
+		
+		final Map<ObjectNode, Set<Object>> cached_ids = keys.stream()
+				.map(key -> Tuples._2T(key, cache.get(bucket_path, key)))
+				.filter(key_ids -> key_ids._2().isPresent())
+				.collect(Collectors.toMap(key_ids -> key_ids._1(), key_ids -> key_ids._2().get(), (a, b) -> a));
+		
+		final Map<Object, Vertex> cached_vertices = cached_ids.isEmpty()
+				? Collections.emptyMap()
+				: Optionals.streamOf(tx.vertices(cached_ids.values().stream().flatMap(ids -> ids.stream()).distinct().toArray()), false)
+						.filter(v -> !((TitanVertex) v).isRemoved())
+						.collect(Collectors.toMap(v -> v.id(), v -> v, (a, b) -> a));
+		
+		// 2) Check the cached vertices still exist and still have the key (else treat as a miss)
+		
+		final Map<JsonNode, List<Vertex>> mutable_grouped_vertices = new HashMap<>();
+		final List<ObjectNode> mutable_uncached_keys = new LinkedList<>();
+		keys.forEach(key -> {
+			final Set<Object> ids = cached_ids.get(key);
+			if (null == ids) {
+				mutable_uncached_keys.add(key);
+				return;
+			}
+			final List<Vertex> vertices = ids.stream().map(id -> cached_vertices.get(id))
+												.filter(v -> (null != v) && key.equals(getElementProperties(v, key_fields)))
+												.collect(Collectors.toList());
+			if (vertices.size() < ids.size()) { // (deleted, merged, or created in a transaction that got rolled back)
+				cache.invalidateStale(bucket_path, key);
+				mutable_uncached_keys.add(key);
+			}
+			else {
+				final List<Vertex> allowed_vertices = vertices.stream().filter(vertex_filter).collect(Collectors.toList()); // (remove un-authorized nodes)
+				if (!allowed_vertices.isEmpty()) mutable_grouped_vertices.put(key, allowed_vertices);
+			}
+		});
+		
+		// 3) Look up the rest, and cache the results (before authorization, which gets re-applied on each read)
+		
+		if (!mutable_uncached_keys.isEmpty()) {
+			getMatchingVertices(mutable_uncached_keys, tx, key_fields)
+				.collect(Collectors.groupingBy(t2 -> (JsonNode) t2._2(), Collectors.mapping(t2 -> t2._1(), Collectors.toList())))
+				.forEach((key, vertices) -> {
+					cache.put(bucket_path, key, vertices.stream().map(v -> v.id()).collect(Collectors.toList()));
+					
+					final List<Vertex> allowed_vertices = vertices.stream().filter(vertex_filter).collect(Collectors.toList()); // (remove un-authorized nodes)
+					if (!allowed_vertices.isEmpty()) mutable_grouped_vertices.put(key, allowed_vertices);
+				});
+		}
+		return mutable_grouped_vertices;
+	}
+	
+	/** Runs an index query for the vertices matching the specified keys, removing any false positives
+	 * @param keys
+	 * @param tx
+	 * @param key_fields
+	 * @return a stream of vertices and their keys
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Stream<Tuple2<Vertex, JsonNode>> getMatchingVertices(
+			final Collection<ObjectNode> keys,
+			final TitanTransaction tx,
+			final List<String> key_fields
+			)
 	{
 		final Stream<TitanVertex> dups = Lambdas.get(() -> {
 			final Map<String, Set<Object>> dedup_query_builder = 		
@@ -358,19 +527,12 @@ public class TitanGraphBuildingUtils {
 			return Optionals.streamOf(matching_nodes_query.vertices(), false);
 		});
 		
-		// Remove false positives, un-authorized nodes, and group by key
+		// Remove false positives
 				
-		final Map<JsonNode, List<Vertex>> grouped_vertices = dups 
+		return dups 
 					.map(vertex -> Tuples._2T((Vertex) vertex, getElementProperties(vertex, key_fields)))
 					.filter(vertex_key -> keys.contains(vertex_key._2())) // (remove false positives)
-					.filter(vertex_key -> vertex_filter.test(vertex_key._1())) // (remove un-authorized nodes)
-					.collect(Collectors.groupingBy(t2 -> (JsonNode) t2._2(),  // (group by key)
-								Collectors.mapping(t2 -> t2._1(), Collectors.toList())))
 					;
-		
-		
-		
-		return grouped_vertices; 
 	}
 	
 	/** Separates out edges/vertices, groups by key
@@ -677,6 +839,21 @@ public class TitanGraphBuildingUtils {
 			final String bucket_path,
 			final Map<JsonNode, List<Vertex>> grouped_vertices, 
 			final MutableStatsBean mutable_stats_per_batch)
+	{
+		mergeDuplicates(tx, bucket_path, grouped_vertices, mutable_stats_per_batch, Optional.empty());
+	}
+	
+	/** Tidy up duplicates created because of the lack of consistency in deduplication (+lack of upsert!)
+	 * @param tx
+	 * @param grouped_vertices
+	 * @param mutable_stats_per_batch
+	 * @param maybe_cache - (optional) cache of vertex key to ids, any keys whose vertices get merged are invalidated
+	 */
+	public static void mergeDuplicates(final TitanTransaction tx,
+			final String bucket_path,
+			final Map<JsonNode, List<Vertex>> grouped_vertices, 
+			final MutableStatsBean mutable_stats_per_batch,
+			final Optional<VertexKeyCache> maybe_cache)
 	{
 		grouped_vertices.entrySet().stream().filter(kv -> !kv.getValue().isEmpty()).forEach(kv -> {
 			
@@ -692,6 +869,7 @@ public class TitanGraphBuildingUtils {
 				final Vertex merge_into = it.next();
 				if (it.hasNext()) {
 					mutable_stats_per_batch.vertices_updated++;					
+					maybe_cache.ifPresent(cache -> cache.invalidate(bucket_path, kv.getKey()));
 				}
 				it.forEachRemaining(v -> {
 					// special case: add all buckets, update times etc
@@ -719,6 +897,36 @@ public class TitanGraphBuildingUtils {
 		});
 	}
 	
+	/** In bulk load mode every task creates its own vertex for each of its keys, so the final merge would otherwise have all the tasks
+	 *  fighting over the same keys - instead each key is first merged only by the task that created the vertex sorting last in mergeDuplicates' order
+	 *  (ie its highest id, single bucket vertex - the vertices that existed before the load sort first, so aren't candidates)
+	 *  Ids come from per-instance blocks so aren't ordered by time, ie another task can still commit a vertex for the key after its owner has merged it
+	 *  - so this is followed by a sweep, see filterUnmergedVertexGroups
+	 * @param grouped_vertices - the output of getGroupedVertices
+	 * @param my_vertex_ids - the ids of the vertices created by this task
+	 * @return the subset of grouped_vertices that this task should merge
+	 */
+	public static Map<JsonNode, List<Vertex>> filterOwnedVertexGroups(final Map<JsonNode, List<Vertex>> grouped_vertices, final Set<Object> my_vertex_ids) {
+		return grouped_vertices.entrySet().stream()
+				.filter(kv -> kv.getValue().stream().max((a, b) -> postProcSortingMethod(a, b)).map(v -> my_vertex_ids.contains(v.id())).orElse(false))
+				.collect(Collectors.toMap(kv -> kv.getKey(), kv -> kv.getValue()))
+				;
+	}
+	
+	/** In bulk load mode, once a task has merged the keys it owns (see filterOwnedVertexGroups), it re-reads all its keys and also merges any that
+	 *  still have duplicates including one of its own vertices. Every task commits its vertices before it sweeps, so whatever the commit order, 
+	 *  the last task to sweep a key sees all of its vertices (and sweeps are only contended for keys whose duplicates were committed late)
+	 * @param grouped_vertices - the output of getGroupedVertices
+	 * @param my_vertex_ids - the ids of the vertices created by this task
+	 * @return the subset of grouped_vertices that this task should merge
+	 */
+	public static Map<JsonNode, List<Vertex>> filterUnmergedVertexGroups(final Map<JsonNode, List<Vertex>> grouped_vertices, final Set<Object> my_vertex_ids) {
+		return grouped_vertices.entrySet().stream()
+				.filter(kv -> (kv.getValue().size() > 1) && kv.getValue().stream().anyMatch(v -> my_vertex_ids.contains(v.id())))
+				.collect(Collectors.toMap(kv -> kv.getKey(), kv -> kv.getValue()))
+				;
+	}
+	
 	/** Merge edges from one vertex into another
 	 * @param bucket_path
 	 * @param dir
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.graph.titan.utils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+
+/** Bounded (per task) cache from (bucket, vertex key) to the ids of the vertices with that key, so that entities that recur across batches
+ *  don't need an index query each time - fed from the lookups in getGroupedVertices and from newly created vertices
+ *  The ids are only a hint: they are re-read (and the key re-checked) before being used, and if any are missing the key is just looked up again
+ *  (so vertices deleted or merged by other tasks are handled, but duplicates created by other tasks since the lookup won't be seen until the final merge)
+ * @author Alex
+ */
+public class VertexKeyCache {
+	public static final long DEFAULT_MAX_SIZE = 100000L;
+
+	protected final Cache<Tuple2<String, JsonNode>, Set<Object>> _cache;
+	protected final AtomicLong _stale = new AtomicLong(0L);
+
+	/** User c'tor
+	 * @param max_size - the max number of keys to cache (least recently used are evicted first)
+	 */
+	public VertexKeyCache(final long max_size) {
+		_cache = CacheBuilder.newBuilder().maximumSize(max_size).recordStats().build();
+	}
+
+	/** Returns the cached vertex ids for a key
+	 * @param bucket_path
+	 * @param key
+	 * @return the ids, or empty if the key isn't cached
+	 */
+	public Optional<Set<Object>> get(final String bucket_path, final JsonNode key) {
+		return Optional.ofNullable(_cache.getIfPresent(Tuples._2T(bucket_path, key)));
+	}
+
+	/** Sets the vertex ids for a key (eg from a lookup)
+	 * @param bucket_path
+	 * @param key
+	 * @param ids
+	 */
+	public void put(final String bucket_path, final JsonNode key, final Collection<Object> ids) {
+		_cache.put(Tuples._2T(bucket_path, key), Collections.unmodifiableSet(new HashSet<>(ids)));
+	}
+
+	/** Adds a vertex id to a key (eg from a newly created vertex)
+	 * @param bucket_path
+	 * @param key
+	 * @param id
+	 */
+	public void add(final String bucket_path, final JsonNode key, final Object id) {
+		final Set<Object> mutable_ids = new HashSet<>(get(bucket_path, key).orElse(Collections.emptySet()));
+		mutable_ids.add(id);
+		put(bucket_path, key, mutable_ids);
+	}
+
+	/** Removes a key (eg after its vertices have been merged or deleted)
+	 * @param bucket_path
+	 * @param key
+	 */
+	public void invalidate(final String bucket_path, final JsonNode key) {
+		_cache.invalidate(Tuples._2T(bucket_path, key));
+	}
+
+	/** Removes a key whose cached ids turned out to be out of date, so it will be looked up again
+	 * @param bucket_path
+	 * @param key
+	 */
+	public void invalidateStale(final String bucket_path, final JsonNode key) {
+		_stale.incrementAndGet();
+		invalidate(bucket_path, key);
+	}
+
+	/** Returns the number of cached keys
+	 * @return
+	 */
+	public long size() {
+		return _cache.size();
+	}
+
+	/** Returns the hits/misses/evictions (note stale hits are counted as hits, see getStaleCount)
+	 * @return
+	 */
+	public CacheStats stats() {
+		return _cache.stats();
+	}
+
+	/** Returns the number of hits that turned out to be out of date (and had to be looked up again)
+	 * @return
+	 */
+	public long getStaleCount() {
+		return _stale.get();
+	}
+
+	/** Returns the fraction of lookups that didn't need an index query
+	 * @return
+	 */
+	public double getEffectiveHitRate() {
+		final CacheStats stats = _cache.stats();
+		return (stats.requestCount() > 0) ? ((double)(stats.hitCount() - _stale.get()))/stats.requestCount() : 0.0;
+	}
+}
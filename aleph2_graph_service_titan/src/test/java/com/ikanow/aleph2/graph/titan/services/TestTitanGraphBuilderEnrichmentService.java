@@ -17,13 +17,22 @@
 package com.ikanow.aleph2.graph.titan.services;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import org.apache.tinkerpop.gremlin.structure.Direction;
 import org.apache.tinkerpop.gremlin.structure.Vertex;
 import org.junit.Before;
 import org.junit.Test;
@@ -34,7 +43,9 @@ import scala.Tuple2;
 import com.codepoetics.protonpack.StreamUtils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleContext;
@@ -287,4 +298,163 @@ public class TestTitanGraphBuilderEnrichmentService extends TestTitanCommon {
 			tx.commit();
 		}
 	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_parallelMerge() throws InterruptedException {
+		
+		final TitanGraphBuilderEnrichmentService graph_enrich_service = new TitanGraphBuilderEnrichmentService();
+		
+		final MockServiceContext service_context = new MockServiceContext();
+		final MockSecurityService mock_security = new MockSecurityService();
+		mock_security.setGlobalMockRole("nobody:DataBucketBean:read,write:test:end:2:end:*", true);
+		service_context.addService(ISecurityService.class, Optional.empty(), mock_security);
+		service_context.addService(IGraphService.class, Optional.empty(), _mock_graph_db_service);
+		final IEnrichmentModuleContext context = Mockito.mock(IEnrichmentModuleContext.class);
+		Mockito.when(context.getServiceContext()).thenReturn(service_context);
+		Mockito.when(context.getNextUnusedId()).thenReturn(0L);
+		
+		final EnrichmentControlMetadataBean control_merge = BeanTemplateUtils.build(EnrichmentControlMetadataBean.class)
+				.with(EnrichmentControlMetadataBean::entry_point, SimpleGraphMergeService.class.getName())				
+				.done().get();
+				
+		final EnrichmentControlMetadataBean control_decomp = BeanTemplateUtils.build(EnrichmentControlMetadataBean.class)
+				.with(EnrichmentControlMetadataBean::entry_point, SimpleGraphDecompService.class.getName())				
+				.with(EnrichmentControlMetadataBean::config,
+						BeanTemplateUtils.toMap(
+						BeanTemplateUtils.build(SimpleDecompConfigBean.class)
+							.with(SimpleDecompConfigBean::elements, Arrays.asList(
+									BeanTemplateUtils.build(SimpleDecompElementBean.class)
+										.with(SimpleDecompElementBean::edge_name, "test_edge_1")
+										.with(SimpleDecompElementBean::from_fields, Arrays.asList("int_ip1"))
+										.with(SimpleDecompElementBean::from_type, "ip")
+										.with(SimpleDecompElementBean::to_fields, Arrays.asList("host1"))
+										.with(SimpleDecompElementBean::to_type, "host")
+									.done().get()
+									)
+							)
+						.done().get())
+				)
+			.done().get();
+		
+		final GraphSchemaBean graph_schema = BeanTemplateUtils.build(GraphSchemaBean.class)
+				.with(GraphSchemaBean::custom_decomposition_configs, Arrays.asList(control_decomp))
+				.with(GraphSchemaBean::custom_merge_configs, Arrays.asList(control_merge))
+				.done().get();
+		
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/end/2/end")
+				.with(DataBucketBean::owner_id, "nobody")
+				.with(DataBucketBean::data_schema, BeanTemplateUtils.build(DataSchemaBean.class)
+								.with(DataSchemaBean::graph_schema, graph_schema)
+								.done().get()
+				)
+				.done().get();
+
+		_mock_graph_db_service.onPublishOrUpdate(bucket, Optional.empty(), false, ImmutableSet.of(GraphSchemaBean.name), Collections.emptySet());
+		
+		// (several merge threads, and small batches so each shard is merged over a few transactions)
+		final EnrichmentControlMetadataBean control = BeanTemplateUtils.build(EnrichmentControlMetadataBean.class)
+				.with(EnrichmentControlMetadataBean::config, ImmutableMap.<String, Object>of("merge_threads", 4, "merge_batch_size", 2))
+				.done().get();
+		
+		graph_enrich_service.onStageInitialize(context, bucket, control, null, Optional.empty());
+		assertEquals(4, graph_enrich_service._merge_threads.get().intValue());
+		
+		final int N_KEYS = 12;
+		{
+			final Stream<Tuple2<Long, IBatchRecord>> batch = IntStream.range(0, N_KEYS)
+					.mapToObj(i -> _mapper.createObjectNode().put("int_ip1", "ip" + i).put("host1", "host" + i))
+					.map(o -> Tuples._2T(0L, new BatchRecordUtils.JsonBatchRecord(o)))
+					;		
+			graph_enrich_service.onObjectBatch(batch, Optional.empty(), Optional.empty());
+		}
+		
+		// Add a duplicate of each of the ip vertices
+		{
+			final TitanTransaction tx = _titan.buildTransaction().start();
+			IntStream.range(0, N_KEYS).forEach(i -> {
+				final Vertex v = tx.addVertex("dup");
+				v.property(GraphAnnotationBean.a2_p, "/test/end/2/end");
+				v.property(GraphAnnotationBean.a2_tc, 0L);
+				v.property(GraphAnnotationBean.a2_tm, 0L);
+				v.property(GraphAnnotationBean.name, "ip" + i);
+				v.property(GraphAnnotationBean.type, "ip");
+				v.property("dup_marker", i);
+			});
+			tx.commit();
+		}
+		System.out.println("Sleeping 2s to wait for ES to refresh");
+		Thread.sleep(2000L);
+		{
+			final TitanTransaction tx = _titan.buildTransaction().start();
+			assertEquals(3*N_KEYS, StreamUtils.stream(tx.query().hasNot(GraphAnnotationBean.a2_p, "get_everything").vertices()).count());
+			tx.commit();
+		}
+		
+		graph_enrich_service.onStageComplete(true);
+		
+		// Check the merged graph: one vertex per key, which has the duplicate's properties and the original's edge
+		{
+			Thread.sleep(1100); // (just give index enough time to finish)
+			final TitanTransaction tx = _titan.buildTransaction().start();			
+			assertEquals(2*N_KEYS, StreamUtils.stream(tx.query().hasNot(GraphAnnotationBean.a2_p, "get_everything").vertices()).count());
+			assertEquals(N_KEYS, StreamUtils.stream(tx.query().hasNot(GraphAnnotationBean.a2_p, "get_everything").edges()).count());
+			IntStream.range(0, N_KEYS).forEach(i -> {
+				final List<TitanVertex> ips = Optionals.<TitanVertex>streamOf(tx.query().has(GraphAnnotationBean.name, "ip" + i).has(GraphAnnotationBean.type, "ip").vertices(), false).collect(Collectors.toList());
+				assertEquals("ip" + i, 1, ips.size());
+				assertEquals(i, ips.get(0).<Integer>value("dup_marker").intValue());
+				assertEquals(1, Iterators.size(ips.get(0).edges(Direction.OUT)));
+			});
+			tx.commit();
+		}
+	}
+	
+	@Test
+	public void test_waitForInterrupted() {
+		final CompletableFuture<Void> shard = new CompletableFuture<>();
+		final CompletableFuture<Void> all_shards = CompletableFuture.allOf(shard);
+		
+		assertFalse(TitanGraphBuilderEnrichmentService.waitFor(all_shards, Arrays.asList(shard), 10L)); // (times out)
+		
+		Thread.currentThread().interrupt();
+		try {
+			TitanGraphBuilderEnrichmentService.waitFor(all_shards, Arrays.asList(shard), 10000L);
+			fail("Should have thrown");
+		}
+		catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof InterruptedException);
+		}
+		assertTrue("Interrupt restored", Thread.interrupted()); // (also clears it)
+		assertTrue(shard.isCancelled());
+		assertTrue(TitanGraphBuilderEnrichmentService.waitFor(all_shards, Arrays.asList(shard), 10L)); // (completed, with an error)
+	}
+	
+	@Test
+	public void test_mergeShardingAndBatchSize() {
+		
+		// Sharding
+		
+		final Set<ObjectNode> keys = IntStream.range(0, 100).mapToObj(i -> _mapper.createObjectNode().put(GraphAnnotationBean.name, "name" + i).put(GraphAnnotationBean.type, "ip")).collect(Collectors.toSet());
+		{
+			final List<List<ObjectNode>> shards = TitanGraphBuilderEnrichmentService.shardVertexKeys(keys, 4);
+			assertEquals(4, shards.size());
+			assertEquals(keys, shards.stream().flatMap(shard -> shard.stream()).collect(Collectors.toSet())); // (each key in exactly one shard...)
+			assertEquals(keys.size(), shards.stream().mapToInt(shard -> shard.size()).sum());
+			
+			// (...and always the same shard)
+			final List<List<ObjectNode>> shards_2 = TitanGraphBuilderEnrichmentService.shardVertexKeys(new HashSet<>(keys), 4);
+			assertEquals(shards.stream().map(shard -> new HashSet<>(shard)).collect(Collectors.toSet()), shards_2.stream().map(shard -> new HashSet<>(shard)).collect(Collectors.toSet()));
+		}
+		assertEquals(1, TitanGraphBuilderEnrichmentService.shardVertexKeys(keys, 1).size());
+		assertTrue(TitanGraphBuilderEnrichmentService.shardVertexKeys(Collections.emptySet(), 4).isEmpty());
+		
+		// Batch size
+		
+		assertEquals(312, TitanGraphBuilderEnrichmentService.getNextMergeBatchSize(250, false, 2000)); // (grows)
+		assertEquals(2000, TitanGraphBuilderEnrichmentService.getNextMergeBatchSize(1900, false, 2000)); // (max)
+		assertEquals(125, TitanGraphBuilderEnrichmentService.getNextMergeBatchSize(250, true, 2000)); // (shrinks on conflict)
+		assertEquals(TitanGraphBuilderEnrichmentService._MIN_MERGE_BATCH_SIZE, TitanGraphBuilderEnrichmentService.getNextMergeBatchSize(12, true, 2000)); // (min)
+		assertEquals(2, TitanGraphBuilderEnrichmentService.getNextMergeBatchSize(1, false, 2000)); // (always grows)
+	}
 }
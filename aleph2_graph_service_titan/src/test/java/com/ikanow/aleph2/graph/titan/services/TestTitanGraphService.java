@@ -27,6 +27,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -45,6 +46,8 @@ import com.codepoetics.protonpack.StreamUtils;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableMap;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.IReadOnlyCrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
@@ -53,7 +56,10 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.GraphSche
 import com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.JsonUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.UuidUtils;
 import com.ikanow.aleph2.graph.titan.data_model.TitanGraphConfigBean;
 import com.ikanow.aleph2.graph.titan.module.TitanGraphModule;
@@ -214,6 +220,9 @@ public class TestTitanGraphService extends TestTitanCommon {
 		
 		_mock_graph_db_service.onPublishOrUpdate(bucket, Optional.empty(), false, ImmutableSet.of(GraphSchemaBean.name), Collections.emptySet()).join();		
 		
+		// (small chunks, so there are more chunks than deletion threads)
+		_mock_graph_db_service._deletion_chunk_size = 20;
+		
 		// Add a bunch of edges to delete
 		
 		final int N_OBJECTS = 300;
@@ -285,8 +294,18 @@ public class TestTitanGraphService extends TestTitanCommon {
 				CompletableFuture<BasicMessageBean> ret_val =
 						_mock_graph_db_service.handleBucketDeletionRequest(bucket, Optional.empty(), true);
 				
+				// (a second request while the first is running just shares its result)
+				final CompletableFuture<BasicMessageBean> ret_val_2 =
+						_mock_graph_db_service.handleBucketDeletionRequest(bucket, Optional.empty(), true);
+				
 				// Got a "success" reply
 				assertEquals(true, ret_val.join().success());
+				assertTrue("Reports progress: " + ret_val.join().message(), ret_val.join().message().contains("vertices_deleted=" + (2*N_OBJECTS)/3)); // (1/3 of the vertices are only in this bucket)
+				
+				assertSame(ret_val, ret_val_2);
+				
+				// (checkpoint removed once complete)
+				assertTrue(_mock_graph_db_service._deletion_checkpoints.isEmpty());
 			}
 			
 			System.out.println("Waiting 2s for ES to refresh... " + new Date().getTime());
@@ -328,10 +347,29 @@ public class TestTitanGraphService extends TestTitanCommon {
 			
 			final TitanTransaction tx = _titan.buildTransaction().start();
 			
+			// (one chunk fails: the deletion fails once the other chunks have finished, and the next request resumes it)
+			{
+				_mock_graph_db_service._MUTABLE_TEST_DELETION_ERRORS.add(new RuntimeException("test chunk failure"));
+				
+				CompletableFuture<BasicMessageBean> ret_val =
+						_mock_graph_db_service.handleBucketDeletionRequest(other_bucket, Optional.empty(), true);
+				
+				assertFalse(ret_val.join().success());
+				assertTrue("Reports error: " + ret_val.join().message(), ret_val.join().message().contains("test chunk failure"));
+				assertTrue(_mock_graph_db_service._MUTABLE_TEST_DELETION_ERRORS.isEmpty());
+				
+				// (checkpoint kept, but no longer running)
+				final TitanGraphService.DeletionCheckpoint checkpoint = _mock_graph_db_service._deletion_checkpoints.get(other_bucket.full_name());
+				assertNotNull(checkpoint);
+				assertEquals(null, checkpoint.in_progress);
+				assertFalse(checkpoint.vertices_complete);
+			}
+			
 			CompletableFuture<BasicMessageBean> ret_val =
 					_mock_graph_db_service.handleBucketDeletionRequest(other_bucket, Optional.empty(), true);
 			
 			assertTrue(ret_val.join().success());
+			assertTrue(_mock_graph_db_service._deletion_checkpoints.isEmpty());
 			
 			System.out.println("Waiting 2s for ES to refresh... " + new Date().getTime());
 			Thread.sleep(2000L);
@@ -361,6 +399,95 @@ public class TestTitanGraphService extends TestTitanCommon {
 		assertTrue(data_service.get().handleAgeOutRequest(null).join().success());
 	}
 
+	@Test
+	public void test_getReadableCrudService() throws Exception {
+		
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/bucket/crud")
+			.done().get();			
+		
+		_mock_graph_db_service.onPublishOrUpdate(bucket, Optional.empty(), false, ImmutableSet.of(GraphSchemaBean.name), Collections.emptySet()).join();		
+		
+		// Build a "hub" vertex with edges to a set of vertices, half of which are in another bucket
+		
+		final int N_OBJECTS = 20;
+		final Object hub_id;
+		{
+			final TitanTransaction tx = _titan.buildTransaction().start();
+			
+			final Vertex hub = tx.addVertex("test_crud_hub");
+			hub.property(GraphAnnotationBean.a2_p, "/test/bucket/crud");
+			for (int ii = 0; ii < N_OBJECTS; ++ii) {
+				final String bucket_path = (0 == (ii % 2)) ? "/test/bucket/crud" : "/test/bucket/no_crud";
+				final Vertex v = tx.addVertex("test_crud_" + ii);
+				v.property(GraphAnnotationBean.a2_p, bucket_path);
+				v.property("test_prop", "test_" + (ii % 4));
+				final Edge e = hub.addEdge("test_crud_edge", v);
+				e.property(GraphAnnotationBean.a2_p, bucket_path);
+			}
+			tx.commit();
+			hub_id = hub.id();
+		}
+		//(wait for the data to appear)
+		System.out.println("Waiting 2s for ES to refresh...");
+		Thread.sleep(2000L);
+		
+		// Vertices
+		
+		final IReadOnlyCrudService<JsonNode> vertex_crud = _mock_graph_db_service.getReadableCrudService(JsonNode.class, Arrays.asList(bucket), Optional.empty()).get();
+		
+		assertEquals(1 + N_OBJECTS/2, vertex_crud.countObjects().join().intValue()); // (only sees the bucket)
+		assertEquals(N_OBJECTS/4, vertex_crud.countObjectsBySpec(CrudUtils.allOf().when("test_prop", "test_0")).join().intValue()); // (pushed down)
+		assertEquals(1 + N_OBJECTS/4, vertex_crud.countObjectsBySpec(CrudUtils.anyOf().when("test_prop", "test_0").when(GraphAnnotationBean.label, "test_crud_hub")).join().intValue()); // (filtered)
+		assertEquals(0, vertex_crud.countObjectsBySpec(CrudUtils.allOf().when("test_prop", "test_1")).join().intValue()); // (all in the other bucket)
+		
+		{
+			final ICrudService.Cursor<JsonNode> cursor = vertex_crud.getObjectsBySpec(CrudUtils.allOf().rangeAbove("test_prop", "test_0", true), Arrays.asList("test_prop"), true).join();
+			final List<JsonNode> results = Optionals.streamOf(cursor.iterator(), false).collect(Collectors.toList());
+			assertEquals(N_OBJECTS/4, results.size()); // (ie test_2)
+			assertEquals(N_OBJECTS/4, cursor.count());
+			results.forEach(j -> {
+				assertTrue("Is GraphSON: " + j, j.get(GraphAnnotationBean.label).asText().startsWith("test_crud_"));
+				assertEquals(Arrays.asList("test_prop"), Optionals.streamOf(j.get(GraphAnnotationBean.properties).fieldNames(), false).collect(Collectors.toList()));
+			});
+			cursor.close();
+		}
+		{
+			final ICrudService.Cursor<JsonNode> cursor = vertex_crud.getObjectsBySpec(CrudUtils.allOf().limit(3)).join();
+			assertEquals(3, Optionals.streamOf(cursor.iterator(), false).count());
+			assertEquals(1 + N_OBJECTS/2, cursor.count()); // (count ignores limit)
+			cursor.close();
+		}
+		{
+			// Can only sort on properties
+			final CompletableFuture<ICrudService.Cursor<JsonNode>> f = vertex_crud.getObjectsBySpec(CrudUtils.allOf().orderBy(Tuples._2T(GraphAnnotationBean.label, 1)));
+			assertTrue(f.isCompletedExceptionally());
+			try {
+				f.join();
+				fail("Should have errored");
+			}
+			catch (CompletionException e) {
+				assertTrue("Sort error: " + e.getCause().getMessage(), e.getCause().getMessage().contains(GraphAnnotationBean.label));
+			}
+			assertTrue(vertex_crud.getObjectBySpec(CrudUtils.allOf().orderBy(Tuples._2T(JsonUtils._ID, -1))).isCompletedExceptionally());
+		}
+		assertEquals("test_crud_hub", vertex_crud.getObjectById(hub_id).join().get().get(GraphAnnotationBean.label).asText());
+		
+		// Edges (reading the hub's neighbourhood)
+		
+		final IReadOnlyCrudService<JsonNode> edge_crud = _mock_graph_db_service.getReadableCrudService(JsonNode.class, Arrays.asList(bucket), Optional.of(TitanGraphCrudService.EDGES_OPTION)).get();
+		
+		assertEquals(N_OBJECTS/2, edge_crud.countObjects().join().intValue());
+		assertEquals(N_OBJECTS/2, edge_crud.countObjectsBySpec(CrudUtils.allOf().when(GraphAnnotationBean.outV, hub_id)).join().intValue());
+		assertEquals(0, edge_crud.countObjectsBySpec(CrudUtils.allOf().when(GraphAnnotationBean.inV, hub_id)).join().intValue());
+		
+		// Read only
+		
+		final TitanGraphCrudService<JsonNode> crud = new TitanGraphCrudService<JsonNode>(JsonNode.class, _titan, Arrays.asList(bucket), Optional.empty());
+		assertTrue(crud.storeObject(BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode()).isCompletedExceptionally());
+		assertTrue(crud.deleteDatastore().isCompletedExceptionally());
+	}
+
 	@Test
 	public void test_createRemoteConfig() {
 
@@ -26,8 +26,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -48,6 +51,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentBatchModule;
@@ -1498,6 +1502,74 @@ public class TestTitanGraphBuildingUtils {
 	}
 
 	@SuppressWarnings("unchecked")
+	@Test
+	public void test_getGroupedVertices_cached() {
+		
+		final TitanGraph titan = getSimpleTitanGraph();
+		final TitanTransaction tx = titan.newTransaction();
+		final List<String> key_fields = Arrays.asList(GraphAnnotationBean.name, GraphAnnotationBean.type);
+		
+		final Vertex v1 = tx.addVertex("ip");
+		v1.property(GraphAnnotationBean.name, "ipA");
+		v1.property(GraphAnnotationBean.type, "ip");
+		final Vertex v2 = tx.addVertex("host");
+		v2.property(GraphAnnotationBean.name, "dY");
+		v2.property(GraphAnnotationBean.type, "host");
+		
+		final ObjectNode key1 = _mapper.createObjectNode().put(GraphAnnotationBean.name, "ipA").put(GraphAnnotationBean.type, "ip");
+		final ObjectNode key2 = _mapper.createObjectNode().put(GraphAnnotationBean.name, "dY").put(GraphAnnotationBean.type, "host");
+		final ObjectNode key3 = _mapper.createObjectNode().put(GraphAnnotationBean.name, "ipZ").put(GraphAnnotationBean.type, "ip");
+		final List<ObjectNode> keys = Arrays.asList(key1, key2, key3);
+		
+		final VertexKeyCache cache = new VertexKeyCache(10L);
+		
+		// First time: all misses, found vertices are cached
+		{
+			final Map<JsonNode, List<Vertex>> res = TitanGraphBuildingUtils.getGroupedVertices(keys, tx, key_fields, v -> true, "/test", Optional.of(cache));
+			assertEquals(ImmutableSet.of(key1, key2), res.keySet());
+			assertEquals(v1.id(), res.get(key1).get(0).id());
+			assertEquals(0L, cache.stats().hitCount());
+			assertEquals(3L, cache.stats().missCount());
+			assertEquals(2L, cache.size());
+			assertEquals(Optional.of(ImmutableSet.of(v2.id())), cache.get("/test", key2));
+			assertEquals(Optional.empty(), cache.get("/other", key2));
+		}
+		// Second time: same results, from the cache (except the key with no vertices)
+		{
+			final Map<JsonNode, List<Vertex>> res = TitanGraphBuildingUtils.getGroupedVertices(keys, tx, key_fields, v -> true, "/test", Optional.of(cache));
+			assertEquals(ImmutableSet.of(key1, key2), res.keySet());
+			assertEquals(v1.id(), res.get(key1).get(0).id());
+			assertEquals(3L, cache.stats().hitCount()); // (1 from the asserts above + 2 here)
+			assertEquals(0L, cache.getStaleCount());
+		}
+		// Authorization is still applied to cached vertices
+		{
+			final Map<JsonNode, List<Vertex>> res = TitanGraphBuildingUtils.getGroupedVertices(keys, tx, key_fields, v -> v.id().equals(v2.id()), "/test", Optional.of(cache));
+			assertEquals(ImmutableSet.of(key2), res.keySet());
+		}
+		// Deleted vertex: treated as a miss, and looked up again
+		{
+			v1.remove();
+			final Map<JsonNode, List<Vertex>> res = TitanGraphBuildingUtils.getGroupedVertices(keys, tx, key_fields, v -> true, "/test", Optional.of(cache));
+			assertEquals(ImmutableSet.of(key2), res.keySet());
+			assertEquals(1L, cache.getStaleCount());
+			assertEquals(Optional.empty(), cache.get("/test", key1));
+		}
+		// New vertices are added, merges invalidate
+		{
+			final Vertex v3 = tx.addVertex("host");
+			v3.property(GraphAnnotationBean.name, "dY");
+			v3.property(GraphAnnotationBean.type, "host");
+			cache.add("/test", key2, v3.id());
+			final Map<JsonNode, List<Vertex>> res = TitanGraphBuildingUtils.getGroupedVertices(keys, tx, key_fields, v -> true, "/test", Optional.of(cache));
+			assertEquals(2, res.get(key2).size());
+			
+			TitanGraphBuildingUtils.mergeDuplicates(tx, "/test", res, new MutableStatsBean(), Optional.of(cache));
+			assertEquals(Optional.empty(), cache.get("/test", key2));
+		}
+		tx.rollback();
+	}
+	
 	@Test
 	public void test_mergeDuplicates() {
 		
@@ -1623,6 +1695,117 @@ public class TestTitanGraphBuildingUtils {
 		}						
 	}
 	
+	@Test
+	public void test_filterOwnedVertexGroups() {
+		
+		final TitanGraph titan = getSimpleTitanGraph();
+		final TitanTransaction tx = titan.newTransaction();
+		
+		final Vertex v1 = tx.addVertex("v1");
+		final Vertex v2 = tx.addVertex("v2");
+		final Vertex v3 = tx.addVertex("v3");
+		final Vertex v4 = tx.addVertex("v4");
+		final Vertex v5 = tx.addVertex("v5");
+		
+		final Map<Long, Vertex> v_sorted = new TreeMap<>(Stream.of(v1, v2, v3).collect(Collectors.toMap((Vertex v) -> (Long)v.id(), v->v)));
+		final Vertex first = v_sorted.values().stream().skip(0).findFirst().get();
+		final Vertex last = v_sorted.values().stream().skip(2).findFirst().get();
+		
+		final Map<JsonNode, List<Vertex>> grouped_vertices = 
+				ImmutableMap.of(_mapper.createObjectNode().put("key", "test1"), 
+						Arrays.asList(v1, v2, v3),
+						_mapper.createObjectNode().put("key", "test2"),
+						Arrays.asList(v4),
+						_mapper.createObjectNode().put("key", "test3"),
+						Arrays.asList(v5),
+						_mapper.createObjectNode().put("key", "test4"),
+						Arrays.asList()							
+						);			
+		
+		// Owner of the last vertex (by id) owns the key
+		{
+			final Map<JsonNode, List<Vertex>> owned = TitanGraphBuildingUtils.filterOwnedVertexGroups(grouped_vertices, ImmutableSet.of(last.id(), v4.id()));
+			assertEquals(ImmutableSet.of(_mapper.createObjectNode().put("key", "test1"), _mapper.createObjectNode().put("key", "test2")), owned.keySet());
+		}
+		// ... owning any other vertex isn't enough
+		{
+			final Map<JsonNode, List<Vertex>> owned = TitanGraphBuildingUtils.filterOwnedVertexGroups(grouped_vertices, ImmutableSet.of(first.id(), v5.id()));
+			assertEquals(ImmutableSet.of(_mapper.createObjectNode().put("key", "test3")), owned.keySet());
+		}
+		// ... unless the later vertex has >1 bucket, in which case it sorts first (since it is the one that gets merged into)
+		{
+			last.property(org.apache.tinkerpop.gremlin.structure.VertexProperty.Cardinality.set, GraphAnnotationBean.a2_p, "/test");
+			last.property(org.apache.tinkerpop.gremlin.structure.VertexProperty.Cardinality.set, GraphAnnotationBean.a2_p, "/other");
+			final Vertex mid = v_sorted.values().stream().skip(1).findFirst().get();
+			final Map<JsonNode, List<Vertex>> owned = TitanGraphBuildingUtils.filterOwnedVertexGroups(grouped_vertices, ImmutableSet.of(mid.id()));
+			assertEquals(ImmutableSet.of(_mapper.createObjectNode().put("key", "test1")), owned.keySet());
+		}
+		tx.rollback();
+	}
+	
+	@Test
+	public void test_filterUnmergedVertexGroups() {
+		
+		final TitanGraph titan = getSimpleTitanGraph();
+		final TitanManagement mgmt = titan.openManagement();		
+		mgmt.makePropertyKey(GraphAnnotationBean.a2_p).dataType(String.class).cardinality(Cardinality.SET).make();
+		mgmt.commit();
+		
+		final List<String> key_fields = Arrays.asList(GraphAnnotationBean.name, GraphAnnotationBean.type);
+		final ObjectNode key = _mapper.createObjectNode().put(GraphAnnotationBean.name, "ipA").put(GraphAnnotationBean.type, "ip");
+		
+		// (runs one of the merge passes of a task's final merge, returns the number of keys it merged)
+		final BiFunction<Set<Object>, BiFunction<Map<JsonNode, List<Vertex>>, Set<Object>, Map<JsonNode, List<Vertex>>>, Integer> merge_pass = (my_vertex_ids, filter) -> {
+			final TitanTransaction tx = titan.newTransaction();
+			final Map<JsonNode, List<Vertex>> grouped_vertices = filter.apply(TitanGraphBuildingUtils.getGroupedVertices(Arrays.asList(key), tx, key_fields, v -> true), my_vertex_ids);
+			TitanGraphBuildingUtils.mergeDuplicates(tx, "/test", grouped_vertices, new MutableStatsBean());
+			tx.commit();
+			return grouped_vertices.size();
+		};
+		final Supplier<Integer> count_vertices = () -> {
+			final TitanTransaction tx = titan.newTransaction();
+			final int count = Optional.ofNullable(TitanGraphBuildingUtils.getGroupedVertices(Arrays.asList(key), tx, key_fields, v -> true).get(key)).map(l -> l.size()).orElse(0);
+			tx.rollback();
+			return count;
+		};
+		
+		// 2 tasks each create a vertex for the same key
+		final TitanTransaction tx1 = titan.newTransaction();
+		final Vertex v1 = tx1.addVertex("ip");
+		v1.property(GraphAnnotationBean.name, "ipA");
+		v1.property(GraphAnnotationBean.type, "ip");
+		v1.property(GraphAnnotationBean.a2_p, "/test");
+		final TitanTransaction tx2 = titan.newTransaction();
+		final Vertex v2 = tx2.addVertex("ip");
+		v2.property(GraphAnnotationBean.name, "ipA");
+		v2.property(GraphAnnotationBean.type, "ip");
+		v2.property(GraphAnnotationBean.a2_p, "/test");
+		
+		// The task with the higher id owns the key, but commits and runs its final merge before the other task has committed
+		final boolean v1_owns = ((Long) v1.id()) > ((Long) v2.id());
+		final Set<Object> owner_ids = ImmutableSet.of((v1_owns ? v1 : v2).id());
+		final Set<Object> other_ids = ImmutableSet.of((v1_owns ? v2 : v1).id());
+		
+		(v1_owns ? tx1 : tx2).commit();
+		assertEquals(1, merge_pass.apply(owner_ids, TitanGraphBuildingUtils::filterOwnedVertexGroups).intValue());
+		assertEquals(0, merge_pass.apply(owner_ids, TitanGraphBuildingUtils::filterUnmergedVertexGroups).intValue()); // (nothing to merge yet)
+		
+		(v1_owns ? tx2 : tx1).commit();
+		assertEquals(2, count_vertices.get().intValue());
+		
+		// So the other task doesn't own the key, and the duplicate would survive...
+		assertEquals(0, merge_pass.apply(other_ids, TitanGraphBuildingUtils::filterOwnedVertexGroups).intValue());
+		assertEquals(2, count_vertices.get().intValue());
+		
+		// ...but its sweep merges it
+		assertEquals(1, merge_pass.apply(other_ids, TitanGraphBuildingUtils::filterUnmergedVertexGroups).intValue());
+		assertEquals(1, count_vertices.get().intValue());
+		
+		// (and sweeping again does nothing)
+		assertEquals(0, merge_pass.apply(owner_ids, TitanGraphBuildingUtils::filterUnmergedVertexGroups).intValue());
+		assertEquals(0, merge_pass.apply(other_ids, TitanGraphBuildingUtils::filterUnmergedVertexGroups).intValue());
+	}
+	
 	@Test
 	public void test_mergeEdges() {
 		
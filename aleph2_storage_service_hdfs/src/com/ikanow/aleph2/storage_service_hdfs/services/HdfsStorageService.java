@@ -155,6 +155,9 @@ public class HdfsStorageService implements IStorageService {
 						}
 					}
 				}
+				else if (driver_class.isAssignableFrom(Configuration.class)) {
+					return (Optional<T>) Optional.of(getConfiguration());
+				}
 			} // !=null
 		} 
 		catch (Exception e) {
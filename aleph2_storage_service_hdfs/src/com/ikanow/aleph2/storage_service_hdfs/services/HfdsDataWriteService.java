@@ -15,23 +15,47 @@
  *******************************************************************************/
 package com.ikanow.aleph2.storage_service_hdfs.services;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.http.impl.cookie.DateUtils;
 import org.apache.logging.log4j.LogManager;
@@ -40,6 +64,10 @@ import org.apache.logging.log4j.Logger;
 import scala.Tuple2;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService;
@@ -57,6 +85,7 @@ import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.data_model.utils.TimeUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.UuidUtils;
+import com.ikanow.aleph2.storage_service_hdfs.utils.HdfsColumnarUtils;
 import com.ikanow.aleph2.storage_service_hdfs.utils.HdfsErrorUtils;
 
 import fj.Unit;
@@ -70,6 +99,43 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 	public static final FsPermission DEFAULT_DIR_PERMS = FsPermission.valueOf("drwxrwxrwx");
 	
 	protected static final String SPOOL_DIR = "/.spooldir/";
+	
+	protected static final int WORKER_QUEUE_SIZE = 1024; // (batches of objects, per worker - storeObject(s) blocks if it fills up)
+	protected static final int INITIAL_RECORD_BUFFER_SIZE = 4096;
+	protected static final int MAX_RECORD_BUFFER_SIZE = 1024*1024;
+	protected static final int MAX_METRICS_TIME_BUCKETS = 256;
+	protected static final int MAX_OPEN_SEGMENTS_PER_WORKER = 8; // (each worker keeps one segment open per time bucket, up to this many)
+	protected static final long QUEUE_LIVENESS_CHECK_MS = 1000L; // (how often a blocked storeObject(s) checks its worker is still alive)
+	protected static final long FLUSH_TIMEOUT_MS = 5L*60L*1000L; // (flushOutput fails if the workers haven't all completed their segments by then)
+	
+	protected static final String SPOOL_JOURNAL_SUFFIX = "_journal/"; // (eg ".spooldir" -> ".spooldir_journal")
+	protected static final String JOURNAL_EXT = ".journal";
+	protected static final long MIN_ORPHAN_AGE_MS = 15L*60L*1000L; // (spooled segments are only recovered once they are at least this old, and 2x the flush interval)
+	protected static final long SHUTDOWN_FLUSH_TIMEOUT_MS = 10000L;
+	
+	protected static final ObjectMapper _mapper = new ObjectMapper();
+	protected static final ObjectWriter _json_writer = _mapper.writer();
+	
+	protected static final ScheduledExecutorService _flush_timer = 
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aleph2-hdfs-flush-timer-%d").build());
+	
+	// (a single shutdown hook flushes all the active batch writers - anything that doesn't make it is recovered from the spool journal on restart)
+	protected static final Set<IBatchSubservice<?>> _active_writers = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			final List<IBatchSubservice<?>> writers;
+			synchronized (_active_writers) {
+				writers = new ArrayList<>(_active_writers);
+			}
+			try {
+				CompletableFuture.allOf(writers.stream()
+											.map(writer -> CompletableFuture.supplyAsync(() -> writer.flushOutput()).thenCompose(f -> f.thenApply(__ -> Unit.unit())))
+											.toArray(CompletableFuture[]::new))
+								.get(SHUTDOWN_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			}
+			catch (Exception e) {}
+		}));
+	}
 		
 	/////////////////////////////////////////////////////////////
 	
@@ -234,6 +300,38 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		setup();
 		return Optional.of(_writer.get());
 	}
+	
+	/** Returns the Hadoop configuration (eg for writing columnar segments)
+	 * @return a copy of the storage service's configuration
+	 */
+	protected Configuration getConfiguration() {
+		return _storage_service.getUnderlyingPlatformDriver(Configuration.class, Optional.empty()).map(config -> new Configuration(config)).orElseGet(Configuration::new);
+	}
+	
+	/** Returns the top level fields to write as columns in columnar segments, from the bucket's columnar schema (if it has an include list)
+	 * @return the fields, or empty to use all the fields
+	 */
+	protected Optional<Set<String>> getColumnarFields() {
+		return Optionals.of(() -> _bucket.data_schema().columnar_schema())
+				.filter(schema -> Optional.ofNullable(schema.enabled()).orElse(true))
+				.map(schema -> schema.field_include_list())
+				.map(fields -> fields.stream().map(field -> field.split("[.]")[0]).collect(Collectors.toSet()))
+				;
+	}
+	
+	/** Returns the time of a record from its temporal field, if it has one
+	 * @param j - the record
+	 * @return the time, or empty if the bucket has no temporal field or the record doesn't have a (valid) time
+	 */
+	protected Optional<Date> getRecordTime(final JsonNode j) {
+		return _temporal_field
+				.map(tf -> j.get(tf))
+				.map(jsonl -> {
+					if (jsonl.isLong()) return new Date(jsonl.asLong());
+					else if (jsonl.isTextual()) return TimeUtils.parseIsoString(jsonl.asText()).validation(__ -> null, success -> success);
+					else return null; // return nulls fall through to...)
+				});
+	}
 
 	/////////////////////////////////////////////////////////////
 	
@@ -241,40 +339,52 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 	 * @author alex
 	 */
 	public class BatchHdfsWriteService implements IBatchSubservice<T> {
-		final protected LinkedBlockingQueue<Object> _shared_queue = new LinkedBlockingQueue<>();
 		public class MutableState {
-			int max_objects = 5000; // (5K objects)
-			long size_kb = 20L*1024L; // (20MB)
-			Duration flush_interval = Duration.ofMinutes(10L); // (10 minutes)
-			int write_threads = 2;
+			volatile int max_objects = 5000; // (5K objects)
+			volatile long size_kb = 20L*1024L; // (20MB)
+			volatile Duration flush_interval = Duration.ofMinutes(10L); // (10 minutes)
+			volatile int write_threads = 2;
+			volatile List<WriterQueue> _queues = Collections.emptyList(); // (one per worker, replaced not modified)
 			ThreadPoolExecutor _workers = null;
 		}
 		final protected MutableState _state = new MutableState();
 		final protected SetOnce<Unit> _initialized = new SetOnce<>(); // (lazy initialization)
 		
+		final protected Optional<String> _time_bucket_format = getSuffixFormat(_bucket, _stage);
+		final protected boolean _route_by_record_time;
+		final protected AtomicInteger _round_robin = new AtomicInteger();
+		final protected ConcurrentHashMap<String, BucketMetrics> _metrics = new ConcurrentHashMap<>();
+		
 		/** Lazy initialization of the writers
 		 */
 		protected void setup() {
 			if (!_initialized.isSet()) {
-				_initialized.trySet(Unit.unit());
-
-				// Launch the executor service
-				fillUpEmptyQueue();
-				
-				// This is ugly but safest, now apply the batch
-				Optionals.of(() -> _bucket.data_schema().storage_schema())
-					.map(store -> getStorageSubSchema(store, _stage))
-					.map(subschema -> subschema.target_write_settings())
-					.ifPresent(writer -> {
-						setBatchProperties(
-								Optional.<Integer>ofNullable(writer.batch_max_objects()),
-								Optional.<Long>ofNullable(writer.batch_max_size_kb()),
-								Optional.ofNullable(writer.batch_flush_interval())
-										.map(secs -> Duration.ofSeconds(secs))
-								,
-								Optional.<Integer>ofNullable(writer.target_write_concurrency())
-								);
-					});
+				synchronized (this) { // (the queues need to exist before anything can be written to them)
+					if (!_initialized.isSet()) {
+						// Launch the executor service
+						fillUpEmptyQueue();
+						_initialized.trySet(Unit.unit());
+						_active_writers.add(this);
+						
+						// This is ugly but safest, now apply the batch
+						Optionals.of(() -> _bucket.data_schema().storage_schema())
+							.map(store -> getStorageSubSchema(store, _stage))
+							.map(subschema -> subschema.target_write_settings())
+							.ifPresent(writer -> {
+								setBatchProperties(
+										Optional.<Integer>ofNullable(writer.batch_max_objects()),
+										Optional.<Long>ofNullable(writer.batch_max_size_kb()),
+										Optional.ofNullable(writer.batch_flush_interval())
+												.map(secs -> Duration.ofSeconds(secs))
+										,
+										Optional.<Integer>ofNullable(writer.target_write_concurrency())
+										);
+							});
+						
+						// Tidy up after any writers that crashed mid-segment
+						CompletableFuture.runAsync(() -> recoverOrphanedSegments());
+					}
+				}
 			}
 		}
 		
@@ -282,6 +392,19 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		 */
 		public BatchHdfsWriteService() {
 			//(do nothing, lazy initialization)
+			
+			// (only need to look at the records' times if they can end up in different time buckets)
+			_route_by_record_time = _temporal_field.isPresent() && _time_bucket_format.isPresent() &&
+					(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean.TimeSourcePolicy.batch == 
+						Optionals.of(() -> getStorageSubSchema(_bucket.data_schema().storage_schema(), _stage).grouping_time_policy())
+									.orElse(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean.TimeSourcePolicy.batch));
+		}
+		
+		/** Returns the write metrics for each of the time buckets (ie getSuffix periods) that have been written to recently
+		 * @return a map of time bucket (eg "2015-09-03") to metrics
+		 */
+		public Map<String, BucketMetrics> getMetrics() {
+			return Collections.unmodifiableMap(_metrics);
 		}
 		
 		/* (non-Javadoc)
@@ -295,28 +418,29 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 				_state.max_objects = max_objects.orElse(_state.max_objects);
 				_state.size_kb = size_kb.orElse(_state.size_kb);
 				_state.flush_interval = flush_interval.orElse(_state.flush_interval);
-				// (write threads change ignore for now)
 				
 				int old_write_threads = _state.write_threads;
 				_state.write_threads = write_threads.orElse(_state.write_threads);
 				if ((old_write_threads != _state.write_threads) && _initialized.isSet()) {
-					if (old_write_threads < _state.write_threads) { // easy case, just expand
-						_state._workers.setCorePoolSize(_state.write_threads);
+					final List<WriterQueue> queues = _state._queues;
+					if (queues.size() < _state.write_threads) { // easy case, just expand
+						final List<WriterQueue> new_queues = new ArrayList<>(queues);
 						_state._workers.setMaximumPoolSize(_state.write_threads);
-						for (int i = old_write_threads; i < _state.write_threads; ++i) {
-							_state._workers.execute(new WriterWorker());
-						}								
-					}
-					else if (old_write_threads > _state.write_threads) { // this is a bit ugly, nuke the existing worker queue
-						_state._workers.shutdownNow();
-						try {
-							boolean completed = _state._workers.awaitTermination(5, TimeUnit.SECONDS);
-							if (!completed) {
-								_logger.warn("(workers not completed before timeout expired: " + _state._workers.toString() + ")");
-							}
+						_state._workers.setCorePoolSize(_state.write_threads);
+						for (int i = queues.size(); i < _state.write_threads; ++i) {
+							final WriterQueue queue = new WriterQueue();
+							new_queues.add(queue);
+							_state._workers.execute(new WriterWorker(queue));
 						}
-						catch (Exception e) {}
-						fillUpEmptyQueue();
+						_state._queues = Collections.unmodifiableList(new_queues);
+					}
+					else if (queues.size() > _state.write_threads) { // retire the surplus workers - they write out whatever is already in their queues, complete their segments and exit
+						final List<WriterQueue> retired_queues = queues.subList(_state.write_threads, queues.size());
+						retired_queues.forEach(queue -> queue.retired = true);
+						_state._queues = Collections.unmodifiableList(new ArrayList<>(queues.subList(0, _state.write_threads)));
+						_state._workers.setCorePoolSize(_state.write_threads);
+						_state._workers.setMaximumPoolSize(_state.write_threads);
+						retired_queues.forEach(queue -> put(queue, new FlushRequest())); // (wakes the worker up so it notices it's been retired)
 					}
 				}
 			}
@@ -329,7 +453,7 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		@Override
 		public void storeObjects(List<T> new_objects) {
 			setup();
-			_shared_queue.add(new_objects);
+			enqueue(new_objects);
 		}
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObjects(java.util.List, boolean)
@@ -345,7 +469,7 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		@Override
 		public void storeObject(T new_object) {
 			setup();
-			_shared_queue.add(new_object);
+			enqueue(Collections.singletonList(new_object));
 		}
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObject(java.lang.Object, boolean)
@@ -359,42 +483,372 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		
 		// UTILITY
 		
-		/** Fills up queue
+		/** Fills up queue - creates the workers, one per queue
 		 */
 		private void fillUpEmptyQueue() {
+			final List<WriterQueue> new_queues = new ArrayList<>(_state.write_threads);
+			while (new_queues.size() < _state.write_threads) {
+				new_queues.add(new WriterQueue());
+			}
+			_state._queues = Collections.unmodifiableList(new_queues);
+			
 			_state._workers = new ThreadPoolExecutor(_state.write_threads, _state.write_threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
 			
-			for (int i = 0; i < _state.write_threads; ++i) {
-				_state._workers.execute(new WriterWorker());
-			}			
+			for (final WriterQueue queue: new_queues) {
+				_state._workers.execute(new WriterWorker(queue));
+			}
 		}
 
+		/** Splits the objects into time buckets and hands each bucket off to a worker
+		 *  - if the objects' times come from the objects themselves, they are split by time bucket first, otherwise they are all in the current time bucket
+		 *  - (in the former case objects that can't be converted to JSON are skipped and counted as failed here, as the workers do for the latter)
+		 *  - the batches are spread across the workers regardless of time bucket (each worker keeps a separate segment open per time bucket)
+		 * @param objects - the objects to write
+		 */
+		@SuppressWarnings("unchecked")
+		protected void enqueue(final List<?> objects) {
+			if (objects.isEmpty()) {
+				return;
+			}
+			final Date now = new Date();
+			if (_route_by_record_time) {
+				final LinkedHashMap<String, TimeBucketedObjects> time_buckets = new LinkedHashMap<>();
+				int skipped = 0;
+				for (final Object o: objects) {
+					final Object record;
+					try {
+						record = (o instanceof String) || (o instanceof JsonNode) ? o : BeanTemplateUtils.toJson(o); // (only convert once)
+					}
+					catch (Exception e) { // (eg a record that can't be serialized - skip it, the rest of the list is still written)
+						if (0 == skipped++) _logger.error(ErrorUtils.getLongForm("Failed to convert record for {1}: {0}", e, _bucket.full_name()));
+						getBucketMetrics(getTimeBucket(now)).onFailed(1);
+						continue;
+					}
+					final Date time = (record instanceof JsonNode) ? getRecordTime((JsonNode) record).orElse(now) : now;
+					final String time_bucket = getTimeBucket(time);
+					((List<Object>) time_buckets.computeIfAbsent(time_bucket, 
+							tb -> new TimeBucketedObjects(tb, time, new ArrayList<Object>(), getBucketMetrics(tb))).objects)
+						.add(record);
+				}
+				time_buckets.values().forEach(batch -> enqueue(batch));
+			}
+			else {
+				final String time_bucket = getTimeBucket(now);
+				enqueue(new TimeBucketedObjects(time_bucket, now, objects, getBucketMetrics(time_bucket)));
+			}
+		}
+		
+		/** Hands a batch of objects off to its worker's queue (blocking if the queue is full)
+		 * @param batch - the objects to write, all in the same time bucket
+		 */
+		protected void enqueue(final TimeBucketedObjects batch) {
+			batch.metrics.onQueued(batch.objects.size());
+			route(batch);
+		}
+		
+		/** Places a batch of objects on a worker's queue (blocking if the queue is full)
+		 * @param batch - the objects to write, all in the same time bucket
+		 */
+		protected void route(final TimeBucketedObjects batch) {
+			final List<WriterQueue> queues = _state._queues;
+			if (queues.isEmpty()) {
+				throw new RuntimeException(ErrorUtils.get("No HDFS writers left for {0}", _bucket.full_name()));
+			}
+			put(queues.get(Math.floorMod(_round_robin.getAndIncrement(), queues.size())), batch);
+		}
+		
+		/** Places a batch of objects (or a flush request) on a specific worker's queue (blocking if the queue is full,
+		 *  unless its worker has exited, in which case the batch is re-routed)
+		 * @param queue - the queue
+		 * @param batch - the objects to write, all in the same time bucket
+		 */
+		protected void put(final WriterQueue queue, final TimeBucketedObjects batch) {
+			try {
+				while (!queue.queue.offer(batch, QUEUE_LIVENESS_CHECK_MS, TimeUnit.MILLISECONDS)) {
+					if (queue.closed) { // (nothing will ever read from this queue again, so don't wait for it)
+						drainRetiredQueue(queue, Optional.empty());
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(ErrorUtils.getLongForm("Interrupted writing to HDFS: {0}", e));
+			}
+			if (queue.closed) { // (the worker exited before it saw this, eg the number of workers has just been reduced)
+				drainRetiredQueue(queue, Optional.empty());
+			}
+		}
+
+		/** Re-routes anything left in a queue whose worker has been removed
+		 * @param queue - the retired queue
+		 * @param error - if the worker died, flush requests waiting on it are failed with this (since whatever it was writing may have been lost)
+		 */
+		protected void drainRetiredQueue(final WriterQueue queue, final Optional<Throwable> error) {
+			final List<TimeBucketedObjects> leftovers = new ArrayList<>();
+			queue.queue.drainTo(leftovers);
+			leftovers.forEach(batch -> {
+				if ((batch instanceof FlushRequest) && error.isPresent()) {
+					((FlushRequest) batch).flushed.completeExceptionally(error.get());
+				}
+				else route(batch);
+			});
+		}
+		
+		/** Called by a worker as it exits - if it wasn't retired (ie it died, eg from an Error or being interrupted) then it is replaced, since
+		 *  nothing else reads from its queue. Anything left on its queue is then handed off to the other workers
+		 * @param queue - the worker's queue
+		 * @param error - the reason the worker exited, if it wasn't retired
+		 */
+		protected void onWorkerExit(final WriterQueue queue, final Optional<Throwable> error) {
+			if (!queue.retired) {
+				synchronized (this) {
+					queue.retired = true;
+					final List<WriterQueue> queues = _state._queues;
+					final int index = queues.indexOf(queue);
+					if (index >= 0) {
+						final WriterQueue new_queue = new WriterQueue();
+						final List<WriterQueue> new_queues = new ArrayList<>(queues);
+						new_queues.set(index, new_queue);
+						try {
+							_state._workers.execute(new WriterWorker(new_queue));
+							_state._queues = Collections.unmodifiableList(new_queues);
+						}
+						catch (Exception e) { // (eg the executor has been shut down)
+							new_queues.remove(index);
+							_state._queues = Collections.unmodifiableList(new_queues);
+						}
+					}
+				}
+			}
+			if (_state._queues.isEmpty()) { // (nowhere left to write anything)
+				final List<TimeBucketedObjects> leftovers = new ArrayList<>();
+				queue.queue.drainTo(leftovers);
+				leftovers.stream().filter(batch -> batch instanceof FlushRequest).forEach(batch -> 
+					((FlushRequest) batch).flushed.completeExceptionally(error.orElseGet(() -> new RuntimeException(ErrorUtils.get("No HDFS writers left for {0}", _bucket.full_name())))));
+			}
+			else drainRetiredQueue(queue, error);
+		}
+		
+		/** Returns the time bucket (ie the getSuffix period) for the given time
+		 * @param time
+		 * @return
+		 */
+		protected String getTimeBucket(final Date time) {
+			if (IStorageService.StorageStage.transient_input == _stage) { //(any temporal settings ignored)
+				return "";
+			}
+			else return _time_bucket_format.map(format -> DateUtils.formatDate(time, format)).orElse(IStorageService.NO_TIME_SUFFIX);
+		}
+		
+		/** Returns (creating if necessary) the metrics object for a time bucket
+		 * @param time_bucket
+		 * @return
+		 */
+		protected BucketMetrics getBucketMetrics(final String time_bucket) {
+			final BucketMetrics metrics = _metrics.get(time_bucket);
+			if (null != metrics) {
+				return metrics;
+			}
+			if (_metrics.size() >= MAX_METRICS_TIME_BUCKETS) { // (stop this growing for ever, just remove all the idle ones)
+				_metrics.values().removeIf(m -> 0 == m.queue_depth());
+			}
+			return _metrics.computeIfAbsent(time_bucket, __ -> new BucketMetrics());
+		}
+		
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#flushOutput()
 		 */
 		@Override
 		public CompletableFuture<?> flushOutput() {
+			if (!_initialized.isSet()) { // (lazily initialized, so nothing to flush)
+				return CompletableFuture.completedFuture(Unit.unit());
+			}
+			// Send a flush request down each worker's queue - once a worker reaches it, everything queued before it has been written out
+			// and the worker's segments have been completed (ie closed and moved out of the spool dir)
+			// (if a worker dies first then its flush request fails - and in case anything else goes wrong, the flush times out)
+			final List<CompletableFuture<Unit>> flushes = _state._queues.stream()
+					.map(queue -> {
+						final FlushRequest flush = new FlushRequest();
+						put(queue, flush);
+						return flush.flushed;
+					})
+					.collect(Collectors.toList());
 			
-			// This is a bit ugly, just shutdown all the threads and start new ones:
-			if (null != _state._workers) { // (can be null because it's lazily initialized)
-				_state._workers.shutdownNow();
-				return CompletableFuture.runAsync(() -> {
-					try {
-						boolean completed = _state._workers.awaitTermination(5, TimeUnit.SECONDS);
-						if (!completed) {
-							_logger.warn("(workers not completed before timeout expired: " + _state._workers.toString() + ")");
+			final CompletableFuture<Unit> flushed = new CompletableFuture<>();
+			CompletableFuture.allOf(flushes.stream().toArray(CompletableFuture[]::new)).whenComplete((__, err) -> {
+				if (null == err) flushed.complete(Unit.unit());
+				else flushed.completeExceptionally(err);
+			});
+			final ScheduledFuture<?> timeout = _flush_timer.schedule(() -> 
+				flushed.completeExceptionally(new TimeoutException(ErrorUtils.get("Timed out after {0}ms flushing HDFS output for {1}", FLUSH_TIMEOUT_MS, _bucket.full_name())))
+				, FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			flushed.whenComplete((__, ___) -> timeout.cancel(false));
+			
+			return flushed;
+		}
+		
+		/** Moves any segments orphaned in the spool dir (eg by a process crashing mid-segment) into their final location, using the journal
+		 *  written when each segment was started. Only segments from other processes and older than any live segment could be are recovered
+		 * @return the number of segments recovered
+		 */
+		protected int recoverOrphanedSegments() {
+			final String spool_dir = getBasePath(_storage_service.getBucketRootPath(), _bucket, _stage, _job_name, _buffer_name, true);
+			final Path journal_dir = new Path(getJournalPath(spool_dir));
+			final long min_age_ms = Math.max(MIN_ORPHAN_AGE_MS, 2L*_state.flush_interval.toMillis());
+			int recovered = 0;
+			try {
+				if (!HdfsStorageService.doesPathExist(_dfs, journal_dir)) {
+					return 0;
+				}
+				final RemoteIterator<FileStatus> it = _dfs.listStatus(journal_dir);
+				while (it.hasNext()) {
+					final Path journal = it.next().getPath();
+					if (journal.getName().endsWith(JOURNAL_EXT)) { // (ignore eg .crc files)
+						try {
+							if (recoverSegment(journal, spool_dir, min_age_ms)) recovered++;
+						}
+						catch (Exception e) {
+							_logger.error(ErrorUtils.getLongForm("Failed to recover spooled segment from {1}: {0}", e, journal));
 						}
 					}
-					catch (Exception e) {}
-					fillUpEmptyQueue();
-				});
+				}
 			}
-			else {
-				return CompletableFuture.completedFuture(Unit.unit());
+			catch (Exception e) {} // (just carry on, will try again next restart)
+			
+			return recovered;
+		}
+		
+		/** Recovers a single orphaned segment, keeping all the complete records written before the crash
+		 * @param journal - the journal written when the segment was started
+		 * @param spool_dir - the spool dir containing the segment
+		 * @param min_age_ms - the segment is left alone if the journal is younger than this
+		 * @return whether the segment was recovered
+		 * @throws Exception
+		 */
+		protected boolean recoverSegment(final Path journal, final String spool_dir, final long min_age_ms) throws Exception {
+			final JsonNode entry;
+			try (InputStream in = _dfs.open(journal)) {
+				entry = _mapper.readTree(in);
+			}
+			if (_process_id.equals(entry.path("process_id").asText()) || ((System.currentTimeMillis() - entry.path("started").asLong()) < min_age_ms)) {
+				return false; // (this segment could still be in use)
+			}
+			// Claim the segment (in case another process is recovering the same one, in which case this throws)
+			final Path claimed = new Path(journal.toString() + "." + _process_id);
+			_dfs.rename(journal, claimed);
+			
+			final Path spool_file = new Path(spool_dir + "/" + entry.path("segment").asText());
+			if (HdfsStorageService.doesPathExist(_dfs, spool_file)) { // (else crashed after the segment was moved)
+				final Optional<String> codec = Optional.ofNullable(entry.get("codec")).filter(j -> j.isTextual()).map(j -> j.asText());
+				final Path path = new Path(getBasePath(_storage_service.getBucketRootPath(), _bucket, _stage, _job_name, _buffer_name, false) + "/" + entry.path("time_bucket").asText() + "/" + spool_file.getName());
+				try { 
+					_dfs.mkdir(path.getParent(), DEFAULT_DIR_PERMS, true); //(note perm is & with umask)
+					try { _dfs.setPermission(path.getParent(), DEFAULT_DIR_PERMS); } catch (Exception e) {} // (not supported in all FS)
+				} catch (Exception e) {} // (fails if already exists?)
+				
+				final long records;
+				if (HdfsColumnarUtils.isColumnarCodec(codec)) { // (spooled as JSON, so tidy it up then convert into the final columnar format)
+					final Path recovered = new Path(spool_file.toString() + ".recovered");
+					copyCompleteRecords(Optional.empty(), _dfs.open(spool_file), _dfs.create(recovered, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE)));
+					records = HdfsColumnarUtils.convertToParquet(_dfs, recovered, path, getConfiguration(), getColumnarFields(), _state.size_kb*1024L);
+					_dfs.delete(recovered, false);
+				}
+				else {
+					records = copyCompleteRecords(codec, _dfs.open(spool_file), _dfs.create(path, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE)));
+				}
+				try { _dfs.setPermission(path, DEFAULT_DIR_PERMS); } catch (Exception e) {} // might not be supported in FS
+				_dfs.delete(spool_file, false);
+				
+				_logger.info(ErrorUtils.get("Recovered {0} records from orphaned segment {1} into {2}", records, spool_file, path));
 			}
+			_dfs.delete(claimed, false);
+			return true;
 		}
 	}
 
+	/** A batch of objects, all in the same time bucket, to be written out by a single worker
+	 * @author Alex
+	 */
+	protected static class TimeBucketedObjects {
+		protected TimeBucketedObjects(final String time_bucket, final Date time, final List<?> objects, final BucketMetrics metrics) {
+			this.time_bucket = time_bucket;
+			this.time = time;
+			this.objects = objects;
+			this.metrics = metrics;
+		}
+		final String time_bucket;
+		final Date time; // (the time of the first object)
+		final List<?> objects;
+		final BucketMetrics metrics;
+	}
+	
+	/** Sent down a worker's queue to make it complete its current segment
+	 * @author Alex
+	 */
+	protected static class FlushRequest extends TimeBucketedObjects {
+		protected FlushRequest() {
+			super(null, null, Collections.emptyList(), null);
+		}
+		final CompletableFuture<Unit> flushed = new CompletableFuture<>();
+	}
+	
+	/** A bounded queue (ring buffer) that only a single worker reads from
+	 * @author Alex
+	 */
+	protected static class WriterQueue {
+		final ArrayBlockingQueue<TimeBucketedObjects> queue = new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE);
+		volatile boolean retired = false; // (if true, the worker is being removed, so nothing new is routed to it)
+		volatile boolean closed = false; // (if true, the worker has exited, so anything still written to it needs to be re-routed)
+	}
+	
+	/** Write metrics for a time bucket (ie all the data for a single getSuffix period)
+	 * @author Alex
+	 */
+	public static class BucketMetrics {
+		protected final long _created_ms = System.currentTimeMillis();
+		protected final AtomicLong _queued_records = new AtomicLong();
+		protected final AtomicLong _written_records = new AtomicLong();
+		protected final AtomicLong _written_bytes = new AtomicLong();
+		protected final AtomicLong _failed_records = new AtomicLong();
+		protected final AtomicLong _last_write_ms = new AtomicLong();
+		
+		protected void onQueued(final int num_records) {
+			_queued_records.addAndGet(num_records);
+		}
+		protected void onWritten(final int num_dequeued, final long num_records, final long num_bytes) {
+			_queued_records.addAndGet(-num_dequeued);
+			_written_records.addAndGet(num_records);
+			_written_bytes.addAndGet(num_bytes);
+			_last_write_ms.set(System.currentTimeMillis());
+		}
+		protected void onFailed(final long num_records) {
+			_failed_records.addAndGet(num_records);
+		}
+		
+		/** The number of records waiting to be written
+		 */
+		public long queue_depth() { return _queued_records.get(); }
+		/** The number of records written (to the current segment or completed segments)
+		 */
+		public long records_written() { return _written_records.get(); }
+		/** The number of bytes written (before compression)
+		 */
+		public long bytes_written() { return _written_bytes.get(); }
+		/** The number of records that couldn't be written (eg failed to serialize, or lost to an HDFS error)
+		 */
+		public long records_failed() { return _failed_records.get(); }
+		/** The mean write rate between the first record being queued and the last record being written
+		 */
+		public double records_per_sec() { return rate(_written_records.get()); }
+		/** The mean write rate (before compression) between the first record being queued and the last record being written
+		 */
+		public double bytes_per_sec() { return rate(_written_bytes.get()); }
+		
+		private double rate(final long count) {
+			return (1000.0*count)/Math.max(1L, _last_write_ms.get() - _created_ms);
+		}
+	}
+	
 	/////////////////////////////////////////////////////////////
 	
 	// BATCH SUB SERVICE - WORKER THREAD
@@ -405,7 +859,6 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 	public class WriterWorker implements Runnable {
 		
 		public class MutableState {
-			boolean terminate = false;
 			Optional<String> codec = Optional.empty();
 			DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean.TimeSourcePolicy time_policy = null;
 			int segment = 1;
@@ -415,11 +868,33 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 			Path curr_path;
 			OutputStream out;
 			Date timestamp_of_first_record_in_batch = null;
+			String curr_time_bucket = null; // (if known, else calculated from timestamp_of_first_record_in_batch)
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_RECORD_BUFFER_SIZE); // (re-used for every record)
+			Writer buffer_writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
 		}
-		final protected MutableState _state = new MutableState();
+		protected MutableState _state = new MutableState(); // (the segment currently being written)
+		final protected LinkedHashMap<String, MutableState> _open_segments = new LinkedHashMap<>(); // (the other segments still open, by time bucket, least recently written first)
+		protected int _last_segment = 1;
+		protected long _records_written = 0L;
+		protected long _bytes_written = 0L;
 		
 		final protected String _thread_id = UuidUtils.get().getRandomUuid().substring(14);
 		
+		final protected WriterQueue _queue;
+		
+		/** Creates a worker with its own (unshared) queue
+		 */
+		public WriterWorker() {
+			this(new WriterQueue());
+		}
+		
+		/** Creates a worker that reads from the specified queue
+		 * @param queue
+		 */
+		public WriterWorker(final WriterQueue queue) {
+			_queue = queue;
+		}
+		
 		/* (non-Javadoc)
 		 * @see java.lang.Runnable#run()
 		 */
@@ -427,59 +902,76 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		public void run() {
 			_logger.info("Starting HDFS worker thread: " + getFilename());
 			
-			Runtime.getRuntime().addShutdownHook(new Thread(Lambdas.wrap_runnable_i(() -> {
-				_state.terminate = true;
-				complete_segment(true);
-			})));
-			
 			// (Some internal mutable state - these values are _always_ overwritten)
 			boolean more_objects = false;
 			int max_objects = 5000; // (5K objects)
 			long size_b = 20L*1024L*1024L; // (20MB)
 			Duration flush_interval = Duration.ofMinutes(10L); // (10 minutes)
 			long timeout_ns = flush_interval.toNanos();
-			long timeout_ms = timeout_ns*1000L;
+			long timeout_ms = flush_interval.toMillis();
+			Optional<Throwable> error = Optional.empty();
 			
 			try {
-				for (; !_state.terminate && !Thread.interrupted();) {
-					if (!more_objects) {
-						synchronized (_writer) {
-							max_objects = _writer.get()._state.max_objects;
-							size_b = _writer.get()._state.size_kb*1024L;
-							flush_interval = _writer.get()._state.flush_interval;
-							timeout_ns = flush_interval.toNanos();
-							timeout_ms = timeout_ns*1000L;
-						}
+				for (; !Thread.currentThread().isInterrupted() && !(_queue.retired && _queue.queue.isEmpty());) {
+					if (!more_objects) { // (the settings are all volatile, so no need to lock)
+						final BatchHdfsWriteService.MutableState settings = _writer.get()._state;
+						max_objects = settings.max_objects;
+						size_b = settings.size_kb*1024L;
+						flush_interval = settings.flush_interval;
+						timeout_ns = flush_interval.toNanos();
+						timeout_ms = flush_interval.toMillis();
 					}
-					Object o = _writer.get()._shared_queue.poll(timeout_ns, TimeUnit.NANOSECONDS); //(note this returns as soon as there is anything to write)
+					final TimeBucketedObjects o = _queue.queue.poll(timeout_ns, TimeUnit.NANOSECONDS); //(note this returns as soon as there is anything to write)
 					
-					if (null == o) {
-						complete_segment(false);
-						more_objects = false;
-						continue;
-					}
-					if (null == _state.out) {
-						new_segment();
+					try {
+						if (null == o) {
+							complete_all_segments(false);
+							more_objects = false;
+						}
+						else if (o instanceof FlushRequest) { // (everything queued before this has been written, so just need to complete the segments)
+							final FlushRequest flush = (FlushRequest) o;
+							try {
+								complete_all_segments(true);
+								flush.flushed.complete(Unit.unit());
+							}
+							catch (Exception e) {
+								flush.flushed.completeExceptionally(e);
+							}
+							more_objects = false;
+						}
+						else {
+							write(o);
+							complete_expired_segments(max_objects, size_b, timeout_ms);
+							if (check_segment(max_objects, size_b, timeout_ms)) {
+								complete_segment(false);
+								more_objects = false;
+							}
+							else {
+								more_objects = null != _queue.queue.peek();
+							}
+						}
 					}
-					write(o);
-					if (check_segment(max_objects, size_b, timeout_ms)) {
-						complete_segment(false);
+					catch (Exception e) { // carry on with a new segment unless we're being shut down (nothing else reads this worker's queue, so it mustn't exit)
+						if (Thread.currentThread().isInterrupted()) break;
+						_logger.error(ErrorUtils.getLongForm("Failed to write to {1}: {0}", e, _state.curr_path));
+						try { complete_segment(false); } catch (Exception ee) { _state.out = null; }
 						more_objects = false;
 					}
-					else {
-						more_objects = null != _writer.get()._shared_queue.peek();
-					}
 				}
 			}
-			catch (Exception e) { // assume this is an interrupted error and fall through to....
-				//DEBUG - just to check it is the expected error
-				//e.printStackTrace();
+			catch (InterruptedException e) { // (being shut down, fall through to....)
+			}
+			catch (Throwable t) { // (eg an Error - fall through to... and the worker gets replaced)
+				error = Optional.of(t);
+				_logger.error(ErrorUtils.getLongForm("HDFS worker thread {1} failed: {0}", t, getFilename()));
 			}
-			try { // always try to complete current segment before exiting
-				complete_segment(true);
+			try { // always try to complete current segments before exiting
+				complete_all_segments(true);
 			}
 			catch (Exception ee) {}
 			
+			_queue.closed = true;
+			_writer.get().onWorkerExit(_queue, error); // (replaces this worker unless it was retired, and hands off anything added after the last check)
 			_logger.info("Terminating HDFS worker thread: " + getFilename());			
 		}
 		/** Write the object(s) out to the stream
@@ -488,45 +980,163 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		 * @throws IOException 
 		 */
 		protected void write(final Object o) throws IOException {
-			String s = null;
-			if (o instanceof List) {
+			if (o instanceof TimeBucketedObjects) {
+				final TimeBucketedObjects batch = (TimeBucketedObjects) o;
+				final long records_before = _records_written;
+				final long bytes_before = _bytes_written;
+				int skipped = 0;
+				try {
+					switch_segment(batch.time_bucket);
+					if (null == _state.out) {
+						new_segment();
+					}
+					if ((null == _state.timestamp_of_first_record_in_batch) || !batch.time_bucket.equals(_state.curr_time_bucket)) { // (each segment only contains one time bucket)
+						start_batch(batch.time, Optional.of(batch.time_bucket));
+					}
+					for (final Object ol: batch.objects) {
+						try {
+							write(ol);
+						}
+						catch (IOException e) { // (the segment is broken, so give up on the rest of the batch)
+							throw e;
+						}
+						catch (Exception e) { // (eg a record that can't be serialized - skip it, discarding anything partially written to the buffer)
+							if (0 == skipped++) _logger.error(ErrorUtils.getLongForm("Failed to write record to {1}: {0}", e, _state.curr_path));
+							_state.buffer = new ByteArrayOutputStream(INITIAL_RECORD_BUFFER_SIZE);
+							_state.buffer_writer = new OutputStreamWriter(_state.buffer, StandardCharsets.UTF_8);
+						}
+					}
+				}
+				finally {
+					final long records = _records_written - records_before;
+					batch.metrics.onWritten(batch.objects.size(), records, _bytes_written - bytes_before);
+					batch.metrics.onFailed(batch.objects.size() - records);
+				}
+				return;
+			}
+			else if (o instanceof List) {
 				@SuppressWarnings({ "rawtypes", "unchecked" })
 				List<Object> l = (List)o;
-				l.stream().forEach(Lambdas.wrap_consumer_u(ol -> write(ol)));
+				for (final Object ol: l) write(ol);
 				return;
 			}
 			else if (o instanceof String) {
 				if (null == _state.timestamp_of_first_record_in_batch) {
-					_state.timestamp_of_first_record_in_batch = new Date(); // can't infer from the object)
+					start_batch(new Date(), Optional.empty()); // can't infer from the object)
 				}
-				s = ((String) o);
-				if (!s.endsWith("\n")) s += "\n"; //(i think it will a fair bit)
+				final String s = ((String) o);
+				_state.buffer_writer.write(s);
+				if (!s.endsWith("\n")) _state.buffer_writer.write('\n'); //(i think it will a fair bit)
+				_state.buffer_writer.flush();
 			}
 			else { // These 2 - can get the times if possible
-				JsonNode j;
-				if (o instanceof JsonNode) {
-					j = ((JsonNode) o);
-				}
-				else {
-					j = BeanTemplateUtils.toJson(o);
-				}
+				final JsonNode j = (o instanceof JsonNode) ? ((JsonNode) o) : BeanTemplateUtils.toJson(o);
 				if (null == _state.timestamp_of_first_record_in_batch) {
-					_state.timestamp_of_first_record_in_batch = _temporal_field
+					start_batch(Optional.of(j)
 							.filter(__ -> _state.time_policy == DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean.TimeSourcePolicy.batch)
-							.map(tf -> j.get(tf))
-							.map(jsonl -> {
-								if (jsonl.isLong()) return new Date(jsonl.asLong());
-								else if (jsonl.isTextual()) return TimeUtils.parseIsoString(jsonl.asText()).validation(__ -> null, success -> success);
-								else return null; // return nulls fall through to...)
-							})
+							.flatMap(jj -> getRecordTime(jj))
 							.orElseGet(Date::new)
-							;
+							,
+							Optional.empty());
 				}
-				s = j.toString() + "\n";
+				_json_writer.writeValue(_state.buffer, j); // (straight to UTF-8, no intermediate string)
+				_state.buffer.write('\n');
 			}
-			_state.out.write(s.getBytes());
+			_state.buffer.writeTo(_state.out);
 			_state.curr_objects++;
-			_state.curr_size_b += s.getBytes().length;
+			_state.curr_size_b += _state.buffer.size();
+			_records_written++;
+			_bytes_written += _state.buffer.size();
+			
+			if (_state.buffer.size() > MAX_RECORD_BUFFER_SIZE) { // (don't hang onto the memory from unusually large records)
+				_state.buffer = new ByteArrayOutputStream(INITIAL_RECORD_BUFFER_SIZE);
+				_state.buffer_writer = new OutputStreamWriter(_state.buffer, StandardCharsets.UTF_8);
+			}
+			else {
+				_state.buffer.reset();
+			}
+		}
+		
+		/** Called before the first record of a segment is written - fixes the segment's time bucket and journals it, so that the
+		 *  segment can be recovered if the process dies before it's completed
+		 * @param time - the time of the first record
+		 * @param time_bucket - the time bucket, if already known
+		 */
+		protected void start_batch(final Date time, final Optional<String> time_bucket) {
+			_state.timestamp_of_first_record_in_batch = time;
+			_state.curr_time_bucket = time_bucket.orElseGet(() -> getSuffix(time, _bucket, _stage));
+			
+			final ObjectNode entry = _mapper.createObjectNode()
+					.put("process_id", _process_id)
+					.put("segment", _state.curr_path.getName())
+					.put("time_bucket", _state.curr_time_bucket)
+					.put("started", System.currentTimeMillis());
+			_state.codec.ifPresent(codec -> entry.put("codec", codec));
+			
+			try (OutputStream out = _dfs.create(getJournal(_state.curr_path), EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE), Options.CreateOpts.createParent())) {
+				out.write(_json_writer.writeValueAsBytes(entry));
+			}
+			catch (Exception e) { // (carry on, the segment just won't be recoverable)
+				_logger.warn(ErrorUtils.getLongForm("Failed to journal segment {1}: {0}", e, _state.curr_path));
+			}
+		}
+		
+		/** Makes the segment for the given time bucket the current one - the current segment is left open (up to MAX_OPEN_SEGMENTS_PER_WORKER
+		 *  per worker), so batches from different time buckets can be interleaved without each one completing a segment
+		 * @param time_bucket - the time bucket about to be written
+		 * @throws IOException
+		 */
+		protected void switch_segment(final String time_bucket) throws IOException {
+			if ((null != _state.out) && (_state.curr_objects > 0) && !time_bucket.equals(_state.curr_time_bucket)) {
+				_open_segments.put(_state.curr_time_bucket, _state);
+				_state = Optional.ofNullable(_open_segments.remove(time_bucket)).orElseGet(() -> {
+					final MutableState state = new MutableState();
+					state.segment = ++_last_segment;
+					return state;
+				});
+				if (_open_segments.size() >= MAX_OPEN_SEGMENTS_PER_WORKER) { // (complete the least recently written segment)
+					final Iterator<MutableState> it = _open_segments.values().iterator();
+					final MutableState eldest = it.next();
+					it.remove();
+					complete_segment(eldest, false);
+				}
+			}
+		}
+		
+		/** Completes any of the open segments (other than the current one) that have reached their time limit
+		 * @param max_objects
+		 * @param max_size_b
+		 * @param max_duration_ms
+		 * @throws IOException
+		 */
+		protected void complete_expired_segments(final int max_objects, final long max_size_b, final long max_duration_ms) throws IOException {
+			for (final Iterator<MutableState> it = _open_segments.values().iterator(); it.hasNext(); ) {
+				final MutableState state = it.next();
+				if (check_segment(state, max_objects, max_size_b, max_duration_ms)) {
+					it.remove();
+					complete_segment(state, false);
+				}
+			}
+		}
+		
+		/** Completes all the open segments, including the current one
+		 * @param flushed - whether this being invokes as part of an exit call, currently unused
+		 * @throws IOException - the last error, if any of the segments couldn't be completed (the others are still completed)
+		 */
+		protected void complete_all_segments(final boolean flushed) throws IOException {
+			IOException error = null;
+			for (final Iterator<MutableState> it = _open_segments.values().iterator(); it.hasNext(); ) {
+				final MutableState state = it.next();
+				it.remove();
+				try {
+					complete_segment(state, flushed);
+				}
+				catch (IOException e) {
+					error = e;
+				}
+			}
+			complete_segment(flushed);
+			if (null != error) throw error;
 		}
 		
 		/** Utility to check the file vs time and siz
@@ -535,14 +1145,24 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		 * @return
 		 */
 		protected boolean check_segment(final int max_objects, final long max_size_b, final long max_duration_ms) {
+			return check_segment(_state, max_objects, max_size_b, max_duration_ms);
+		}
+		
+		/** Utility to check the file vs time and size, for any of the open segments
+		 * @param state - the segment
+		 * @param max_objects
+		 * @param max_size
+		 * @return
+		 */
+		protected boolean check_segment(final MutableState state, final int max_objects, final long max_size_b, final long max_duration_ms) {
 			final long now = System.currentTimeMillis();
-			boolean trigger = ((_state.curr_objects > max_objects)
+			boolean trigger = ((state.curr_objects > max_objects)
 					||
-				(_state.curr_size_b > max_size_b)
+				(state.curr_size_b > max_size_b)
 					||
-				((now - _state.last_segmented) > max_duration_ms)
+				((now - state.last_segmented) > max_duration_ms)
 					||
-				(now < _state.last_segmented) // (clock has changed so trigger immediately)
+				(now < state.last_segmented) // (clock has changed so trigger immediately)
 					);
 			
 			//DEBUG
@@ -574,19 +1194,29 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 			}
 		}
 		
-		/** Completes an existing segment
+		/** Completes the current segment
 		 * @param flushed - whether this being invokes as part of an exit call, currently unused
 		 * @throws IOException 
 		 */
 		protected synchronized void complete_segment(boolean flushed) throws IOException {
+			complete_segment(_state, flushed);
+		}
+		
+		/** Completes an existing segment
+		 * @param state - the segment
+		 * @param flushed - whether this being invokes as part of an exit call, currently unused
+		 * @throws IOException 
+		 */
+		protected synchronized void complete_segment(final MutableState state, boolean flushed) throws IOException {
 			try {
-				if ((null != _state.out) && (_state.curr_objects > 0)) {
-					_state.out.close();
-					_state.out = null;
-					_state.segment++;
+				if ((null != state.out) && (state.curr_objects > 0)) {
+					state.out.close();
+					state.out = null;
+					state.segment = ++_last_segment;
 					
-					final Date batch_time = Optional.ofNullable(_state.timestamp_of_first_record_in_batch).orElseGet(Date::new);
-					final Path path =  new Path(getBasePath(_storage_service.getBucketRootPath(), _bucket, _stage, _job_name, _buffer_name, false) + "/" + getSuffix(batch_time, _bucket, _stage) + "/" + _state.curr_path.getName());
+					final Date batch_time = Optional.ofNullable(state.timestamp_of_first_record_in_batch).orElseGet(Date::new);
+					final String time_bucket = Optional.ofNullable(state.curr_time_bucket).orElseGet(() -> getSuffix(batch_time, _bucket, _stage));
+					final Path path =  new Path(getBasePath(_storage_service.getBucketRootPath(), _bucket, _stage, _job_name, _buffer_name, false) + "/" + time_bucket + "/" + state.curr_path.getName());
 					try {
 						// create directory
 						_dfs.mkdir(path.getParent(), DEFAULT_DIR_PERMS, true); //(note perm is & with umask)
@@ -599,24 +1229,45 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 						
 					} catch (Exception e) {} // (fails if already exists?)
 					
-					// Update file permissions:
-					final Path crc_path = getCrc(_state.curr_path);
-
-					try { _dfs.setPermission(_state.curr_path, DEFAULT_DIR_PERMS); } catch (Exception e) {} // might not be supported in FS
-					try { _dfs.setPermission(crc_path, DEFAULT_DIR_PERMS); } catch (Exception e) {} // might not be supported in FS					
+					if (HdfsColumnarUtils.isColumnarCodec(state.codec)) { // (spooled as JSON, so convert into the final columnar format)
+						final long row_group_size_b = _writer.isSet() ? _writer.get()._state.size_kb*1024L : 0L;
+						HdfsColumnarUtils.convertToParquet(_dfs, state.curr_path, path, getConfiguration(), getColumnarFields(), row_group_size_b);
+						
+						try { _dfs.setPermission(path, DEFAULT_DIR_PERMS); } catch (Exception e) {} // might not be supported in FS
+						_dfs.delete(state.curr_path, false);
+					}
+					else {
+						// Update file permissions:
+						final Path crc_path = getCrc(state.curr_path);
+	
+						try { _dfs.setPermission(state.curr_path, DEFAULT_DIR_PERMS); } catch (Exception e) {} // might not be supported in FS
+						try { _dfs.setPermission(crc_path, DEFAULT_DIR_PERMS); } catch (Exception e) {} // might not be supported in FS					
+						
+						// move file
+						_dfs.rename(state.curr_path, path);				
+						// move crc file
+						try { _dfs.rename(crc_path, getCrc(path)); } catch (Exception e) {} // (don't care what the error is)
+					}
 					
-					// move file
-					_dfs.rename(_state.curr_path, path);				
-					// move crc file
-					try { _dfs.rename(crc_path, getCrc(path)); } catch (Exception e) {} // (don't care what the error is)
+					// (no longer needs recovering)
+					try { _dfs.delete(getJournal(state.curr_path), false); } catch (Exception e) {}
 					
 				}
 			}
 			finally {
-				_state.timestamp_of_first_record_in_batch = null; // (always reset this)				
+				state.timestamp_of_first_record_in_batch = null; // (always reset this)				
+				state.curr_time_bucket = null;
 			}
 		}
 		
+		/** Gets the journal for a spooled file
+		 * @param p
+		 * @return
+		 */
+		private Path getJournal(final Path p) {
+			return new Path(getJournalPath(p.getParent().toString()) + p.getName() + JOURNAL_EXT);
+		}
+		
 		/** Gets the CRC version of a file
 		 * @param p
 		 * @return
@@ -629,7 +1280,7 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		 * @return
 		 */
 		protected String getFilename() {
-			final String suffix = getExtension(_stage) + _state.codec.map(s -> "." + s).orElse("");
+			final String suffix = (HdfsColumnarUtils.isColumnarCodec(_state.codec) ? "" : getExtension(_stage)) + _state.codec.map(s -> "." + s).orElse("");
 			return _process_id + "_" + _thread_id + "_" + _state.segment + suffix;
 		}
 		
@@ -660,6 +1311,8 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 							else return codec;
 						})
 						.map(String::toLowerCase)
+						.filter(codec -> !HdfsColumnarUtils.PARQUET_CODEC.equals(codec) // (columnar formats need JSON objects)
+											|| ((IStorageService.StorageStage.raw != stage) && (IStorageService.StorageStage.transient_input != stage)))
 						;
 	}
 	
@@ -685,6 +1338,65 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 				.orElse(original_output);
 	}
 	
+	/** Wraps an input stream in one of the supported codecs
+	 * @param codec
+	 * @param original_input
+	 * @return
+	 */
+	public static InputStream wrapInputInCodec(final Optional<String> codec, final InputStream original_input) {
+		return codec.map(Lambdas.wrap_u(c -> {
+					if (c.equals("gz")) {
+						return new java.util.zip.GZIPInputStream(original_input);
+					}
+					else if (c.equals("sz")) {
+						return new org.xerial.snappy.SnappyInputStream(original_input);
+					}
+					else if (c.equals("fr.sz")) {
+						return new org.xerial.snappy.SnappyFramedInputStream(original_input);
+					}
+					else return null; // (fallback to no codec)
+					
+				}))
+				.orElse(original_input);
+	}
+	
+	/** Copies all the complete (ie newline terminated) records from one segment to another, discarding anything partially written at the end,
+	 *  including if the input was cut off part way through a compressed block. Closes both streams
+	 * @param codec - the codec of both segments
+	 * @param raw_in - the (possibly truncated) segment
+	 * @param raw_out - the new segment
+	 * @return the number of records copied
+	 * @throws IOException
+	 */
+	public static long copyCompleteRecords(final Optional<String> codec, final InputStream raw_in, final OutputStream raw_out) throws IOException {
+		long records = 0L;
+		final OutputStream out = wrapOutputInCodec(codec, raw_out);
+		try {
+			final InputStream in = wrapInputInCodec(codec, raw_in);
+			final ByteArrayOutputStream partial = new ByteArrayOutputStream(INITIAL_RECORD_BUFFER_SIZE);
+			final byte[] buffer = new byte[65536];
+			for (int n; (n = in.read(buffer)) >= 0; ) {
+				int start = 0;
+				for (int i = 0; i < n; ++i) {
+					if ('\n' == buffer[i]) {
+						partial.writeTo(out);
+						partial.reset();
+						out.write(buffer, start, 1 + i - start);
+						start = i + 1;
+						records++;
+					}
+				}
+				partial.write(buffer, start, n - start);
+			}
+		}
+		catch (Exception e) {} // (truncated, keep everything up to the last complete record)
+		finally {
+			try { raw_in.close(); } catch (Exception e) {}
+			out.close();
+		}
+		return records;
+	}
+	
 	/** V simple utility - if we know it's JSON then use that otherwise use nothing
 	 * @param stage
 	 * @return
@@ -728,6 +1440,14 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 						.get();
 	}
 	
+	/** Returns the directory containing the journals for the given spool dir
+	 * @param spool_path - the spool dir (eg from getBasePath(..., true))
+	 * @return
+	 */
+	public static String getJournalPath(final String spool_path) {
+		return (spool_path.endsWith("/") ? spool_path.substring(0, spool_path.length() - 1) : spool_path) + SPOOL_JOURNAL_SUFFIX;
+	}
+	
 	/** Gets the time based suffix, or IStorageService.NO_TIME_SUFFIX if it's not temporal
 	 * @param bucket
 	 * @param stage
@@ -737,14 +1457,25 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		if (IStorageService.StorageStage.transient_input == stage) { //(any temporal settings ignored)
 			return "";
 		}
-		else return Optionals.of(() -> bucket.data_schema().storage_schema())
+		else return getSuffixFormat(bucket, stage)
+				.map(format -> DateUtils.formatDate(now, format))
+				.orElse(IStorageService.NO_TIME_SUFFIX)
+				;
+	}
+	
+	/** Gets the date format used to build the time based suffix, if the stage has a (valid) grouping time period
+	 * @param bucket
+	 * @param stage
+	 * @return
+	 */
+	public static Optional<String> getSuffixFormat(final DataBucketBean bucket, final IStorageService.StorageStage stage) {
+		return Optionals.of(() -> bucket.data_schema().storage_schema())
 				.map(store -> getStorageSubSchema(store, stage))
 				.map(ss -> ss.grouping_time_period())
 				.<String>map(period -> TimeUtils.getTimePeriod(period)
 								.map(d -> TimeUtils.getTimeBasedSuffix(d, Optional.empty()))
-								.validation(fail -> null, success -> DateUtils.formatDate(now, success))
+								.validation(fail -> null, success -> success)
 						)
-				.orElse(IStorageService.NO_TIME_SUFFIX)
 				;
 	}
 	
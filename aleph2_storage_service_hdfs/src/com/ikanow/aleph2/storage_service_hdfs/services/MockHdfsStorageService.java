@@ -73,6 +73,9 @@ public class MockHdfsStorageService extends HdfsStorageService {
 				FileContext fs = FileContext.getLocalFSFileContext(new Configuration());
 				return (Optional<T>) Optional.of(fs.getDefaultFileSystem());
 			}
+			else if (driver_class.isAssignableFrom(Configuration.class)) {
+				return (Optional<T>) Optional.of(new Configuration());
+			}
 			
 		} // !=null
 		} catch (Exception e) {
@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.storage_service_hdfs.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.OriginalType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Type;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Utilities for writing the (line-delimited JSON) segments out in columnar (Parquet) format
+ *  Each top level field gets its own column, typed from the data in the segment (numbers, booleans and strings are stored natively, 
+ *  objects and arrays as JSON strings). Anything that doesn't fit in the schema is stored as a JSON object in an extra column, so 
+ *  nothing is lost
+ * @author Alex
+ */
+public class HdfsColumnarUtils {
+
+	public static final String PARQUET_CODEC = "parquet";
+	public static final String EXTRA_FIELDS_COLUMN = "_extra_json";
+	public static final String RECORD_NAME = "record";
+	public static final int MAX_COLUMNS = 1024; // (any other fields go into the extra column)
+	public static final long MIN_ROW_GROUP_SIZE_B = 1024L*1024L;
+	
+	protected static final ObjectMapper _mapper = new ObjectMapper();
+	protected static final Logger _logger = LogManager.getLogger();	
+	
+	/** The type of a column
+	 */
+	public enum ColumnType { 
+		LONG, DOUBLE, BOOLEAN, STRING, JSON;
+		
+		/** Returns the type that can hold values of both types
+		 * @param other
+		 * @return
+		 */
+		public ColumnType merge(final ColumnType other) {
+			if (this == other) return this;
+			else if (((LONG == this) && (DOUBLE == other)) || ((DOUBLE == this) && (LONG == other))) return DOUBLE;
+			else return JSON;
+		}
+		
+		/** Returns the type of a (non null) JSON value
+		 * @param j
+		 * @return
+		 */
+		public static ColumnType of(final JsonNode j) {
+			if (j.isIntegralNumber() && j.canConvertToLong()) return LONG;
+			else if (j.isFloatingPointNumber()) return DOUBLE;
+			else if (j.isBoolean()) return BOOLEAN;
+			else if (j.isTextual()) return STRING;
+			else return JSON;
+		}
+	}
+	
+	/** Returns whether the (canonical) codec is a columnar one
+	 * @param codec
+	 * @return
+	 */
+	public static boolean isColumnarCodec(final Optional<String> codec) {
+		return codec.map(c -> c.equals(PARQUET_CODEC)).orElse(false);
+	}
+	
+	/** Converts a segment of line-delimited JSON into Parquet - makes 2 passes over the input, one to build the schema, one to write the data
+	 * @param dfs - the file context containing both files
+	 * @param json_lines - the (uncompressed, line-delimited JSON) segment
+	 * @param parquet - the Parquet file to create
+	 * @param config - the Hadoop configuration used to write the file
+	 * @param columns - if present, only these top level fields get their own columns (eg the bucket's columnar schema's field_include_list)
+	 * @param row_group_size_b - the target (uncompressed) size of each row group
+	 * @return the number of records written (lines that aren't JSON objects are skipped and logged as errors)
+	 * @throws IOException
+	 */
+	public static long convertToParquet(final FileContext dfs, final Path json_lines, final Path parquet, final Configuration config, final Optional<Set<String>> columns, final long row_group_size_b) throws IOException {
+		final LinkedHashMap<String, ColumnType> column_types = new LinkedHashMap<>();
+		try (InputStream in = dfs.open(json_lines)) {
+			forEachRecord(in, json -> inferColumns(json, columns, column_types));
+		}
+		final MessageType schema = buildSchema(column_types);
+		
+		final long[] records = { 0L };
+		final long skipped;
+		try (ParquetWriter<JsonNode> writer = new ParquetWriter<JsonNode>(dfs.makeQualified(parquet), new JsonWriteSupport(schema, column_types), 
+				CompressionCodecName.SNAPPY, (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_ROW_GROUP_SIZE_B, row_group_size_b)), 
+				ParquetWriter.DEFAULT_PAGE_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE, ParquetWriter.DEFAULT_IS_DICTIONARY_ENABLED, false,
+				ParquetProperties.WriterVersion.PARQUET_1_0, config);
+			InputStream in = dfs.open(json_lines))
+		{
+			skipped = forEachRecord(in, json -> {
+				writer.write(json);
+				records[0]++;
+			});
+		}
+		if (skipped > 0) {
+			_logger.error(ErrorUtils.get("Skipped {0} lines that weren't JSON objects converting {1} to {2}", skipped, json_lines, parquet));
+		}
+		return records[0];
+	}
+	
+	/** Updates the column types from a record
+	 * @param json - the record
+	 * @param columns - if present, only these top level fields get their own columns
+	 * @param column_types - the column types so far, updated in place
+	 */
+	public static void inferColumns(final JsonNode json, final Optional<Set<String>> columns, final Map<String, ColumnType> column_types) {
+		final Iterator<Map.Entry<String, JsonNode>> it = json.fields();
+		while (it.hasNext()) {
+			final Map.Entry<String, JsonNode> kv = it.next();
+			if (kv.getValue().isNull() || EXTRA_FIELDS_COLUMN.equals(kv.getKey()) || !columns.map(c -> c.contains(kv.getKey())).orElse(true)) {
+				continue;
+			}
+			final ColumnType type = ColumnType.of(kv.getValue());
+			final ColumnType existing = column_types.get(kv.getKey());
+			if (null != existing) {
+				column_types.put(kv.getKey(), existing.merge(type));
+			}
+			else if (column_types.size() < MAX_COLUMNS) {
+				column_types.put(kv.getKey(), type);
+			}
+		}
+	}
+	
+	/** Builds the Parquet schema from the column types (all columns are optional, plus an extra column for anything that didn't fit)
+	 * @param column_types
+	 * @return
+	 */
+	public static MessageType buildSchema(final Map<String, ColumnType> column_types) {
+		final List<Type> fields = column_types.entrySet().stream()
+				.map(kv -> {
+					switch (kv.getValue()) {
+						case LONG: return new PrimitiveType(Type.Repetition.OPTIONAL, PrimitiveTypeName.INT64, kv.getKey());
+						case DOUBLE: return new PrimitiveType(Type.Repetition.OPTIONAL, PrimitiveTypeName.DOUBLE, kv.getKey());
+						case BOOLEAN: return new PrimitiveType(Type.Repetition.OPTIONAL, PrimitiveTypeName.BOOLEAN, kv.getKey());
+						default: return new PrimitiveType(Type.Repetition.OPTIONAL, PrimitiveTypeName.BINARY, kv.getKey(), OriginalType.UTF8);
+					}
+				})
+				.collect(Collectors.toList());
+		fields.add(new PrimitiveType(Type.Repetition.OPTIONAL, PrimitiveTypeName.BINARY, EXTRA_FIELDS_COLUMN, OriginalType.UTF8));
+		return new MessageType(RECORD_NAME, fields);
+	}
+	
+	/** Writes JSON records into Parquet using a fixed schema
+	 * @author Alex
+	 */
+	public static class JsonWriteSupport extends WriteSupport<JsonNode> {
+		protected final MessageType _schema;
+		protected final Map<String, ColumnType> _column_types;
+		protected RecordConsumer _consumer;
+		
+		/** User constructor
+		 * @param schema - from buildSchema
+		 * @param column_types - the column types the schema was built from
+		 */
+		public JsonWriteSupport(final MessageType schema, final Map<String, ColumnType> column_types) {
+			_schema = schema;
+			_column_types = column_types;
+		}
+		
+		/* (non-Javadoc)
+		 * @see org.apache.parquet.hadoop.api.WriteSupport#init(org.apache.hadoop.conf.Configuration)
+		 */
+		@Override
+		public WriteContext init(final Configuration configuration) {
+			return new WriteContext(_schema, Collections.emptyMap());
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.parquet.hadoop.api.WriteSupport#prepareForWrite(org.apache.parquet.io.api.RecordConsumer)
+		 */
+		@Override
+		public void prepareForWrite(final RecordConsumer consumer) {
+			_consumer = consumer;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.apache.parquet.hadoop.api.WriteSupport#write(java.lang.Object)
+		 */
+		@Override
+		public void write(final JsonNode record) {
+			ObjectNode extra = null;
+			_consumer.startMessage();
+			int index = 0;
+			for (final Map.Entry<String, ColumnType> column: _column_types.entrySet()) {
+				final JsonNode val = record.get(column.getKey());
+				if ((null != val) && !val.isNull()) {
+					if (column.getValue().merge(ColumnType.of(val)) == column.getValue()) {
+						_consumer.startField(column.getKey(), index);
+						switch (column.getValue()) {
+							case LONG: _consumer.addLong(val.longValue()); break;
+							case DOUBLE: _consumer.addDouble(val.doubleValue()); break;
+							case BOOLEAN: _consumer.addBoolean(val.booleanValue()); break;
+							case STRING: _consumer.addBinary(Binary.fromString(val.textValue())); break;
+							default: _consumer.addBinary(Binary.fromString(val.isTextual() ? val.textValue() : val.toString())); break;
+						}
+						_consumer.endField(column.getKey(), index);
+					}
+					else { // (can't happen if the schema was inferred from this data, but just in case)
+						extra = (null == extra) ? _mapper.createObjectNode() : extra;
+						extra.set(column.getKey(), val);
+					}
+				}
+				index++;
+			}
+			// Anything else goes in the extra column
+			final Iterator<Map.Entry<String, JsonNode>> it = record.fields();
+			while (it.hasNext()) {
+				final Map.Entry<String, JsonNode> kv = it.next();
+				if (!kv.getValue().isNull() && !_column_types.containsKey(kv.getKey())) {
+					extra = (null == extra) ? _mapper.createObjectNode() : extra;
+					extra.set(kv.getKey(), kv.getValue());
+				}
+			}
+			if (null != extra) {
+				_consumer.startField(EXTRA_FIELDS_COLUMN, index);
+				_consumer.addBinary(Binary.fromString(extra.toString()));
+				_consumer.endField(EXTRA_FIELDS_COLUMN, index);				
+			}
+			_consumer.endMessage();
+		}
+	}
+	
+	/** A consumer that can throw IOExceptions
+	 * @author Alex
+	 */
+	@FunctionalInterface
+	protected interface RecordHandler {
+		void handle(final JsonNode json) throws IOException;
+	}
+	
+	/** Reads the JSON objects out of a line-delimited JSON stream (skipping any lines that aren't JSON objects)
+	 * @param in
+	 * @param handler
+	 * @return the number of (non empty) lines skipped because they weren't JSON objects
+	 * @throws IOException
+	 */
+	protected static long forEachRecord(final InputStream in, final RecordHandler handler) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		long skipped = 0L;
+		for (String line; null != (line = reader.readLine()); ) {
+			if (line.trim().isEmpty()) continue;
+			final JsonNode json;
+			try {
+				json = _mapper.readTree(line);
+			}
+			catch (Exception e) { // (eg raw text, not much we can do with it)
+				skipped++;
+				continue;
+			}
+			if (json.isObject()) {
+				handler.handle(json);
+			}
+			else { // (eg an array or a bare value, which has no fields to store)
+				skipped++;
+			}
+		}
+		return skipped;
+	}
+}
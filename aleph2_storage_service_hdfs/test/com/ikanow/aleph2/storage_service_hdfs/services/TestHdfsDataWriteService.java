@@ -17,6 +17,7 @@ package com.ikanow.aleph2.storage_service_hdfs.services;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.OutputStream;
@@ -25,14 +26,18 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 import scala.Tuple2;
@@ -387,6 +392,10 @@ public class TestHdfsDataWriteService {
 		
 	}	
 	
+	public static class BadBean {
+		public String getBad() { throw new RuntimeException("Can't serialize"); }
+	}
+	
 	public static class TestBean {
 		public TestBean(String a, String b, Date t) { _id = a; value = b; time = t; }
 		public String _id;
@@ -620,6 +629,197 @@ public class TestHdfsDataWriteService {
 		assertTrue("New segment on time b", worker.check_segment(102, 102, 100000L));
 	}	
 	
+	@Test
+	public void test_writerService_timeBuckets() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;
+		
+		GlobalPropertiesBean globals = BeanTemplateUtils.build(GlobalPropertiesBean.class)
+											.with(GlobalPropertiesBean::distributed_root_dir, temp_dir)
+											.with(GlobalPropertiesBean::local_yarn_config_dir, System.getenv("HADOOP_CONF_DIR")).done().get();
+	
+		MockHdfsStorageService storage_service = new MockHdfsStorageService(globals);
+
+		final DataBucketBean test_bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/writer/time_buckets")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::temporal_schema, 
+									BeanTemplateUtils.build(TemporalSchemaBean.class)
+										.with(TemporalSchemaBean::time_field, "time")
+									.done().get())
+							.with(DataSchemaBean::storage_schema,
+								BeanTemplateUtils.build(StorageSchemaBean.class)
+									.with(StorageSchemaBean::processed, 
+											BeanTemplateUtils.build(StorageSchemaBean.StorageSubSchemaBean.class)
+												.with(StorageSchemaBean.StorageSubSchemaBean::grouping_time_period, "1month")
+												.with(StorageSchemaBean.StorageSubSchemaBean::grouping_time_policy, StorageSchemaBean.StorageSubSchemaBean.TimeSourcePolicy.batch)
+											.done().get())
+								.done().get()
+							)
+						.done().get())
+				.done().get();
+		
+		HfdsDataWriteService<TestBean> write_service = new HfdsDataWriteService<TestBean>(test_bucket, storage_service._data_service.get(),
+				IStorageService.StorageStage.processed, Optional.empty(), storage_service, Optional.empty());
+		
+		//(Tidy up)
+		try { FileUtils.deleteDirectory(new File(temp_dir + "/data/" + write_service._bucket.full_name())); } catch (Exception e) {}
+		
+		final IBatchSubservice<TestBean> batch = write_service.getBatchWriteSubservice().get();
+		batch.setBatchProperties(Optional.empty(), Optional.empty(), Optional.of(Duration.ofSeconds(1L)), Optional.of(2));
+		
+		// Records from 2 different months, interleaved:
+		final Date sep = new Date(1441311160000L); // Thu, 03 Sep 2015 20:12:40 GMT
+		final Date oct = new Date(1443989560000L); // Sun, 04 Oct 2015 20:12:40 GMT
+		batch.storeObjects(IntStream.range(0, 5).boxed().map(i -> new TestBean("id" + i, "val" + i, (0 == (i % 2)) ? sep : oct)).collect(Collectors.toList()));
+		
+		final File sep_dir = new File((temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/2015.09/").replace("/", File.separator));
+		final File oct_dir = new File((temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/2015.10/").replace("/", File.separator));
+		for (int ii = 0; ii < 40; ++ii) {
+			Thread.sleep(250L);
+			if (sep_dir.exists() && oct_dir.exists() && (2 == sep_dir.list().length) && (2 == oct_dir.list().length)) break;
+		}
+		// One segment (+ .crc) per month
+		assertEquals("One segment for Sep: " + Arrays.toString(sep_dir.list()), 2, Optional.ofNullable(sep_dir.list()).map(l -> l.length).orElse(0).intValue());
+		assertEquals("One segment for Oct: " + Arrays.toString(oct_dir.list()), 2, Optional.ofNullable(oct_dir.list()).map(l -> l.length).orElse(0).intValue());
+		
+		// Check the metrics
+		final Map<String, HfdsDataWriteService.BucketMetrics> metrics = write_service._writer.get().getMetrics();
+		assertEquals(3L, metrics.get("2015.09").records_written());
+		assertEquals(2L, metrics.get("2015.10").records_written());
+		assertEquals(0L, metrics.get("2015.09").queue_depth());
+		assertEquals(0L, metrics.get("2015.10").queue_depth());
+		assertTrue("Bytes written: " + metrics.get("2015.09").bytes_written(), metrics.get("2015.09").bytes_written() > 0L);
+		assertTrue("Write rate: " + metrics.get("2015.10").records_per_sec(), metrics.get("2015.10").records_per_sec() > 0.0);
+		
+		// Batches in the same time bucket are spread across the workers, each writing its own segment
+		batch.setBatchProperties(Optional.empty(), Optional.empty(), Optional.of(Duration.ofHours(1L)), Optional.empty());
+		for (int ii = 0; ii < 4; ++ii) {
+			batch.storeObject(new TestBean("id_sep" + ii, "val_sep" + ii, sep));
+		}
+		batch.flushOutput().get(10L, TimeUnit.SECONDS);
+		assertEquals("One more segment (+ .crc) per worker for Sep: " + Arrays.toString(sep_dir.list()), 6, sep_dir.list().length);
+		assertEquals(7L, metrics.get("2015.09").records_written());
+		
+		// A record that can't be serialized is skipped and counted, the rest of the list is still written
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final IBatchSubservice<Object> raw_batch = (IBatchSubservice) batch;
+		raw_batch.storeObjects(Arrays.asList(new TestBean("id_sep4", "val_sep4", sep), new BadBean(), new TestBean("id_sep5", "val_sep5", sep)));
+		batch.flushOutput().get(10L, TimeUnit.SECONDS);
+		assertEquals(9L, metrics.get("2015.09").records_written());
+		assertEquals(1L, metrics.values().stream().mapToLong(m -> m.records_failed()).sum());
+	}
+
+	
+	@Test
+	public void test_writerService_flush() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;		
+		HfdsDataWriteService<TestBean> write_service = getWriter("/test/writer/flush");
+
+		//(Tidy up)
+		try { FileUtils.deleteDirectory(new File(temp_dir + "/data/" + write_service._bucket.full_name())); } catch (Exception e) {}
+		
+		final IBatchSubservice<TestBean> batch = write_service.getBatchWriteSubservice().get();
+		// (long flush interval, so only a flush will complete the segments)
+		batch.setBatchProperties(Optional.of(1000), Optional.of(1000L), Optional.of(Duration.ofHours(1L)), Optional.of(2));
+		
+		batch.storeObjects(IntStream.range(0, 10).boxed().map(i -> new TestBean("id" + i, "val" + i, null)).collect(Collectors.toList()));
+		batch.storeObject(new TestBean("id10", "val10", null));
+		
+		batch.flushOutput().get(10L, TimeUnit.SECONDS);
+		
+		final File init_dir = new File((temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/.spooldir/").replace("/", File.separator));
+		final File final_dir = new File((temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/all_time/").replace("/", File.separator));
+		final File journal_dir = new File((temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/.spooldir_journal/").replace("/", File.separator));
+		
+		assertEquals("Spool dir empty: " + Arrays.toString(init_dir.list()), 0, init_dir.list().length);
+		assertEquals("Journal dir empty: " + Arrays.toString(journal_dir.list()), 0, Optional.ofNullable(journal_dir.list()).map(l -> l.length).orElse(0).intValue());
+		assertEquals("All records written: " + Arrays.toString(final_dir.list()), 11L, 
+				Arrays.stream(final_dir.listFiles()).filter(f -> !f.getName().endsWith(".crc"))
+					.mapToLong(Lambdas.wrap_u(f -> (long) FileUtils.readLines(f).size())).sum());
+		
+		// The workers are still running, so can carry on writing and flushing
+		batch.storeObject(new TestBean("id11", "val11", null));
+		batch.flushOutput().get(10L, TimeUnit.SECONDS);
+		assertEquals("All records written: " + Arrays.toString(final_dir.list()), 12L, 
+				Arrays.stream(final_dir.listFiles()).filter(f -> !f.getName().endsWith(".crc"))
+					.mapToLong(Lambdas.wrap_u(f -> (long) FileUtils.readLines(f).size())).sum());
+		assertEquals(2, write_service._writer.get()._state._workers.getActiveCount());
+		
+		// A record that can't be serialized is skipped, and the workers carry on
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final IBatchSubservice<Object> raw_batch = (IBatchSubservice) batch;
+		for (int ii = 0; ii < 4; ++ii) { // (so every worker gets one)
+			raw_batch.storeObject(new BadBean());
+		}
+		batch.storeObject(new TestBean("id12", "val12", null));
+		batch.flushOutput().get(10L, TimeUnit.SECONDS);
+		assertEquals("All records written: " + Arrays.toString(final_dir.list()), 13L, 
+				Arrays.stream(final_dir.listFiles()).filter(f -> !f.getName().endsWith(".crc"))
+					.mapToLong(Lambdas.wrap_u(f -> (long) FileUtils.readLines(f).size())).sum());
+		assertEquals(4L, write_service._writer.get().getMetrics().get(IStorageService.NO_TIME_SUFFIX).records_failed());
+		assertEquals(2, write_service._writer.get()._state._workers.getActiveCount());
+		
+		// A flush waiting on a worker that dies fails instead of hanging
+		final HfdsDataWriteService.WriterQueue dead_queue = new HfdsDataWriteService.WriterQueue();
+		final HfdsDataWriteService.FlushRequest pending_flush = new HfdsDataWriteService.FlushRequest();
+		dead_queue.queue.add(pending_flush);
+		dead_queue.closed = true;
+		write_service._writer.get().onWorkerExit(dead_queue, Optional.of(new RuntimeException("Worker died")));
+		try {
+			pending_flush.flushed.get(10L, TimeUnit.SECONDS);
+			fail("Should have failed");
+		}
+		catch (ExecutionException e) {
+			assertEquals("Worker died", e.getCause().getMessage());
+		}
+		batch.flushOutput().get(10L, TimeUnit.SECONDS); // (the other workers are unaffected)
+	}
+	
+	@Test
+	public void test_writerService_recovery() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;		
+		HfdsDataWriteService<TestBean> write_service = getWriter("/test/writer/recovery");
+
+		//(Tidy up)
+		try { FileUtils.deleteDirectory(new File(temp_dir + "/data/" + write_service._bucket.full_name())); } catch (Exception e) {}
+		
+		final String base_dir = temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/";
+		
+		// Create an orphaned segment from a "crashed" process, plus one that's still being written
+		final long old_time = System.currentTimeMillis() - 2L*HfdsDataWriteService.MIN_ORPHAN_AGE_MS;
+		FileUtils.writeStringToFile(new File(base_dir + ".spooldir/crashed_1_1.json"), "{\"a\":1}\n{\"a\":2}\n{\"a\":", "UTF-8");
+		FileUtils.writeStringToFile(new File(base_dir + ".spooldir_journal/crashed_1_1.json.journal"), 
+				"{\"process_id\":\"crashed\",\"segment\":\"crashed_1_1.json\",\"time_bucket\":\"all_time\",\"started\":" + old_time + "}", "UTF-8");
+		FileUtils.writeStringToFile(new File(base_dir + ".spooldir/live_1_1.json"), "{\"a\":1}\n", "UTF-8");
+		FileUtils.writeStringToFile(new File(base_dir + ".spooldir_journal/live_1_1.json.journal"), 
+				"{\"process_id\":\"live\",\"segment\":\"live_1_1.json\",\"time_bucket\":\"all_time\",\"started\":" + System.currentTimeMillis() + "}", "UTF-8");
+		
+		// (don't use setup() since that also runs the recovery in the background)
+		assertEquals(1, write_service.new BatchHdfsWriteService().recoverOrphanedSegments());
+		
+		assertEquals("{\"a\":1}\n{\"a\":2}\n", FileUtils.readFileToString(new File(base_dir + "all_time/crashed_1_1.json")));
+		assertTrue("Orphan removed", !new File(base_dir + ".spooldir/crashed_1_1.json").exists());
+		assertTrue("Journal removed", !new File(base_dir + ".spooldir_journal/crashed_1_1.json.journal").exists());
+		assertTrue("Live segment left alone", new File(base_dir + ".spooldir/live_1_1.json").exists());
+		assertTrue("Live journal left alone", new File(base_dir + ".spooldir_journal/live_1_1.json.journal").exists());
+		
+		// Check truncated compressed segments
+		{
+			final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			final OutputStream gz = new GZIPOutputStream(compressed, true);
+			gz.write("line1\nline2\nline3".getBytes());
+			gz.flush();
+			final byte[] truncated = compressed.toByteArray(); // (not closed, so no gzip trailer - as if the process died)
+			
+			final ByteArrayOutputStream recovered = new ByteArrayOutputStream();
+			assertEquals(2L, HfdsDataWriteService.copyCompleteRecords(Optional.of("gz"), new ByteArrayInputStream(truncated), recovered));
+			final ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+			IOUtils.copy(HfdsDataWriteService.wrapInputInCodec(Optional.of("gz"), new ByteArrayInputStream(recovered.toByteArray())), uncompressed);
+			assertEquals("line1\nline2\n", uncompressed.toString());
+		}
+	}
+	
 	@Test
 	public void test_writerService_end2end_primary() throws InterruptedException, ExecutionException {
 		test_writerService_end2end(Optional.empty(), false);
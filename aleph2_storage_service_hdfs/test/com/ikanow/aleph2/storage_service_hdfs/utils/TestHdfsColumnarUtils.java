@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.storage_service_hdfs.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.junit.Test;
+
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.StorageSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.storage_service_hdfs.services.HfdsDataWriteService;
+
+public class TestHdfsColumnarUtils {
+
+	@Test
+	public void test_parquetCodec() {
+		final StorageSchemaBean storage_schema = BeanTemplateUtils.build(StorageSchemaBean.class)
+				.with(StorageSchemaBean::raw, BeanTemplateUtils.build(StorageSchemaBean.StorageSubSchemaBean.class).with(StorageSchemaBean.StorageSubSchemaBean::codec, "Parquet").done().get())
+				.with(StorageSchemaBean::processed, BeanTemplateUtils.build(StorageSchemaBean.StorageSubSchemaBean.class).with(StorageSchemaBean.StorageSubSchemaBean::codec, "Parquet").done().get())
+			.done().get();
+		
+		assertEquals(Optional.of("parquet"), HfdsDataWriteService.getCanonicalCodec(storage_schema, IStorageService.StorageStage.processed));
+		assertEquals(Optional.empty(), HfdsDataWriteService.getCanonicalCodec(storage_schema, IStorageService.StorageStage.raw)); // (raw data isn't JSON)
+		
+		assertTrue(HdfsColumnarUtils.isColumnarCodec(Optional.of("parquet")));
+		assertFalse(HdfsColumnarUtils.isColumnarCodec(Optional.of("gz")));
+		assertFalse(HdfsColumnarUtils.isColumnarCodec(Optional.empty()));
+	}
+	
+	@Test
+	public void test_convertToParquet() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator + "test_columnar" + File.separator;
+		try { FileUtils.deleteDirectory(new File(temp_dir)); } catch (Exception e) {}
+		
+		final File json_lines = new File(temp_dir + "segment.json");
+		FileUtils.writeStringToFile(json_lines, 
+				"{\"l\":1,\"d\":1,\"b\":true,\"s\":\"a\",\"o\":{\"x\":1},\"x\":\"not a column\"}\n" +
+				"{\"l\":2,\"d\":2.5,\"s\":\"b\",\"o\":[1,2],\"x\":null}\n" +
+				"not json\n" +
+				"[1,2]\n" +
+				"\"bare string\"\n" +
+				"\n" +
+				"{\"l\":3,\"s\":4,\"x\":3}\n"
+				, "UTF-8");
+		
+		final FileContext dfs = FileContext.getLocalFSFileContext(new Configuration());
+		final Path parquet = new Path(temp_dir + "segment.parquet");
+		
+		// Everything except "x" gets a column
+		final long records = HdfsColumnarUtils.convertToParquet(dfs, new Path(json_lines.getPath()), parquet, new Configuration(), 
+				Optional.of(new HashSet<String>(Arrays.asList("l", "d", "b", "s", "o"))), 0L);
+		assertEquals(3L, records);
+		
+		// (the lines that aren't JSON objects are counted, not written)
+		try (InputStream in = new FileInputStream(json_lines)) {
+			final long[] handled = { 0L };
+			assertEquals(3L, HdfsColumnarUtils.forEachRecord(in, json -> handled[0]++));
+			assertEquals(3L, handled[0]);
+		}
+		
+		try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(), dfs.makeQualified(parquet)).build()) {
+			final Group r1 = reader.read();
+			assertEquals(PrimitiveTypeName.INT64, r1.getType().getType("l").asPrimitiveType().getPrimitiveTypeName());
+			assertEquals(PrimitiveTypeName.DOUBLE, r1.getType().getType("d").asPrimitiveType().getPrimitiveTypeName());
+			assertEquals(PrimitiveTypeName.BOOLEAN, r1.getType().getType("b").asPrimitiveType().getPrimitiveTypeName());
+			assertEquals(PrimitiveTypeName.BINARY, r1.getType().getType("s").asPrimitiveType().getPrimitiveTypeName());
+			assertEquals(6, r1.getType().getFieldCount()); // (5 + extra)
+			
+			assertEquals(1L, r1.getLong("l", 0));
+			assertEquals(1.0, r1.getDouble("d", 0), 0.0);
+			assertEquals(true, r1.getBoolean("b", 0));
+			assertEquals("a", r1.getString("s", 0));
+			assertEquals("{\"x\":1}", r1.getString("o", 0));
+			assertEquals("{\"x\":\"not a column\"}", r1.getString(HdfsColumnarUtils.EXTRA_FIELDS_COLUMN, 0));
+			
+			final Group r2 = reader.read();
+			assertEquals(2L, r2.getLong("l", 0));
+			assertEquals(2.5, r2.getDouble("d", 0), 0.0);
+			assertEquals(0, r2.getFieldRepetitionCount("b"));
+			assertEquals("[1,2]", r2.getString("o", 0));
+			assertEquals(0, r2.getFieldRepetitionCount(HdfsColumnarUtils.EXTRA_FIELDS_COLUMN));
+			
+			final Group r3 = reader.read();
+			assertEquals("4", r3.getString("s", 0)); // (string + number -> JSON string)
+			assertEquals("{\"x\":3}", r3.getString(HdfsColumnarUtils.EXTRA_FIELDS_COLUMN, 0));
+			
+			assertEquals(null, reader.read());
+		}
+	}
+}